@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This file is part of JoshEdit. JoshEdit is free software.
+ * You can use, modify, and distribute it under the terms of
+ * the GNU General Public License, version 3 or later.
+ */
+
+package org.lateralgm.joshedit;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of the benchmark jar. Accepts the usual JMH command line, but always attaches
+ * the GC profiler, so allocation rates are reported next to throughput, and runs the forked
+ * VMs headless.
+ */
+public final class BenchmarkMain {
+  /** Not instantiable. */
+  private BenchmarkMain() {
+  }
+
+  /**
+   * @param args
+   *        JMH command line arguments.
+   * @throws CommandLineOptionException
+   *         If the arguments cannot be parsed.
+   * @throws IOException
+   *         If JMH fails to list benchmarks or profilers.
+   * @throws RunnerException
+   *         If the benchmarks fail to run.
+   */
+  public static void main(String[] args) throws CommandLineOptionException, IOException,
+      RunnerException {
+    CommandLineOptions cmd = new CommandLineOptions(args);
+    if (cmd.shouldHelp() || cmd.shouldList() || cmd.shouldListProfilers()
+        || cmd.shouldListResultFormats() || cmd.shouldListWithParams()) {
+      org.openjdk.jmh.Main.main(args);
+      return;
+    }
+    Options opts =
+        new OptionsBuilder().parent(cmd).addProfiler(GCProfiler.class).jvmArgsAppend(
+            "-Djava.awt.headless=true").build(); //$NON-NLS-1$
+    new org.openjdk.jmh.runner.Runner(opts).run();
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This file is part of JoshEdit. JoshEdit is free software.
+ * You can use, modify, and distribute it under the terms of
+ * the GNU General Public License, version 3 or later.
+ */
+
+package org.lateralgm.joshedit;
+
+import java.util.concurrent.TimeUnit;
+
+import org.lateralgm.joshedit.JoshText.OPT;
+import org.lateralgm.joshedit.JoshText.UndoPatch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures editing through the same steps the editor takes for a key press: record an
+ * UndoPatch, insert through the Selection, realize the patch, and store it. Each edit is
+ * undone again, so the document does not grow between invocations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EditBenchmark {
+  /** The language of the document. */
+  @Param({ "gml" })
+  public String language;
+  /** The number of lines in the document. */
+  @Param({ "5000" })
+  public int lines;
+
+  /** Text pasted by {@link #pasteAndUndo()}. */
+  static final String PASTE;
+  static {
+    StringBuilder sb = new StringBuilder();
+    for (String s : Runner.getDefaultCode()) {
+      sb.append(s).append('\n');
+    }
+    PASTE = sb.toString();
+  }
+
+  /** The search run by {@link #replaceAllAndUndo()}. */
+  static final CodeSearch REPLACE =
+      CodeSearch.literal(new String[] { "player" }, true); //$NON-NLS-1$
+
+  /** The editor being edited. */
+  JoshText text;
+  /** The row at which edits are made. */
+  int row;
+  /** An index of the brackets of the editor, whose first line opens a parenthesis. */
+  BracketIndex brackets;
+
+  /** Build the editor, and give it some history to undo and redo. */
+  @Setup
+  public void setup() {
+    text = Fixtures.editor(language, lines);
+    row = lines / 2;
+    for (int i = 0; i < 16; i++) {
+      moveTo(row + i * 4, 0);
+      type('x');
+    }
+    // Parentheses are balanced on every line of the document, so this one is never closed.
+    text.code.getsb(0).insert(0, '(');
+    text.fireLineChange(0, 0);
+    brackets = new BracketIndex(text);
+    text.addLineChangeListener(brackets);
+  }
+
+  /**
+   * @param r
+   *        The row to which to move.
+   * @param c
+   *        The column to which to move.
+   */
+  void moveTo(int r, int c) {
+    text.caret.row = text.sel.row = r;
+    text.caret.col = text.sel.col = c;
+  }
+
+  /**
+   * Type a character at the caret.
+   *
+   * @param c
+   *        The character to type.
+   */
+  void type(char c) {
+    UndoPatch up = text.new UndoPatch();
+    text.sel.insert(c);
+    up.realize(text.caret.row);
+    text.storeUndo(up, OPT.TYPED);
+  }
+
+  /** Type a character in the middle of the document, then undo it. */
+  @Benchmark
+  public void typeAndUndo() {
+    moveTo(row, 4);
+    type('x');
+    text.undo();
+  }
+
+  /**
+   * Type a character, size the code and place the caret as a key press does, then undo it.
+   *
+   * @return The width of the caret's column, so it is not optimized away.
+   */
+  @Benchmark
+  public int typeSizeAndUndo() {
+    moveTo(row, 4);
+    type('x');
+    text.doCodeSize(false);
+    int w = text.line_wid_at(text.caret.row, text.caret.col);
+    text.undo();
+    return w;
+  }
+
+  /** Type a character into a column block of 1000 rows, then undo it. */
+  @Benchmark
+  public void typeColumnAndUndo() {
+    moveTo(row, 4);
+    text.sel.type = Selection.ST.RECT;
+    text.caret.row = row + 999;
+    type('x');
+    text.undo();
+    text.sel.type = Selection.ST.NORM;
+  }
+
+  /** Paste a few lines in the middle of the document, then undo it. */
+  @Benchmark
+  public void pasteAndUndo() {
+    moveTo(row, 4);
+    UndoPatch up = text.new UndoPatch();
+    text.sel.insert(PASTE);
+    up.realize(text.caret.row);
+    text.storeUndo(up, OPT.PASTE);
+    text.undo();
+  }
+
+  /** Replace every occurrence of a common identifier, then undo it. */
+  @Benchmark
+  public int replaceAllAndUndo() {
+    int n = text.replaceAll(REPLACE, "hero", 0, 0); //$NON-NLS-1$
+    text.undo();
+    return n;
+  }
+
+  /**
+   * Look for the match of the parenthesis opened on the first line, as the bracket
+   * highlighter does when the caret lands on it. There is none, so every line is searched.
+   *
+   * @return The row of the match, so it is not optimized away.
+   */
+  @Benchmark
+  public int matchBracket() {
+    BracketIndex.Search s = brackets.new Search(0, 0, 0, true);
+    s.run(Integer.MAX_VALUE);
+    return s.matchRow;
+  }
+
+  /**
+   * Type a character, then match the bracket {@link #matchBracket()} matches, as when the
+   * caret is moved back to it after an edit; then undo the edit.
+   *
+   * @return The row of the match, so it is not optimized away.
+   */
+  @Benchmark
+  public int typeMatchAndUndo() {
+    moveTo(row, 4);
+    type('x');
+    int r = matchBracket();
+    text.undo();
+    return r;
+  }
+
+  /** Undo, then redo, the last edit in the history. */
+  @Benchmark
+  public void undoRedo() {
+    text.undo();
+    text.redo();
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This file is part of JoshEdit. JoshEdit is free software.
+ * You can use, modify, and distribute it under the terms of
+ * the GNU General Public License, version 3 or later.
+ */
+
+package org.lateralgm.joshedit;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures exporting a whole document as text and as HTML, both as Strings and streamed to a
+ * Writer which discards what it is given, as a file or socket would take it. HTML is styled
+ * inline, and, streamed, also from a style sheet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExportBenchmark {
+  /** The language of the document. */
+  @Param({ "gml" })
+  public String language;
+  /** The number of lines in the document. */
+  @Param({ "20000" })
+  public int lines;
+
+  /** A Writer which counts what it is given, and keeps none of it. */
+  static final class CountingWriter extends Writer {
+    /** The number of characters written. */
+    long count;
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+      count += len;
+    }
+
+    @Override
+    public void write(int c) {
+      count++;
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+      count += len;
+    }
+
+    @Override
+    public void flush() {
+      // Nothing is kept.
+    }
+
+    @Override
+    public void close() {
+      // Nothing is kept.
+    }
+  }
+
+  /** The editor exported. */
+  JoshText text;
+
+  /** Build the editor, and style every line of it. */
+  @Setup
+  public void setup() {
+    text = Fixtures.editor(language, lines);
+    text.getHTML();
+  }
+
+  /** @return The text of the document, as a String. */
+  @Benchmark
+  public String getText() {
+    return text.getText();
+  }
+
+  /** @return The document as HTML, as a String. */
+  @Benchmark
+  public String getHTML() {
+    return text.getHTML();
+  }
+
+  /**
+   * @return The number of characters of text written.
+   * @throws IOException
+   *         Never.
+   */
+  @Benchmark
+  public long writeText() throws IOException {
+    CountingWriter w = new CountingWriter();
+    text.writeText(w);
+    return w.count;
+  }
+
+  /**
+   * @return The number of characters of HTML written.
+   * @throws IOException
+   *         Never.
+   */
+  @Benchmark
+  public long writeHTML() throws IOException {
+    CountingWriter w = new CountingWriter();
+    text.writeHTML(w);
+    return w.count;
+  }
+
+  /**
+   * @return The number of characters of HTML styled from a style sheet written.
+   * @throws IOException
+   *         Never.
+   */
+  @Benchmark
+  public long writeStyledHTML() throws IOException {
+    CountingWriter w = new CountingWriter();
+    text.writeHTML(w, true);
+    return w.count;
+  }
+}
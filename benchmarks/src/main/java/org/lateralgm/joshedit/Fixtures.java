@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This file is part of JoshEdit. JoshEdit is free software.
+ * You can use, modify, and distribute it under the terms of
+ * the GNU General Public License, version 3 or later.
+ */
+
+package org.lateralgm.joshedit;
+
+import java.awt.Font;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.lateralgm.joshedit.lexers.CPPTokenMarker;
+import org.lateralgm.joshedit.lexers.GLSLTokenMarker;
+import org.lateralgm.joshedit.lexers.GMLTokenMarker;
+import org.lateralgm.joshedit.lexers.HLSLTokenMarker;
+
+/**
+ * Documents and editors shared by the benchmarks. Synthetic documents are generated from
+ * a fixed seed, so every run measures the same text.
+ */
+final class Fixtures {
+  /** Not instantiable. */
+  private Fixtures() {
+  }
+
+  /** Statement templates for GML; $i is an identifier, $n a number, $s string contents. */
+  private static final String[] GML = { "var $i, $i;", "$i = $n + $i * $n;", //$NON-NLS-1$ //$NON-NLS-2$
+      "if ($i > $n && $i != $i) {", "} else {", "}", "repeat ($n) {", "while (!$i) $i -= $n;", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+      "with (obj_$i) instance_destroy();", "draw_text(x + $n, y, \"$s\");", //$NON-NLS-1$ //$NON-NLS-2$
+      "show_message('$s' + string($i));", "$i = instance_create(x, y, obj_$i); // $s", //$NON-NLS-1$ //$NON-NLS-2$
+      "speed = $n; direction = point_direction(x, y, mouse_x, mouse_y);", //$NON-NLS-1$
+      "$i[$n] = $FF + $i;", "/* $s", "   $s */", "/// $s", "return $i;" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+  /** Statement templates for GLSL. */
+  private static final String[] GLSL = { "uniform vec3 u_$i;", "varying vec2 v_$i;", //$NON-NLS-1$ //$NON-NLS-2$
+      "void main() {", "}", "vec4 $i = texture2D(s_$i, v_$i * $n.0);", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+      "float $i = dot($i.xyz, vec3($n.0, 0.5, 0.25));", "gl_FragColor = vec4($i, 1.0);", //$NON-NLS-1$ //$NON-NLS-2$
+      "if ($i > $n.0) discard;", "for (int i = 0; i < $n; i++) $i += $i;", //$NON-NLS-1$ //$NON-NLS-2$
+      "// $s", "/* $s", "   $s */", "#define $i $n" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+  /** Statement templates for HLSL. */
+  private static final String[] HLSL = { "cbuffer $i : register(b$n) {", "};", "}", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+      "float4x4 $i;", "Texture2D t_$i; SamplerState s_$i;", //$NON-NLS-1$ //$NON-NLS-2$
+      "float4 main(float2 uv : TEXCOORD0) : SV_Target {", //$NON-NLS-1$
+      "float4 $i = t_$i.Sample(s_$i, uv * $n.0f);", "return saturate(mul($i, $i));", //$NON-NLS-1$ //$NON-NLS-2$
+      "[unroll] for (int i = 0; i < $n; i++) $i += $i;", "// $s", "/* $s", "   $s */" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+  /** Statement templates for C++. */
+  private static final String[] CPP = { "#include <$i>", "#define $i($i) ($i * $n)", //$NON-NLS-1$ //$NON-NLS-2$
+      "template <typename T> class $i : public $i<T> {", "};", "}", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+      "static const int $i = 0x$n;", "std::vector<int> $i($n, 0);", //$NON-NLS-1$ //$NON-NLS-2$
+      "for (size_t i = 0; i < $i.size(); ++i) $i += $i[i];", //$NON-NLS-1$
+      "if ($i == nullptr) return \"$s\";", "char $i = '\\n';", "// $s", "/* $s", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+      "   $s */", "printf(\"%d: $s\\n\", $i);" }; //$NON-NLS-1$ //$NON-NLS-2$
+
+  /** Words used for identifiers and string contents. */
+  private static final String[] WORDS = { "alpha", "beta", "count", "delta", "enemy", "frame", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+      "grid", "health", "index", "jump", "key", "light", "mask", "normal", "offset", "player", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$ //$NON-NLS-8$ //$NON-NLS-9$ //$NON-NLS-10$
+      "quad", "radius", "score", "timer", "uv", "velocity", "width", "x", "y", "zoom" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$ //$NON-NLS-8$ //$NON-NLS-9$ //$NON-NLS-10$
+
+  /**
+   * @param language
+   *        One of "default", "gml", "glsl", "hlsl", "cpp", or "long".
+   * @param lines
+   *        The number of lines to generate.
+   * @return A document of roughly the given number of lines. The "default" document is
+   *         {@link Runner#getDefaultCode()}, repeated; the "long" document is GML with
+   *         statements run together into lines of about {@link #LONG_LINE} characters.
+   */
+  static String[] document(String language, int lines) {
+    if ("long".equals(language)) { //$NON-NLS-1$
+      return longLines(lines);
+    }
+    String[] templates = templates(language);
+    ArrayList<String> res = new ArrayList<String>(lines);
+    if (templates == null) {
+      String[] sample = Runner.getDefaultCode();
+      while (res.size() < lines) {
+        for (int i = 0; i < sample.length && res.size() < lines; i++) {
+          res.add(sample[i]);
+        }
+      }
+      return res.toArray(new String[res.size()]);
+    }
+    Random r = new Random(language.hashCode());
+    int depth = 0;
+    while (res.size() < lines) {
+      String t = templates[r.nextInt(templates.length)];
+      if (t.startsWith("}")) { //$NON-NLS-1$
+        depth = Math.max(0, depth - 1);
+      }
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < depth; i++) {
+        sb.append(r.nextInt(4) == 0? "\t" : "  "); //$NON-NLS-1$ //$NON-NLS-2$
+      }
+      for (int i = 0; i < t.length(); i++) {
+        char c = t.charAt(i);
+        if (c != '$' || i + 1 >= t.length()) {
+          sb.append(c);
+          continue;
+        }
+        switch (t.charAt(++i)) {
+          case 'i':
+            sb.append(WORDS[r.nextInt(WORDS.length)]);
+            break;
+          case 'n':
+            sb.append(r.nextInt(1000));
+            break;
+          case 's':
+            for (int w = r.nextInt(8); w >= 0; w--) {
+              sb.append(WORDS[r.nextInt(WORDS.length)]).append(' ');
+            }
+            break;
+          default:
+            sb.append('$').append(t.charAt(i));
+        }
+      }
+      if (t.endsWith("{")) { //$NON-NLS-1$
+        depth = Math.min(8, depth + 1);
+      }
+      res.add(sb.toString());
+    }
+    return res.toArray(new String[res.size()]);
+  }
+
+  /** The length of the lines of the "long" document. */
+  static final int LONG_LINE = 400;
+
+  /**
+   * @param lines
+   *        The number of lines to generate.
+   * @return GML with its statements joined into lines of about {@link #LONG_LINE}
+   *         characters.
+   */
+  private static String[] longLines(int lines) {
+    String[] gml = document("gml", lines * 24); //$NON-NLS-1$
+    String[] res = new String[lines];
+    StringBuilder sb = new StringBuilder(LONG_LINE + 80);
+    for (int i = 0, g = 0; i < lines; i++) {
+      sb.setLength(0);
+      while (sb.length() < LONG_LINE) {
+        String s = gml[g++ % gml.length].trim();
+        // Line comments would swallow the rest of the line.
+        int c = s.indexOf("//"); //$NON-NLS-1$
+        if (c != -1) {
+          s = s.substring(0, c) + "/*" + s.substring(c + 2) + " */"; //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        sb.append(s).append(' ');
+      }
+      res[i] = sb.toString();
+    }
+    return res;
+  }
+
+  /**
+   * @param language
+   *        The language name.
+   * @return The statement templates for the language, or null for the default document.
+   */
+  private static String[] templates(String language) {
+    if ("gml".equals(language)) { //$NON-NLS-1$
+      return GML;
+    }
+    if ("glsl".equals(language)) { //$NON-NLS-1$
+      return GLSL;
+    }
+    if ("hlsl".equals(language)) { //$NON-NLS-1$
+      return HLSL;
+    }
+    if ("cpp".equals(language)) { //$NON-NLS-1$
+      return CPP;
+    }
+    return null;
+  }
+
+  /**
+   * @param language
+   *        The language name.
+   * @return A new token marker for the language; GML for the default document.
+   */
+  static DefaultTokenMarker marker(String language) {
+    if ("glsl".equals(language)) { //$NON-NLS-1$
+      return new GLSLTokenMarker();
+    }
+    if ("hlsl".equals(language)) { //$NON-NLS-1$
+      return new HLSLTokenMarker();
+    }
+    if ("cpp".equals(language)) { //$NON-NLS-1$
+      return new CPPTokenMarker();
+    }
+    return new GMLTokenMarker();
+  }
+
+  /**
+   * @param language
+   *        The language name.
+   * @param lines
+   *        The number of lines to generate.
+   * @return Code holding the generated document.
+   */
+  static Code code(String language, int lines) {
+    Code code = new Code();
+    for (String s : document(language, lines)) {
+      code.add(s);
+    }
+    return code;
+  }
+
+  /**
+   * Create an editor. This works in a headless environment; the editor is sized to show
+   * the first screen of its document, but never displayed. Its marker does no background
+   * lexing, which would race with the benchmark thread.
+   *
+   * @param language
+   *        The language name.
+   * @param lines
+   *        The number of lines to generate.
+   * @return A new editor holding the generated document.
+   */
+  static JoshText editor(String language, int lines) {
+    JoshText text = new JoshText(document(language, lines), new Font(Font.MONOSPACED, Font.PLAIN,
+        12));
+    DefaultTokenMarker marker = marker(language);
+    marker.lookAheadLines = 0;
+    text.setTokenMarker(marker);
+    text.setSize(800, 600);
+    return text;
+  }
+}
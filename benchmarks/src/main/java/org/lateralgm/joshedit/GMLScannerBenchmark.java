@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This file is part of JoshEdit. JoshEdit is free software.
+ * You can use, modify, and distribute it under the terms of
+ * the GNU General Public License, version 3 or later.
+ */
+
+package org.lateralgm.joshedit;
+
+import java.util.concurrent.TimeUnit;
+
+import org.lateralgm.joshedit.lexers.GMLFlexTokenMarker;
+import org.lateralgm.joshedit.lexers.GMLTokenMarker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the JFlex-generated GML scanner against the regular expressions of
+ * GMLTokenMarker on the same document: styling every line from scratch, and marking the
+ * whole document, as after loading it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GMLScannerBenchmark {
+  /** The document: generated GML, or GML run together into long lines. */
+  @Param({ "gml", "long" })
+  public String language;
+  /** The number of lines in the document. */
+  @Param({ "5000" })
+  public int lines;
+
+  /** The regular expression marker. */
+  DefaultTokenMarker regex;
+  /** The document, marked by the regular expression marker. */
+  Code regexCode;
+  /** The scanner-driven marker. */
+  GMLFlexTokenMarker flex;
+  /** The document, marked by the scanner-driven marker; each keeps its state in the lines. */
+  Code flexCode;
+  /** Runs reused for every line. */
+  final TokenRuns runs = new TokenRuns();
+
+  /** Build and mark the document, once for each marker. */
+  @Setup
+  public void setup() {
+    regex = new GMLTokenMarker();
+    regexCode = Fixtures.code(language, lines);
+    regex.linesChanged(regexCode, 0, regexCode.size());
+    flex = new GMLFlexTokenMarker();
+    flexCode = Fixtures.code(language, lines);
+    flex.linesChanged(flexCode, 0, flexCode.size());
+  }
+
+  /** @return The number of runs; every line styled with the regular expressions. */
+  @Benchmark
+  public int regexRuns() {
+    final DefaultTokenMarker.CompiledScanner cs = regex.getScanner();
+    int n = 0;
+    for (int i = 0; i < regexCode.size(); i++) {
+      regex.computeRuns(cs, regexCode.get(i), runs);
+      n += runs.size();
+    }
+    return n;
+  }
+
+  /** @return The number of runs; every line styled with the scanner. */
+  @Benchmark
+  public int scannerRuns() {
+    int n = 0;
+    for (int i = 0; i < flexCode.size(); i++) {
+      flex.getRuns(flexCode.get(i), runs);
+      n += runs.size();
+    }
+    return n;
+  }
+
+  /** Mark the whole document with the regular expressions. */
+  @Benchmark
+  public void regexMarkDocument() {
+    regex.linesChanged(regexCode, 0, regexCode.size());
+  }
+
+  /** Mark the whole document with the scanner. */
+  @Benchmark
+  public void scannerMarkDocument() {
+    flex.linesChanged(flexCode, 0, flexCode.size());
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This file is part of JoshEdit. JoshEdit is free software.
+ * You can use, modify, and distribute it under the terms of
+ * the GNU General Public License, version 3 or later.
+ */
+
+package org.lateralgm.joshedit;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.lateralgm.joshedit.JoshText.OPT;
+import org.lateralgm.joshedit.JoshText.UndoPatch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures keeping a recovery journal: typing with one kept, for comparison with
+ * {@link EditBenchmark#typeAndUndo()}, and writing out a second's worth of typing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JournalBenchmark {
+  /** The language of the document. */
+  @Param({ "gml" })
+  public String language;
+  /** The number of lines in the document. */
+  @Param({ "5000" })
+  public int lines;
+
+  /** The editor typed into. */
+  JoshText text;
+  /** The file holding the journal. */
+  File file;
+  /** A journal written out by {@link #commit()}. */
+  EditJournal journal;
+
+  /**
+   * Build the editor, and start its journal.
+   *
+   * @throws IOException
+   *         If no temporary file could be made.
+   */
+  @Setup
+  public void setup() throws IOException {
+    text = Fixtures.editor(language, lines);
+    file = File.createTempFile("joshedit-journal", ".tmp"); //$NON-NLS-1$ //$NON-NLS-2$
+    text.setJournal(file);
+    journal = new EditJournal(new File(file.getPath() + ".commit"), "x"); //$NON-NLS-1$ //$NON-NLS-2$
+    journal.commit();
+  }
+
+  /** Stop the journals, and delete them. */
+  @TearDown
+  public void tearDown() {
+    text.setJournal(null);
+    journal.close();
+    file.delete();
+    new File(file.getPath() + ".commit").delete(); //$NON-NLS-1$
+  }
+
+  /** Type a character in the middle of the document with a journal kept, then undo it. */
+  @Benchmark
+  public void typeAndUndo() {
+    text.caret.row = text.sel.row = lines / 2;
+    text.caret.col = text.sel.col = 4;
+    UndoPatch up = text.new UndoPatch();
+    text.sel.insert('x');
+    up.realize(text.caret.row);
+    text.storeUndo(up, OPT.TYPED);
+    text.undo();
+  }
+
+  /** Record ten keystrokes, a second of fast typing, and write them out to disk. */
+  @Benchmark
+  public void commit() {
+    for (int i = 0; i < 10; i++) {
+      journal.edit(0, i, "", "x"); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+    journal.commit();
+  }
+}
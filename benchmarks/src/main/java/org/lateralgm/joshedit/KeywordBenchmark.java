@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This file is part of JoshEdit. JoshEdit is free software.
+ * You can use, modify, and distribute it under the terms of
+ * the GNU General Public License, version 3 or later.
+ */
+
+package org.lateralgm.joshedit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.lateralgm.joshedit.lexers.GMLKeywords;
+import org.lateralgm.joshedit.lexers.GMLTokenMarker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures loading the bundled GML keywords: parsing their text, as every GML marker once
+ * waited for; reading their compiled index, for a marker's names or for completion's
+ * keywords; and making a marker once the index is loaded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeywordBenchmark {
+  /**
+   * @param name
+   *        The name of a resource beside GMLKeywords.
+   * @return The resource, opened.
+   */
+  private static InputStream open(String name) {
+    return GMLKeywords.class.getResourceAsStream(name);
+  }
+
+  /**
+   * @return An index compiled from the text.
+   * @throws IOException
+   *         If the text could not be read.
+   */
+  private static KeywordIndex compile() throws IOException {
+    final InputStream props = open("gmlkeywords.properties"), funcs = open("gmlfunctions.txt"); //$NON-NLS-1$ //$NON-NLS-2$
+    try {
+      return KeywordIndex.compile(props, funcs);
+    } finally {
+      props.close();
+      funcs.close();
+    }
+  }
+
+  /**
+   * @return The compiled index, read.
+   * @throws IOException
+   *         If the index could not be read.
+   */
+  private static KeywordIndex read() throws IOException {
+    final InputStream in = open("gml.keywords"); //$NON-NLS-1$
+    try {
+      return KeywordIndex.read(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @return The number of functions; every keyword parsed from the text and made.
+   * @throws IOException
+   *         If the text could not be read.
+   */
+  @Benchmark
+  public int parseText() throws IOException {
+    final KeywordIndex ki = compile();
+    return ki.constructs().length + ki.operators().length + ki.variables().length
+        + ki.constants().length + ki.functions().length;
+  }
+
+  /**
+   * @return The number of names; the index read, and the names a marker needs made.
+   * @throws IOException
+   *         If the index could not be read.
+   */
+  @Benchmark
+  public int readIndex() throws IOException {
+    final KeywordIndex ki = read();
+    int n = 0;
+    for (int g = KeywordIndex.CONSTRUCTS; g <= KeywordIndex.FUNCTIONS; g++) {
+      n += ki.words(g).size();
+    }
+    return n;
+  }
+
+  /**
+   * @return The number of keywords; the index read, and every keyword made for completion.
+   * @throws IOException
+   *         If the index could not be read.
+   */
+  @Benchmark
+  public int readIndexForCompletion() throws IOException {
+    final KeywordIndex ki = read();
+    return ki.constructs().length + ki.operators().length + ki.variables().length
+        + ki.constants().length + ki.functions().length;
+  }
+
+  /** @return A new marker, with its scanner; its keywords and their table are shared. */
+  @Benchmark
+  public DefaultTokenMarker.CompiledScanner newMarker() {
+    final DefaultTokenMarker tm = new GMLTokenMarker();
+    return tm.getScanner();
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2011 Josh Ventura <JoshV10@gmail.com>
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This file is part of JoshEdit. JoshEdit is free software.
+ * You can use, modify, and distribute it under the terms of
+ * the GNU General Public License, version 3 or later.
+ */
+
+package org.lateralgm.joshedit;
+
+import java.util.ArrayList;
+import java.util.regex.Matcher;
+
+import org.lateralgm.joshedit.DefaultTokenMarker.SchemeInfo;
+import org.lateralgm.joshedit.DefaultTokenMarker.SchemeInfo.SchemeType;
+import org.lateralgm.joshedit.Line.LINE_ATTRIBS;
+import org.lateralgm.joshedit.TokenMarker.TokenMarkerInfo;
+
+/**
+ * The scanning loop DefaultTokenMarker used before its rules were compiled into a single
+ * alternation, kept as a baseline for benchmarks. Builds one Matcher per scheme per block
+ * over a fresh copy of the line, exactly as it used to.
+ */
+final class LegacyStyles {
+  /** Not instantiable. */
+  private LegacyStyles() {
+  }
+
+  /**
+   * @param tm
+   *        The marker whose rules to apply.
+   * @param jline
+   *        The line to style.
+   * @return The styles for the given line.
+   */
+  static ArrayList<TokenMarkerInfo> getStyles(DefaultTokenMarker tm, Line jline) {
+    ArrayList<TokenMarkerInfo> res = new ArrayList<TokenMarkerInfo>();
+    StringBuilder line = jline.sbuild;
+    int ischeme =
+        (int) (((jline.attr & LINE_ATTRIBS.LA_SCHEMEBLOCK) >> LINE_ATTRIBS.LA_SCHEMEBITOFFSET) - 1);
+
+    // Our function guarantees a block at the end of our code to keep the printer, well, printing.
+    // Adding this blindly sometimes screws up other mechanisms. This tells us whether to do so or
+    // not.
+    boolean pushCapstone = true;
+
+    int i = 0; // The position from which we will parse this thing
+    FindAllBlocks: for (;;) // What we're going to do is find any and all blocks up front, and move
+                            // to the end of them.
+    {
+      int shm = -1; // Scheme Holding Minimum Match
+      int mmin = line.length(); // Minimum match position
+      int mminend = mmin;
+      if (ischeme < 0) {
+        for (int si = 0; si < tm.schemes.size(); si++) {
+          Matcher m =
+              tm.schemes.get(si).begin.matcher(line.toString()).region(i, line.length()).useTransparentBounds(
+                  true);
+          if (!m.find()) {
+            continue;
+          }
+          if (m.start() < mmin) { // If this one is closer to the beginning, it can potentially
+                                  // consume later ones.
+            mmin = m.start(); // So we have to pay attention to it first.
+            mminend = m.end();
+            shm = si;
+          }
+        }
+      } else {
+        mmin = 0;
+        mminend = 0;
+        shm = ischeme;
+        ischeme = -1;
+      }
+
+      if (shm == -1) {
+        break;
+      }
+
+      // Start searching for its end.
+      for (;;) {
+        Matcher mmatcher =
+            tm.schemes.get(shm).end.matcher(line.toString()).region(mminend, line.length());
+        if (!mmatcher.find()) // If there's no end in sight, or that end passed our position of
+                              // interest
+        {
+          res.add(tm.new TokenMarkerInfoEx(tm.schemes.get(shm).fontStyle, tm.schemes.get(shm).color, mmin,
+              line.length(), shm, new SchemeInfo(SchemeType.UNTERMBLOCK, shm)));
+          pushCapstone = false;
+          break FindAllBlocks; // Then we've found all the blocks. Quit.
+        }
+        // Now, we have found a chunk that may be the end marker, and lies before our position in
+        // question.
+        // Move to its end.
+        i = mmatcher.end();
+
+        if (!tm.schemes.get(shm).escapeend) // If we can't escape an ending sequence,
+        {
+          res.add(tm.new TokenMarkerInfoEx(tm.schemes.get(shm).fontStyle, tm.schemes.get(shm).color, mmin,
+              i, shm, new SchemeInfo(SchemeType.BLOCK, shm)));
+          break; // Then mission complete
+        }
+
+        // Otherwise, we have to verify that the end *isn't* escaped.
+        char escc = tm.schemes.get(shm).escapeChar;
+        boolean end_escaped = false;
+
+        int cp; // Check position
+        for (cp = mminend; cp < mmatcher.start(); cp++) { // So, start iterating block contents!
+          if (line.charAt(cp) == escc) // If we see an escape char
+          {
+            if (cp + 1 < mmatcher.start()) {
+              cp++; // It's not! Skip the next char in case it's another escape char.
+            } else {
+              end_escaped = true; // It is! The end has been escaped. Find a new end and come back.
+            }
+          }
+        }
+
+        if (!end_escaped) { // If the end wasn't escaped,
+          res.add(tm.new TokenMarkerInfoEx(tm.schemes.get(shm).fontStyle, tm.schemes.get(shm).color, mmin,
+              i, shm, new SchemeInfo(SchemeType.BLOCK, shm)));
+          break; // Mission accomplished
+        }
+        // So, our line was escaped.
+        if (cp >= line.length()) // If we're at the end of the line now,
+        { // Then the block is escaped and doesn't end on this line. Hop out.
+          res.add(tm.new TokenMarkerInfoEx(tm.schemes.get(shm).fontStyle, tm.schemes.get(shm).color, mmin,
+              line.length(), shm, new SchemeInfo(SchemeType.UNTERMBLOCK, shm)));
+          pushCapstone = false;
+          break FindAllBlocks;
+        }
+        // Otherwise, continue iteration
+        mminend = i; // And perform the next search from the end of this escaped marker
+      }
+    }
+
+    i = 0;
+    if (pushCapstone) {
+      res.add(tm.new TokenMarkerInfoEx(0, null, line.length(), line.length(), 0, new SchemeInfo(
+          SchemeType.NOTHING, 0)));
+    }
+    for (int bi = 0; bi < res.size(); i = res.get(bi++).endPos) {
+      final int sp = res.get(bi).startPos;
+      SubschemeLoop: while (i < sp) {
+        if (Character.isWhitespace(line.charAt(i))) {
+          while (++i < line.length() && Character.isWhitespace(line.charAt(i))) { /*
+                                                                                   * Move past
+                                                                                   * whitespace
+                                                                                   */
+          }
+          continue;
+        }
+        Matcher lookingat = tm.identifier_pattern.matcher(line).region(i, line.length());
+        if (lookingat.lookingAt()) {
+          boolean fnd = false;
+          String f = line.substring(i, lookingat.end());
+          for (int sn = 0; sn < tm.tmKeywords.size(); sn++) {
+            if (tm.tmKeywords.get(sn).words.contains(tm.tmKeywords.get(sn).caseSensitive? f
+                : f.toLowerCase())) {
+              res.add(bi++, tm.new TokenMarkerInfoEx(tm.tmKeywords.get(sn).fontStyle,
+                  tm.tmKeywords.get(sn).color, lookingat.start(), lookingat.end(), 0, new SchemeInfo(
+                      SchemeType.KEYWORD, sn)));
+              fnd = true;
+              break;
+            }
+          }
+          if (!fnd) {
+            if (tm.default_kws != null) {
+              res.add(bi++, tm.new TokenMarkerInfoEx(tm.default_kws.fontStyle, tm.default_kws.color,
+                  lookingat.start(), lookingat.end(), 0, new SchemeInfo(SchemeType.DEFKEYWORD, 0)));
+            }
+          }
+          i = lookingat.end();
+          continue SubschemeLoop;
+        }
+        for (int tt = 0; tt < tm.otherTokens.size(); tt++) {
+          lookingat = tm.otherTokens.get(tt).pattern.matcher(line).region(i, line.length());
+          if (lookingat.lookingAt()) {
+            res.add(bi++, tm.new TokenMarkerInfoEx(tm.otherTokens.get(tt).fontStyle,
+                tm.otherTokens.get(tt).color, lookingat.start(), lookingat.end(), 0, new SchemeInfo(
+                    SchemeType.TOKEN, tt)));
+            i = lookingat.end();
+            continue SubschemeLoop;
+          }
+        }
+        char c = line.charAt(i);
+        for (int sn = 0; sn < tm.tmChars.size(); sn++) {
+          if (tm.tmChars.get(sn).chars.contains(c)) {
+            res.add(bi++, tm.new TokenMarkerInfoEx(tm.tmChars.get(sn).fontStyle, tm.tmChars.get(sn).color,
+                i, i + 1, 0, new SchemeInfo(SchemeType.SYMBOL, sn)));
+          }
+        }
+        i++;
+      }
+    }
+    return res;
+  }
+}
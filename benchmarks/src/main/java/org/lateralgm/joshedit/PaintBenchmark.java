@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This file is part of JoshEdit. JoshEdit is free software.
+ * You can use, modify, and distribute it under the terms of
+ * the GNU General Public License, version 3 or later.
+ */
+
+package org.lateralgm.joshedit;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures painting a screenful of highlighted code into an off-screen image, which runs
+ * JoshText.drawLine for every visible line. The "long" document shows how drawing scales
+ * with line length, as most of each of its lines lies outside the image.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PaintBenchmark {
+  /** The language of the document. */
+  @Param({ "default", "gml", "glsl", "hlsl", "cpp", "long" })
+  public String language;
+  /** Whether the editor caches the glyphs of the runs it draws. */
+  @Param({ "false", "true" })
+  public boolean glyphCache;
+
+  /** The editor to paint. */
+  JoshText text;
+  /** The image painted to. */
+  BufferedImage image;
+  /** The first line painted by {@link #paintScrolling()}. */
+  int scroll;
+  /** The gutter painted by {@link #paintLineNumbers()}, numbering seven-digit lines. */
+  LineNumberPanel gutter;
+
+  /** Build the editor and image. */
+  @Setup
+  public void setup() {
+    JoshText.Settings.cacheGlyphs = glyphCache;
+    text = Fixtures.editor(language, 5000);
+    image = new BufferedImage(text.getWidth(), text.getHeight(), BufferedImage.TYPE_INT_RGB);
+    gutter = new LineNumberPanel(text, 0, false);
+    gutter.setLines(2000000);
+    gutter.setSize(gutter.getPreferredSize());
+  }
+
+  /** Let the editor go. */
+  @TearDown
+  public void tearDown() {
+    text = null;
+  }
+
+  /** Paint the first screen of the document. */
+  @Benchmark
+  public void paintScreen() {
+    Graphics2D g = image.createGraphics();
+    g.setClip(0, 0, image.getWidth(), image.getHeight());
+    text.paintComponent(g);
+    g.dispose();
+  }
+
+  /** Paint a screen of the document one line further down each time, as when scrolling. */
+  @Benchmark
+  public void paintScrolling() {
+    int y = scroll++ % (text.getLineCount() - 50) * text.metrics.lineHeight();
+    Graphics2D g = image.createGraphics();
+    g.translate(0, -y);
+    g.setClip(0, y, image.getWidth(), image.getHeight());
+    text.paintComponent(g);
+    g.dispose();
+  }
+
+  /**
+   * Paint a screen of the document one line further down each time, as {@link
+   * #paintScrolling()} does, with every line selected and every "e" highlighted as a search
+   * hit.
+   */
+  @Benchmark
+  public void paintScrollingHighlighted() {
+    if (text.searchHits.getSearch() == null) {
+      text.searchHits.setSearch(CodeSearch.literal(new String[] { "e" }, true)); //$NON-NLS-1$
+      text.sel.row = text.sel.col = 0;
+      text.caret.row = text.getLineCount() - 1;
+      text.caret.col = 0;
+    }
+    paintScrolling();
+  }
+
+  /** Paint a screen of line numbers deep into a very long document, one line further each time. */
+  @Benchmark
+  public void paintLineNumbers() {
+    int y = (1000000 + scroll++ % 1000) * text.metrics.lineHeight();
+    Graphics2D g = image.createGraphics();
+    g.translate(0, -y);
+    g.setClip(0, y, gutter.getWidth(), image.getHeight());
+    gutter.paintComponent(g);
+    g.dispose();
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This file is part of JoshEdit. JoshEdit is free software.
+ * You can use, modify, and distribute it under the terms of
+ * the GNU General Public License, version 3 or later.
+ */
+
+package org.lateralgm.joshedit;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures marking a whole large document, as after loading it, on one core and on every
+ * core. Run with -jvmArgs -XX:ActiveProcessorCount=n to see how marking scales with the
+ * number of cores.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ParallelMarkBenchmark {
+  /** The language of the document. */
+  @Param({ "gml" })
+  public String language;
+  /** The number of lines in the document. */
+  @Param({ "1000000" })
+  public int lines;
+  /** True to mark on every core. */
+  @Param({ "false", "true" })
+  public boolean parallel;
+
+  /** The marker under test. */
+  DefaultTokenMarker marker;
+  /** The marked document. */
+  Code code;
+
+  /** Build the document. */
+  @Setup
+  public void setup() {
+    marker = Fixtures.marker(language);
+    marker.parallelMarking = parallel;
+    code = Fixtures.code(language, lines);
+  }
+
+  /**
+   * Re-mark the whole document.
+   *
+   * @return The number of lines lexed, counting chunks lexed again.
+   */
+  @Benchmark
+  public int markDocument() {
+    marker.linesChanged(code, 0, code.size());
+    return marker.getLinesRelexed();
+  }
+}
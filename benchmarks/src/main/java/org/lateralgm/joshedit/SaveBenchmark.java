@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This file is part of JoshEdit. JoshEdit is free software.
+ * You can use, modify, and distribute it under the terms of
+ * the GNU General Public License, version 3 or later.
+ */
+
+package org.lateralgm.joshedit;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures saving a document: the work a save leaves on the EDT, a slice of copying and the
+ * catching up at its end, against the write the EDT used to do in full; and the durable
+ * write the background thread does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SaveBenchmark {
+  /** The language of the document. */
+  @Param({ "gml" })
+  public String language;
+  /** The number of lines in the document. */
+  @Param({ "100000" })
+  public int lines;
+
+  /** The editor saved. */
+  JoshText text;
+  /** A copier which has copied the whole document. */
+  JoshText.SaveCopier copied;
+  /** The copy of the whole document. */
+  String[] copy;
+  /** The saver writing the document. */
+  CodeSaver saver;
+  /** The file to which the document is saved. */
+  File file;
+
+  /**
+   * Build the editor, and copy it out once.
+   *
+   * @throws IOException
+   *         If no temporary file could be made.
+   */
+  @Setup
+  public void setup() throws IOException {
+    text = Fixtures.editor(language, lines);
+    saver = new CodeSaver(CodeLoader.UTF8);
+    file = File.createTempFile("joshedit-save", ".gml"); //$NON-NLS-1$ //$NON-NLS-2$
+    copied = text.new SaveCopier(saver, file, false, "\n", true, null); //$NON-NLS-1$
+    while (!copied.copySlice()) {
+      // Copy the whole document.
+    }
+    copy = copied.finish();
+  }
+
+  /** Delete the file saved. */
+  @TearDown
+  public void tearDown() {
+    file.delete();
+  }
+
+  /** @return True if the copy reached the end; the first slice of a save, on the EDT. */
+  @Benchmark
+  public boolean copySlice() {
+    return text.new SaveCopier(saver, file, false, "\n", true, null).copySlice(); //$NON-NLS-1$
+  }
+
+  /** @return The text as it stands; the end of a save, on the EDT, when nothing changed. */
+  @Benchmark
+  public String[] finish() {
+    return copied.finish();
+  }
+
+  /**
+   * Save the document as the EDT used to, straight to the file, without forcing it to disk.
+   *
+   * @throws IOException
+   *         If the file could not be written.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Measurement(iterations = 10)
+  public void writeInPlace() throws IOException {
+    BufferedWriter bw = new BufferedWriter(new FileWriter(file));
+    try {
+      text.writeText(bw);
+    } finally {
+      bw.close();
+    }
+  }
+
+  /**
+   * Save the copy of the document as the background thread does.
+   *
+   * @throws IOException
+   *         If the file could not be written.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Measurement(iterations = 10)
+  public void saveDurably() throws IOException {
+    saver.save(file, copy, false, "\n", true); //$NON-NLS-1$
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This file is part of JoshEdit. JoshEdit is free software.
+ * You can use, modify, and distribute it under the terms of
+ * the GNU General Public License, version 3 or later.
+ */
+
+package org.lateralgm.joshedit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures searching a whole document: forward for a match at its end, and backward for a
+ * match at its start.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+  /** The number of lines in the document. */
+  @Param({ "1000000" })
+  public int lines;
+
+  /** The text searched for. */
+  static final String NEEDLE = "needle_in_haystack"; //$NON-NLS-1$
+
+  /** The document searched. */
+  Code code;
+  /** The needle, exploded at newlines. */
+  String[] literal;
+  /** The needle and the start of the line after it, exploded at newlines. */
+  String[] multiLine;
+  /** The needle, as a regular expression. */
+  Pattern regex;
+  /** The needle and the start of the line after it, as a regular expression. */
+  Pattern multiLineRegex;
+
+  /** Build the document, with the needle on its first and second-to-last lines. */
+  @Setup
+  public void setup() {
+    code = new Code();
+    code.add("x = " + NEEDLE + ";"); //$NON-NLS-1$ //$NON-NLS-2$
+    code.add("y = 0;"); //$NON-NLS-1$
+    code.addAll(Fixtures.code("gml", lines)); //$NON-NLS-1$
+    code.add("x = " + NEEDLE + ";"); //$NON-NLS-1$ //$NON-NLS-2$
+    code.add("y = 0;"); //$NON-NLS-1$
+    literal = new String[] { NEEDLE };
+    multiLine = new String[] { NEEDLE + ";", "y = " }; //$NON-NLS-1$ //$NON-NLS-2$
+    regex = Pattern.compile("needle_\\w+"); //$NON-NLS-1$
+    multiLineRegex = Pattern.compile("needle_\\w+;\\s+y"); //$NON-NLS-1$
+  }
+
+  /** @return The match for the needle as a literal. */
+  @Benchmark
+  public Object findNextLiteral() {
+    return code.findNext(literal, 2, 0);
+  }
+
+  /** @return The match for the needle and the line after it as a literal. */
+  @Benchmark
+  public Object findNextMultiLine() {
+    return code.findNext(multiLine, 2, 0);
+  }
+
+  /** @return The match for the needle as a regular expression. */
+  @Benchmark
+  public Object findNextRegex() {
+    return code.findNext(regex, 2, 0);
+  }
+
+  /** @return The match for the needle and the line after it as a regular expression. */
+  @Benchmark
+  public Object findNextMultiLineRegex() {
+    return code.findNext(multiLineRegex, 2, 0);
+  }
+
+  /** @return The match for the needle, searching backward from the end. */
+  @Benchmark
+  public Object findPreviousLiteral() {
+    return code.findPrevious(literal, code.size() - 2, 0);
+  }
+
+  /** @return The match for the needle and the line after it, searching backward. */
+  @Benchmark
+  public Object findPreviousMultiLine() {
+    return code.findPrevious(multiLine, code.size() - 2, 0);
+  }
+
+  /** @return The match for the needle as a regular expression, searching backward. */
+  @Benchmark
+  public Object findPreviousRegex() {
+    return code.findPrevious(regex, code.size() - 2, 0);
+  }
+}
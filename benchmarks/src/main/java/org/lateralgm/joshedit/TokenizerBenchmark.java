@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This file is part of JoshEdit. JoshEdit is free software.
+ * You can use, modify, and distribute it under the terms of
+ * the GNU General Public License, version 3 or later.
+ */
+
+package org.lateralgm.joshedit;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures DefaultTokenMarker styling every line of a document: from scratch with the
+ * compiled scanner, from scratch with the scanning loop it replaced, and through the cache,
+ * both as TokenMarkerInfo and as the packed runs painting reads. Also measures classifying
+ * the document's identifiers as keywords, with the marker's keyword table and with the
+ * per-set lookups it replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenizerBenchmark {
+  /** The language to tokenize. */
+  @Param({ "default", "gml", "glsl", "hlsl", "cpp" })
+  public String language;
+  /** The number of lines in the document. */
+  @Param({ "5000" })
+  public int lines;
+
+  /** The marker under test. */
+  DefaultTokenMarker marker;
+  /** The marked document. */
+  Code code;
+  /** Runs reused by {@link #cachedRuns(Blackhole)}. */
+  final TokenRuns runs = new TokenRuns();
+  /** The line of each identifier in the document. */
+  int[] identLines;
+  /** The start and end of each identifier in the document. */
+  int[] identStarts, identEnds;
+
+  /** Build and mark the document. */
+  @Setup
+  public void setup() {
+    marker = Fixtures.marker(language);
+    code = Fixtures.code(language, lines);
+    marker.linesChanged(code, 0, code.size());
+    ArrayList<int[]> idents = new ArrayList<int[]>();
+    for (int i = 0; i < code.size(); i++) {
+      Matcher m = marker.identifier_pattern.matcher(code.getsb(i));
+      while (m.find()) {
+        idents.add(new int[] { i, m.start(), m.end() });
+      }
+    }
+    identLines = new int[idents.size()];
+    identStarts = new int[idents.size()];
+    identEnds = new int[idents.size()];
+    for (int i = 0; i < idents.size(); i++) {
+      identLines[i] = idents.get(i)[0];
+      identStarts[i] = idents.get(i)[1];
+      identEnds[i] = idents.get(i)[2];
+    }
+  }
+
+  /**
+   * Style every line with the compiled scanner.
+   *
+   * @param bh
+   *        Sink for the results.
+   */
+  @Benchmark
+  public void compiledScanner(Blackhole bh) {
+    for (int i = 0; i < code.size(); i++) {
+      bh.consume(marker.computeStyles(code.get(i)));
+    }
+  }
+
+  /**
+   * Style every line with the old scanning loop.
+   *
+   * @param bh
+   *        Sink for the results.
+   */
+  @Benchmark
+  public void legacyScanner(Blackhole bh) {
+    for (int i = 0; i < code.size(); i++) {
+      bh.consume(LegacyStyles.getStyles(marker, code.get(i)));
+    }
+  }
+
+  /**
+   * Classify every identifier with the marker's keyword table.
+   *
+   * @return The sum of the keyword sets found.
+   */
+  @Benchmark
+  public int keywordTable() {
+    KeywordTable kt = marker.getScanner().keywords;
+    int sum = 0;
+    for (int i = 0; i < identLines.length; i++) {
+      sum += kt.lookup(code.getsb(identLines[i]), identStarts[i], identEnds[i]);
+    }
+    return sum;
+  }
+
+  /**
+   * Classify every identifier by copying it out and looking it up in each keyword set.
+   *
+   * @return The sum of the keyword sets found.
+   */
+  @Benchmark
+  public int keywordSets() {
+    int sum = 0;
+    for (int i = 0; i < identLines.length; i++) {
+      String f = code.getsb(identLines[i]).substring(identStarts[i], identEnds[i]);
+      int found = -1;
+      for (int sn = 0; sn < marker.tmKeywords.size(); sn++) {
+        DefaultTokenMarker.KeywordSet ks = marker.tmKeywords.get(sn);
+        if (ks.words.contains(ks.caseSensitive? f : f.toLowerCase())) {
+          found = sn;
+          break;
+        }
+      }
+      sum += found;
+    }
+    return sum;
+  }
+
+  /**
+   * Fetch the styles of every line through the cache.
+   *
+   * @param bh
+   *        Sink for the results.
+   */
+  @Benchmark
+  public void cachedStyles(Blackhole bh) {
+    for (int i = 0; i < code.size(); i++) {
+      bh.consume(marker.getStyles(code.get(i)));
+    }
+  }
+
+  /**
+   * Fetch the styles of every line through the cache, as packed runs.
+   *
+   * @param bh
+   *        Sink for the results.
+   */
+  @Benchmark
+  public void cachedRuns(Blackhole bh) {
+    for (int i = 0; i < code.size(); i++) {
+      runs.load(marker, code.get(i));
+      bh.consume(runs.size());
+    }
+  }
+
+  /**
+   * Re-mark the whole document, as after loading it.
+   */
+  @Benchmark
+  public void markDocument() {
+    marker.linesChanged(code, 0, code.size());
+  }
+
+  /**
+   * Re-mark after an edit to one line near the top of the document, as while typing.
+   *
+   * @return The number of lines re-lexed, which is small once the lexer state converges.
+   */
+  @Benchmark
+  public int editLine() {
+    marker.linesChanged(code, 10, 10);
+    return marker.getLinesRelexed();
+  }
+}
@@ -0,0 +1,496 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This file is part of JoshEdit. JoshEdit is free software.
+ * You can use, modify, and distribute it under the terms of
+ * the GNU General Public License, version 3 or later.
+ */
+
+package org.lateralgm.joshedit;
+
+import java.util.Arrays;
+
+import org.lateralgm.joshedit.JoshText.LineChangeListener;
+
+/**
+ * An index of the brackets of a code outside its strings and comments, used to find the
+ * bracket matching another without reading every line between them.
+ * <p>
+ * Each line keeps a summary of its brackets, built from the styles of its tokens and kept
+ * for as long as the line has the revision, contents, and starting scheme it was built for.
+ * A summary gives, for each kind of bracket, the net nesting of the line and how deep into
+ * the enclosing brackets it reaches, from either end; a search only looks inside a line
+ * that can close the bracket it is matching. Runs of {@value #CHUNK} lines are summarized
+ * the same way, so a search passes over most of the code a chunk at a time.
+ * <p>
+ * Brackets inside blocks, such as strings and comments, are not indexed; those are matched
+ * by reading the styles of each line in turn. Either way, a {@link Search} does a bounded
+ * amount of work at a time, so a long search can be continued later, or abandoned.
+ * <p>
+ * Searches run on the event dispatch thread, a slice at a time, not on a worker thread.
+ * Reading a line's styles may mark it, and the marker and the lines' attributes belong to
+ * that thread. A worker reading a snapshot would need every line marked first, and that
+ * marking is the very work the slices bound.
+ *
+ * @author agent
+ */
+final class BracketIndex implements LineChangeListener {
+  /** The opening brackets, in order of their kinds. */
+  static final String OPENERS = "([{"; //$NON-NLS-1$
+  /** The closing brackets, in order of their kinds. */
+  static final String CLOSERS = ")]}"; //$NON-NLS-1$
+  /** The number of lines summarized together. */
+  private static final int CHUNK = 256;
+
+  /** The editor whose code and styles are indexed. */
+  private final JoshText text;
+  /** Runs reused to read the styles of each line. */
+  private final TokenRuns runs = new TokenRuns();
+  /** The positions of the brackets of the line being summarized. */
+  private int[] scratchPos = new int[16];
+  /** The kinds of the brackets of the line being summarized. */
+  private byte[] scratchKind = new byte[16];
+  /** The lines of the chunk being summarized. */
+  private final Line[] chunkLines = new Line[CHUNK];
+  /** The summary of each chunk, laid out as in {@link Brackets#stats}. */
+  private int[] chunkStats = new int[0];
+  /** Whether the summary of each chunk is current. */
+  private boolean[] chunkValid = new boolean[0];
+  /** The number of lines in the code when the chunks were laid out. */
+  private int chunkedSize = -1;
+  /** The number of changes made to the code, so searches can tell they have gone stale. */
+  private int changes;
+  /** The number of lines summarized or read so far; searches are bounded by it. */
+  private int work;
+
+  /**
+   * The brackets of one line, outside blocks.
+   */
+  static final class Brackets {
+    /** The StringBuilder of the line when summarized. */
+    private final StringBuilder sbuild;
+    /** The length of the line when summarized. */
+    private final int length;
+    /** The revision of the line when summarized. */
+    private final int revision;
+    /** The attributes, including the starting scheme, of the line when summarized. */
+    private final long attr;
+    /** The position of each bracket, in order, or null if there are none. */
+    final int[] pos;
+    /** The kind of each bracket: its index in OPENERS, or three past its index in CLOSERS. */
+    final byte[] kind;
+    /**
+     * For each kind of bracket, three numbers: the openers less the closers; the lowest
+     * that count reaches reading forward, or zero; and the lowest the closers less the
+     * openers reaches reading backward, or zero. Null if there are no brackets.
+     */
+    final int[] stats;
+
+    /**
+     * @param line
+     *        The line summarized.
+     * @param p
+     *        The positions of its brackets.
+     * @param k
+     *        Their kinds.
+     * @param n
+     *        The number of brackets.
+     */
+    Brackets(Line line, int[] p, byte[] k, int n) {
+      sbuild = line.sbuild;
+      length = sbuild.length();
+      revision = line.revision;
+      attr = line.attr;
+      if (n == 0) {
+        pos = null;
+        kind = null;
+        stats = null;
+        return;
+      }
+      pos = Arrays.copyOf(p, n);
+      kind = Arrays.copyOf(k, n);
+      stats = new int[9];
+      for (int b = 0; b < 3; b++) {
+        int depth = 0, low = 0;
+        for (int i = 0; i < n; i++) {
+          if (kind[i] == b) {
+            depth++;
+          } else if (kind[i] == b + 3 && --depth < low) {
+            low = depth;
+          }
+        }
+        stats[b * 3] = depth;
+        stats[b * 3 + 1] = low;
+        depth = low = 0;
+        for (int i = n - 1; i >= 0; i--) {
+          if (kind[i] == b + 3) {
+            depth++;
+          } else if (kind[i] == b && --depth < low) {
+            low = depth;
+          }
+        }
+        stats[b * 3 + 2] = low;
+      }
+    }
+
+    /**
+     * @param line
+     *        A line.
+     * @return Whether this summary was built for the line as it is now.
+     */
+    boolean isFor(Line line) {
+      return sbuild == line.sbuild && length == line.sbuild.length()
+          && revision == line.revision && attr == line.attr;
+    }
+  }
+
+  /**
+   * @param text
+   *        The editor whose code is to be indexed. The index must be added as one of its
+   *        line change listeners.
+   */
+  BracketIndex(JoshText text) {
+    this.text = text;
+  }
+
+  @Override
+  public void linesChanged(Code code, int start, int end) {
+    changes++;
+    // The styles of any line after the change may change with it.
+    final int c = Math.max(start, 0) / CHUNK;
+    if (c < chunkValid.length) {
+      Arrays.fill(chunkValid, c, chunkValid.length, false);
+    }
+  }
+
+  /**
+   * Load the styles of a line into our runs, marking the line first if need be.
+   *
+   * @param row
+   *        The index of the line.
+   * @return The line.
+   */
+  private Line loadRuns(int row) {
+    final Line line = text.code.get(row);
+    final TokenMarker marker = text.getTokenMarker();
+    if (marker == null) {
+      runs.reset(null);
+    } else {
+      text.prepareStyles(row);
+      runs.load(marker, line);
+    }
+    return line;
+  }
+
+  /**
+   * @param row
+   *        The index of a line.
+   * @param col
+   *        A position in the line.
+   * @return The block hash of the token at that position, or zero if it is in no token.
+   */
+  int blockAt(int row, int col) {
+    loadRuns(row);
+    for (int i = 0; i < runs.size() && col >= runs.start(i); i++) {
+      if (col < runs.end(i)) {
+        return runs.getStyleTable().blockHash(runs.style(i));
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * @param row
+   *        The index of a line.
+   * @return The summary of the brackets of that line, built first if the line has changed.
+   */
+  Brackets brackets(int row) {
+    // Mark the line first; until then its attributes may be out of date, and so may the
+    // starting scheme the summary is checked against.
+    text.prepareStyles(row);
+    final Line cached = text.code.get(row);
+    if (cached.brackets != null && cached.brackets.isFor(cached)) {
+      return cached.brackets;
+    }
+    final Line line = loadRuns(row);
+    final StringBuilder sb = line.sbuild;
+    final StyleTable st = runs.getStyleTable();
+    int n = 0, pos = 0;
+    for (int i = 0; i <= runs.size(); i++) {
+      // Everything between tokens counts, as does everything in a token outside any block.
+      final boolean last = i == runs.size();
+      final int end = last? sb.length() : Math.min(Math.max(runs.start(i), pos), sb.length());
+      final int tokenEnd = last? end : Math.min(Math.max(runs.end(i), end), sb.length());
+      final int to = last || st.blockHash(runs.style(i)) != 0? end : tokenEnd;
+      for (; pos < to; pos++) {
+        final char c = sb.charAt(pos);
+        int k = OPENERS.indexOf(c);
+        if (k == -1) {
+          k = CLOSERS.indexOf(c);
+          if (k == -1) {
+            continue;
+          }
+          k += 3;
+        }
+        if (n == scratchPos.length) {
+          scratchPos = Arrays.copyOf(scratchPos, n * 2);
+          scratchKind = Arrays.copyOf(scratchKind, n * 2);
+        }
+        scratchPos[n] = pos;
+        scratchKind[n++] = (byte) k;
+      }
+      pos = tokenEnd;
+    }
+    work++;
+    return line.brackets = new Brackets(line, scratchPos, scratchKind, n);
+  }
+
+  /**
+   * @param c
+   *        The index of a chunk which lies wholly within the code.
+   * @return The offset of the summary of the chunk in {@link #chunkStats}, after bringing it
+   *         up to date.
+   */
+  private int chunk(int c) {
+    final Code code = text.code;
+    if (chunkedSize != code.size()) {
+      chunkedSize = code.size();
+      final int chunks = (chunkedSize + CHUNK - 1) / CHUNK;
+      chunkStats = new int[chunks * 9];
+      chunkValid = new boolean[chunks];
+    }
+    final int o = c * 9;
+    if (chunkValid[c]) {
+      return o;
+    }
+    final int first = c * CHUNK;
+    text.prepareStyles(first + CHUNK - 1);
+    code.getLines(first, chunkLines, CHUNK);
+    for (int i = 0; i < CHUNK; i++) {
+      if (chunkLines[i].brackets == null || !chunkLines[i].brackets.isFor(chunkLines[i])) {
+        brackets(first + i);
+      }
+    }
+    for (int b = 0; b < 3; b++) {
+      int depth = 0, low = 0;
+      for (int i = 0; i < CHUNK; i++) {
+        final int[] s = chunkLines[i].brackets.stats;
+        if (s != null) {
+          low = Math.min(low, depth + s[b * 3 + 1]);
+          depth += s[b * 3];
+        }
+      }
+      chunkStats[o + b * 3] = depth;
+      chunkStats[o + b * 3 + 1] = low;
+      depth = low = 0;
+      for (int i = CHUNK - 1; i >= 0; i--) {
+        final int[] s = chunkLines[i].brackets.stats;
+        if (s != null) {
+          low = Math.min(low, depth + s[b * 3 + 2]);
+          depth -= s[b * 3];
+        }
+      }
+      chunkStats[o + b * 3 + 2] = low;
+    }
+    Arrays.fill(chunkLines, null);
+    chunkValid[c] = true;
+    return o;
+  }
+
+  /**
+   * A search for the bracket matching another, done a bounded amount at a time.
+   */
+  final class Search {
+    /** The kind of bracket being matched; its index in OPENERS and CLOSERS. */
+    private final int kind;
+    /** Whether the search is for a closer following an opener. */
+    private final boolean forward;
+    /** The block hash of the token holding the bracket; only tokens like it are searched. */
+    private final int blockType;
+    /** The number of changes to the code when this search began. */
+    private final int since;
+    /** The line to search next. */
+    private int row;
+    /** The position in that line to search from, or -1 to search all of it. */
+    private int from;
+    /** The number of brackets left to close. */
+    private int count;
+    /** The line of the match, or -1 if none has been found. */
+    int matchRow = -1;
+    /** The position of the match in its line. */
+    int matchPos;
+
+    /**
+     * @param row
+     *        The line of the bracket to match.
+     * @param col
+     *        The position of the bracket in the line.
+     * @param kind
+     *        The kind of the bracket; its index in OPENERS and CLOSERS.
+     * @param forward
+     *        True if the bracket is an opener, false if it is a closer.
+     */
+    Search(int row, int col, int kind, boolean forward) {
+      this.row = row;
+      this.kind = kind;
+      this.forward = forward;
+      from = col;
+      since = changes;
+      blockType = blockAt(row, col);
+    }
+
+    /** @return Whether the code has changed since this search began. */
+    boolean isStale() {
+      return since != changes;
+    }
+
+    /**
+     * Continue the search.
+     *
+     * @param budget
+     *        The number of lines this call may summarize or read.
+     * @return True if the search is over; whether a match was found is told by
+     *         {@link #matchRow}. False if the budget ran out first.
+     */
+    boolean run(int budget) {
+      final int start = work;
+      final int size = text.code.size();
+      while (work - start < budget) {
+        if (row < 0 || row >= size) {
+          return true;
+        }
+        if (blockType != 0) {
+          work++;
+          if (searchBlocks()) {
+            return true;
+          }
+        } else if (from < 0 && skipChunk(size)) {
+          continue;
+        } else {
+          final Brackets b = brackets(row);
+          if (b.stats != null) {
+            final int o = kind * 3;
+            if (from >= 0 || count + b.stats[o + (forward? 1 : 2)] <= 0) {
+              if (searchBrackets(b)) {
+                return true;
+              }
+            } else {
+              count += forward? b.stats[o] : -b.stats[o];
+            }
+          }
+        }
+        row += forward? 1 : -1;
+        from = -1;
+      }
+      return false;
+    }
+
+    /**
+     * Pass over the chunk starting (or, backward, ending) at the current row, if it lies in
+     * the code and cannot hold the match.
+     *
+     * @param size
+     *        The number of lines in the code.
+     * @return Whether the chunk was passed over.
+     */
+    private boolean skipChunk(int size) {
+      if (forward? row % CHUNK != 0 || row + CHUNK > size : (row + 1) % CHUNK != 0) {
+        return false;
+      }
+      final int o = chunk(row / CHUNK) + kind * 3;
+      if (count + chunkStats[o + (forward? 1 : 2)] <= 0) {
+        return false;
+      }
+      count += forward? chunkStats[o] : -chunkStats[o];
+      row += forward? CHUNK : -CHUNK;
+      return true;
+    }
+
+    /**
+     * Count a bracket which closes one of those being matched.
+     *
+     * @param pos
+     *        Its position in the current row.
+     * @return Whether it is the match.
+     */
+    private boolean close(int pos) {
+      if (--count > 0) {
+        return false;
+      }
+      matchRow = row;
+      matchPos = pos;
+      return true;
+    }
+
+    /**
+     * @param b
+     *        The summary of the current row.
+     * @return Whether the match was found in it.
+     */
+    private boolean searchBrackets(Brackets b) {
+      final int up = forward? kind : kind + 3, down = forward? kind + 3 : kind;
+      if (forward) {
+        for (int i = 0; i < b.pos.length; i++) {
+          if (b.pos[i] >= from) {
+            if (b.kind[i] == up) {
+              count++;
+            } else if (b.kind[i] == down && close(b.pos[i])) {
+              return true;
+            }
+          }
+        }
+      } else {
+        for (int i = b.pos.length - 1; i >= 0; i--) {
+          if (from < 0 || b.pos[i] <= from) {
+            if (b.kind[i] == up) {
+              count++;
+            } else if (b.kind[i] == down && close(b.pos[i])) {
+              return true;
+            }
+          }
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Read the tokens of the current row which have our block type.
+     *
+     * @return Whether the match was found in them.
+     */
+    private boolean searchBlocks() {
+      final StringBuilder sb = loadRuns(row).sbuild;
+      final StyleTable st = runs.getStyleTable();
+      final char up = (forward? OPENERS : CLOSERS).charAt(kind);
+      final char down = (forward? CLOSERS : OPENERS).charAt(kind);
+      final int n = runs.size();
+      for (int r = 0; r < n; r++) {
+        final int i = forward? r : n - 1 - r;
+        if (st.blockHash(runs.style(i)) != blockType) {
+          continue;
+        }
+        final int start = runs.start(i), end = Math.min(runs.end(i), sb.length());
+        if (forward) {
+          for (int pos = Math.max(start, from); pos < end; pos++) {
+            final char c = sb.charAt(pos);
+            if (c == up) {
+              count++;
+            } else if (c == down && close(pos)) {
+              return true;
+            }
+          }
+        } else {
+          for (int pos = from < 0? end - 1 : Math.min(end - 1, from); pos >= start; pos--) {
+            final char c = sb.charAt(pos);
+            if (c == up) {
+              count++;
+            } else if (c == down && close(pos)) {
+              return true;
+            }
+          }
+        }
+      }
+      return false;
+    }
+  }
+}
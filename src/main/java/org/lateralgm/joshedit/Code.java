@@ -10,19 +10,222 @@
 package org.lateralgm.joshedit;
 
 import java.awt.AWTEvent;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.EventListener;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.regex.Matcher;
+import java.util.RandomAccess;
 import java.util.regex.Pattern;
 
 /**
  * Class representing the actual code body in our editor.
+ * Lines are kept in a {@link LineStore}; by default, a {@link LineTree}, so that inserting
+ * and removing rows anywhere in a large document does not shift every row after it.
  */
-public class Code extends ArrayList<Line> {
-  /** Stuff it, ECJ. */
-  private static final long serialVersionUID = 1L;
+public class Code extends AbstractList<Line> implements RandomAccess {
+  /**
+   * Storage backing a Code's list of lines.
+   * Implementations need only store and index lines; Code handles events.
+   */
+  public static interface LineStore {
+    /** @return The number of lines stored. */
+    int size();
+
+    /**
+     * @param index
+     *        The index of the line to fetch.
+     * @return The line with the given index.
+     */
+    Line get(int index);
+
+    /**
+     * Copy out a run of consecutive lines; cheaper than fetching each by index.
+     *
+     * @param index
+     *        The index of the first line to copy.
+     * @param out
+     *        The array to which to copy the lines, from its start.
+     * @param count
+     *        The number of lines to copy.
+     */
+    void get(int index, Line[] out, int count);
+
+    /**
+     * @param index
+     *        The index of the line to replace.
+     * @param line
+     *        The line to store in its place.
+     * @return The line that was replaced.
+     */
+    Line set(int index, Line line);
+
+    /**
+     * @param index
+     *        The index at which to insert the line.
+     * @param line
+     *        The line to insert.
+     */
+    void add(int index, Line line);
+
+    /**
+     * @param index
+     *        The index of the line to remove.
+     * @return The line that was removed.
+     */
+    Line remove(int index);
+
+    /** Remove all lines. */
+    void clear();
+  }
+
+  /** A LineStore backed by a plain ArrayList, as Code used to be. */
+  public static class ArrayLineStore implements LineStore {
+    /** The list holding our lines. */
+    private final ArrayList<Line> lines = new ArrayList<Line>();
+
+    @Override
+    public int size() {
+      return lines.size();
+    }
+
+    @Override
+    public Line get(int index) {
+      return lines.get(index);
+    }
+
+    @Override
+    public void get(int index, Line[] out, int count) {
+      for (int i = 0; i < count; i++) {
+        out[i] = lines.get(index + i);
+      }
+    }
+
+    @Override
+    public Line set(int index, Line line) {
+      return lines.set(index, line);
+    }
+
+    @Override
+    public void add(int index, Line line) {
+      lines.add(index, line);
+    }
+
+    @Override
+    public Line remove(int index) {
+      return lines.remove(index);
+    }
+
+    @Override
+    public void clear() {
+      lines.clear();
+    }
+  }
+
+  /** The storage holding our lines. */
+  private final LineStore store;
+  /** The lengths of our lines, for finding the longest. */
+  private final LineLengths lengths = new LineLengths();
+
+  /** Construct empty code, stored in a {@link LineTree}. */
+  public Code() {
+    this(new LineTree());
+  }
+
+  /**
+   * @param store
+   *        The (empty) storage in which to keep our lines.
+   */
+  public Code(LineStore store) {
+    this.store = store;
+  }
+
+  /**
+   * @param index
+   *        The index to check.
+   * @param limit
+   *        The exclusive upper bound for the index.
+   */
+  private static void checkIndex(int index, int limit) {
+    if (index < 0 || index >= limit) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + limit); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+  }
+
+  /**
+   * @param s
+   *        The string to copy.
+   * @return A StringBuilder holding the given string, without spare capacity.
+   */
+  private static StringBuilder exactBuilder(String s) {
+    return new StringBuilder(s.length()).append(s);
+  }
+
+  @Override
+  public int size() {
+    return store.size();
+  }
+
+  @Override
+  public Line get(int index) {
+    checkIndex(index, store.size());
+    return store.get(index);
+  }
+
+  /**
+   * Replace a line. Does not fire an event, as the number of lines does not change.
+   *
+   * @return Returns the Line that was replaced.
+   */
+  @Override
+  public Line set(int index, Line line) {
+    checkIndex(index, store.size());
+    Line r = store.set(index, line);
+    lengths.remove(r);
+    lengths.add(line);
+    return r;
+  }
+
+  /**
+   * @param index
+   *        Position at which to insert the line.
+   * @param line
+   *        The line to insert.
+   */
+  @Override
+  public void add(int index, Line line) {
+    checkIndex(index, store.size() + 1);
+    store.add(index, line);
+    lengths.add(line);
+    modCount++;
+    linesChanged(index, index, 1);
+  }
+
+  /**
+   * Insert several lines, firing a single event.
+   *
+   * @param index
+   *        Position at which to insert the first line.
+   * @param lines
+   *        The lines to insert.
+   * @return True if any lines were inserted.
+   */
+  @Override
+  public boolean addAll(int index, Collection<? extends Line> lines) {
+    checkIndex(index, store.size() + 1);
+    if (lines.isEmpty()) {
+      return false;
+    }
+    int start = index;
+    for (Line line : lines) {
+      store.add(index++, line);
+      lengths.add(line);
+    }
+    modCount++;
+    linesChanged(start, index - 1, index - start);
+    return true;
+  }
 
   /**
    * @param index
@@ -31,8 +234,7 @@ public class Code extends ArrayList<Line> {
    *        The StringBuilder of the line to insert.
    */
   public void add(int index, StringBuilder sb) {
-    super.add(index, new Line(sb));
-    fireLinesChanged();
+    add(index, new Line(sb));
   }
 
   /**
@@ -42,7 +244,7 @@ public class Code extends ArrayList<Line> {
    *        The string from which to create a StringBuilder to insert.
    */
   public void add(int index, String string) {
-    add(index, new StringBuilder(string));
+    add(index, exactBuilder(string));
   }
 
   /**
@@ -54,9 +256,7 @@ public class Code extends ArrayList<Line> {
    * @return True, as specified in Collection.add(E).
    */
   public boolean add(StringBuilder sb) {
-    boolean r = super.add(new Line(sb));
-    fireLinesChanged();
-    return r;
+    return add(new Line(sb));
   }
 
   /**
@@ -67,7 +267,7 @@ public class Code extends ArrayList<Line> {
    * @return True, as specified in Collection.add(E).
    */
   public boolean add(String s) {
-    return add(new StringBuilder(s));
+    return add(exactBuilder(s));
   }
 
   /**
@@ -77,18 +277,72 @@ public class Code extends ArrayList<Line> {
    */
   @Override
   public Line remove(int index) {
-    Line r = super.remove(index);
-    fireLinesChanged();
+    checkIndex(index, store.size());
+    Line r = store.remove(index);
+    lengths.remove(r);
+    modCount++;
+    linesChanged(index, index, -1);
     return r;
   }
 
+  /** Remove all lines, firing a single event. */
+  @Override
+  public void clear() {
+    int n = store.size();
+    store.clear();
+    lengths.clear();
+    modCount++;
+    linesChanged(0, 0, -n);
+  }
+
+  /**
+   * Recount the lengths of lines which may have been edited in place, as their changes are
+   * reported.
+   *
+   * @param start
+   *        The first line to recount.
+   * @param end
+   *        The last line to recount, inclusive.
+   */
+  public void remeasure(int start, int end) {
+    for (int i = Math.max(start, 0); i <= end && i < store.size(); i++) {
+      lengths.update(store.get(i));
+    }
+  }
+
+  /**
+   * @return The length of the longest line, as of the last time each line was added or
+   *         recounted; see {@link #remeasure(int, int)}.
+   */
+  public int maxLength() {
+    return lengths.max();
+  }
+
   /**
    * @param index
    *        The row index from which to retrieve the StringBuilder.
    * @return The StringBuilder representing the row with the given index.
    */
   public StringBuilder getsb(int index) {
-    return super.get(index).sbuild;
+    return get(index).sbuild;
+  }
+
+  /**
+   * Copy out a run of consecutive lines, for scanning many lines quickly.
+   *
+   * @param index
+   *        The index of the first line to copy.
+   * @param out
+   *        The array to which to copy the lines, from its start.
+   * @param count
+   *        The number of lines to copy.
+   */
+  public void getLines(int index, Line[] out, int count) {
+    if (index < 0 || count < 0 || index + count > store.size()) {
+      throw new IndexOutOfBoundsException("Lines " + index + " to " + (index + count) //$NON-NLS-1$ //$NON-NLS-2$
+          + " of " + store.size()); //$NON-NLS-1$
+    }
+    store.get(index, out, count);
   }
 
   /**
@@ -122,10 +376,109 @@ public class Code extends ArrayList<Line> {
     listenerList.remove(l);
   }
 
-  /** Fire code listener events. */
+  /** How many batches are open; events are held back while this is nonzero. */
+  private int batchDepth;
+  /** The first line touched by the open batch, or -1 if it has changed nothing yet. */
+  private int batchStart = -1;
+  /** The last line touched by the open batch, numbered as the lines are now. */
+  private int batchEnd;
+  /** The net number of lines added by the open batch. */
+  private int batchDelta;
+
+  /**
+   * Begin a batch of changes. Until the matching {@link #endBatch()}, adding and removing
+   * lines fires no events; the outermost endBatch instead fires a single event covering
+   * every line touched. Batches nest. Callers should end a batch in a finally block.
+   */
+  public void beginBatch() {
+    batchDepth++;
+  }
+
+  /** End a batch of changes, firing one event for the batch if it was the outermost. */
+  public void endBatch() {
+    if (batchDepth <= 0) {
+      throw new IllegalStateException("endBatch() without beginBatch()"); //$NON-NLS-1$
+    }
+    if (--batchDepth == 0 && batchStart != -1) {
+      int start = batchStart, delta = batchDelta;
+      batchStart = -1;
+      batchDelta = 0;
+      fireLinesChanged(start, batchEnd, delta);
+    }
+  }
+
+  /**
+   * Run the given changes as one batch.
+   *
+   * @param changes
+   *        The changes to make.
+   * @see #beginBatch()
+   */
+  public void applyBatch(Runnable changes) {
+    beginBatch();
+    try {
+      changes.run();
+    } finally {
+      endBatch();
+    }
+  }
+
+  /** @return True if a batch of changes is open. */
+  public boolean inBatch() {
+    return batchDepth > 0;
+  }
+
+  /**
+   * Record a change, firing it at once or folding it into the open batch.
+   *
+   * @param start
+   *        The first line changed.
+   * @param end
+   *        The last line changed, numbered as the lines are after the change.
+   * @param delta
+   *        The number of lines added; negative if lines were removed.
+   */
+  private void linesChanged(int start, int end, int delta) {
+    if (batchDepth == 0) {
+      fireLinesChanged(start, end, delta);
+      return;
+    }
+    if (batchStart == -1) {
+      batchStart = start;
+      batchEnd = end;
+    } else {
+      // Lines added or removed before the end of our range shift that end.
+      if (start <= batchEnd) {
+        batchEnd = Math.max(batchEnd + delta, start);
+      }
+      batchStart = Math.min(batchStart, start);
+      batchEnd = Math.max(batchEnd, end);
+    }
+    batchDelta += delta;
+  }
+
+  /** Fire code listener events reporting that any line may have changed. */
   protected void fireLinesChanged() {
+    linesChanged(0, Math.max(store.size() - 1, 0), 0);
+  }
+
+  /**
+   * Fire code listener events.
+   *
+   * @param start
+   *        The first line changed.
+   * @param end
+   *        The last line changed, numbered as the lines are after the change.
+   * @param delta
+   *        The number of lines added; negative if lines were removed.
+   */
+  protected void fireLinesChanged(int start, int end, int delta) {
+    if (listenerList.isEmpty()) {
+      return;
+    }
+    CodeEvent e = new CodeEvent(this, CodeEvent.LINES_CHANGED, start, end, delta);
     for (Code.CodeListener l : listenerList) {
-      l.codeChanged(new CodeEvent(this, CodeEvent.LINES_CHANGED));
+      l.codeChanged(e);
     }
   }
 
@@ -136,16 +489,58 @@ public class Code extends ArrayList<Line> {
     /** Constant given to the lines-changed event. */
     public static final int LINES_CHANGED = 0;
 
+    /** The first line changed. */
+    private final int start;
+    /** The last line changed, numbered as the lines are after the change. */
+    private final int end;
+    /** The number of lines added; negative if lines were removed. */
+    private final int delta;
+
     /**
+     * Construct an event which does not say which lines changed.
+     *
      * @param source
      *        The Code that fired the event.
      * @param id
      *        The ID of the event.
      */
     public CodeEvent(Object source, int id) {
+      this(source, id, 0, Integer.MAX_VALUE, 0);
+    }
+
+    /**
+     * @param source
+     *        The Code that fired the event.
+     * @param id
+     *        The ID of the event.
+     * @param start
+     *        The first line changed.
+     * @param end
+     *        The last line changed, numbered as the lines are after the change.
+     * @param delta
+     *        The number of lines added; negative if lines were removed.
+     */
+    public CodeEvent(Object source, int id, int start, int end, int delta) {
       super(source, id);
+      this.start = start;
+      this.end = end;
+      this.delta = delta;
     }
 
+    /** @return The first line changed. */
+    public int getStart() {
+      return start;
+    }
+
+    /** @return The last line changed, numbered as the lines are after the change. */
+    public int getEnd() {
+      return end;
+    }
+
+    /** @return The number of lines added; negative if lines were removed. */
+    public int getDelta() {
+      return delta;
+    }
   }
 
   /**
@@ -153,7 +548,7 @@ public class Code extends ArrayList<Line> {
    *
    * @author Josh Ventura
    */
-  class FindResults {
+  static class FindResults {
     /** The first line of the match. */
     int line;
     /** The starting position of the match. */
@@ -206,65 +601,42 @@ public class Code extends ArrayList<Line> {
    * @param lineFrom
    *        The line at which to begin searching.
    * @param posFrom
-   *        The position in the line at which to begin searching.
-   * @return The results of the find.
+   *        The position in the line before which the result must begin.
+   * @return The results of the find, or null if there are none.
    */
   public FindResults findPrevious(String[] findme, int lineFrom, int posFrom) {
-    /*
-     * FIXME: I'm not sure what to do with this, yet. This method only works right
-     * for one instance per line, and regexps can't be traversed backward.
-     */
-
-    for (int y = lineFrom; y >= 0; y--) {
-      if (findme.length == 1) {
-        int io =
-            find_prev_in(getsb(y), findme[0].toLowerCase(), y == lineFrom? posFrom
-                : getsb(y).length());
-        if (io != -1) {
-          return new FindResults(y, io, findme[0].length());
-        }
-      }
-    }
-    return null;
+    return CodeSearch.literal(findme, caseSensitive()).previous(this, lineFrom, posFrom);
   }
 
   /**
-   * @param sb
-   *        The StringBuilder to search in.
-   * @param findme
-   *        The substring to find.
-   * @param from
-   *        The position at which to begin the search.
-   * @return The index of the result, or -1 if not found.
+   * @param p
+   *        The regular expression pattern to find. Matches may span lines.
+   * @param lineFrom
+   *        The line at which to begin searching.
+   * @param posFrom
+   *        The position in the line before which the result must begin.
+   * @return The results of the find, or null if there are none.
    */
-  private static int find_prev_in(StringBuilder sb, String findme, int from) {
-    if (from == 0) {
-      return -1;
-    }
-    if (FindDialog.sens.isSelected()) {
-      return sb.lastIndexOf(findme, from - 1);
-    }
-    return sb.toString().toLowerCase().lastIndexOf(findme.toLowerCase(), from - 1);
+  public FindResults findPrevious(Pattern p, int lineFrom, int posFrom) {
+    return CodeSearch.regex(p).previous(this, lineFrom, posFrom);
+  }
+
+  /** @return Whether the find dialog asks for a case-sensitive search; false if there is none. */
+  private static boolean caseSensitive() {
+    return FindDialog.sens != null && FindDialog.sens.isSelected();
   }
 
   /**
    * @param p
-   *        The regular expression pattern to find.
+   *        The regular expression pattern to find. Matches may span lines.
    * @param lineFrom
    *        The line at which to begin searching.
    * @param posFrom
    *        The position in the line at which to begin searching.
-   * @return The results of the find.
+   * @return The results of the find, or null if there are none.
    */
   public FindResults findNext(Pattern p, int lineFrom, int posFrom) {
-    for (int y = lineFrom; y < size(); y++) {
-      Matcher m = p.matcher(getsb(y).toString());
-      int si = y == lineFrom? posFrom : 0;
-      if (m.find(si)) {
-        return new FindResults(y, m.start(), y, m.end());
-      }
-    }
-    return null;
+    return CodeSearch.regex(p).next(this, lineFrom, posFrom);
   }
 
   /**
@@ -274,47 +646,9 @@ public class Code extends ArrayList<Line> {
    *        The line at which to begin searching.
    * @param posFrom
    *        The position in the line at which to begin searching.
-   * @return The results of the find.
+   * @return The results of the find, or null if there are none.
    */
   public FindResults findNext(String[] findme, int lineFrom, int posFrom) {
-    findMain: for (int y = lineFrom; y < size(); y++) {
-      int io = find_next_in(getsb(y), findme[0], y == lineFrom? posFrom : 0);
-      if (io == -1) {
-        continue;
-      }
-
-      if (findme.length == 1) {
-        return new FindResults(y, io, findme[0].length());
-      }
-
-      int intermediate;
-      for (intermediate = 1; intermediate < findme.length - 1; intermediate++) {
-        if (!findme[intermediate].equals(getsb(y + intermediate))) {
-          continue findMain;
-        }
-      }
-      if (getsb(y + intermediate).length() >= findme[intermediate].length()
-          && getsb(y + intermediate).substring(0, findme[intermediate].length()).equals(
-              findme[intermediate])) {
-        return new FindResults(io, y, findme[intermediate].length(), y + intermediate);
-      }
-    }
-    return null;
-  }
-
-  /**
-   * @param sb
-   *        The StringBuilder to search in.
-   * @param findme
-   *        The substring to find.
-   * @param from
-   *        The position at which to begin the search.
-   * @return The index of the result, or -1 if not found.
-   */
-  private static int find_next_in(StringBuilder sb, String findme, int from) {
-    if (FindDialog.sens.isSelected()) {
-      return sb.indexOf(findme, from);
-    }
-    return sb.toString().toLowerCase().indexOf(findme, from);
+    return CodeSearch.literal(findme, caseSensitive()).next(this, lineFrom, posFrom);
   }
 }
@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This file is part of JoshEdit. JoshEdit is free software.
+ * You can use, modify, and distribute it under the terms of
+ * the GNU General Public License, version 3 or later.
+ */
+
+package org.lateralgm.joshedit;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.List;
+
+/**
+ * Reads a file into Lines by memory-mapping it and decoding the mapped bytes directly,
+ * splitting lines as it goes, so a file is read in a single pass without an intermediate
+ * copy. Lines are produced on demand, letting a caller show the top of a file while the
+ * rest is still being read.
+ * <p>
+ * The encoding is taken from a byte order mark if the file has one. Otherwise the file is
+ * read as UTF-8, unless it turns out not to be valid UTF-8, in which case reading starts
+ * over in the platform encoding (or ISO-8859-1, if the platform encoding is UTF-8 or
+ * ASCII). The
+ * line terminator is whichever of \n, \r\n and \r appears first; a file mixing them is
+ * saved with that one throughout. Whether the last line is terminated is kept as well.
+ *
+ * @author agent
+ */
+public class CodeLoader implements Closeable {
+  /** The largest number of bytes we map at once. */
+  static final int WINDOW = 1 << 26;
+  /** The UTF-8 charset, which we try first. */
+  static final Charset UTF8 = Charset.forName("UTF-8"); //$NON-NLS-1$
+
+  /** The file being read. */
+  private final RandomAccessFile file;
+  /** The channel from which we map the file. */
+  private final FileChannel channel;
+  /** The size of the file, in bytes. */
+  private final long size;
+  /** The offset of the first byte after the byte order mark, if any. */
+  private final long start;
+  /** True if the file begins with a byte order mark. */
+  private final boolean bom;
+
+  /** The charset in which we are decoding. */
+  private Charset charset;
+  /** The decoder for our charset. */
+  private CharsetDecoder decoder;
+  /** The file offset of our mapped window. */
+  private long mapped;
+  /** The mapped window of the file being decoded. */
+  private ByteBuffer bytes;
+  /** Decoded characters not yet split into lines. */
+  private final CharBuffer chars = CharBuffer.allocate(8192);
+  /** The start of a line whose end has not been decoded yet. */
+  private final StringBuilder partial = new StringBuilder();
+  /** True if the last character decoded was a \r, which may be followed by a \n. */
+  private boolean pendingCR;
+  /** True once every character has been decoded. */
+  private boolean flushed;
+  /** The line terminator used by the file, or null if none was seen yet. */
+  private String terminator;
+  /** True if the file was read to its end, and its last line has a terminator. */
+  private boolean endsWithTerminator;
+
+  /** The length of the longest line read so far. */
+  int maxLength;
+  /**
+   * Set when the file turned out not to be UTF-8 and reading started over. Lines handed
+   * out before this happened were decoded wrongly, and must be discarded.
+   */
+  boolean restarted;
+  /** Set to ask a background read of this file to stop. */
+  volatile boolean cancelled;
+
+  /**
+   * Open a file for reading.
+   *
+   * @param f
+   *        The file to read.
+   * @throws IOException
+   *         If the file cannot be opened or mapped.
+   */
+  public CodeLoader(File f) throws IOException {
+    file = new RandomAccessFile(f, "r"); //$NON-NLS-1$
+    channel = file.getChannel();
+    size = channel.size();
+    remap(0);
+
+    long skip = 0;
+    charset = UTF8;
+    int b0 = byteAt(0), b1 = byteAt(1), b2 = byteAt(2);
+    if (b0 == 0xEF && b1 == 0xBB && b2 == 0xBF) {
+      skip = 3;
+    } else if (b0 == 0xFE && b1 == 0xFF) {
+      charset = Charset.forName("UTF-16BE"); //$NON-NLS-1$
+      skip = 2;
+    } else if (b0 == 0xFF && b1 == 0xFE) {
+      charset = Charset.forName("UTF-16LE"); //$NON-NLS-1$
+      skip = 2;
+    }
+    start = skip;
+    bom = skip != 0;
+    rewind();
+  }
+
+  /**
+   * @param i
+   *        The offset of the byte to read, within the first window.
+   * @return The unsigned byte at the given offset, or -1 past the end of the file.
+   */
+  private int byteAt(int i) {
+    return i < bytes.limit()? bytes.get(i) & 0xFF : -1;
+  }
+
+  /**
+   * Map the window of the file beginning at the given offset.
+   *
+   * @param pos
+   *        The file offset at which the window begins.
+   * @throws IOException
+   *         If the file cannot be mapped.
+   */
+  private void remap(long pos) throws IOException {
+    MappedByteBuffer mb = channel.map(MapMode.READ_ONLY, pos, Math.min(WINDOW, size - pos));
+    mapped = pos;
+    bytes = mb;
+  }
+
+  /**
+   * Start decoding over from the top of the file, in our current charset.
+   *
+   * @throws IOException
+   *         If the file cannot be mapped.
+   */
+  private void rewind() throws IOException {
+    decoder = charset.newDecoder();
+    if (charset == UTF8 && !bom) {
+      // Without a byte order mark, UTF-8 is only a guess; find out if it is wrong.
+      decoder.onMalformedInput(CodingErrorAction.REPORT);
+      decoder.onUnmappableCharacter(CodingErrorAction.REPORT);
+    } else {
+      decoder.onMalformedInput(CodingErrorAction.REPLACE);
+      decoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+    remap(start);
+    chars.clear().flip();
+    partial.setLength(0);
+    pendingCR = false;
+    flushed = false;
+    terminator = null;
+    endsWithTerminator = false;
+    maxLength = 0;
+  }
+
+  /**
+   * @return The charset to fall back on for files which are not UTF-8: the platform's,
+   *         unless that cannot be what the file is in, either.
+   */
+  private static Charset fallbackCharset() {
+    Charset def = Charset.defaultCharset();
+    if (def.equals(UTF8) || def.name().equals("US-ASCII")) { //$NON-NLS-1$
+      return Charset.forName("ISO-8859-1"); //$NON-NLS-1$
+    }
+    return def;
+  }
+
+  /**
+   * Decode the next run of characters into our character buffer.
+   *
+   * @return True if any characters were decoded; false at the end of the file.
+   * @throws IOException
+   *         If the file cannot be mapped, or cannot be decoded in our charset.
+   */
+  private boolean fill() throws IOException {
+    chars.clear();
+    while (chars.position() == 0 && !flushed) {
+      boolean last = mapped + bytes.limit() >= size;
+      CoderResult cr = decoder.decode(bytes, chars, last);
+      if (cr.isError()) {
+        cr.throwException();
+      }
+      if (cr.isUnderflow()) {
+        if (!last) {
+          // Any bytes left over begin a character split across windows.
+          remap(mapped + bytes.position());
+        } else if (decoder.flush(chars).isUnderflow()) {
+          flushed = true;
+        }
+      }
+    }
+    chars.flip();
+    return chars.hasRemaining();
+  }
+
+  /**
+   * Read lines from the file. If the file turns out not to be UTF-8, reading starts over in
+   * the fallback charset: {@link #restarted} is set, and the given list is cleared.
+   *
+   * @param out
+   *        The list to which to append the lines read.
+   * @param max
+   *        The greatest number of lines to read.
+   * @return True if there is more of the file left to read.
+   * @throws IOException
+   *         If the file cannot be read.
+   */
+  public boolean readLines(List<Line> out, int max) throws IOException {
+    try {
+      return split(out, max);
+    } catch (CharacterCodingException e) {
+      charset = fallbackCharset();
+      restarted = true;
+      out.clear();
+      rewind();
+      return split(out, max);
+    }
+  }
+
+  /**
+   * Split decoded characters into lines.
+   *
+   * @param out
+   *        The list to which to append the lines read.
+   * @param max
+   *        The greatest number of lines to read.
+   * @return True if there is more of the file left to read.
+   * @throws IOException
+   *         If the file cannot be read or decoded.
+   */
+  private boolean split(List<Line> out, int max) throws IOException {
+    for (int n = 0; n < max;) {
+      if (!chars.hasRemaining() && !fill()) {
+        if (pendingCR && terminator == null) {
+          terminator = "\r"; //$NON-NLS-1$
+        }
+        endsWithTerminator = partial.length() == 0 && terminator != null;
+        // Like BufferedReader.readLine, a final terminator does not begin a new line.
+        if (partial.length() > 0) {
+          emit(out, null, 0, 0);
+          n++;
+        }
+        return false;
+      }
+      char[] a = chars.array();
+      int p = chars.position(), lim = chars.limit();
+      if (pendingCR) {
+        pendingCR = false;
+        if (a[p] == '\n') {
+          p++;
+          if (terminator == null) {
+            terminator = "\r\n"; //$NON-NLS-1$
+          }
+        } else if (terminator == null) {
+          terminator = "\r"; //$NON-NLS-1$
+        }
+      }
+      int i = p;
+      for (; i < lim && n < max; i++) {
+        char c = a[i];
+        if (c != '\n' && c != '\r') {
+          continue;
+        }
+        emit(out, a, p, i - p);
+        n++;
+        if (c == '\n') {
+          if (terminator == null) {
+            terminator = "\n"; //$NON-NLS-1$
+          }
+        } else if (i + 1 == lim) {
+          pendingCR = true;
+        } else if (a[i + 1] == '\n') {
+          i++;
+          if (terminator == null) {
+            terminator = "\r\n"; //$NON-NLS-1$
+          }
+        } else if (terminator == null) {
+          terminator = "\r"; //$NON-NLS-1$
+        }
+        p = i + 1;
+      }
+      if (n < max) {
+        partial.append(a, p, lim - p);
+        p = lim;
+      }
+      chars.position(p);
+    }
+    if (chars.hasRemaining() || pendingCR || partial.length() > 0 || !flushed) {
+      return true;
+    }
+    // Everything is read, and the last character was a terminator, if there was any.
+    endsWithTerminator = terminator != null;
+    return false;
+  }
+
+  /**
+   * Append a line to the list, completing any partial line. The line's builder is created
+   * without spare capacity, as most loaded lines are never edited.
+   *
+   * @param out
+   *        The list to which to append the line.
+   * @param a
+   *        The characters ending the line.
+   * @param off
+   *        The offset of the first character.
+   * @param len
+   *        The number of characters.
+   */
+  private void emit(List<Line> out, char[] a, int off, int len) {
+    StringBuilder sb;
+    if (partial.length() == 0) {
+      sb = new StringBuilder(len).append(a, off, len);
+    } else {
+      if (len > 0) {
+        partial.append(a, off, len);
+      }
+      sb = new StringBuilder(partial.length()).append(partial);
+      partial.setLength(0);
+    }
+    if (sb.length() > maxLength) {
+      maxLength = sb.length();
+    }
+    out.add(new Line(sb));
+  }
+
+  /** @return The charset in which the file is being read. */
+  public Charset getCharset() {
+    return charset;
+  }
+
+  /** @return True if the file begins with a byte order mark. */
+  public boolean hasBOM() {
+    return bom;
+  }
+
+  /**
+   * @return The line terminator used by the file, or null if none has been read yet.
+   */
+  public String getLineTerminator() {
+    return terminator;
+  }
+
+  /**
+   * @return True if the file has been read to its end, and its last line is followed by a
+   *         line terminator; false for an empty file, or one whose last line is not.
+   */
+  public boolean endsWithTerminator() {
+    return endsWithTerminator;
+  }
+
+  /** @see java.io.Closeable#close() */
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This file is part of JoshEdit. JoshEdit is free software.
+ * You can use, modify, and distribute it under the terms of
+ * the GNU General Public License, version 3 or later.
+ */
+
+package org.lateralgm.joshedit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.UnmappableCharacterException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.AclFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+
+/**
+ * Writes lines to a file by encoding them straight into a file channel, the counterpart of
+ * {@link CodeLoader}. The lines are written to a temporary file beside the target, forced
+ * to disk, and then moved over the target in one step, so that a save which fails partway,
+ * or a crash during one, leaves the old file as it was.
+ * <p>
+ * A symbolic link is followed, and the file it links to is replaced, keeping the link. The
+ * new file is given the owner, group, permissions, and access control list of the old, as
+ * far as the platform and our privileges allow. A file with other hard links is instead
+ * rewritten in place from the temporary file once that is on disk, so the links still share
+ * it; a crash during that copy can leave it partly written.
+ * <p>
+ * If the charset cannot represent some character, the file is written in UTF-8 instead,
+ * rather than the character being replaced or the save failing. The encoders and buffers
+ * are kept from one save to the next; a saver writes one file at a time.
+ *
+ * @author agent
+ */
+final class CodeSaver {
+  /** The charset in which we encode. */
+  private final Charset charset;
+  /** The encoder for our charset. */
+  private final CharsetEncoder encoder;
+  /** The encoder for UTF-8, when our charset cannot represent some text; made when needed. */
+  private CharsetEncoder fallback;
+  /** Characters waiting to be encoded. */
+  private final CharBuffer chars = CharBuffer.allocate(8192);
+  /** Encoded bytes waiting to be written. */
+  private final ByteBuffer bytes = ByteBuffer.allocateDirect(1 << 16);
+
+  /**
+   * @param cs
+   *        The charset in which to encode.
+   */
+  CodeSaver(Charset cs) {
+    charset = cs;
+    encoder = newEncoder(cs);
+  }
+
+  /**
+   * @param cs
+   *        A charset.
+   * @return An encoder for the charset which reports any character it cannot encode.
+   */
+  private static CharsetEncoder newEncoder(Charset cs) {
+    final CharsetEncoder res = cs.newEncoder();
+    res.onMalformedInput(CodingErrorAction.REPORT);
+    res.onUnmappableCharacter(CodingErrorAction.REPORT);
+    return res;
+  }
+
+  /** @return The charset in which we encode. */
+  Charset getCharset() {
+    return charset;
+  }
+
+  /**
+   * Write lines to a file, replacing it only once every line is safely on disk.
+   *
+   * @param target
+   *        The file to write.
+   * @param lines
+   *        The lines to write, separated by the terminator.
+   * @param bom
+   *        True to begin the file with a byte order mark.
+   * @param terminator
+   *        The line terminator to write; every line is ended with it, whichever the file
+   *        mixed when it was read.
+   * @param terminateLast
+   *        True to follow the last line with the terminator, too.
+   * @return The charset written: ours, or UTF-8 if ours could not represent every character.
+   * @throws IOException
+   *         If the file could not be written, or a line could not be encoded even in UTF-8;
+   *         the target is then left untouched, or not made if it did not exist.
+   */
+  synchronized Charset save(File target, String[] lines, boolean bom, String terminator,
+      boolean terminateLast) throws IOException {
+    Path to = target.getAbsoluteFile().toPath();
+    final boolean exists = Files.exists(to);
+    if (exists) {
+      to = to.toRealPath(); // Replace the file a link leads to, not the link.
+    } else {
+      // Create the file as any other would be, so that its permissions follow the umask
+      // rather than those of the private temporary file.
+      Files.createFile(to);
+    }
+    final Path dir = to.getParent();
+    boolean done = false;
+    Path tmp = null;
+    Charset written = charset;
+    try {
+      tmp = Files.createTempFile(dir, "." + to.getFileName(), ".tmp"); //$NON-NLS-1$ //$NON-NLS-2$
+      copyAttributes(to, tmp);
+      final FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE);
+      try {
+        try {
+          write(out, lines, bom, terminator, terminateLast, encoder);
+        } catch (UnmappableCharacterException e) {
+          if (charset.equals(CodeLoader.UTF8)) {
+            throw e;
+          }
+          if (fallback == null) {
+            fallback = newEncoder(CodeLoader.UTF8);
+          }
+          out.truncate(0);
+          out.position(0);
+          write(out, lines, bom, terminator, terminateLast, fallback);
+          written = CodeLoader.UTF8;
+        }
+        out.force(true);
+      } finally {
+        out.close();
+      }
+      if (exists && linkCount(to) > 1) {
+        done = true; // From here, the temporary file may be the only whole copy; keep it.
+        copyInPlace(tmp, to);
+        return written;
+      }
+      try {
+        Files.move(tmp, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp, to, StandardCopyOption.REPLACE_EXISTING);
+      }
+      done = true;
+    } finally {
+      if (!done) {
+        if (tmp != null) {
+          Files.deleteIfExists(tmp);
+        }
+        if (!exists) {
+          Files.deleteIfExists(to);
+        }
+      }
+    }
+    // Force the directory too, so the rename itself survives a crash; not every platform
+    // can open a directory, and the file is already safe if it cannot.
+    try {
+      final FileChannel d = FileChannel.open(dir, StandardOpenOption.READ);
+      try {
+        d.force(true);
+      } finally {
+        d.close();
+      }
+    } catch (IOException e) {
+      // The rename stands; only its durability across a crash is unconfirmed.
+    }
+    return written;
+  }
+
+  /**
+   * Give a new file the owner, group, permissions, and access control list of an old one.
+   * Those we may not set, or the platform does not have, are left as the new file has them.
+   *
+   * @param from
+   *        The old file.
+   * @param to
+   *        The new file.
+   * @throws IOException
+   *         If the old file's attributes could not be read.
+   */
+  private static void copyAttributes(Path from, Path to) throws IOException {
+    final PosixFileAttributeView posix = Files.getFileAttributeView(to,
+        PosixFileAttributeView.class);
+    if (posix != null) {
+      final PosixFileAttributes attrs = Files.readAttributes(from, PosixFileAttributes.class);
+      try {
+        posix.setGroup(attrs.group());
+      } catch (IOException e) {
+        // Only a member of the group may give it a file; the file keeps our group.
+      }
+      try {
+        posix.setOwner(attrs.owner());
+      } catch (IOException e) {
+        // Only a privileged user may give a file away; the file stays ours.
+      }
+      posix.setPermissions(attrs.permissions());
+    }
+    final AclFileAttributeView acl = Files.getFileAttributeView(from,
+        AclFileAttributeView.class);
+    if (acl != null) {
+      try {
+        Files.getFileAttributeView(to, AclFileAttributeView.class).setAcl(acl.getAcl());
+      } catch (IOException e) {
+        // The file keeps the access control list it inherited from its directory.
+      }
+    }
+  }
+
+  /**
+   * @param file
+   *        A file.
+   * @return The number of hard links to the file; 1 where the platform cannot say.
+   */
+  private static int linkCount(Path file) {
+    try {
+      return ((Number) Files.getAttribute(file, "unix:nlink")).intValue(); //$NON-NLS-1$
+    } catch (UnsupportedOperationException e) {
+      return 1;
+    } catch (IllegalArgumentException e) {
+      return 1;
+    } catch (IOException e) {
+      return 1;
+    }
+  }
+
+  /**
+   * Overwrite a file with the contents of another, in place, so that its hard links still
+   * share it; then delete the other.
+   *
+   * @param from
+   *        The file to copy, already on disk.
+   * @param to
+   *        The file to overwrite.
+   * @throws IOException
+   *         If the file could not be overwritten; it may then be partly written, but the
+   *         file copied from is kept.
+   */
+  private static void copyInPlace(Path from, Path to) throws IOException {
+    final FileChannel in = FileChannel.open(from, StandardOpenOption.READ);
+    try {
+      final FileChannel out = FileChannel.open(to, StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING);
+      try {
+        final long size = in.size();
+        for (long pos = 0; pos < size;) {
+          pos += out.transferFrom(in, pos, size - pos);
+        }
+        out.force(true);
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+    Files.delete(from);
+  }
+
+  /**
+   * Encode lines into a channel.
+   *
+   * @param out
+   *        The channel to write.
+   * @param lines
+   *        The lines to write, separated by the terminator.
+   * @param bom
+   *        True to begin with a byte order mark.
+   * @param terminator
+   *        The line terminator to write.
+   * @param terminateLast
+   *        True to follow the last line with the terminator, too.
+   * @param enc
+   *        The encoder with which to encode.
+   * @throws IOException
+   *         If the channel could not be written, or a line could not be encoded.
+   */
+  private void write(FileChannel out, String[] lines, boolean bom, String terminator,
+      boolean terminateLast, CharsetEncoder enc) throws IOException {
+    enc.reset();
+    chars.clear();
+    bytes.clear();
+    if (bom) {
+      chars.put('\uFEFF');
+    }
+    for (int i = 0; i < lines.length; i++) {
+      put(out, lines[i], enc);
+      if (terminateLast || i + 1 < lines.length) {
+        put(out, terminator, enc);
+      }
+    }
+    encode(out, true, enc);
+    CoderResult cr;
+    while ((cr = enc.flush(bytes)).isOverflow()) {
+      drain(out);
+    }
+    if (cr.isError()) {
+      cr.throwException();
+    }
+    drain(out);
+  }
+
+  /**
+   * Queue a string for encoding, encoding what is queued whenever the buffer fills.
+   *
+   * @param out
+   *        The channel to write.
+   * @param s
+   *        The string to queue.
+   * @param enc
+   *        The encoder with which to encode.
+   * @throws IOException
+   *         If the channel could not be written, or the string could not be encoded.
+   */
+  private void put(FileChannel out, String s, CharsetEncoder enc) throws IOException {
+    final char[] a = chars.array();
+    for (int i = 0, len = s.length(); i < len;) {
+      if (!chars.hasRemaining()) {
+        encode(out, false, enc);
+      }
+      final int p = chars.position(), n = Math.min(len - i, chars.remaining());
+      s.getChars(i, i + n, a, p);
+      chars.position(p + n);
+      i += n;
+    }
+  }
+
+  /**
+   * Encode the queued characters, writing out the bytes whenever their buffer fills.
+   * Characters which cannot be encoded until more follow stay queued.
+   *
+   * @param out
+   *        The channel to write.
+   * @param end
+   *        True if no characters follow those queued.
+   * @param enc
+   *        The encoder with which to encode.
+   * @throws IOException
+   *         If the channel could not be written, or a character could not be encoded.
+   */
+  private void encode(FileChannel out, boolean end, CharsetEncoder enc) throws IOException {
+    chars.flip();
+    for (;;) {
+      final CoderResult cr = enc.encode(chars, bytes, end);
+      if (cr.isOverflow()) {
+        drain(out);
+      } else if (cr.isError()) {
+        cr.throwException();
+      } else {
+        break;
+      }
+    }
+    chars.compact();
+  }
+
+  /**
+   * Write out every encoded byte.
+   *
+   * @param out
+   *        The channel to write.
+   * @throws IOException
+   *         If the channel could not be written.
+   */
+  private void drain(FileChannel out) throws IOException {
+    bytes.flip();
+    while (bytes.hasRemaining()) {
+      out.write(bytes);
+    }
+    bytes.clear();
+  }
+}
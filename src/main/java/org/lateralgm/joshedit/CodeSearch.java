@@ -0,0 +1,668 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This file is part of JoshEdit. JoshEdit is free software.
+ * You can use, modify, and distribute it under the terms of
+ * the GNU General Public License, version 3 or later.
+ */
+
+package org.lateralgm.joshedit;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.lateralgm.joshedit.Code.FindResults;
+
+/**
+ * Searches Code for a literal string or a regular expression, forward or backward, without
+ * copying or lowercasing the lines searched.
+ * <p>
+ * Literals are found with Boyer-Moore-Horspool, a line at a time; a literal spanning lines
+ * is found by checking only line ends against its first line. Regular expressions are run
+ * over a CharSequence view of the document, with lines joined by '\n', so they may match
+ * across lines; they are compiled with {@link Pattern#MULTILINE}, so that ^ and $ still
+ * match at the start and end of each line, as when lines were searched one at a time.
+ * <p>
+ * A search is compiled once and may be run any number of times.
+ *
+ * @author agent
+ */
+final class CodeSearch {
+  /** The number of entries in our shift tables; characters are hashed into them. */
+  private static final int SHIFTS = 256;
+  /** The number of lines a regular expression search looks through first. */
+  private static final int WINDOW = 1024;
+  /** The number of lines fetched from the Code at once. */
+  private static final int CHUNK = 256;
+
+  /** The literal sought, exploded at newlines and case-folded if need be; or null. */
+  private final char[][] parts;
+  /** True if the literal is to be matched case-sensitively. */
+  private final boolean caseSensitive;
+  /** Forward shifts for a single-line literal, by the hash of the character at its end. */
+  private int[] skip;
+  /** Backward shifts for a single-line literal, by the hash of the character at its start. */
+  private int[] rskip;
+  /** The regular expression sought, or null. */
+  private final Pattern pattern;
+
+  /**
+   * @param parts
+   *        The literal sought, exploded at newlines.
+   * @param caseSensitive
+   *        True if the literal is to be matched case-sensitively.
+   * @param pattern
+   *        The regular expression sought.
+   */
+  private CodeSearch(char[][] parts, boolean caseSensitive, Pattern pattern) {
+    this.parts = parts;
+    this.caseSensitive = caseSensitive;
+    this.pattern = pattern;
+  }
+
+  /**
+   * Compile a search for a literal string.
+   *
+   * @param findme
+   *        The string to find, exploded at newlines.
+   * @param caseSensitive
+   *        True to match case; false to ignore it.
+   * @return The compiled search.
+   */
+  static CodeSearch literal(String[] findme, boolean caseSensitive) {
+    char[][] parts = new char[findme.length][];
+    for (int i = 0; i < findme.length; i++) {
+      parts[i] = findme[i].toCharArray();
+      if (!caseSensitive) {
+        for (int j = 0; j < parts[i].length; j++) {
+          parts[i][j] = fold(parts[i][j]);
+        }
+      }
+    }
+    CodeSearch res = new CodeSearch(parts, caseSensitive, null);
+    if (parts.length == 1 && parts[0].length > 0) {
+      final char[] n = parts[0];
+      final int m = n.length;
+      res.skip = new int[SHIFTS];
+      res.rskip = new int[SHIFTS];
+      Arrays.fill(res.skip, m);
+      Arrays.fill(res.rskip, m);
+      // Later assignments are smaller, so each hash keeps the smallest shift of its characters.
+      for (int k = 0; k < m - 1; k++) {
+        res.skip[n[k] % SHIFTS] = m - 1 - k;
+      }
+      for (int k = m - 1; k > 0; k--) {
+        res.rskip[n[k] % SHIFTS] = k;
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Compile a search for a regular expression.
+   *
+   * @param p
+   *        The pattern to find. It is recompiled with {@link Pattern#MULTILINE} if it lacks it.
+   * @return The compiled search.
+   */
+  static CodeSearch regex(Pattern p) {
+    if ((p.flags() & Pattern.MULTILINE) == 0) {
+      p = Pattern.compile(p.pattern(), p.flags() | Pattern.MULTILINE);
+    }
+    return new CodeSearch(null, true, p);
+  }
+
+  /**
+   * @param c
+   *        A character.
+   * @return The character, with case folded away.
+   */
+  private static char fold(char c) {
+    if (c < 128) {
+      return c >= 'A' && c <= 'Z'? (char) (c + ('a' - 'A')) : c;
+    }
+    return Character.toLowerCase(Character.toUpperCase(c));
+  }
+
+  /**
+   * Find the first match at or after the given position.
+   *
+   * @param code
+   *        The code to search.
+   * @param lineFrom
+   *        The line at which to begin searching.
+   * @param posFrom
+   *        The position in the line at which to begin searching.
+   * @return The match, or null if there is none.
+   */
+  FindResults next(Code code, int lineFrom, int posFrom) {
+    if (lineFrom < 0 || lineFrom >= code.size()) {
+      return null;
+    }
+    if (pattern != null) {
+      return nextRegex(code, lineFrom, Math.max(posFrom, 0));
+    }
+    final int last = parts.length - 1, size = code.size() - last;
+    final Line[] buf = new Line[CHUNK];
+    for (int y = lineFrom; y < size;) {
+      final int n = Math.min(CHUNK, size - y);
+      code.getLines(y, buf, n);
+      for (int i = 0; i < n; i++, y++) {
+        final int from = y == lineFrom? Math.max(posFrom, 0) : 0;
+        if (last == 0) {
+          int io = indexIn(buf[i].sbuild, from);
+          if (io != -1) {
+            return new FindResults(y, io, parts[0].length);
+          }
+        } else {
+          int io = multiLineAt(code, y, buf[i].sbuild);
+          if (io != -1 && io >= from) {
+            return new FindResults(y, io, y + last, parts[last].length);
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Find the last match beginning before the given position.
+   *
+   * @param code
+   *        The code to search.
+   * @param lineFrom
+   *        The line at which to begin searching.
+   * @param posFrom
+   *        The position in the line before which matches must begin.
+   * @return The match, or null if there is none.
+   */
+  FindResults previous(Code code, int lineFrom, int posFrom) {
+    if (lineFrom < 0) {
+      return null;
+    }
+    if (lineFrom >= code.size()) {
+      lineFrom = code.size() - 1;
+      posFrom = Integer.MAX_VALUE;
+    }
+    if (pattern != null) {
+      return previousRegex(code, lineFrom, posFrom);
+    }
+    final int last = parts.length - 1;
+    final Line[] buf = new Line[CHUNK];
+    for (int y = Math.min(lineFrom, code.size() - 1 - last); y >= 0;) {
+      final int n = Math.min(CHUNK, y + 1);
+      code.getLines(y - n + 1, buf, n);
+      for (int i = n - 1; i >= 0; i--, y--) {
+        final StringBuilder sb = buf[i].sbuild;
+        final int before = y == lineFrom? Math.min(posFrom, sb.length() + 1) : sb.length() + 1;
+        if (last == 0) {
+          int io = lastIndexIn(sb, before - 1);
+          if (io != -1) {
+            return new FindResults(y, io, parts[0].length);
+          }
+        } else {
+          int io = multiLineAt(code, y, sb);
+          if (io != -1 && io < before) {
+            return new FindResults(y, io, y + last, parts[last].length);
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Find every match at or after the given position, in one pass over the document. Matches
+   * do not overlap: the search for each resumes where the one before it ended.
+   *
+   * @param code
+   *        The code to search.
+   * @param lineFrom
+   *        The line at which to begin searching.
+   * @param posFrom
+   *        The position in the line at which to begin searching.
+   * @param out
+   *        The list to which to append the matches, in document order.
+   */
+  void findAll(Code code, int lineFrom, int posFrom, List<FindResults> out) {
+    if (lineFrom < 0 || lineFrom >= code.size()) {
+      return;
+    }
+    posFrom = Math.max(posFrom, 0);
+    if (pattern != null) {
+      Lines text = new Lines(code, lineFrom, code.size());
+      Matcher m = pattern.matcher(text);
+      if (posFrom > text.length()) {
+        return;
+      }
+      for (boolean found = m.find(posFrom); found; found = m.find()) {
+        out.add(text.results(m.start(), m.end()));
+      }
+      return;
+    }
+    final int last = parts.length - 1, size = code.size() - last, m = parts[0].length;
+    if (last == 0 && m == 0) {
+      return;
+    }
+    final Line[] buf = new Line[CHUNK];
+    for (int y = lineFrom, from = posFrom; y < size;) {
+      final int n = Math.min(CHUNK, size - y);
+      code.getLines(y, buf, n);
+      for (int i = 0; i < n; i++, y++, from = 0) {
+        if (last == 0) {
+          final StringBuilder sb = buf[i].sbuild;
+          for (int io = indexIn(sb, from); io != -1; io = indexIn(sb, io + m)) {
+            out.add(new FindResults(y, io, m));
+          }
+          continue;
+        }
+        int io = multiLineAt(code, y, buf[i].sbuild);
+        if (io != -1 && io >= from) {
+          out.add(new FindResults(y, io, y + last, parts[last].length));
+          // Resume after the match, on the line on which it ended.
+          y += last;
+          from = parts[last].length;
+          break;
+        }
+      }
+    }
+  }
+
+  /** @return Whether a match may span lines, so a line's matches may change with its neighbors. */
+  boolean spansLines() {
+    return parts != null && parts.length > 1;
+  }
+
+  /**
+   * Find the parts of a line covered by matches, as for highlighting them. Regular
+   * expressions are matched within the line alone.
+   *
+   * @param code
+   *        The code searched.
+   * @param y
+   *        The index of the line.
+   * @param sb
+   *        The text of the line.
+   * @return The start and end of each part, in pairs, or null if the line has none.
+   */
+  int[] rangesIn(Code code, int y, StringBuilder sb) {
+    int[] r = null;
+    int n = 0;
+    if (pattern != null) {
+      Matcher m = pattern.matcher(sb);
+      while (m.find()) {
+        if (m.end() > m.start()) {
+          r = append(r, n, m.start(), m.end());
+          n += 2;
+        }
+      }
+    } else if (parts.length == 1) {
+      final int m = parts[0].length;
+      if (m == 0) {
+        return null;
+      }
+      for (int io = indexIn(sb, 0); io != -1; io = indexIn(sb, io + m)) {
+        r = append(r, n, io, io + m);
+        n += 2;
+      }
+    } else {
+      // The line may hold the first part of a match, its last, or one in between.
+      final int last = parts.length - 1;
+      for (int k = 0; k <= last && k <= y; k++) {
+        if (y - k + last >= code.size()) {
+          continue;
+        }
+        final int io = multiLineAt(code, y - k, k == 0? sb : code.getsb(y - k));
+        if (io != -1) {
+          r = append(r, n, k == 0? io : 0, k == last? parts[last].length : sb.length());
+          n += 2;
+        }
+      }
+    }
+    return r == null? null : Arrays.copyOf(r, n);
+  }
+
+  /**
+   * @param r
+   *        An array of ranges, or null.
+   * @param n
+   *        The number of entries in use.
+   * @param start
+   *        The start of the range to append.
+   * @param end
+   *        Its end.
+   * @return The array, grown if need be, with the range written after its entries in use.
+   */
+  private static int[] append(int[] r, int n, int start, int end) {
+    if (r == null) {
+      r = new int[8];
+    } else if (n + 2 > r.length) {
+      r = Arrays.copyOf(r, r.length * 2);
+    }
+    r[n] = start;
+    r[n + 1] = end;
+    return r;
+  }
+
+  /**
+   * @param sb
+   *        The text to compare.
+   * @param off
+   *        The offset in the text at which to compare.
+   * @param part
+   *        The characters to compare, case-folded if we ignore case.
+   * @return True if the characters appear in the text at the given offset.
+   */
+  private boolean regionMatches(StringBuilder sb, int off, char[] part) {
+    if (off < 0 || off + part.length > sb.length()) {
+      return false;
+    }
+    for (int i = 0; i < part.length; i++) {
+      char c = sb.charAt(off + i);
+      if ((caseSensitive? c : fold(c)) != part[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Check whether a literal spanning lines begins on the given line.
+   *
+   * @param code
+   *        The code to search.
+   * @param y
+   *        The line on which the match would begin.
+   * @param first
+   *        The text of that line.
+   * @return The position of the match on the line, or -1 if it does not begin there.
+   */
+  private int multiLineAt(Code code, int y, StringBuilder first) {
+    final int last = parts.length - 1;
+    final int io = first.length() - parts[0].length;
+    if (!regionMatches(first, io, parts[0])) {
+      return -1;
+    }
+    for (int i = 1; i < last; i++) {
+      StringBuilder sb = code.getsb(y + i);
+      if (sb.length() != parts[i].length || !regionMatches(sb, 0, parts[i])) {
+        return -1;
+      }
+    }
+    return regionMatches(code.getsb(y + last), 0, parts[last])? io : -1;
+  }
+
+  /**
+   * Find a single-line literal in a line, with Boyer-Moore-Horspool.
+   *
+   * @param sb
+   *        The line to search.
+   * @param from
+   *        The position at which to begin searching.
+   * @return The position of the first match at or after the given one, or -1 if none.
+   */
+  private int indexIn(StringBuilder sb, int from) {
+    final char[] n = parts[0];
+    final int m = n.length, last = m - 1, len = sb.length();
+    if (m == 0) {
+      return from <= len? from : -1;
+    }
+    for (int i = from; i + last < len;) {
+      char c = sb.charAt(i + last);
+      if (!caseSensitive) {
+        c = fold(c);
+      }
+      if (c == n[last]) {
+        int j = last - 1;
+        while (j >= 0 && (caseSensitive? sb.charAt(i + j) : fold(sb.charAt(i + j))) == n[j]) {
+          j--;
+        }
+        if (j < 0) {
+          return i;
+        }
+      }
+      i += skip[c % SHIFTS];
+    }
+    return -1;
+  }
+
+  /**
+   * Find a single-line literal in a line, with Boyer-Moore-Horspool run backward.
+   *
+   * @param sb
+   *        The line to search.
+   * @param from
+   *        The greatest position at which a match may begin.
+   * @return The position of the last match at or before the given one, or -1 if none.
+   */
+  private int lastIndexIn(StringBuilder sb, int from) {
+    final char[] n = parts[0];
+    final int m = n.length;
+    if (m == 0) {
+      return Math.min(from, sb.length());
+    }
+    for (int i = Math.min(from, sb.length() - m); i >= 0;) {
+      char c = sb.charAt(i);
+      if (!caseSensitive) {
+        c = fold(c);
+      }
+      if (c == n[0]) {
+        int j = 1;
+        while (j < m && (caseSensitive? sb.charAt(i + j) : fold(sb.charAt(i + j))) == n[j]) {
+          j++;
+        }
+        if (j == m) {
+          return i;
+        }
+      }
+      i -= rskip[c % SHIFTS];
+    }
+    return -1;
+  }
+
+  /**
+   * @param code
+   *        The code to search.
+   * @param lineFrom
+   *        The line at which to begin searching.
+   * @param posFrom
+   *        The position in the line at which to begin searching.
+   * @return The first match of our pattern at or after the given position, or null.
+   */
+  private FindResults nextRegex(Code code, int lineFrom, int posFrom) {
+    Lines text = new Lines(code, lineFrom, (int) Math.min(code.size(), (long) lineFrom + WINDOW));
+    Matcher m = pattern.matcher(text);
+    // Search a window of lines, growing it until it holds a match which did not depend on
+    // where the window ended, or until it holds the rest of the document. The window grows
+    // fourfold, so that what is searched over again is at most a third of the whole.
+    for (;;) {
+      final boolean found = m.find(Math.min(posFrom, text.length()));
+      if (text.end == code.size() || found && !m.hitEnd()) {
+        return found? text.results(m.start(), m.end()) : null;
+      }
+      text.extend((int) Math.min(code.size(), lineFrom + 4L * (text.end - lineFrom)));
+      m.reset();
+    }
+  }
+
+  /**
+   * Find the last match of our pattern beginning before the given position. Matches are found
+   * by searching forward from the start of windows of lines which double in size as they
+   * step back through the document, keeping the last match to begin in each window. Each
+   * window is viewed from the line before it, for lookbehind, to the line it ends in; the view
+   * grows past that only while a match needs to see more, as in nextRegex.
+   *
+   * @param code
+   *        The code to search.
+   * @param lineFrom
+   *        The line at which to begin searching.
+   * @param posFrom
+   *        The position in the line before which matches must begin.
+   * @return The last match before the given position, or null.
+   */
+  private FindResults previousRegex(Code code, int lineFrom, int posFrom) {
+    int top = lineFrom + 1, col = Math.min(posFrom, code.getsb(lineFrom).length() + 1);
+    for (int window = WINDOW; top > 0; window = (int) Math.min(window * 2L, top)) {
+      final int bottom = Math.max(0, top - window);
+      Lines text = new Lines(code, Math.max(0, bottom - 1), top);
+      Matcher m = pattern.matcher(text);
+      // Past the first window, matches must begin before the window searched last.
+      final int hi = col < 0? text.lineStart(top) : Math.min(text.lineStart(lineFrom) + col,
+          text.length());
+      int lo = text.lineStart(bottom), best = -1, bestEnd = -1;
+      while (lo < hi) {
+        m.reset();
+        m.useTransparentBounds(true);
+        m.useAnchoringBounds(false);
+        m.region(lo, text.length());
+        final boolean found = m.find();
+        if (m.hitEnd() && text.end < code.size()) {
+          text.extend((int) Math.min(code.size(), top + 4L * (text.end - bottom)));
+          continue;
+        }
+        if (!found || m.start() >= hi) {
+          break;
+        }
+        best = m.start();
+        bestEnd = m.end();
+        lo = best + 1;
+      }
+      if (best != -1) {
+        return text.results(best, bestEnd);
+      }
+      top = bottom;
+      col = -1;
+    }
+    return null;
+  }
+
+  /**
+   * A view of a run of lines of a Code as one CharSequence, each line followed by '\n' but the
+   * last line of the Code. The lines' text is not copied.
+   */
+  static final class Lines implements CharSequence {
+    /** The code viewed. */
+    private final Code code;
+    /** The first line viewed. */
+    private final int base;
+    /** The line after the last viewed. */
+    int end;
+    /** The total length of the view. */
+    private int length;
+    /** The lines viewed. */
+    private StringBuilder[] rows = new StringBuilder[0];
+    /** The offset at which each line begins; starts[n] is the offset after line n - 1. */
+    private int[] starts = new int[1];
+    /** The line most recently read from. */
+    private int cur;
+
+    /**
+     * @param code
+     *        The code to view.
+     * @param base
+     *        The first line to view.
+     * @param end
+     *        The line after the last to view.
+     */
+    Lines(Code code, int base, int end) {
+      this.code = code;
+      this.base = this.end = base;
+      extend(end);
+    }
+
+    /**
+     * Take more lines into the view.
+     *
+     * @param newEnd
+     *        The line after the last to view.
+     */
+    void extend(int newEnd) {
+      final int was = end - base, n = newEnd - base;
+      rows = Arrays.copyOf(rows, n);
+      starts = Arrays.copyOf(starts, n + 1);
+      final Line[] buf = new Line[CHUNK];
+      for (int i = was; i < n;) {
+        final int c = Math.min(CHUNK, n - i);
+        code.getLines(base + i, buf, c);
+        for (int j = 0; j < c; j++, i++) {
+          rows[i] = buf[j].sbuild;
+          starts[i + 1] = starts[i] + rows[i].length() + 1;
+        }
+      }
+      end = newEnd;
+      length = starts[n] - (end == code.size()? 1 : 0);
+    }
+
+    /**
+     * @param offset
+     *        An offset into the view.
+     * @return The index of the line containing the offset, relative to the first viewed.
+     */
+    private int lineOf(int offset) {
+      if (offset >= starts[cur] && offset < starts[cur + 1]) {
+        return cur;
+      }
+      if (cur + 2 < starts.length && offset >= starts[cur + 1] && offset < starts[cur + 2]) {
+        return ++cur;
+      }
+      int i = Arrays.binarySearch(starts, offset);
+      i = i >= 0? i : -i - 2;
+      return cur = Math.min(i, rows.length - 1);
+    }
+
+    /**
+     * @param line
+     *        The index of a line in the code.
+     * @return The offset in the view at which the line begins.
+     */
+    int lineStart(int line) {
+      return starts[line - base];
+    }
+
+    /**
+     * @param start
+     *        The offset at which a match begins.
+     * @param end
+     *        The offset at which it ends.
+     * @return The match, in rows and columns.
+     */
+    FindResults results(int start, int end) {
+      int l = lineOf(start), ls = starts[l];
+      int le = lineOf(end == start? end : end - 1);
+      // A match ending just after a line's '\n' ends at the start of the next line.
+      if (end - starts[le] > rows[le].length() && base + le + 1 < code.size()) {
+        le++;
+      }
+      return new FindResults(base + l, start - ls, base + le, end - starts[le]);
+    }
+
+    @Override
+    public int length() {
+      return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+      final int l = lineOf(index);
+      final StringBuilder sb = rows[l];
+      final int c = index - starts[l];
+      return c < sb.length()? sb.charAt(c) : '\n';
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      StringBuilder res = new StringBuilder(end - start);
+      for (int i = start; i < end; i++) {
+        res.append(charAt(i));
+      }
+      return res;
+    }
+
+    @Override
+    public String toString() {
+      return subSequence(0, length).toString();
+    }
+  }
+}
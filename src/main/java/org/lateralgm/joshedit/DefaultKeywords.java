@@ -81,6 +81,13 @@ public class DefaultKeywords {
       arraySize = s != null? Integer.valueOf(m.group(3)) : 0;
       readOnly = "*".equals(m.group(4)); //$NON-NLS-1$
     }
+
+    /** Construct with a variable name already parsed, as from a {@link KeywordIndex}. */
+    public Variable(String name, int arraySize, boolean readOnly) {
+      this.name = name;
+      this.arraySize = arraySize;
+      this.readOnly = readOnly;
+    }
   }
 
   /** Class used to store language constants, such as "M_PI". */
@@ -9,12 +9,20 @@
 package org.lateralgm.joshedit;
 
 import java.awt.Color;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.swing.Timer;
+
 import org.lateralgm.joshedit.ColorProfile.ColorProfileEntry;
 import org.lateralgm.joshedit.DefaultTokenMarker.SchemeInfo.SchemeType;
 import org.lateralgm.joshedit.Line.LINE_ATTRIBS;
@@ -25,11 +33,27 @@ import org.lateralgm.joshedit.Line.LINE_ATTRIBS;
  *
  * @author Josh Ventura
  */
-public abstract class DefaultTokenMarker implements TokenMarker {
+public abstract class DefaultTokenMarker implements TokenMarker, TokenMarker.LookAhead,
+    TokenMarker.RunMarker, TokenMarker.Restyling {
   /** The number of lines last time we parsed; used to determine change type. */
   private int line_count;
   /** The index of the first invalid line, or -1 for all-clear */
   private int invalid_line = 0;
+  /**
+   * The last line changed since marking last completed, or -1; marking may only stop early,
+   * where the state leaving a line matches the state it had before, after passing this line.
+   */
+  private int changed_line = -1;
+  /** The last line shown in the viewport, or -1 to mark eagerly, as when there is no view. */
+  private int visible_line = -1;
+  /** The code which is left to be marked in the background, or null. */
+  private Code pendingCode;
+  /** The number of lines lexed to mark the latest change. */
+  private int relexed;
+  /** The listener told of lines restyled by marking, or null. */
+  private RestyleListener restyleListener;
+  /** The first and last lines restyled by the marking under way; -1 for none. */
+  private int restyledFirst = -1, restyledLast = -1;
 
   /** True if this is in general a case sensitive language. */
   public boolean caseSensitive = true; // Most are.
@@ -253,10 +277,38 @@ public abstract class DefaultTokenMarker implements TokenMarker {
       color = markColor;
       this.fontStyle = fontStyle;
       caseSensitive = caseSens;
-      words = new HashSet<String>();
+      words = new WordSet();
     }
   }
 
+  /** Finds which of some keyword sets holds a word, without copying the word out. */
+  public interface KeywordLookup {
+    /**
+     * Look up a region of text.
+     *
+     * @param s
+     *        The text.
+     * @param start
+     *        The start of the region.
+     * @param end
+     *        The end of the region.
+     * @return The index of the first keyword set holding the region, or -1 if none does.
+     */
+    int lookup(CharSequence s, int start, int end);
+  }
+
+  /**
+   * Get a lookup for some keyword sets, for markers which classify identifiers themselves.
+   * Sets of bundled keywords share one lookup, as they do in this marker.
+   *
+   * @param keywordSets
+   *        The keyword sets, in order of precedence.
+   * @return A lookup over the words the sets hold now.
+   */
+  public static KeywordLookup keywordLookup(List<KeywordSet> keywordSets) {
+    return KeywordTable.of(keywordSets);
+  }
+
   /** All keyword sets to mark. */
   public ArrayList<KeywordSet> tmKeywords = new ArrayList<KeywordSet>();
 
@@ -519,12 +571,61 @@ public abstract class DefaultTokenMarker implements TokenMarker {
   }
 
   /**
-   * Mark new or invalidated lines.
+   * Mark new or invalidated lines, stopping once the state leaving a line past the change
+   * matches the state it left with before, as the lines after it will then be unchanged.
+   * The restyle listener is then told of the lines whose styles changed with their state.
+   *
+   * @param code
+   *        The code to mark.
+   * @param limit
+   *        The line before which to stop, leaving the rest to be marked later.
+   */
+  private void mark(Code code, int limit) {
+    markLines(code, limit);
+    if (restyledFirst != -1) {
+      final int first = restyledFirst, last = restyledLast;
+      restyledFirst = restyledLast = -1;
+      if (restyleListener != null) {
+        restyleListener.linesRestyled(first, last);
+      }
+    }
+  }
+
+  /**
+   * Record lines whose styles marking changed, to report once it stops.
+   *
+   * @param first
+   *        The first line restyled.
+   * @param last
+   *        The last line restyled.
+   */
+  private void restyled(int first, int last) {
+    restyledFirst = restyledFirst == -1? first : Math.min(restyledFirst, first);
+    restyledLast = Math.max(restyledLast, last);
+  }
+
+  /** @see TokenMarker.Restyling#setRestyleListener(TokenMarker.RestyleListener) */
+  @Override
+  public void setRestyleListener(RestyleListener listener) {
+    restyleListener = listener;
+  }
+
+  /**
+   * Do the work of {@link #mark(Code, int)}, recording the lines restyled.
    *
    * @param code
    *        The code to mark.
+   * @param limit
+   *        The line before which to stop, leaving the rest to be marked later.
    */
-  private void mark(Code code) {
+  private void markLines(Code code, int limit) {
+    if (invalid_line == -1) {
+      return;
+    }
+    line_count = code.size();
+    if (invalid_line > line_count) {
+      invalid_line = line_count;
+    }
     do {
       if (invalid_line == 0) {
         code.get(invalid_line).attr = 0;
@@ -533,19 +634,283 @@ public abstract class DefaultTokenMarker implements TokenMarker {
       }
     } while (code.get(invalid_line).attr < 0);
     while (invalid_line < line_count - 1) {
-      ArrayList<TokenMarkerInfo> styles = getStyles(code.get(invalid_line));
-      TokenMarkerInfoEx tmi = (TokenMarkerInfoEx) styles.get(styles.size() - 1);
+      // Lines up to the last one changed will all be lexed; a long run of them is lexed on
+      // every core at once.
+      final int run = Math.min(Math.min(limit, changed_line), line_count - 1);
+      if (run - invalid_line >= 2 * PARALLEL_CHUNK && lanes() > 1) {
+        markParallel(code, invalid_line, run);
+        restyled(invalid_line + 1, run); // Whichever of them entered a new scheme
+        invalid_line = run;
+        continue;
+      }
+      if (invalid_line >= limit) {
+        // The state entering this line is right; the state leaving it may not be.
+        changed_line = Math.max(changed_line, invalid_line);
+        invalid_line++;
+        return;
+      }
+      StyleCache sc = cachedStyles(code.get(invalid_line));
+      relexed++;
+      // The last run is an unterminated block if the line leaves one open.
+      final int open = sc.runs[sc.runs.length - 1] - sc.scanner.untermBase;
       invalid_line++;
+      final long was = code.get(invalid_line).attr;
       if (code.get(invalid_line).attr < 1) {
         code.get(invalid_line).attr = 0;
       } else {
         code.get(invalid_line).attr &= ~LINE_ATTRIBS.LA_SCHEMEBLOCK; // Remove all scheme info
       }
-      if (tmi.schemeInfo.type == SchemeType.UNTERMBLOCK) {
-        code.get(invalid_line).attr |= (tmi.schemeInfo.id + 1) << LINE_ATTRIBS.LA_SCHEMEBITOFFSET;
+      if (open >= 0 && open < sc.scanner.schemeCount) {
+        code.get(invalid_line).attr |= (open + 1) << LINE_ATTRIBS.LA_SCHEMEBITOFFSET;
+      }
+      if (was >= 0 && ((was ^ code.get(invalid_line).attr) & LINE_ATTRIBS.LA_SCHEMEBLOCK) != 0) {
+        restyled(invalid_line, invalid_line); // Its text is unchanged, but not its styles.
+      }
+      if (was >= 0 && invalid_line > changed_line
+          && ((was ^ code.get(invalid_line).attr) & LINE_ATTRIBS.LA_SCHEMEBLOCK) == 0) {
+        break; // Converged; every line from here on was marked from this same state.
       }
     }
     invalid_line = -1;
+    changed_line = -1;
+    pendingCode = null;
+  }
+
+  /**
+   * True to lex long runs of lines, such as a whole file just loaded, on every core at once,
+   * as described in {@link #markParallel(Code, int, int)}.
+   */
+  public boolean parallelMarking = true;
+  /** The number of lines each task lexes when marking in parallel. */
+  private static final int PARALLEL_CHUNK = 1024;
+  /** The pool lexing lines in parallel for every marker; created when first needed. */
+  private static ForkJoinPool pool;
+
+  /** @return The pool lexing lines in parallel. */
+  private static synchronized ForkJoinPool pool() {
+    if (pool == null) {
+      pool = new ForkJoinPool();
+    }
+    return pool;
+  }
+
+  /**
+   * @return The number of chunks of lines worth lexing at once: one for each core, or one if
+   *         we are not marking in parallel.
+   */
+  private int lanes() {
+    return parallelMarking? Runtime.getRuntime().availableProcessors() : 1;
+  }
+
+  /**
+   * @param line
+   *        A marked line.
+   * @return The index of the scheme open entering the line, or -1 if there is none.
+   */
+  private static int openEntering(Line line) {
+    return (int) (((line.attr & LINE_ATTRIBS.LA_SCHEMEBLOCK) >> LINE_ATTRIBS.LA_SCHEMEBITOFFSET)
+        - 1);
+  }
+
+  /**
+   * @param cs
+   *        The scanner which styled a line.
+   * @param sc
+   *        The styles of the line.
+   * @return The index of the scheme the line leaves open, or -1 if there is none.
+   */
+  private static int openLeaving(CompiledScanner cs, StyleCache sc) {
+    // The last run is an unterminated block if the line leaves one open.
+    final int open = sc.runs[sc.runs.length - 1] - cs.untermBase;
+    return open >= 0 && open < cs.schemeCount? open : -1;
+  }
+
+  /**
+   * Record the scheme open entering a line, as {@link #mark(Code, int)} does.
+   *
+   * @param line
+   *        The line.
+   * @param open
+   *        The index of the scheme open entering the line, or -1 if there is none.
+   */
+  private static void setOpenEntering(Line line, int open) {
+    if (line.attr < 1) {
+      line.attr = 0;
+    } else {
+      line.attr &= ~LINE_ATTRIBS.LA_SCHEMEBLOCK; // Remove all scheme info
+    }
+    if (open >= 0) {
+      line.attr |= (long) (open + 1) << LINE_ATTRIBS.LA_SCHEMEBITOFFSET;
+    }
+  }
+
+  /**
+   * Mark a run of lines on every core. The run is split into chunks, and each chunk is lexed
+   * on its own, assuming that no block is open entering it. Each chunk whose assumption
+   * turns out wrong, as the chunk before it leaves a block open, is then lexed again from
+   * the state that chunk leaves, stopping early if it reaches a line entered in the same
+   * state as before; this repeats until every chunk was lexed from the state the one before
+   * it leaves. Blocks seldom span the start of a chunk, so most of the run is lexed once.
+   *
+   * @param code
+   *        The code to mark.
+   * @param from
+   *        The first line to lex, whose entering state is right.
+   * @param to
+   *        The line following the last to lex; its entering state is set.
+   */
+  private void markParallel(Code code, int from, int to) {
+    final int n = to - from, chunks = (n + PARALLEL_CHUNK - 1) / PARALLEL_CHUNK;
+    final Line[] lines = new Line[n + 1];
+    code.getLines(from, lines, n + 1);
+    final Chunks work = new Chunks(getScanner(), lines, n, chunks);
+    work.in[0] = openEntering(lines[0]);
+    for (int c = 1; c < chunks; c++) {
+      work.in[c] = -1;
+    }
+    int[] todo = new int[chunks];
+    for (int c = 0; c < chunks; c++) {
+      todo[c] = c;
+    }
+    for (int count = chunks; count > 0;) {
+      pool().invoke(new LexChunks(work, todo, 0, count));
+      work.again = true;
+      count = 0;
+      for (int c = 1; c < chunks; c++) {
+        if (work.in[c] != work.out[c - 1]) {
+          work.in[c] = work.out[c - 1];
+          todo[count++] = c;
+        }
+      }
+    }
+    setOpenEntering(lines[n], work.out[chunks - 1]);
+    for (int c = 0; c < chunks; c++) {
+      relexed += work.lexed[c];
+    }
+  }
+
+  /** The chunks of a run of lines being marked in parallel. */
+  private final class Chunks {
+    /** Our rules, compiled. */
+    final CompiledScanner cs;
+    /** The lines of the run, followed by the line after it. */
+    final Line[] lines;
+    /** The number of lines in the run. */
+    final int n;
+    /** The scheme open entering each chunk, as last assumed; -1 for none. */
+    final int[] in;
+    /** The scheme left open by each chunk, as last lexed; -1 for none. */
+    final int[] out;
+    /** The number of lines each chunk has lexed. */
+    final int[] lexed;
+    /** True once every chunk has been lexed once. */
+    volatile boolean again;
+
+    /**
+     * @param cs
+     *        Our rules, compiled.
+     * @param lines
+     *        The lines of the run, followed by the line after it.
+     * @param n
+     *        The number of lines in the run.
+     * @param chunks
+     *        The number of chunks.
+     */
+    Chunks(CompiledScanner cs, Line[] lines, int n, int chunks) {
+      this.cs = cs;
+      this.lines = lines;
+      this.n = n;
+      in = new int[chunks];
+      out = new int[chunks];
+      lexed = new int[chunks];
+    }
+
+    /**
+     * Lex a chunk from the state assumed entering it. Only the lines of the chunk are
+     * touched, so chunks may be lexed at once; the state the chunk leaves is only recorded.
+     *
+     * @param c
+     *        The index of the chunk.
+     */
+    void lex(int c) {
+      final int s = c * PARALLEL_CHUNK, e = Math.min(s + PARALLEL_CHUNK, n);
+      final TokenRuns runs = new TokenRuns(), blocks = new TokenRuns();
+      int open = in[c];
+      for (int i = s; i < e; i++) {
+        final Line line = lines[i];
+        if (i > 0) {
+          if (again && i > s && openEntering(line) == open) {
+            return; // Entered as last time, so the rest of the chunk is as it was.
+          }
+          setOpenEntering(line, open);
+        }
+        computeRuns(cs, line, runs, blocks);
+        final StyleCache sc = new StyleCache(cs, line, runs.toArray());
+        line.tokenCache = sc;
+        open = openLeaving(cs, sc);
+        lexed[c]++;
+      }
+      out[c] = open;
+    }
+  }
+
+  /** Lexes some of the chunks of a run of lines, splitting them among the pool's threads. */
+  private static final class LexChunks extends RecursiveAction {
+    /** Not serialized; the pool requires a version all the same. */
+    private static final long serialVersionUID = 1L;
+    /** The chunks being lexed. */
+    private final Chunks work;
+    /** The indices of the chunks to lex. */
+    private final int[] todo;
+    /** The range of indices in todo left to this task. */
+    private final int lo, hi;
+
+    /**
+     * @param work
+     *        The chunks being lexed.
+     * @param todo
+     *        The indices of the chunks to lex.
+     * @param lo
+     *        The first index in todo left to this task.
+     * @param hi
+     *        The index in todo past the last left to this task.
+     */
+    LexChunks(Chunks work, int[] todo, int lo, int hi) {
+      this.work = work;
+      this.todo = todo;
+      this.lo = lo;
+      this.hi = hi;
+    }
+
+    @Override
+    protected void compute() {
+      if (hi - lo == 1) {
+        work.lex(todo[lo]);
+        return;
+      }
+      final int mid = (lo + hi) >>> 1;
+      invokeAll(new LexChunks(work, todo, lo, mid), new LexChunks(work, todo, mid, hi));
+    }
+  }
+
+  /**
+   * @return The number of lines lexed to mark the latest change so far, including lines
+   *         marked in the background since; a measure of how far the change reached.
+   */
+  public int getLinesRelexed() {
+    return relexed;
+  }
+
+  /**
+   * Mark lines up to the given one now, if they were left to be marked in the background.
+   *
+   * @see TokenMarker.LookAhead#prepareLines(Code, int)
+   */
+  @Override
+  public void prepareLines(Code code, int lastLine) {
+    if (invalid_line != -1 && invalid_line <= lastLine) {
+      mark(code, lastLine);
+    }
   }
 
   /** @see TokenMarker#formatCode(Code) */
@@ -557,10 +922,15 @@ public abstract class DefaultTokenMarker implements TokenMarker {
   /** @see TokenMarker#linesChanged(Code,int,int) */
   @Override
   public void linesChanged(Code code, int start, int end) {
+    // Lines left to be marked from an earlier change move down with any lines added above.
+    if (changed_line >= start && code.size() > line_count) {
+      changed_line += code.size() - line_count;
+    }
     line_count = code.size();
     if (start < invalid_line || invalid_line == -1) {
       invalid_line = start;
     }
+    relexed = 0;
 
     // TODO: This was a temporary fix for undo/redo
     // with cut/copy/and paste. - Robert
@@ -571,6 +941,10 @@ public abstract class DefaultTokenMarker implements TokenMarker {
       end = code.size();
     }
 
+    // Our callers pass the last changed line inclusively; drop its cached styles, too.
+    for (int i = start; i <= end && i < code.size(); i++) {
+      code.get(i).tokenCache = null;
+    }
     for (int i = start; i < end; i++) {
       if (code.get(i).attr > 0) {
         code.get(i).attr = -code.get(i).attr;
@@ -578,14 +952,600 @@ public abstract class DefaultTokenMarker implements TokenMarker {
         code.get(i).attr = -1;
       }
     }
-    mark(code);
+    changed_line = Math.max(changed_line, end);
+    // Mark what is in view now, and the rest in the background.
+    mark(code, visible_line < 0? Integer.MAX_VALUE : visible_line);
+    if (invalid_line != -1) {
+      pendingCode = code;
+      startLookAhead();
+    }
+  }
+
+  /**
+   * Styles computed for a line, cached on the line itself. An entry is only used while the
+   * line has the revision, starting scheme, and contents it was computed for, and while the
+   * marker's rules, keywords included, are those its scanner was compiled from.
+   */
+  private static final class StyleCache {
+    /** The scanner which computed these styles; its style table gives their meaning. */
+    final CompiledScanner scanner;
+    /** The revision of the line when these styles were computed. */
+    final int revision;
+    /** The scheme bits of the line when these styles were computed. */
+    final long scheme;
+    /** The StringBuilder of the line when these styles were computed. */
+    final StringBuilder sbuild;
+    /** The length of the line when these styles were computed. */
+    final int length;
+    /** The computed styles, packed as by {@link TokenRuns}. */
+    final int[] runs;
+    /** The computed styles as TokenMarkerInfo, or null if they have not been asked for. */
+    ArrayList<TokenMarkerInfo> styles;
+
+    /**
+     * @param scanner
+     *        The scanner which computed these styles.
+     * @param line
+     *        The line for which the styles were computed.
+     * @param runs
+     *        The computed styles.
+     */
+    StyleCache(CompiledScanner scanner, Line line, int[] runs) {
+      this.scanner = scanner;
+      revision = line.revision;
+      scheme = line.attr & LINE_ATTRIBS.LA_SCHEMEBLOCK;
+      sbuild = line.sbuild;
+      length = line.sbuild.length();
+      this.runs = runs;
+    }
+
+    /**
+     * @param cs
+     *        The current scanner of the marker asking.
+     * @param line
+     *        The line asking.
+     * @return Whether these styles are still valid for the given line; never, when keywords
+     *         are looked up in sets which do not count their changes.
+     */
+    boolean validFor(CompiledScanner cs, Line line) {
+      return scanner == cs && !cs.keywords.looksUpLive() && revision == line.revision
+          && scheme == (line.attr & LINE_ATTRIBS.LA_SCHEMEBLOCK) && sbuild == line.sbuild
+          && length == sbuild.length();
+    }
   }
 
-  /** @see TokenMarker#getStyles(Line) */
+  /**
+   * @param jline
+   *        A line.
+   * @return The cached styles of the line, computed first if the line has changed since
+   *         they were last requested.
+   */
+  private StyleCache cachedStyles(Line jline) {
+    CompiledScanner cs = getScanner();
+    Object c = jline.tokenCache;
+    if (c instanceof StyleCache && ((StyleCache) c).validFor(cs, jline)) {
+      return (StyleCache) c;
+    }
+    computeRuns(cs, jline, scratchRuns);
+    StyleCache sc = new StyleCache(cs, jline, scratchRuns.toArray());
+    jline.tokenCache = sc;
+    return sc;
+  }
+
+  /**
+   * Return the styles for a line, computing them only if the line has changed since they
+   * were last requested. The returned list is shared, and must not be modified.
+   *
+   * @see TokenMarker#getStyles(Line)
+   */
   @Override
   public ArrayList<TokenMarkerInfo> getStyles(Line jline) {
-    ArrayList<TokenMarkerInfo> res = new ArrayList<TokenMarkerInfo>();
+    StyleCache sc = cachedStyles(jline);
+    if (sc.styles == null) {
+      sc.styles = toStyles(sc.scanner, sc.runs);
+    }
+    return sc.styles;
+  }
+
+  /**
+   * Write the styles for a line into the given runs, computing them only if the line has
+   * changed since they were last requested.
+   *
+   * @see TokenMarker.RunMarker#getRuns(Line, TokenRuns)
+   */
+  @Override
+  public void getRuns(Line jline, TokenRuns out) {
+    StyleCache sc = cachedStyles(jline);
+    out.share(sc.scanner.styles, sc.runs);
+  }
+
+  /**
+   * @param cs
+   *        The scanner which computed some runs.
+   * @param runs
+   *        The runs, packed as by {@link TokenRuns}.
+   * @return The runs as TokenMarkerInfo.
+   */
+  private ArrayList<TokenMarkerInfo> toStyles(CompiledScanner cs, int[] runs) {
+    ArrayList<TokenMarkerInfo> res = new ArrayList<TokenMarkerInfo>(runs.length / 3);
+    for (int i = 0; i < runs.length; i += 3) {
+      final int style = runs[i + 2];
+      res.add(new TokenMarkerInfoEx(cs.styles.fontStyle(style), cs.styles.color(style),
+          runs[i], runs[i + 1], cs.styles.blockHash(style), cs.schemeInfo(style)));
+    }
+    return res;
+  }
+
+  /** The number of lines past the end of the viewport to lex in the background. */
+  public int lookAheadLines = 512;
+  /** The number of lines lexed in each slice of background work. */
+  private static final int LOOKAHEAD_SLICE = 64;
+  /** The number of lines marked in each slice of background work. */
+  private static final int MARK_SLICE = 1024;
+  /** Timer driving background lexing. */
+  private Timer lookAheadTimer;
+  /** The code being lexed in the background. */
+  private Code lookAheadCode;
+  /** The next line to lex in the background. */
+  private int lookAheadNext;
+  /** The line at which background lexing stops. */
+  private int lookAheadEnd;
+
+  /**
+   * Lex the lines following the viewport in the background, so they are cached by the time
+   * the user scrolls to them. The work is done on the event dispatch thread in short slices,
+   * as the code may not be read while it is being edited.
+   *
+   * @see TokenMarker.LookAhead#viewportChanged(Code, int, int)
+   */
+  @Override
+  public void viewportChanged(Code code, int firstLine, int lastLine) {
+    visible_line = lastLine;
+    int next = lastLine + 1, end = Math.min(code.size(), next + lookAheadLines);
+    if (code == lookAheadCode && next == lookAheadNext && end == lookAheadEnd) {
+      return;
+    }
+    lookAheadCode = code;
+    lookAheadNext = next;
+    lookAheadEnd = end;
+    if (next >= end) {
+      return;
+    }
+    startLookAhead();
+  }
+
+  /** Start the timer driving background work, if it is not running. */
+  private void startLookAhead() {
+    if (lookAheadTimer == null) {
+      lookAheadTimer = new Timer(0, new ActionListener() {
+        @Override
+        public void actionPerformed(ActionEvent e) {
+          lookAhead();
+        }
+      });
+      lookAheadTimer.setRepeats(true);
+    }
+    lookAheadTimer.start();
+  }
+
+  /**
+   * Mark one slice of the lines left unmarked by the latest change, or, once they are all
+   * marked, lex one slice of lines ahead of the viewport.
+   */
+  void lookAhead() {
+    if (pendingCode != null) {
+      mark(pendingCode, invalid_line + MARK_SLICE * lanes());
+      return;
+    }
+    Code code = lookAheadCode;
+    if (code == null) {
+      lookAheadTimer.stop();
+      return;
+    }
+    int end = Math.min(lookAheadEnd, code.size());
+    int stop = Math.min(end, lookAheadNext + LOOKAHEAD_SLICE);
+    while (lookAheadNext < stop) {
+      Line l = code.get(lookAheadNext);
+      if (l.attr < 0) { // Not yet marked; its styles would be wrong.
+        break;
+      }
+      cachedStyles(l);
+      lookAheadNext++;
+    }
+    if (lookAheadNext < stop || lookAheadNext >= end) {
+      lookAheadTimer.stop();
+    }
+  }
+
+  /**
+   * The block-begin patterns, identifier pattern, other tokens, and symbols of a marker,
+   * compiled into two alternations so that each position of a line is tested in one pass.
+   * Each alternative is wrapped in a group of its own; alternation preserves the order in
+   * which the rules were listed, so the earliest, first-listed rule still wins.
+   */
+  static final class CompiledScanner {
+    /** The number of schemes, tokens, and symbols, and the identifier pattern, compiled. */
+    final int schemeCount, tokenCount, symbolCount;
+    /** The identifier pattern compiled. */
+    final Pattern identifiers;
+    /** Alternation of all block-begin patterns, or null if there are none. */
+    final Pattern blockBegins;
+    /** The group wrapping each block-begin pattern. */
+    final int[] blockGroups;
+    /** Alternation of the identifier pattern, the other tokens, and the symbol characters. */
+    final Pattern tokens;
+    /** The group wrapping each of the other tokens. */
+    final int[] tokenGroups;
+    /** The group wrapping the identifier pattern. */
+    static final int IDENTIFIER_GROUP = 1;
+    /** The group matching a symbol character, or -1 if there are no symbols. */
+    final int symbolGroup;
+    /** The words of every keyword set. */
+    final KeywordTable keywords;
+    /** The words of each keyword set compiled, to tell when a set is given others. */
+    private final Object[] keywordWords;
+    /** The number of changes made to each keyword set compiled, or -1 where not counted. */
+    private final int[] keywordStamps;
+    /** The characters of each symbol set. */
+    final BitSet[] symbolSets;
+    /** The keyword set used for plain identifiers, when compiled. */
+    final KeywordSet defaultKeywords;
+    /**
+     * The style of every rule: each block, each block left open at the end of a line, each
+     * keyword set, plain identifiers, each other token, each symbol set, and the empty
+     * capstone run, numbered in that order.
+     */
+    final StyleTable styles = new StyleTable();
+    /** The first style of each kind of rule, as laid out in {@link #styles}. */
+    final int untermBase, keywordBase, identifierStyle, tokenBase, symbolBase, capstoneStyle;
+
+    /**
+     * @param tm
+     *        The marker whose rules to compile.
+     */
+    CompiledScanner(DefaultTokenMarker tm) {
+      schemeCount = tm.schemes.size();
+      tokenCount = tm.otherTokens.size();
+      symbolCount = countSymbols(tm);
+      identifiers = tm.identifier_pattern;
+
+      StringBuilder re = new StringBuilder();
+      blockGroups = new int[schemeCount];
+      int group = 1;
+      for (int si = 0; si < schemeCount; si++) {
+        group = appendAlternative(re, tm.schemes.get(si).begin, group, blockGroups, si);
+      }
+      blockBegins = schemeCount == 0? null : Pattern.compile(re.toString());
+
+      re.setLength(0);
+      group = appendAlternative(re, identifiers, 1, null, 0);
+      tokenGroups = new int[tokenCount];
+      for (int tt = 0; tt < tokenCount; tt++) {
+        group = appendAlternative(re, tm.otherTokens.get(tt).pattern, group, tokenGroups, tt);
+      }
+      StringBuilder chars = new StringBuilder();
+      symbolSets = new BitSet[tm.tmChars.size()];
+      for (int sn = 0; sn < symbolSets.length; sn++) {
+        symbolSets[sn] = new BitSet(128);
+        for (Character c : tm.tmChars.get(sn).chars) {
+          chars.append(String.format("\\u%04x", (int) c.charValue())); //$NON-NLS-1$
+          symbolSets[sn].set(c.charValue());
+        }
+      }
+      if (chars.length() > 0) {
+        re.append("|([").append(chars).append("])"); //$NON-NLS-1$ //$NON-NLS-2$
+        symbolGroup = group;
+      } else {
+        symbolGroup = -1;
+      }
+      tokens = Pattern.compile(re.toString());
+      keywords = KeywordTable.of(tm.tmKeywords);
+      keywordWords = new Object[tm.tmKeywords.size()];
+      keywordStamps = new int[keywordWords.length];
+      for (int sn = 0; sn < keywordWords.length; sn++) {
+        keywordWords[sn] = tm.tmKeywords.get(sn).words;
+        keywordStamps[sn] = stamp(tm.tmKeywords.get(sn));
+      }
+
+      defaultKeywords = tm.default_kws;
+      for (int si = 0; si < schemeCount; si++) {
+        BlockDescriptor bd = tm.schemes.get(si);
+        styles.add(bd.fontStyle, bd.color, si);
+      }
+      untermBase = styles.size();
+      for (int si = 0; si < schemeCount; si++) {
+        BlockDescriptor bd = tm.schemes.get(si);
+        styles.add(bd.fontStyle, bd.color, si);
+      }
+      keywordBase = styles.size();
+      for (KeywordSet ks : tm.tmKeywords) {
+        styles.add(ks.fontStyle, ks.color, 0);
+      }
+      identifierStyle = defaultKeywords == null? styles.add(0, null, 0) : styles.add(
+          defaultKeywords.fontStyle, defaultKeywords.color, 0);
+      tokenBase = styles.size();
+      for (SimpleToken st : tm.otherTokens) {
+        styles.add(st.fontStyle, st.color, 0);
+      }
+      symbolBase = styles.size();
+      for (CharSymbolSet css : tm.tmChars) {
+        styles.add(css.fontStyle, css.color, 0);
+      }
+      capstoneStyle = styles.add(0, null, 0);
+    }
+
+    /**
+     * @param style
+     *        A style from {@link #styles}.
+     * @return Information about the rule which the style is for.
+     */
+    SchemeInfo schemeInfo(int style) {
+      if (style < untermBase) {
+        return new SchemeInfo(SchemeType.BLOCK, style);
+      }
+      if (style < keywordBase) {
+        return new SchemeInfo(SchemeType.UNTERMBLOCK, style - untermBase);
+      }
+      if (style < identifierStyle) {
+        return new SchemeInfo(SchemeType.KEYWORD, style - keywordBase);
+      }
+      if (style == identifierStyle) {
+        return new SchemeInfo(SchemeType.DEFKEYWORD, 0);
+      }
+      if (style < symbolBase) {
+        return new SchemeInfo(SchemeType.TOKEN, style - tokenBase);
+      }
+      if (style < capstoneStyle) {
+        return new SchemeInfo(SchemeType.SYMBOL, style - symbolBase);
+      }
+      return new SchemeInfo(SchemeType.NOTHING, 0);
+    }
+
+    /**
+     * Append a pattern to an alternation, in a group of its own, as rewritten by
+     * {@link #alternative(Pattern, int)}.
+     *
+     * @param re
+     *        The alternation being built.
+     * @param p
+     *        The pattern to append.
+     * @param group
+     *        The number of the group which will wrap the pattern.
+     * @param groups
+     *        Array in which to record the group number, or null.
+     * @param index
+     *        The index at which to record the group number.
+     * @return The number of the next group after this pattern.
+     */
+    private static int appendAlternative(StringBuilder re, Pattern p, int group, int[] groups,
+        int index) {
+      if (re.length() > 0) {
+        re.append('|');
+      }
+      re.append('(').append(alternative(p, group)).append(')');
+      if (groups != null) {
+        groups[index] = group;
+      }
+      return group + 1 + p.matcher("").groupCount(); //$NON-NLS-1$
+    }
+
+    /**
+     * Rewrite a pattern to match alone as one alternative of a larger pattern: its flags are
+     * set inline, its numbered back references are moved past the groups of the alternatives
+     * before it, and its named groups are renamed apart from theirs. CANON_EQ, which has no
+     * inline form, is not carried.
+     *
+     * @param p
+     *        The pattern to rewrite.
+     * @param group
+     *        The number of the group which will wrap the pattern.
+     * @return The text of the pattern, to be wrapped in that group.
+     */
+    private static String alternative(Pattern p, int group) {
+      final int flags = p.flags();
+      final String src = p.pattern();
+      if ((flags & Pattern.LITERAL) != 0) {
+        return Pattern.quote(src);
+      }
+      final int groupCount = p.matcher("").groupCount(); //$NON-NLS-1$
+      final String prefix = "g" + group + "x"; //$NON-NLS-1$ //$NON-NLS-2$
+      final int len = src.length();
+      final StringBuilder out = new StringBuilder(len + 16);
+      int opened = 0, classDepth = 0;
+      for (int i = 0; i < len; i++) {
+        final char c = src.charAt(i);
+        if (c == '\\' && i + 1 < len) {
+          final char n = src.charAt(++i);
+          if (n == 'Q') {
+            final int e = src.indexOf("\\E", i + 1); //$NON-NLS-1$
+            final int to = e == -1? len : e + 2;
+            out.append(src, i - 1, to);
+            i = to - 1;
+          } else if (n >= '1' && n <= '9' && classDepth == 0) {
+            // Like Pattern, take further digits only while they name a group already opened.
+            int ref = n - '0';
+            while (i + 1 < len && src.charAt(i + 1) >= '0' && src.charAt(i + 1) <= '9'
+                && ref * 10 + src.charAt(i + 1) - '0' <= opened) {
+              ref = ref * 10 + src.charAt(++i) - '0';
+            }
+            // A reference to a group the pattern lacks never matches; nor may it here.
+            out.append(ref > groupCount? "(?!)" //$NON-NLS-1$
+                : "(?:\\" + (group + ref) + ")"); //$NON-NLS-1$ //$NON-NLS-2$
+          } else if (n == 'k' && classDepth == 0 && i + 1 < len && src.charAt(i + 1) == '<') {
+            out.append("\\k<").append(prefix); //$NON-NLS-1$
+            i++;
+          } else {
+            out.append(c).append(n);
+          }
+        } else if (c == '[') {
+          classDepth++;
+          out.append(c);
+        } else if (c == ']' && classDepth > 0) {
+          classDepth--;
+          out.append(c);
+        } else if (c == '(' && classDepth == 0) {
+          final boolean query = i + 1 < len && src.charAt(i + 1) == '?';
+          if (query && i + 3 < len && src.charAt(i + 2) == '<'
+              && isAsciiLetter(src.charAt(i + 3))) {
+            opened++;
+            out.append("(?<").append(prefix); //$NON-NLS-1$
+            i += 2;
+          } else {
+            if (!query) {
+              opened++;
+            }
+            out.append(c);
+          }
+        } else {
+          out.append(c);
+        }
+      }
+      final StringBuilder on = new StringBuilder();
+      final int[] bits = { Pattern.UNIX_LINES, Pattern.CASE_INSENSITIVE, Pattern.MULTILINE,
+          Pattern.DOTALL, Pattern.UNICODE_CASE, Pattern.COMMENTS,
+          Pattern.UNICODE_CHARACTER_CLASS };
+      final String letters = "dimsuxU"; //$NON-NLS-1$
+      for (int b = 0; b < bits.length; b++) {
+        if ((flags & bits[b]) != 0) {
+          on.append(letters.charAt(b));
+        }
+      }
+      if (on.length() == 0) {
+        return out.toString();
+      }
+      if ((flags & Pattern.COMMENTS) != 0) {
+        out.append('\n'); // End any comment the pattern ends in, before the group does.
+      }
+      return "(?" + on + ":" + out + ")"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    }
+
+    /**
+     * @param c
+     *        A character.
+     * @return Whether it is an ASCII letter, as a group name must begin with.
+     */
+    private static boolean isAsciiLetter(char c) {
+      return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+    }
+
+    /**
+     * @param tm
+     *        The marker whose symbols to count.
+     * @return The total number of symbol characters in the marker.
+     */
+    static int countSymbols(DefaultTokenMarker tm) {
+      int n = 0;
+      for (CharSymbolSet css : tm.tmChars) {
+        n += css.chars.size();
+      }
+      return n;
+    }
+
+    /**
+     * @param ks
+     *        A keyword set.
+     * @return The number of changes made to the set's words, or -1 if they do not count them.
+     */
+    private static int stamp(KeywordSet ks) {
+      return ks.words instanceof WordSet? ((WordSet) ks.words).modCount() : -1;
+    }
+
+    /**
+     * @param tm
+     *        The marker to check.
+     * @return Whether the marker's keyword sets hold the words this scanner compiled, unchanged.
+     */
+    private boolean keywordsCompiledFrom(DefaultTokenMarker tm) {
+      if (keywordWords.length != tm.tmKeywords.size()) {
+        return false;
+      }
+      for (int sn = 0; sn < keywordWords.length; sn++) {
+        final KeywordSet ks = tm.tmKeywords.get(sn);
+        if (ks.words != keywordWords[sn] || stamp(ks) != keywordStamps[sn]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * @param tm
+     *        The marker to check.
+     * @return Whether this scanner still reflects the rules of the given marker.
+     */
+    boolean compiledFrom(DefaultTokenMarker tm) {
+      return schemeCount == tm.schemes.size() && tokenCount == tm.otherTokens.size()
+          && identifiers == tm.identifier_pattern && symbolCount == countSymbols(tm)
+          && symbolSets.length == tm.tmChars.size() && keywordsCompiledFrom(tm)
+          && defaultKeywords == tm.default_kws;
+    }
+  }
+
+  /** Our rules, compiled; created when first needed. */
+  private CompiledScanner scanner;
+
+  /**
+   * @return Our rules, compiled; recompiled if the rules have been added to since.
+   */
+  CompiledScanner getScanner() {
+    CompiledScanner cs = scanner;
+    if (cs == null || !cs.compiledFrom(this)) {
+      scanner = cs = new CompiledScanner(this);
+    }
+    return cs;
+  }
+
+  /** Runs into which the styles of a line are computed before they are cached. */
+  private final TokenRuns scratchRuns = new TokenRuns();
+  /** The blocks of the line being styled, found before the tokens between them. */
+  private final TokenRuns blockRuns = new TokenRuns();
+
+  /**
+   * Compute the styles for a line from scratch.
+   *
+   * @param jline
+   *        The line to style.
+   * @return The styles for the given line.
+   */
+  ArrayList<TokenMarkerInfo> computeStyles(Line jline) {
+    CompiledScanner cs = getScanner();
+    computeRuns(cs, jline, scratchRuns);
+    return toStyles(cs, scratchRuns.toArray());
+  }
+
+  /**
+   * Compute the styles for a line from scratch, as runs. The blocks of the line are found
+   * first; the tokens in the gaps between them are then written out in order, each block
+   * following the tokens before it.
+   *
+   * @param cs
+   *        Our rules, compiled.
+   * @param jline
+   *        The line to style.
+   * @param out
+   *        The runs to fill.
+   */
+  void computeRuns(CompiledScanner cs, Line jline, TokenRuns out) {
+    computeRuns(cs, jline, out, blockRuns);
+  }
+
+  /**
+   * Compute the styles for a line from scratch, as runs, finding its blocks in the given
+   * runs; lines may be styled on several threads at once, each with runs of its own.
+   *
+   * @param cs
+   *        Our rules, compiled.
+   * @param jline
+   *        The line to style.
+   * @param out
+   *        The runs to fill.
+   * @param blocks
+   *        The runs in which to find the blocks of the line.
+   */
+  void computeRuns(CompiledScanner cs, Line jline, TokenRuns out, TokenRuns blocks) {
+    blocks.reset(cs.styles);
     StringBuilder line = jline.sbuild;
+    final int len = line.length();
     int ischeme =
         (int) (((jline.attr & LINE_ATTRIBS.LA_SCHEMEBLOCK) >> LINE_ATTRIBS.LA_SCHEMEBITOFFSET) - 1);
 
@@ -594,27 +1554,27 @@ public abstract class DefaultTokenMarker implements TokenMarker {
     // not.
     boolean pushCapstone = true;
 
+    Matcher begins = cs.blockBegins == null? null : cs.blockBegins.matcher(line);
+    Matcher[] ends = new Matcher[cs.schemeCount];
+
     int i = 0; // The position from which we will parse this thing
     FindAllBlocks: for (;;) // What we're going to do is find any and all blocks up front, and move
                             // to the end of them.
     {
       int shm = -1; // Scheme Holding Minimum Match
-      int mmin = line.length(); // Minimum match position
+      int mmin = len; // Minimum match position
       int mminend = mmin;
       if (ischeme < 0) {
-        for (int si = 0; si < schemes.size(); si++) {
-          Matcher m =
-              schemes.get(si).begin.matcher(line.toString()).region(i, line.length()).useTransparentBounds(
-                  true);
-          if (!m.find()) {
-            continue;
-          }
-          if (m.start() < mmin) { // If this one is closer to the beginning, it can potentially
-                                  // consume later ones.
-            mmin = m.start(); // So we have to pay attention to it first.
-            mminend = m.end();
-            shm = si;
+        // The first alternative to match at the earliest position is our block.
+        if (begins != null && begins.region(i, len).useTransparentBounds(true).find()) {
+          for (int si = 0; si < cs.schemeCount; si++) {
+            if (begins.start(cs.blockGroups[si]) != -1) {
+              shm = si;
+              break;
+            }
           }
+          mmin = begins.start();
+          mminend = begins.end();
         }
       } else {
         mmin = 0;
@@ -628,14 +1588,16 @@ public abstract class DefaultTokenMarker implements TokenMarker {
       }
 
       // Start searching for its end.
+      BlockDescriptor bd = schemes.get(shm);
+      Matcher mmatcher = ends[shm];
+      if (mmatcher == null) {
+        ends[shm] = mmatcher = bd.end.matcher(line);
+      }
       for (;;) {
-        Matcher mmatcher =
-            schemes.get(shm).end.matcher(line.toString()).region(mminend, line.length());
-        if (!mmatcher.find()) // If there's no end in sight, or that end passed our position of
-                              // interest
+        if (!mmatcher.region(mminend, len).find()) // If there's no end in sight, or that end passed
+                                                   // our position of interest
         {
-          res.add(new TokenMarkerInfoEx(schemes.get(shm).fontStyle, schemes.get(shm).color, mmin,
-              line.length(), shm, new SchemeInfo(SchemeType.UNTERMBLOCK, shm)));
+          blocks.add(mmin, len, cs.untermBase + shm);
           pushCapstone = false;
           break FindAllBlocks; // Then we've found all the blocks. Quit.
         }
@@ -644,15 +1606,14 @@ public abstract class DefaultTokenMarker implements TokenMarker {
         // Move to its end.
         i = mmatcher.end();
 
-        if (!schemes.get(shm).escapeend) // If we can't escape an ending sequence,
+        if (!bd.escapeend) // If we can't escape an ending sequence,
         {
-          res.add(new TokenMarkerInfoEx(schemes.get(shm).fontStyle, schemes.get(shm).color, mmin,
-              i, shm, new SchemeInfo(SchemeType.BLOCK, shm)));
+          blocks.add(mmin, i, shm);
           break; // Then mission complete
         }
 
         // Otherwise, we have to verify that the end *isn't* escaped.
-        char escc = schemes.get(shm).escapeChar;
+        char escc = bd.escapeChar;
         boolean end_escaped = false;
 
         int cp; // Check position
@@ -668,15 +1629,13 @@ public abstract class DefaultTokenMarker implements TokenMarker {
         }
 
         if (!end_escaped) { // If the end wasn't escaped,
-          res.add(new TokenMarkerInfoEx(schemes.get(shm).fontStyle, schemes.get(shm).color, mmin,
-              i, shm, new SchemeInfo(SchemeType.BLOCK, shm)));
+          blocks.add(mmin, i, shm);
           break; // Mission accomplished
         }
         // So, our line was escaped.
-        if (cp >= line.length()) // If we're at the end of the line now,
+        if (cp >= len) // If we're at the end of the line now,
         { // Then the block is escaped and doesn't end on this line. Hop out.
-          res.add(new TokenMarkerInfoEx(schemes.get(shm).fontStyle, schemes.get(shm).color, mmin,
-              line.length(), shm, new SchemeInfo(SchemeType.UNTERMBLOCK, shm)));
+          blocks.add(mmin, len, cs.untermBase + shm);
           pushCapstone = false;
           break FindAllBlocks;
         }
@@ -685,65 +1644,53 @@ public abstract class DefaultTokenMarker implements TokenMarker {
       }
     }
 
-    i = 0;
     if (pushCapstone) {
-      res.add(new TokenMarkerInfoEx(0, null, line.length(), line.length(), 0, new SchemeInfo(
-          SchemeType.NOTHING, 0)));
+      blocks.add(len, len, cs.capstoneStyle);
     }
-    for (int bi = 0; bi < res.size(); i = res.get(bi++).endPos) {
-      final int sp = res.get(bi).startPos;
+    out.reset(cs.styles);
+    Matcher lookingat = cs.tokens.matcher(line);
+    i = 0;
+    for (int bi = 0; bi < blocks.size(); i = blocks.end(bi++)) {
+      final int sp = blocks.start(bi);
       SubschemeLoop: while (i < sp) {
         if (Character.isWhitespace(line.charAt(i))) {
-          while (++i < line.length() && Character.isWhitespace(line.charAt(i))) { /*
-                                                                                   * Move past
-                                                                                   * whitespace
-                                                                                   */
+          while (++i < len && Character.isWhitespace(line.charAt(i))) { /*
+                                                                         * Move past whitespace
+                                                                         */
           }
           continue;
         }
-        Matcher lookingat = identifier_pattern.matcher(line).region(i, line.length());
-        if (lookingat.lookingAt()) {
-          boolean fnd = false;
-          String f = line.substring(i, lookingat.end());
-          for (int sn = 0; sn < tmKeywords.size(); sn++) {
-            if (tmKeywords.get(sn).words.contains(tmKeywords.get(sn).caseSensitive? f
-                : f.toLowerCase())) {
-              res.add(bi++, new TokenMarkerInfoEx(tmKeywords.get(sn).fontStyle,
-                  tmKeywords.get(sn).color, lookingat.start(), lookingat.end(), 0, new SchemeInfo(
-                      SchemeType.KEYWORD, sn)));
-              fnd = true;
-              break;
-            }
-          }
-          if (!fnd) {
-            if (default_kws != null) {
-              res.add(bi++, new TokenMarkerInfoEx(default_kws.fontStyle, default_kws.color,
-                  lookingat.start(), lookingat.end(), 0, new SchemeInfo(SchemeType.DEFKEYWORD, 0)));
-            }
+        if (!lookingat.region(i, len).lookingAt()) {
+          i++;
+          continue;
+        }
+        if (lookingat.start(CompiledScanner.IDENTIFIER_GROUP) != -1) {
+          final int sn = cs.keywords.lookup(line, i, lookingat.end());
+          if (sn != -1) {
+            out.add(lookingat.start(), lookingat.end(), cs.keywordBase + sn);
+          } else if (cs.defaultKeywords != null) {
+            out.add(lookingat.start(), lookingat.end(), cs.identifierStyle);
           }
           i = lookingat.end();
           continue SubschemeLoop;
         }
-        for (int tt = 0; tt < otherTokens.size(); tt++) {
-          lookingat = otherTokens.get(tt).pattern.matcher(line).region(i, line.length());
-          if (lookingat.lookingAt()) {
-            res.add(bi++, new TokenMarkerInfoEx(otherTokens.get(tt).fontStyle,
-                otherTokens.get(tt).color, lookingat.start(), lookingat.end(), 0, new SchemeInfo(
-                    SchemeType.TOKEN, tt)));
+        for (int tt = 0; tt < cs.tokenCount; tt++) {
+          if (lookingat.start(cs.tokenGroups[tt]) != -1) {
+            out.add(lookingat.start(), lookingat.end(), cs.tokenBase + tt);
             i = lookingat.end();
             continue SubschemeLoop;
           }
         }
+        // Otherwise, the symbol group matched.
         char c = line.charAt(i);
-        for (int sn = 0; sn < tmChars.size(); sn++) {
-          if (tmChars.get(sn).chars.contains(c)) {
-            res.add(bi++, new TokenMarkerInfoEx(tmChars.get(sn).fontStyle, tmChars.get(sn).color,
-                i, i + 1, 0, new SchemeInfo(SchemeType.SYMBOL, sn)));
+        for (int sn = 0; sn < cs.symbolSets.length; sn++) {
+          if (cs.symbolSets[sn].get(c)) {
+            out.add(i, i + 1, cs.symbolBase + sn);
           }
         }
         i++;
       }
+      out.add(blocks.start(bi), blocks.end(bi), blocks.style(bi));
     }
-    return res;
   }
 }
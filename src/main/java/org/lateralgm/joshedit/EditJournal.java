@@ -0,0 +1,650 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This file is part of JoshEdit. JoshEdit is free software.
+ * You can use, modify, and distribute it under the terms of
+ * the GNU General Public License, version 3 or later.
+ */
+
+package org.lateralgm.joshedit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only record of the changes made to a Code since it was last loaded or saved,
+ * from which the Code can be rebuilt after a crash. Each change is recorded as the span of
+ * text it replaced and the text it put there; the text it removed is not kept. Changes are
+ * gathered in memory and written out together every
+ * {@link JoshText.Settings#journalCommitInterval} milliseconds, by a single thread shared by
+ * every journal, so that keeping a document safe costs only about as many bytes as are
+ * typed into it.
+ * <p>
+ * A journal file begins with a magic number, followed by frames, each holding its length, a
+ * CRC-32 of its contents, and a run of records. The first record says what the changes
+ * apply to: a saved file, identified by its size and modification time, or a copy of the
+ * text itself. Loading or saving a file starts the journal over, rewriting it beside
+ * itself and moving it into place; changes made while a save was under way are carried
+ * over. A frame cut short by a crash is ignored.
+ *
+ * @author agent
+ */
+final class EditJournal {
+  /** The bytes with which every journal file begins. */
+  private static final byte[] MAGIC = { 'J', 'E', 'J', '1' };
+  /** Record: the changes apply to a saved file. */
+  private static final int BASE_FILE = 1;
+  /** Record: the changes apply to the given text. */
+  private static final int BASE_TEXT = 2;
+  /** Record: a span of text was replaced. */
+  private static final int EDIT = 3;
+  /** The thread which writes out every journal. */
+  private static final Timer COMMITTER = new Timer("JoshEdit journal", true); //$NON-NLS-1$
+
+  /** The file to which changes are written. */
+  private final Path path;
+  /** The open journal file, or null if it has yet to be written. */
+  private FileChannel channel;
+  /** Records not yet written out. */
+  private Bytes pending = new Bytes();
+  /** The buffer into which records were last written out, to be reused. */
+  private Bytes spare = new Bytes();
+  /** True if the pending records start the journal over, rather than extending it. */
+  private boolean rewrite;
+  /**
+   * The records made since the oldest save still under way began, kept to be carried over
+   * once it finishes; empty if no save is under way.
+   */
+  private final ArrayList<byte[]> tail = new ArrayList<byte[]>();
+  /** The number of the first record in the tail. */
+  private long tailSeq;
+  /** The number of records made; the number of the next. */
+  private long seq;
+  /** The number of the first record made against the current base. */
+  private long baseSeq;
+  /** The number of saves under way. */
+  private int saving;
+  /** True once the journal is closed, or could not be written. */
+  private boolean closed;
+  /** A record being encoded. */
+  private final Bytes record = new Bytes();
+  /** Held while writing to the file, so writes happen one at a time and in order. */
+  private final Object io = new Object();
+  /** The task writing out this journal. */
+  private final TimerTask task = new TimerTask() {
+    @Override
+    public void run() {
+      commit();
+    }
+  };
+
+  /**
+   * A growable array of bytes, with the encodings records are written in.
+   */
+  private static final class Bytes {
+    /** The bytes. */
+    byte[] buf = new byte[256];
+    /** The number of bytes used. */
+    int len;
+
+    /**
+     * @param n
+     *        The number of bytes about to be added.
+     */
+    private void reserve(int n) {
+      if (len + n > buf.length) {
+        buf = Arrays.copyOf(buf, Math.max(len + n, buf.length * 2));
+      }
+    }
+
+    /**
+     * @param b
+     *        The bytes to add.
+     * @param off
+     *        The index of the first byte to add.
+     * @param n
+     *        The number of bytes to add.
+     */
+    void put(byte[] b, int off, int n) {
+      reserve(n);
+      System.arraycopy(b, off, buf, len, n);
+      len += n;
+    }
+
+    /**
+     * Add a number as seven bits per byte, lowest first, with the top bit set on every
+     * byte but the last.
+     *
+     * @param v
+     *        The number to add; never negative.
+     */
+    void varint(long v) {
+      reserve(10);
+      while (v >= 0x80) {
+        buf[len++] = (byte) (v | 0x80);
+        v >>>= 7;
+      }
+      buf[len++] = (byte) v;
+    }
+
+    /**
+     * Add a string as its length and then each of its characters, as numbers; text which is
+     * mostly ASCII takes a byte a character, and any string, even one with unpaired
+     * surrogates, reads back exactly.
+     *
+     * @param s
+     *        The string to add.
+     */
+    void string(String s) {
+      final int n = s.length();
+      reserve(5 + 3 * n);
+      varint(n);
+      for (int i = 0; i < n; i++) {
+        int c = s.charAt(i);
+        while (c >= 0x80) {
+          buf[len++] = (byte) (c | 0x80);
+          c >>>= 7;
+        }
+        buf[len++] = (byte) c;
+      }
+    }
+  }
+
+  /**
+   * Reads records back out of a frame.
+   */
+  private static final class Reader {
+    /** The bytes being read. */
+    final byte[] buf;
+    /** The index of the next byte to read. */
+    int pos;
+    /** The index past the last byte to read. */
+    final int end;
+
+    /**
+     * @param buf
+     *        The bytes to read.
+     * @param pos
+     *        The index of the first byte to read.
+     * @param end
+     *        The index past the last byte to read.
+     */
+    Reader(byte[] buf, int pos, int end) {
+      this.buf = buf;
+      this.pos = pos;
+      this.end = end;
+    }
+
+    /**
+     * @return The next number.
+     * @throws IOException
+     *         If the frame ends within it.
+     */
+    long varint() throws IOException {
+      long v = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        if (pos >= end) {
+          throw new IOException("Journal record cut short"); //$NON-NLS-1$
+        }
+        final int b = buf[pos++];
+        v |= (long) (b & 0x7F) << shift;
+        if (b >= 0) {
+          return v;
+        }
+      }
+      throw new IOException("Journal number too long"); //$NON-NLS-1$
+    }
+
+    /**
+     * @return The next number, which must fit in an int.
+     * @throws IOException
+     *         If the frame ends within it, or it does not fit.
+     */
+    int integer() throws IOException {
+      final long v = varint();
+      if (v < 0 || v > Integer.MAX_VALUE) {
+        throw new IOException("Journal number out of range"); //$NON-NLS-1$
+      }
+      return (int) v;
+    }
+
+    /**
+     * @return The next string.
+     * @throws IOException
+     *         If the frame ends within it.
+     */
+    String string() throws IOException {
+      final int n = integer();
+      if (n > end - pos) {
+        throw new IOException("Journal record cut short"); //$NON-NLS-1$
+      }
+      final char[] cs = new char[n];
+      for (int i = 0; i < n; i++) {
+        final long c = varint();
+        if (c > Character.MAX_VALUE) {
+          throw new IOException("Journal character out of range"); //$NON-NLS-1$
+        }
+        cs[i] = (char) c;
+      }
+      return new String(cs);
+    }
+  }
+
+  /**
+   * The document a journal rebuilt, and what it was rebuilt from.
+   */
+  static final class Recovered {
+    /** The lines of the document. */
+    final ArrayList<Line> lines = new ArrayList<Line>();
+    /** The saved file the changes were made to, or null if they were made to given text. */
+    File base;
+    /** The loader which read the saved file, or null if there was none. */
+    CodeLoader loader;
+    /** The number of changes replayed. */
+    int edits;
+  }
+
+  /**
+   * Start a journal of changes to the given text, replacing any journal already in the
+   * file once the first changes are written out.
+   *
+   * @param f
+   *        The file to which to write the journal.
+   * @param text
+   *        The text the changes apply to, its lines joined by '\n'.
+   */
+  EditJournal(File f, String text) {
+    path = f.getAbsoluteFile().toPath();
+    reset(text);
+    final long ms = JoshText.Settings.journalCommitInterval;
+    COMMITTER.schedule(task, ms, ms);
+  }
+
+  /**
+   * Start the journal over, against a file just loaded.
+   *
+   * @param base
+   *        The file loaded.
+   */
+  synchronized void reset(File base) {
+    rebase(base, seq);
+  }
+
+  /**
+   * Start the journal over, against the given text.
+   *
+   * @param text
+   *        The text the changes which follow apply to, its lines joined by '\n'.
+   */
+  synchronized void reset(String text) {
+    record.len = 0;
+    record.varint(BASE_TEXT);
+    record.string(text);
+    restart(seq);
+  }
+
+  /**
+   * Start the journal over, against a saved file, carrying over the changes made since the
+   * given record.
+   *
+   * @param base
+   *        The file saved.
+   * @param from
+   *        The number of the first record to carry over.
+   */
+  private void rebase(File base, long from) {
+    record.len = 0;
+    record.varint(BASE_FILE);
+    record.string(base.getAbsolutePath());
+    record.varint(base.length());
+    record.varint(base.lastModified());
+    restart(from);
+  }
+
+  /**
+   * Replace the pending records with the record just encoded, followed by the records kept
+   * since the given one, and have them rewrite the journal.
+   *
+   * @param from
+   *        The number of the first record to carry over.
+   */
+  private void restart(long from) {
+    pending.len = 0;
+    pending.put(record.buf, 0, record.len);
+    final int skip = (int) (from - tailSeq);
+    for (int i = Math.max(skip, 0); i < tail.size(); i++) {
+      final byte[] r = tail.get(i);
+      pending.put(r, 0, r.length);
+    }
+    if (skip > 0) {
+      tail.subList(0, Math.min(skip, tail.size())).clear();
+      tailSeq = from;
+    }
+    if (from == seq) {
+      tail.clear();
+      tailSeq = seq;
+    }
+    baseSeq = from;
+    rewrite = true;
+  }
+
+  /**
+   * Record that text in the code was replaced.
+   *
+   * @param row
+   *        The row at which the text replaced begins.
+   * @param col
+   *        The column at which the text replaced begins.
+   * @param from
+   *        The text replaced; only its extent is recorded.
+   * @param to
+   *        The text which replaced it.
+   */
+  synchronized void edit(int row, int col, String from, String to) {
+    if (closed) {
+      return;
+    }
+    int endRow = row, endCol = col + from.length();
+    for (int i = from.indexOf('\n'); i != -1; i = from.indexOf('\n', i + 1)) {
+      endRow++;
+      endCol = from.length() - i - 1;
+    }
+    record.len = 0;
+    record.varint(EDIT);
+    record.varint(row);
+    record.varint(col);
+    record.varint(endRow - row);
+    record.varint(endCol);
+    record.string(to);
+    pending.put(record.buf, 0, record.len);
+    if (saving > 0) {
+      tail.add(Arrays.copyOf(record.buf, record.len));
+    }
+    seq++;
+  }
+
+  /**
+   * Note that the text has been copied out to be saved; the changes recorded from now on
+   * will be carried over once it is.
+   *
+   * @return The number of the next record, to be handed to {@link #saved(File, long)}.
+   */
+  synchronized long mark() {
+    if (saving++ == 0) {
+      tail.clear();
+      tailSeq = seq;
+    }
+    return seq;
+  }
+
+  /**
+   * Note that a save has finished, and if it succeeded, start the journal over against the
+   * file saved. Saves must finish in the order they were marked.
+   *
+   * @param f
+   *        The file saved, or null if the save failed.
+   * @param mark
+   *        The number returned by {@link #mark()} when the text was copied out.
+   */
+  synchronized void saved(File f, long mark) {
+    saving--;
+    if (closed) {
+      return;
+    }
+    if (f != null && mark >= baseSeq) {
+      rebase(f, mark);
+    }
+    if (saving == 0) {
+      tail.clear();
+      tailSeq = seq;
+    }
+  }
+
+  /** Write out the pending records, and force them to disk. */
+  void commit() {
+    synchronized (io) {
+      final Bytes out;
+      final boolean rw;
+      synchronized (this) {
+        if (closed || pending.len == 0) {
+          return;
+        }
+        out = pending;
+        pending = spare;
+        spare = out;
+        rw = rewrite;
+        rewrite = false;
+      }
+      try {
+        if (rw) {
+          rewriteFile(out);
+        } else {
+          writeFrame(channel, out);
+          channel.force(false);
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+        fail();
+      }
+      out.len = 0;
+    }
+  }
+
+  /**
+   * Replace the journal file with one holding the given records, and reopen it for
+   * appending.
+   *
+   * @param out
+   *        The records with which to begin the journal.
+   * @throws IOException
+   *         If the journal could not be written.
+   */
+  private void rewriteFile(Bytes out) throws IOException {
+    final Path tmp = Files.createTempFile(path.getParent(), "." + path.getFileName(), ".tmp"); //$NON-NLS-1$ //$NON-NLS-2$
+    try {
+      final FileChannel fc = FileChannel.open(tmp, StandardOpenOption.WRITE);
+      try {
+        fc.write(ByteBuffer.wrap(MAGIC));
+        writeFrame(fc, out);
+        fc.force(true);
+      } finally {
+        fc.close();
+      }
+      if (channel != null) {
+        channel.close();
+        channel = null;
+      }
+      try {
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+    channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+  }
+
+  /**
+   * Write records to a journal file as one frame.
+   *
+   * @param fc
+   *        The journal file.
+   * @param out
+   *        The records to write.
+   * @throws IOException
+   *         If the file could not be written.
+   */
+  private static void writeFrame(FileChannel fc, Bytes out) throws IOException {
+    final CRC32 crc = new CRC32();
+    crc.update(out.buf, 0, out.len);
+    final ByteBuffer head = ByteBuffer.allocate(8);
+    head.putInt(out.len).putInt((int) crc.getValue()).flip();
+    final ByteBuffer body = ByteBuffer.wrap(out.buf, 0, out.len);
+    while (head.hasRemaining() || body.hasRemaining()) {
+      fc.write(new ByteBuffer[] { head, body });
+    }
+  }
+
+  /**
+   * Stop journaling after a write failed, and delete the journal, as it no longer holds
+   * every change.
+   */
+  void fail() {
+    synchronized (this) {
+      closed = true;
+    }
+    task.cancel();
+    try {
+      if (channel != null) {
+        channel.close();
+        channel = null;
+      }
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /** Write out any pending records and close the journal; the file is left in place. */
+  void close() {
+    task.cancel();
+    commit();
+    synchronized (io) {
+      synchronized (this) {
+        closed = true;
+      }
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+        channel = null;
+      }
+    }
+  }
+
+  /**
+   * Rebuild a document from a journal: read the file or text the journal begins with, and
+   * replay every change written out after it. A frame cut short or damaged ends the
+   * journal.
+   *
+   * @param f
+   *        The journal file.
+   * @return The document rebuilt.
+   * @throws IOException
+   *         If the journal is not one, if the file it begins with is missing or has changed
+   *         since, or if a change does not fit the document.
+   */
+  static Recovered recover(File f) throws IOException {
+    final byte[] buf = Files.readAllBytes(f.toPath());
+    if (buf.length < MAGIC.length || !Arrays.equals(Arrays.copyOf(buf, MAGIC.length), MAGIC)) {
+      throw new IOException("Not a journal: " + f); //$NON-NLS-1$
+    }
+    final Recovered rec = new Recovered();
+    final Code code = new Code();
+    boolean based = false;
+    final CRC32 crc = new CRC32();
+    for (int pos = MAGIC.length; pos + 8 <= buf.length;) {
+      final ByteBuffer head = ByteBuffer.wrap(buf, pos, 8);
+      final int len = head.getInt(), sum = head.getInt();
+      if (len < 0 || len > buf.length - pos - 8) {
+        break;
+      }
+      crc.reset();
+      crc.update(buf, pos + 8, len);
+      if ((int) crc.getValue() != sum) {
+        break;
+      }
+      final Reader in = new Reader(buf, pos + 8, pos + 8 + len);
+      while (in.pos < in.end) {
+        final long type = in.varint();
+        if (type == BASE_FILE || type == BASE_TEXT) {
+          code.clear();
+          rec.edits = 0;
+          if (type == BASE_FILE) {
+            readBase(in, rec, code);
+          } else {
+            rec.base = null;
+            rec.loader = null;
+            for (String s : in.string().split("\n", -1)) { //$NON-NLS-1$
+              code.add(s);
+            }
+          }
+          based = true;
+        } else if (type == EDIT && based) {
+          final int row = in.integer(), col = in.integer();
+          final int endRow = row + in.integer(), endCol = in.integer();
+          final String to = in.string();
+          if (endRow >= code.size() || col > code.getsb(row).length()
+              || endCol > code.getsb(endRow).length() || (endRow == row && endCol < col)) {
+            throw new IOException("Journal change does not fit the document at row " + row); //$NON-NLS-1$
+          }
+          UndoDelta.replace(code, row, col, endRow, endCol, to);
+          rec.edits++;
+        } else {
+          throw new IOException("Bad journal record"); //$NON-NLS-1$
+        }
+      }
+      pos += 8 + len;
+    }
+    if (!based) {
+      throw new IOException("Empty journal: " + f); //$NON-NLS-1$
+    }
+    final Line[] all = new Line[code.size()];
+    code.getLines(0, all, all.length);
+    rec.lines.addAll(Arrays.asList(all));
+    return rec;
+  }
+
+  /**
+   * Read a saved file a journal begins with.
+   *
+   * @param in
+   *        The record naming the file.
+   * @param rec
+   *        The document being rebuilt.
+   * @param code
+   *        The code to which to read the file.
+   * @throws IOException
+   *         If the file is missing, has changed since it was recorded, or cannot be read.
+   */
+  private static void readBase(Reader in, Recovered rec, Code code) throws IOException {
+    final File base = new File(in.string());
+    final long size = in.varint(), modified = in.varint();
+    if (!base.isFile() || base.length() != size || base.lastModified() != modified) {
+      throw new IOException("File changed since the journal began: " + base); //$NON-NLS-1$
+    }
+    final CodeLoader ld = new CodeLoader(base);
+    final List<Line> lines = new ArrayList<Line>();
+    try {
+      while (ld.readLines(lines, Integer.MAX_VALUE)) {
+        // Read the whole file.
+      }
+    } finally {
+      ld.close();
+    }
+    if (lines.isEmpty()) {
+      code.add(""); //$NON-NLS-1$
+    } else {
+      code.addAll(0, lines);
+    }
+    rec.base = base;
+    rec.loader = ld;
+  }
+}
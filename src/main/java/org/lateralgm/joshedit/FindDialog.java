@@ -17,8 +17,6 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.ComponentEvent;
 import java.awt.event.ComponentListener;
-import java.awt.event.ItemEvent;
-import java.awt.event.ItemListener;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
 import java.util.ArrayList;
@@ -238,13 +236,6 @@ public class FindDialog extends JDialog
 
     new ButGroup(whole, start);
     new ButGroup(esc, regex);
-    regex.addItemListener(new ItemListener() {
-      @Override
-      public void itemStateChanged(ItemEvent e) {
-        boolean b = regex.isSelected();
-        backward.setEnabled(!b);
-      }
-    });
 
     JPanel scope = new JPanel();
     scope.setLayout(new BoxLayout(scope, BoxLayout.PAGE_AXIS));
@@ -19,6 +19,7 @@ import java.awt.Font;
 import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
 import java.awt.Insets;
 import java.awt.Point;
 import java.awt.Rectangle;
@@ -29,6 +30,7 @@ import java.awt.datatransfer.DataFlavor;
 import java.awt.datatransfer.StringSelection;
 import java.awt.datatransfer.Transferable;
 import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.ComponentEvent;
 import java.awt.event.ComponentListener;
 import java.awt.event.FocusEvent;
@@ -36,24 +38,26 @@ import java.awt.event.FocusListener;
 import java.awt.event.InputEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
 import java.awt.print.PageFormat;
 import java.awt.print.Printable;
 import java.awt.print.PrinterException;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.EventListener;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Queue;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import javax.swing.AbstractAction;
 import javax.swing.Action;
@@ -66,10 +70,12 @@ import javax.swing.KeyStroke;
 import javax.swing.Scrollable;
 import javax.swing.SwingConstants;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.TransferHandler;
 import javax.swing.event.CaretEvent;
 import javax.swing.event.CaretListener;
 
+import org.lateralgm.joshedit.Code.FindResults;
 import org.lateralgm.joshedit.FindDialog.FindNavigator;
 import org.lateralgm.joshedit.Selection.ST;
 import org.lateralgm.joshedit.TokenMarker.TokenMarkerInfo;
@@ -102,6 +108,21 @@ public class JoshText extends JComponent
     public static boolean highlight_line = true;
     /** True if tabs should be represented visually. */
     public static boolean renderTabs;
+    /**
+     * True to keep the glyphs of recently drawn runs of text laid out, trading memory for
+     * faster repainting of unchanged lines.
+     */
+    public static boolean cacheGlyphs;
+    /** The greatest number of steps kept in the undo history. */
+    public static int undoMaxSteps = 10000;
+    /** The approximate number of bytes of memory the undo history may occupy. */
+    public static long undoMaxMemory = 64L << 20;
+    /** The number of bytes of disk the text the undo history spills may occupy. */
+    public static long undoMaxDisk = 1L << 30;
+    /** Text in the undo history at least this many characters long is kept on disk. */
+    public static int undoSpillThreshold = 1 << 20;
+    /** The number of milliseconds between writes of a recovery journal's changes. */
+    public static int journalCommitInterval = 250;
   }
 
   // Colors
@@ -136,6 +157,8 @@ public class JoshText extends JComponent
   private TokenMarker marker;
   /** All Highlighters which will be called to highlight their lines or characters. */
   public ArrayList<Highlighter> highlighters = new ArrayList<Highlighter>();
+  /** The highlighter marking every match of the search set by Highlight All. */
+  SearchHighlighter searchHits;
 
   // Dimensions
 
@@ -151,6 +174,38 @@ public class JoshText extends JComponent
   /** Our longest row, and how many other rows are this long */
   private int maxRowSize; // This is the size of the longest row, not the index.
 
+  /** The loader still reading the rest of a file in the background, or null. */
+  private CodeLoader loader;
+  /**
+   * The last line read of the file loading in the background, which the rest of the file
+   * follows wherever edits move it; or null.
+   */
+  private Line loadedLast;
+  /** The number of lines read of the file loading in the background. */
+  private int loadedRows;
+  /** The charset of the file last loaded, or null. */
+  private Charset fileCharset;
+  /** True if the file last loaded began with a byte order mark. */
+  private boolean fileHasBOM;
+  /** The line terminator of the file last loaded. */
+  private String lineTerminator = "\n"; //$NON-NLS-1$
+  /** False if the file last loaded did not end its last line with a terminator. */
+  private boolean fileEndsWithTerminator = true;
+  /** The saver last used to write a file, kept for its encoder and buffers; or null. */
+  private CodeSaver saver;
+  /** The file to save once the file loading in the background is read, or null. */
+  private File saveAfterLoad;
+  /** The listener to tell how the save waiting for the file loading ends, or null. */
+  private SaveListener saveAfterLoadListener;
+  /** The file of which only a part could be read, or null; it is not saved over. */
+  private File partialFile;
+  /** The save still copying out the text, or null. */
+  SaveCopier copier;
+  /** The save last handed to a background thread, or null. */
+  private Thread lastSave;
+  /** The journal of changes kept for recovery from a crash, or null. */
+  private EditJournal journal;
+
   /**
    * A queue of all messages that need displayed in our status bar.
    * There will probably only be one item on this queue at a time.
@@ -172,7 +227,8 @@ public class JoshText extends JComponent
 
   /**
    * A Highlighter is a class that gets painted before the text
-   * so as to appear in the background of the characters.
+   * so as to appear in the background of the characters. It is told which lines are being
+   * painted, and need not paint any others; those outside the clip are not drawn anyway.
    */
   public static interface Highlighter {
     /**
@@ -185,9 +241,9 @@ public class JoshText extends JComponent
      * @param gm
      *        The string and glyph metrics for this code.
      * @param line_start
-     *        The index of the first visible line.
+     *        The index of the first line being painted.
      * @param line_end
-     *        The index of the last visible line.
+     *        The index of the line after the last being painted.
      */
     void paint(Graphics g, Insets i, CodeMetrics gm, int line_start, int line_end);
   }
@@ -308,7 +364,7 @@ public class JoshText extends JComponent
 
     @Override
     public int lineWidth(int y, int end) {
-      return stringWidth(code.getsb(y).toString(), end);
+      return TabIndex.of(code.get(y)).column(end) * monoAdvance;
     }
 
     @Override
@@ -412,6 +468,7 @@ public class JoshText extends JComponent
 
     // Managing our code
     code = new Code();
+    code.beginBatch();
     if (lines == null || lines.length == 0) {
       code.add(new StringBuilder());
     } else {
@@ -419,6 +476,14 @@ public class JoshText extends JComponent
         code.add(line);
       }
     }
+    code.endBatch();
+    code.addCodeListener(new Code.CodeListener() {
+      @Override
+      public void codeChanged(Code.CodeEvent e) {
+        // Adding or removing lines moves every line below.
+        markDirty(e.getStart(), e.getDelta() == 0? e.getEnd() : Integer.MAX_VALUE);
+      }
+    });
 
     FontMetrics fm = getFontMetrics(getFont());
     lineAscent = fm.getAscent();
@@ -437,7 +502,7 @@ public class JoshText extends JComponent
       highlighters.add(new Highlighter() {
         @Override
         public void paint(Graphics g, Insets i, CodeMetrics gm, int line_start, int line_end) {
-          if (sel.row == caret.row) {
+          if (sel.row == caret.row && caret.row >= line_start && caret.row < line_end) {
             Color rc = g.getColor();
             g.setColor(lineHighlightColor);
             Rectangle clip = g.getClipBounds();
@@ -448,6 +513,9 @@ public class JoshText extends JComponent
         }
       });
     }
+    searchHits = new SearchHighlighter(code);
+    addLineChangeListener(searchHits);
+    highlighters.add(searchHits);
     highlighters.add(sel);
 
     BracketHighlighter bm = new BracketHighlighter();
@@ -555,19 +623,26 @@ public class JoshText extends JComponent
    *        line.
    */
   public void setText(String[] lines) {
-    code.clear();
-    if (lines == null || lines.length == 0) {
-      code.add(new StringBuilder());
-    } else {
-      for (String line : lines) {
-        code.add(line);
+    cancelLoad();
+    forgetFile();
+    code.beginBatch();
+    try {
+      code.clear();
+      if (lines == null || lines.length == 0) {
+        code.add(new StringBuilder());
+      } else {
+        for (String line : lines) {
+          code.add(line);
+        }
       }
-    }
-    if (code.isEmpty()) {
-      code.add("");  //$NON-NLS-1$
+    } finally {
+      code.endBatch();
     }
     fireLineChange(0, code.size());
     doCodeSize(true);
+    if (journal != null) {
+      journal.reset(joinedText());
+    }
   }
 
   /**
@@ -600,98 +675,742 @@ public class JoshText extends JComponent
    */
   public String getText() {
     StringBuilder res = new StringBuilder();
-    for (int i = 0; i < code.size(); i++) {
-      res.append(code.get(i).sbuild.toString() + "\n"); //$NON-NLS-1$
+    try {
+      writeText(res);
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // StringBuilder does not throw
+    }
+    return res.toString();
+  }
+
+  /** @return The text in this editor, its lines joined by newlines. */
+  private String joinedText() {
+    StringBuilder res = new StringBuilder();
+    try {
+      writeText(res, "\n"); //$NON-NLS-1$
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // StringBuilder does not throw
     }
     return res.toString();
   }
 
   /**
-   * Basically like htmlSpecialChars in PHP.
+   * Write the text in this editor, each line followed by a newline.
+   *
+   * @param out
+   *        Where to write the text.
+   * @throws IOException
+   *         If writing fails.
+   */
+  public void writeText(Appendable out) throws IOException {
+    writeText(out, "\n"); //$NON-NLS-1$
+    out.append('\n');
+  }
+
+  /**
+   * Write the text in this editor, with lines separated by the given string. Nothing is
+   * copied but the characters of one line at a time, so the text may be written straight to
+   * a file or stream however large it is.
+   *
+   * @param out
+   *        Where to write the text.
+   * @param separator
+   *        The string to write between lines.
+   * @throws IOException
+   *         If writing fails.
+   */
+  public void writeText(Appendable out, String separator) throws IOException {
+    for (int i = 0; i < code.size(); i++) {
+      if (i != 0) {
+        out.append(separator);
+      }
+      StringBuilder sb = code.getsb(i);
+      write(out, sb, 0, sb.length());
+    }
+  }
+
+  /** Characters of the line being written by {@link #write}, for Writers. */
+  private char[] exportChars = new char[256];
+
+  /**
+   * Write part of a line. Writers are given the characters through an array we keep, rather
+   * than through a String made of them.
+   *
+   * @param out
+   *        Where to write.
+   * @param sb
+   *        The line.
+   * @param start
+   *        The position of the first character to write.
+   * @param end
+   *        The position after the last.
+   * @throws IOException
+   *         If writing fails.
+   */
+  private void write(Appendable out, StringBuilder sb, int start, int end) throws IOException {
+    if (!(out instanceof Writer)) {
+      out.append(sb, start, end);
+      return;
+    }
+    final int len = end - start;
+    if (exportChars.length < len) {
+      exportChars = new char[Math.max(len, exportChars.length * 2)];
+    }
+    sb.getChars(start, end, exportChars, 0);
+    ((Writer) out).write(exportChars, 0, len);
+  }
+
+  /**
+   * Write part of a line as HTML text, escaping characters with meaning in HTML, in one pass.
+   *
+   * @param out
+   *        Where to write.
+   * @param sb
+   *        The line.
+   * @param start
+   *        The position of the first character to write.
+   * @param end
+   *        The position after the last.
+   * @throws IOException
+   *         If writing fails.
+   */
+  private void writeEscaped(Appendable out, StringBuilder sb, int start, int end)
+      throws IOException {
+    int from = start;
+    for (int i = start; i < end; i++) {
+      String entity;
+      switch (sb.charAt(i)) {
+        case '&':
+          entity = "&amp;"; //$NON-NLS-1$
+          break;
+        case '<':
+          entity = "&lt;"; //$NON-NLS-1$
+          break;
+        case '>':
+          entity = "&gt;"; //$NON-NLS-1$
+          break;
+        case '"':
+          entity = "&quot;"; //$NON-NLS-1$
+          break;
+        case '/':
+          entity = "&#47;"; //$NON-NLS-1$
+          break;
+        case '\\':
+          entity = "&#92;"; //$NON-NLS-1$
+          break;
+        default:
+          continue;
+      }
+      write(out, sb, from, i);
+      out.append(entity);
+      from = i + 1;
+    }
+    write(out, sb, from, end);
+  }
+
+  /**
+   * Make sure the styles of lines up to the given one are final, for markers which leave
+   * lines out of view to be marked later. Call before reading the styles of those lines.
    *
-   * @param x
-   *        The not HTML-ready string.
-   * @return The HTML-ready string.
+   * @param lastLine
+   *        The index of the last line whose styles are to be read.
    */
-  private static String htmlSpecialChars(String x) {
-    if (x == null) {
-      return ""; //$NON-NLS-1$
+  void prepareStyles(int lastLine) {
+    if (marker instanceof TokenMarker.LookAhead) {
+      ((TokenMarker.LookAhead) marker).prepareLines(code, lastLine);
     }
-    x = x.replace("/", "&#47;").replace("\\", "&#92;"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
-    x = x.replace("&", "&amp;").replace("\"", "&quot;"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
-    x = x.replace("<", "&lt;").replace(">", "&gt;"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
-    return x;
   }
 
   /**
    * Export the current code as HTML.
    *
-   * @return The contents of the editor, with tokens marked up in HTML.
+   * @return The contents of the editor, with each token in a span styled inline, as by
+   *         {@link #writeHTML(Appendable)}.
    */
   public String getHTML() {
+    return getHTML(false);
+  }
+
+  /**
+   * Export the current code as HTML.
+   *
+   * @param styleSheet
+   *        Whether to style tokens by class, from a style sheet, rather than inline.
+   * @return The contents of the editor, with tokens marked up in HTML, as by
+   *         {@link #writeHTML(Appendable, boolean)}.
+   */
+  public String getHTML(boolean styleSheet) {
     StringBuilder res = new StringBuilder(code.size() * 100);
+    try {
+      writeHTML(res, styleSheet);
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // StringBuilder does not throw
+    }
+    return res.toString();
+  }
+
+  /**
+   * Export the current code as HTML, each token in a span with its style given inline, and
+   * each line followed by a newline.
+   *
+   * @param out
+   *        Where to write the HTML.
+   * @throws IOException
+   *         If writing fails.
+   */
+  public void writeHTML(Appendable out) throws IOException {
+    writeHTML(out, false);
+  }
+
+  /**
+   * Export the current code as HTML. Styled inline, each token is in a span with its style
+   * given in the span, and each line is followed by a newline. Styled from a style sheet, the
+   * sheet has one class for each distinct look of token, and is followed by the code in a pre
+   * element, each token in a span of its class. Nothing is copied but the characters of one
+   * line at a time, so the code may be written straight to a file or stream however large it
+   * is; only a style sheet for a marker which does not give runs needs the runs of every line
+   * kept, since its styles are only all known once every line has been styled.
+   *
+   * @param out
+   *        Where to write the HTML.
+   * @param styleSheet
+   *        Whether to style tokens by class, from a style sheet, rather than inline.
+   * @throws IOException
+   *         If writing fails.
+   */
+  public void writeHTML(Appendable out, boolean styleSheet) throws IOException {
+    prepareStyles(code.size() - 1);
+    final TokenRuns runs = new TokenRuns();
+    runs.reset(null);
+    int[][] kept = null;
+    // The tag opening a span of each style, for the style table of the runs.
+    String[] spans = new String[0];
+    StyleTable spanStyles = null;
+    if (styleSheet) {
+      if (marker instanceof TokenMarker.RunMarker) {
+        runs.load(marker, code.get(0));
+      } else if (marker != null) {
+        kept = new int[code.size()][];
+        for (int i = 0; i < code.size(); i++) {
+          runs.load(marker, code.get(i));
+          kept[i] = runs.toArray();
+        }
+      }
+      spanStyles = runs.getStyleTable();
+      spans = writeStyleSheet(out, spanStyles);
+      out.append("<pre class=\"joshedit\">"); //$NON-NLS-1$
+    }
 
     for (int i = 0; i < code.size(); i++) {
       Line l = code.get(i);
       StringBuilder lsb = l.sbuild;
       int from = 0;
-      ArrayList<TokenMarkerInfo> tmall = marker.getStyles(l);
-      for (TokenMarkerInfo ti : tmall) {
-        if (ti.startPos > from) {
-          res.append(htmlSpecialChars(lsb.substring(from, ti.startPos)));
-        }
-        if (ti.startPos < ti.endPos) {
-          res.append("<span style=\""); //$NON-NLS-1$
-          if ((ti.fontStyle & Font.BOLD) != 0) {
-            res.append("font-weight:bold;"); //$NON-NLS-1$
-          }
-          if ((ti.fontStyle & Font.ITALIC) != 0) {
-            res.append("font-style:italic;"); //$NON-NLS-1$
+      if (kept != null) {
+        runs.share(spanStyles, kept[i]);
+      } else if (marker != null) {
+        runs.load(marker, l);
+      }
+      if (!styleSheet && runs.getStyleTable() != spanStyles) {
+        spanStyles = runs.getStyleTable();
+        spans = new String[0];
+      }
+      for (int r = 0; r < runs.size(); r++) {
+        final int end = Math.min(runs.end(r), lsb.length());
+        final int start = Math.min(Math.max(runs.start(r), from), lsb.length());
+        if (start > from) {
+          writeEscaped(out, lsb, from, start);
+          from = start;
+        }
+        if (start < end) {
+          final int style = runs.style(r);
+          if (style >= spans.length) {
+            spans = Arrays.copyOf(spans, spanStyles.size());
           }
-          if (ti.color != null) {
-            res.append("color:#" + Integer.toHexString(ti.color.getRGB()).substring(2) + ";"); //$NON-NLS-1$ //$NON-NLS-2$
+          if (spans[style] == null) {
+            spans[style] = inlineSpan(spanStyles, style);
           }
-          res.append("\">"); //$NON-NLS-1$
-          res.append(htmlSpecialChars(lsb.substring(ti.startPos, ti.endPos)));
-          res.append("</span>"); //$NON-NLS-1$
+          out.append(spans[style]);
+          writeEscaped(out, lsb, start, end);
+          out.append("</span>"); //$NON-NLS-1$
+          from = end;
         }
-        from = ti.endPos;
       }
-      res.append("\n"); //$NON-NLS-1$
+      writeEscaped(out, lsb, from, lsb.length());
+      out.append('\n');
+    }
+    if (styleSheet) {
+      out.append("</pre>\n"); //$NON-NLS-1$
     }
+  }
 
-    return res.toString();
+  /**
+   * @param styles
+   *        A style table.
+   * @param style
+   *        A style in the table.
+   * @return The tag opening a span of the style, with the style given inline.
+   */
+  private static String inlineSpan(StyleTable styles, int style) {
+    StringBuilder res = new StringBuilder("<span style=\""); //$NON-NLS-1$
+    if ((styles.fontStyle(style) & Font.BOLD) != 0) {
+      res.append("font-weight:bold;"); //$NON-NLS-1$
+    }
+    if ((styles.fontStyle(style) & Font.ITALIC) != 0) {
+      res.append("font-style:italic;"); //$NON-NLS-1$
+    }
+    if (styles.color(style) != null) {
+      res.append("color:#").append( //$NON-NLS-1$
+          Integer.toHexString(styles.color(style).getRGB()).substring(2)).append(';');
+    }
+    return res.append("\">").toString(); //$NON-NLS-1$
+  }
+
+  /**
+   * Write a style sheet with one class for each distinct look of the styles of a table.
+   *
+   * @param out
+   *        Where to write the style sheet.
+   * @param styles
+   *        The style table, or null if there are no styles.
+   * @return The tag opening a span of each style, with the class of its look.
+   * @throws IOException
+   *         If writing fails.
+   */
+  private static String[] writeStyleSheet(Appendable out, StyleTable styles) throws IOException {
+    // Styles which look the same share a class.
+    final int n = styles == null? 0 : styles.size();
+    final String[] spans = new String[n];
+    final int[] classOf = new int[n];
+    int classes = 0;
+    out.append("<style type=\"text/css\">\n"); //$NON-NLS-1$
+    for (int st = 0; st < n; st++) {
+      classOf[st] = -1;
+      for (int o = 0; o < st && classOf[st] == -1; o++) {
+        if (styles.fontStyle(o) == styles.fontStyle(st)
+            && (styles.color(o) == null? styles.color(st) == null
+                : styles.color(o).equals(styles.color(st)))) {
+          classOf[st] = classOf[o];
+          spans[st] = spans[o];
+        }
+      }
+      if (classOf[st] != -1) {
+        continue;
+      }
+      classOf[st] = classes;
+      spans[st] = "<span class=\"s" + classes + "\">"; //$NON-NLS-1$ //$NON-NLS-2$
+      out.append("pre.joshedit .s").append(Integer.toString(classes++)).append(" {"); //$NON-NLS-1$ //$NON-NLS-2$
+      if ((styles.fontStyle(st) & Font.BOLD) != 0) {
+        out.append(" font-weight: bold;"); //$NON-NLS-1$
+      }
+      if ((styles.fontStyle(st) & Font.ITALIC) != 0) {
+        out.append(" font-style: italic;"); //$NON-NLS-1$
+      }
+      if (styles.color(st) != null) {
+        out.append(" color: #").append( //$NON-NLS-1$
+            Integer.toHexString(styles.color(st).getRGB()).substring(2)).append(';');
+      }
+      out.append(" }\n"); //$NON-NLS-1$
+    }
+    out.append("</style>\n"); //$NON-NLS-1$
+    return spans;
   }
 
   /**
-   * Read code from a given file into this editor.
+   * Read code from a given file into this editor. The file is memory-mapped and decoded as
+   * described in {@link CodeLoader}. Small files are read in full before this returns; for
+   * large files, only the first screen is, and the rest is read by a background thread and
+   * appended once it is ready. If the rest cannot be read, the user is told, and the file is
+   * not saved over with the part that was.
    *
    * @param name
    *        The path and filename from which to read code.
    */
   public void loadFromFile(String name) {
+    cancelLoad();
+    forgetFile();
+    final File file = new File(name);
     try {
-      BufferedReader br = new BufferedReader(new FileReader(name));
-      code.clear();
-
-      String line = br.readLine();
+      CodeLoader ld = new CodeLoader(file);
+      ArrayList<Line> lines = new ArrayList<Line>();
+      boolean more = false;
       try {
-        while (line != null) {
-          code.add(line);
-          line = br.readLine();
+        more = ld.readLines(lines, firstScreenRows());
+        ld.restarted = false;
+        fileCharset = ld.getCharset();
+        fileHasBOM = ld.hasBOM();
+        if (ld.getLineTerminator() != null) {
+          lineTerminator = ld.getLineTerminator();
+        }
+        if (!more) {
+          fileEndsWithTerminator = ld.endsWithTerminator();
         }
       } finally {
-        br.close();
+        if (!more) {
+          ld.close();
+        }
+      }
+
+      code.beginBatch();
+      try {
+        code.clear();
+        code.addAll(lines);
         if (code.isEmpty()) {
           code.add("");  //$NON-NLS-1$
         }
+      } finally {
+        code.endBatch();
       }
-
       fireLineChange(0, code.size());
-      doCodeSize(true);
+      maxRowSize = ld.maxLength;
+      fitToCode();
+      if (journal != null) {
+        journal.reset(file);
+      }
+
+      if (more) {
+        loader = ld;
+        loadedRows = lines.size();
+        loadedLast = lines.isEmpty()? null : lines.get(lines.size() - 1);
+        new LoadThread(ld, file).start();
+      }
     } catch (Exception e) {
       e.printStackTrace();
+      infoMessages.add("Could not read " + file.getName() + ": " + e); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+  }
+
+  /** Forget the charset, byte order mark, and line terminator of the file last loaded. */
+  private void forgetFile() {
+    fileCharset = null;
+    fileHasBOM = false;
+    lineTerminator = "\n"; //$NON-NLS-1$
+    fileEndsWithTerminator = true;
+    partialFile = null;
+  }
+
+  /**
+   * @return The number of rows to read before displaying a file; comfortably more than fit
+   *         on the screen.
+   */
+  private int firstScreenRows() {
+    return Math.max(getVisibleRect().height / lineHeight * 2, 256);
+  }
+
+  /**
+   * Stop any file still loading in the background; lines it has not delivered yet are
+   * discarded, and so is a save waiting for them. A save still copying out the text
+   * finishes copying first.
+   */
+  void cancelLoad() {
+    if (loader != null) {
+      loader.cancelled = true;
+      loader = null;
+      loadedLast = null;
+    }
+    if (saveAfterLoad != null) {
+      dropDeferredSave(saveAfterLoad.getName()
+          + " (the text was replaced before it finished loading)"); //$NON-NLS-1$
+    }
+    // The text is still whole; copy the rest of it now, before it is replaced.
+    finishCopying();
+  }
+
+  /**
+   * Finish copying out the text for the save under way, if there is one, and start writing
+   * it; so that a save is never lost to a later one or to the text being replaced.
+   */
+  private void finishCopying() {
+    if (copier != null) {
+      while (!copier.copySlice()) {
+        // Copy every slice.
+      }
+      copier.start();
+    }
+  }
+
+  /** Reads the remainder of a file being loaded, handing it back to the EDT. */
+  private class LoadThread extends Thread {
+    /** The loader reading the file. */
+    final CodeLoader ld;
+    /** The file being read. */
+    final File file;
+    /** The failure that stopped the file being read, or null. */
+    Exception failure;
+
+    /**
+     * @param ld
+     *        The loader reading the file, which has already read the first screen.
+     * @param file
+     *        The file being read.
+     */
+    LoadThread(CodeLoader ld, File file) {
+      super("JoshEdit file loader"); //$NON-NLS-1$
+      this.ld = ld;
+      this.file = file;
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      final ArrayList<Line> rest = new ArrayList<Line>();
+      try {
+        while (!ld.cancelled && ld.readLines(rest, 1 << 16)) {
+          // Reading in slices lets a cancelled load stop promptly.
+        }
+      } catch (Exception e) {
+        e.printStackTrace();
+        failure = e;
+      } finally {
+        try {
+          ld.close();
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      }
+      SwingUtilities.invokeLater(new Runnable() {
+        @Override
+        public void run() {
+          finishLoad(ld, file, rest, failure);
+        }
+      });
+    }
+  }
+
+  /**
+   * Insert the remainder of a file read in the background after the part read first, as a
+   * single change; lines typed after that part stay after the whole file. If the file could
+   * not be read to its end, nothing is inserted, and the file is not saved over; the user is
+   * told.
+   *
+   * @param ld
+   *        The loader which read the file.
+   * @param file
+   *        The file read.
+   * @param rest
+   *        The lines following those already loaded.
+   * @param failure
+   *        The failure that stopped the file being read, or null if it was read to its end.
+   */
+  void finishLoad(CodeLoader ld, File file, ArrayList<Line> rest, Exception failure) {
+    if (loader != ld) {
+      return;
+    }
+    loader = null;
+    final Line after = loadedLast;
+    loadedLast = null;
+    if (failure != null) {
+      partialFile = file;
+      infoMessages.add("Could not read all of " + file.getName() + ": " + failure); //$NON-NLS-1$ //$NON-NLS-2$
+      if (saveAfterLoad != null) {
+        dropDeferredSave("only part of " + file.getName() + " was read"); //$NON-NLS-1$ //$NON-NLS-2$
+      }
+      return;
+    }
+    fileCharset = ld.getCharset();
+    if (ld.getLineTerminator() != null) {
+      lineTerminator = ld.getLineTerminator();
+    }
+    fileEndsWithTerminator = ld.endsWithTerminator();
+    int start = insertionRow(after);
+    if (!ld.restarted && rest.isEmpty()) {
+      saveDeferred();
+      return;
+    }
+    code.beginBatch();
+    try {
+      if (ld.restarted) {
+        // The file was not UTF-8 after all; the lines on display were decoded wrongly.
+        code.clear();
+        start = 0;
+      }
+      code.addAll(start, rest);
+      if (code.isEmpty()) {
+        code.add("");  //$NON-NLS-1$
+      }
+    } finally {
+      code.endBatch();
+    }
+    fireLineChange(start, code.size());
+    if (ld.restarted) {
+      // Any edits were made to the lines replaced; they, and their undo history, are gone.
+      if (!undoPatches.isEmpty()) {
+        infoMessages.add("Edits made while " + file.getName() + " loaded were discarded"); //$NON-NLS-1$ //$NON-NLS-2$
+      }
+      clearUndo();
+      if (journal != null) {
+        journal.reset(file);
+      }
+      caret.row = Math.min(caret.row, code.size() - 1);
+      caret.col = Math.min(caret.col, code.getsb(caret.row).length());
+      sel.deselect(true);
+      doCodeSize(true);
+    } else {
+      if (start + rest.size() < code.size()) {
+        // Lines were typed past the part read first, and have moved down below the rest.
+        // The rows the undo history and the journal recorded for them are no longer theirs.
+        if (caret.row >= start) {
+          caret.row += rest.size();
+        }
+        if (sel.row >= start) {
+          sel.row += rest.size();
+        }
+        if (!undoPatches.isEmpty()) {
+          infoMessages.add("Edits made while " + file.getName() + " loaded can no longer be undone"); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        clearUndo();
+        if (journal != null) {
+          journal.reset(joinedText());
+        }
+      }
+      maxRowSize = Math.max(maxRowSize, ld.maxLength);
+      fitToCode();
     }
+    saveDeferred();
+  }
+
+  /**
+   * Find where the rest of a file loading in the background goes: after the last line read
+   * so far, wherever edits have moved it, and so before any lines typed after it.
+   *
+   * @param after
+   *        The last line read so far, or null if none was.
+   * @return The row at which to insert the rest of the file.
+   */
+  private int insertionRow(Line after) {
+    if (after != null) {
+      for (int i = code.size() - 1; i >= 0; i--) {
+        if (code.get(i) == after) {
+          return i + 1;
+        }
+      }
+    }
+    // The line was removed; the rest goes no further down than it would have at first.
+    return Math.min(loadedRows, code.size());
+  }
+
+  /** Start the save requested while a file was loading, if there was one. */
+  private void saveDeferred() {
+    if (saveAfterLoad != null) {
+      final File f = saveAfterLoad;
+      final SaveListener l = saveAfterLoadListener;
+      saveAfterLoad = null;
+      saveAfterLoadListener = null;
+      save(f, l);
+    }
+  }
+
+  /**
+   * Give up the save requested while a file was loading.
+   *
+   * @param why
+   *        Why it was given up, for the user and for its listener.
+   */
+  private void dropDeferredSave(String why) {
+    final File f = saveAfterLoad;
+    final SaveListener l = saveAfterLoadListener;
+    saveAfterLoad = null;
+    saveAfterLoadListener = null;
+    notSaved(f, l, why);
+  }
+
+  /**
+   * Tell the user, and whoever asked, that a file was not saved.
+   *
+   * @param f
+   *        The file which was not saved.
+   * @param listener
+   *        The listener to tell, or null.
+   * @param why
+   *        Why it was not saved.
+   */
+  private void notSaved(File f, SaveListener listener, String why) {
+    infoMessages.add("Not saved: " + why); //$NON-NLS-1$
+    if (listener != null) {
+      listener.saveFailed(f, new IOException(why));
+    }
+  }
+
+  /**
+   * Keep a journal of the changes made to this editor, from which its text can be rebuilt
+   * with {@link #recoverFromJournal(File)} should the program end before it is saved. The
+   * journal records each change that enters the undo history, and starts over against the
+   * file whenever one is loaded or saved, or against the text when it is set; it begins
+   * with a copy of the text as it stands. Whatever is in the file is replaced.
+   *
+   * @param f
+   *        The file in which to keep the journal, or null to stop keeping one; a journal
+   *        stopped is left in its file, for the caller to delete once it is not needed.
+   */
+  public void setJournal(File f) {
+    if (journal != null) {
+      journal.close();
+      journal = null;
+    }
+    if (f != null) {
+      journal = new EditJournal(f, joinedText());
+    }
+  }
+
+  /**
+   * Replace the text of this editor with that rebuilt from a journal kept by
+   * {@link #setJournal(File)}: the file or text the journal was last started over against,
+   * with every change written to the journal since applied to it. Any journal this editor
+   * is keeping starts over against the text rebuilt.
+   *
+   * @param f
+   *        The journal file.
+   * @return The number of changes applied.
+   * @throws IOException
+   *         If the file is not a journal, if the file it was started over against is missing
+   *         or has been changed since, or if a change does not apply.
+   */
+  public int recoverFromJournal(File f) throws IOException {
+    final EditJournal.Recovered rec = EditJournal.recover(f);
+    cancelLoad();
+    code.beginBatch();
+    try {
+      code.clear();
+      code.addAll(0, rec.lines);
+    } finally {
+      code.endBatch();
+    }
+    if (rec.loader != null) {
+      fileCharset = rec.loader.getCharset();
+      fileHasBOM = rec.loader.hasBOM();
+      if (rec.loader.getLineTerminator() != null) {
+        lineTerminator = rec.loader.getLineTerminator();
+      }
+      fileEndsWithTerminator = rec.loader.endsWithTerminator();
+    }
+    fireLineChange(0, code.size());
+    doCodeSize(true);
+    if (journal != null) {
+      journal.reset(joinedText());
+    }
+    return rec.edits;
+  }
+
+  /** @return The charset of the file last loaded, or null if none was. */
+  public Charset getFileCharset() {
+    return fileCharset;
+  }
+
+  /** @return True if the file last loaded began with a byte order mark. */
+  public boolean fileHasBOM() {
+    return fileHasBOM;
+  }
+
+  /** @return The line terminator of the file last loaded; "\n" by default. */
+  public String getLineTerminator() {
+    return lineTerminator;
+  }
+
+  /**
+   * @return False if the file last loaded did not end its last line with a terminator, so
+   *         neither will a save; true by default.
+   */
+  public boolean fileEndsWithTerminator() {
+    return fileEndsWithTerminator;
   }
 
   private static boolean hasExtension(String pathName) {
@@ -701,28 +1420,364 @@ public class JoshText extends JComponent
   }
 
   /**
-   * Write the contents of this editor to a file.
+   * Write the contents of this editor to a file, in the charset, byte order mark, and line
+   * terminator of the file last loaded (UTF-8, without a mark, and \n if none was). The text
+   * is copied out on the EDT a slice at a time, between other events, as described in
+   * {@link SaveCopier}; encoding and writing it happen on a background thread, as described
+   * in {@link CodeSaver}, and a failure leaves any existing file untouched. A save requested
+   * while a file is still loading waits for the load to finish. This returns before the file
+   * is written; failures are reported in the status bar. To learn when the save ends, and
+   * how, use {@link #saveToFile(String, SaveListener)}.
    *
    * @param name
    *        The path and filename to which to write the file.
    */
   public void saveToFile(String name) {
+    saveToFile(name, null);
+  }
+
+  /**
+   * Write the contents of this editor to a file, as {@link #saveToFile(String)} does, and
+   * tell a listener on the EDT once the file is written, or once the save has failed or been
+   * given up.
+   *
+   * @param name
+   *        The path and filename to which to write the file.
+   * @param listener
+   *        The listener to tell how the save ends, or null.
+   */
+  public void saveToFile(String name, SaveListener listener) {
     if (!hasExtension(name)) {
       name += ".txt"; //$NON-NLS-1$
     }
-    try {
-      BufferedWriter bw = new BufferedWriter(new FileWriter(name));
+    save(new File(name), listener);
+  }
+
+  /** Told how a save started by {@link JoshText#saveToFile(String, SaveListener)} ends. */
+  public interface SaveListener extends EventListener {
+    /**
+     * Called on the EDT once the file is written in full.
+     *
+     * @param file
+     *        The file written.
+     */
+    void saved(File file);
+
+    /**
+     * Called on the EDT if the file could not be written, or the save was given up; any
+     * existing file is left as it was.
+     *
+     * @param file
+     *        The file which was not written.
+     * @param cause
+     *        Why it was not.
+     */
+    void saveFailed(File file, IOException cause);
+  }
+
+  /**
+   * Write the contents of this editor to a file in the background, or once the file loading
+   * has been read.
+   *
+   * @param f
+   *        The file to write.
+   * @param listener
+   *        The listener to tell how the save ends, or null.
+   */
+  private void save(File f, SaveListener listener) {
+    if (partialFile != null && partialFile.getAbsoluteFile().equals(f.getAbsoluteFile())) {
+      notSaved(f, listener, "only part of " + f.getName() + " was read"); //$NON-NLS-1$ //$NON-NLS-2$
+      return;
+    }
+    if (loader != null) {
+      if (saveAfterLoadListener != null) {
+        // The later save replaces this one; only whoever asked for it need be told.
+        saveAfterLoadListener.saveFailed(saveAfterLoad, new IOException(
+            "Replaced by a later save")); //$NON-NLS-1$
+      }
+      saveAfterLoad = f;
+      saveAfterLoadListener = listener;
+      return;
+    }
+    // The save under way may be to another file; it is written, in turn, before this one.
+    finishCopying();
+    final Charset cs = fileCharset == null? CodeLoader.UTF8 : fileCharset;
+    if (saver == null || !saver.getCharset().equals(cs)) {
+      saver = new CodeSaver(cs);
+    }
+    copier = new SaveCopier(saver, f, fileHasBOM, lineTerminator, fileEndsWithTerminator,
+        listener);
+    copier.timer.start();
+  }
+
+  /**
+   * Copies the text out for a save, a slice at a time, so that copying a large document
+   * does not hold up the EDT; the copy is then handed to a {@link SaveThread}. Edits made
+   * between slices are caught up with at the end: each line is looked up among those
+   * copied, and its copy is used only if the line still has the contents and revision it
+   * was copied with, as with the styles a marker caches. What is saved is thus the text as
+   * it stood when the last slice was copied.
+   */
+  class SaveCopier implements ActionListener {
+    /** The number of characters copied in each slice. */
+    private static final int SLICE = 1 << 20;
+    /** The number of lines by which a copied line may have moved and still be found. */
+    private static final int REACH = 64;
+
+    /** The saver with which to write. */
+    final CodeSaver sv;
+    /** The file to write. */
+    final File file;
+    /** True to begin the file with a byte order mark. */
+    final boolean bom;
+    /** The line terminator to write. */
+    final String terminator;
+    /** True to follow the last line with the terminator, too. */
+    final boolean terminateLast;
+    /** The listener to tell how the save ends, or null. */
+    final SaveListener listener;
+    /** Timer copying the next slice whenever the event queue is otherwise idle. */
+    final Timer timer = new Timer(0, this);
+    /** The lines copied, in the order copied. */
+    private Line[] lines;
+    /** The StringBuilder of each line when it was copied. */
+    private StringBuilder[] builders;
+    /** The revision of each line when it was copied. */
+    private int[] revisions;
+    /** The copy of each line. */
+    private String[] text;
+    /** The number of lines copied. */
+    private int count;
+    /** A buffer for reading lines out of the code. */
+    private final Line[] chunk = new Line[256];
+
+    /**
+     * @param sv
+     *        The saver with which to write.
+     * @param file
+     *        The file to write.
+     * @param bom
+     *        True to begin the file with a byte order mark.
+     * @param terminator
+     *        The line terminator to write.
+     * @param terminateLast
+     *        True to follow the last line with the terminator, too.
+     * @param listener
+     *        The listener to tell how the save ends, or null.
+     */
+    SaveCopier(CodeSaver sv, File file, boolean bom, String terminator, boolean terminateLast,
+        SaveListener listener) {
+      this.sv = sv;
+      this.file = file;
+      this.bom = bom;
+      this.terminator = terminator;
+      this.terminateLast = terminateLast;
+      this.listener = listener;
+      final int n = code.size();
+      lines = new Line[n];
+      builders = new StringBuilder[n];
+      revisions = new int[n];
+      text = new String[n];
+    }
+
+    /**
+     * Copy the next slice of lines, starting from the row following the last line copied.
+     *
+     * @return True if the end of the code has been reached.
+     */
+    boolean copySlice() {
+      final int n = code.size();
+      int row = count, chars = 0;
+      while (row < n && chars < SLICE) {
+        final int k = Math.min(chunk.length, n - row);
+        code.getLines(row, chunk, k);
+        if (count + k > lines.length) {
+          final int cap = Math.max(count + k, lines.length * 3 / 2);
+          lines = Arrays.copyOf(lines, cap);
+          builders = Arrays.copyOf(builders, cap);
+          revisions = Arrays.copyOf(revisions, cap);
+          text = Arrays.copyOf(text, cap);
+        }
+        for (int i = 0; i < k; i++) {
+          final Line line = chunk[i];
+          lines[count] = line;
+          builders[count] = line.sbuild;
+          revisions[count] = line.revision;
+          text[count++] = line.sbuild.toString();
+          chars += line.sbuild.length();
+        }
+        row += k;
+      }
+      Arrays.fill(chunk, null);
+      return row >= n;
+    }
+
+    /**
+     * Catch up with any edits made since copying began.
+     *
+     * @return The text of every line as it stands.
+     */
+    String[] finish() {
+      final int n = code.size();
+      final String[] out = new String[n];
+      int j = 0;
+      for (int start = 0; start < n; start += chunk.length) {
+        final int k = Math.min(chunk.length, n - start);
+        code.getLines(start, chunk, k);
+        for (int i = 0; i < k; i++) {
+          final Line line = chunk[i];
+          int m = j;
+          while (m < count && m < j + REACH && lines[m] != line) {
+            m++;
+          }
+          if (m < count && lines[m] == line) {
+            j = m + 1;
+            if (builders[m] == line.sbuild && revisions[m] == line.revision
+                && text[m].length() == line.sbuild.length()) {
+              out[start + i] = text[m];
+              continue;
+            }
+          }
+          out[start + i] = line.sbuild.toString();
+        }
+      }
+      Arrays.fill(chunk, null);
+      return out;
+    }
+
+    /** Copy a slice; once the last is copied, start writing. */
+    @Override
+    public void actionPerformed(ActionEvent e) {
+      if (copier != this) {
+        timer.stop();
+        return;
+      }
+      if (copySlice()) {
+        start();
+      }
+    }
+
+    /** Catch up with the edits since copying began, and start writing the copy. */
+    void start() {
+      timer.stop();
+      copier = null;
+      lastSave = new SaveThread(sv, file, finish(), bom, terminator, terminateLast,
+          listener, lastSave);
+      lastSave.start();
+    }
+  }
+
+  /** Writes a copy of the text to a file, reporting any failure back to the EDT. */
+  private class SaveThread extends Thread {
+    /** The saver with which to write. */
+    final CodeSaver sv;
+    /** The file to write. */
+    final File file;
+    /** The lines to write. */
+    final String[] lines;
+    /** True to begin the file with a byte order mark. */
+    final boolean bom;
+    /** The line terminator to write. */
+    final String terminator;
+    /** True to follow the last line with the terminator, too. */
+    final boolean terminateLast;
+    /** The listener to tell how the save ends, or null. */
+    final SaveListener listener;
+    /** The save started before this one, which must finish first; or null. */
+    final Thread after;
+    /** The journal to start over once the file is saved, or null. */
+    final EditJournal saveJournal;
+    /** The journal's mark when the text was copied out. */
+    final long mark;
 
+    /**
+     * @param sv
+     *        The saver with which to write.
+     * @param file
+     *        The file to write.
+     * @param lines
+     *        The lines to write.
+     * @param bom
+     *        True to begin the file with a byte order mark.
+     * @param terminator
+     *        The line terminator to write.
+     * @param terminateLast
+     *        True to follow the last line with the terminator, too.
+     * @param listener
+     *        The listener to tell how the save ends, or null.
+     * @param after
+     *        The save started before this one, which must finish first; or null.
+     */
+    SaveThread(CodeSaver sv, File file, String[] lines, boolean bom, String terminator,
+        boolean terminateLast, SaveListener listener, Thread after) {
+      super("JoshEdit file saver"); //$NON-NLS-1$
+      this.sv = sv;
+      this.file = file;
+      this.lines = lines;
+      this.bom = bom;
+      this.terminator = terminator;
+      this.terminateLast = terminateLast;
+      this.listener = listener;
+      this.after = after;
+      saveJournal = journal;
+      mark = journal == null? 0 : journal.mark();
+      setDaemon(false); // Let a save started just before exit finish.
+    }
+
+    @Override
+    public void run() {
+      boolean saved = false;
       try {
-        for (int i = 0; i < code.size(); i++) {
-          bw.write(code.getsb(i).toString() + "\n"); //$NON-NLS-1$
+        if (after != null) {
+          after.join();
         }
+        final Charset written = sv.save(file, lines, bom, terminator, terminateLast);
+        saved = true;
+        SwingUtilities.invokeLater(new Runnable() {
+          @Override
+          public void run() {
+            if (!written.equals(sv.getCharset())) {
+              // Later saves keep to the charset the file now has.
+              if (sv.getCharset().equals(fileCharset)) {
+                fileCharset = written;
+              }
+              infoMessages.add(file.getName() + " has characters " + sv.getCharset() //$NON-NLS-1$
+                  + " cannot hold; saved as " + written); //$NON-NLS-1$
+            }
+            if (listener != null) {
+              listener.saved(file);
+            }
+          }
+        });
+      } catch (InterruptedException e) {
+        e.printStackTrace();
+        failed(new InterruptedIOException("Save interrupted")); //$NON-NLS-1$
+      } catch (IOException e) {
+        e.printStackTrace();
+        failed(e);
       } finally {
-        bw.close();
+        if (saveJournal != null) {
+          saveJournal.saved(saved? file : null, mark);
+        }
       }
+    }
 
-    } catch (Exception e) {
-      e.printStackTrace();
+    /**
+     * Report, on the EDT, that the file could not be written.
+     *
+     * @param e
+     *        Why it could not.
+     */
+    private void failed(final IOException e) {
+      SwingUtilities.invokeLater(new Runnable() {
+        @Override
+        public void run() {
+          infoMessages.add("Could not save " + file.getName() + ": " + e); //$NON-NLS-1$ //$NON-NLS-2$
+          if (listener != null) {
+            listener.saveFailed(file, e);
+          }
+        }
+      });
     }
   }
 
@@ -739,12 +1794,28 @@ public class JoshText extends JComponent
   public void setTokenMarker(TokenMarker tm) {
     if (marker != null) {
       removeLineChangeListener(marker);
+      if (marker instanceof TokenMarker.Restyling) {
+        ((TokenMarker.Restyling) marker).setRestyleListener(null);
+      }
     }
     marker = tm;
     addLineChangeListener(marker);
+    if (marker instanceof TokenMarker.Restyling) {
+      ((TokenMarker.Restyling) marker).setRestyleListener(new TokenMarker.RestyleListener() {
+        @Override
+        public void linesRestyled(int first, int last) {
+          repaintRows(first, last);
+        }
+      });
+    }
     fireLineChange(0, code.size());
   }
 
+  /** @return The TokenMarker polled for character formatting, or null if there is none. */
+  public TokenMarker getTokenMarker() {
+    return marker;
+  }
+
   // ===============================================================================================
   // == Map action names to their implementations ==================================================
   // ===============================================================================================
@@ -903,6 +1974,125 @@ public class JoshText extends JComponent
     repaint();
   }
 
+  /**
+   * Replace every match of a search at or after the given position. The document is searched
+   * once, the new text of each run of lines holding matches is built once, and the runs are
+   * swapped in as one batched change, stored as a single undo step. The caret is moved only
+   * once, to the end of the last replacement.
+   *
+   * @param search
+   *        The search whose matches to replace.
+   * @param replacement
+   *        The text with which to replace each match; it may span lines.
+   * @param lineFrom
+   *        The line at which to begin searching.
+   * @param posFrom
+   *        The position in the line at which to begin searching.
+   * @return The number of matches replaced.
+   */
+  int replaceAll(CodeSearch search, String replacement, int lineFrom, int posFrom) {
+    ArrayList<FindResults> hits = new ArrayList<FindResults>();
+    search.findAll(code, lineFrom, posFrom, hits);
+    if (hits.isEmpty()) {
+      return 0;
+    }
+    final String[] rep = replacement.split("(\r?\n|\r)", -1); //$NON-NLS-1$
+    final int repRows = rep.length - 1;
+    final int firstRow = hits.get(0).line;
+    UndoPatch up = new UndoPatch(firstRow);
+
+    // Build the new text of each run of lines joined by matches, before changing anything.
+    ArrayList<ReplacedRun> runs = new ArrayList<ReplacedRun>();
+    int shift = 0, crow = 0, ccol = 0;
+    for (int h = 0; h < hits.size();) {
+      FindResults hit = hits.get(h);
+      ReplacedRun run = new ReplacedRun(hit.line);
+      StringBuilder cur = new StringBuilder().append(code.getsb(hit.line), 0, hit.pos);
+      for (;;) {
+        cur.append(rep[0]);
+        for (int k = 1; k <= repRows; k++) {
+          run.lines.add(new Line(cur));
+          cur = new StringBuilder(rep[k]);
+        }
+        crow = run.start + shift + run.lines.size();
+        ccol = cur.length();
+        StringBuilder end = code.getsb(hit.endLine);
+        if (++h < hits.size() && hits.get(h).line == hit.endLine) {
+          cur.append(end, hit.endPos, hits.get(h).pos);
+          hit = hits.get(h);
+          continue;
+        }
+        cur.append(end, hit.endPos, end.length());
+        run.lines.add(new Line(cur));
+        run.end = hit.endLine;
+        break;
+      }
+      UndoDelta d =
+          UndoDelta.diff(run.start + shift, joinRows(run.start, run.end), join(run.lines
+              .toArray(new Line[run.lines.size()])));
+      if (d != null) {
+        up.deltas.add(d);
+      }
+      shift += run.lines.size() - (run.end - run.start + 1);
+      runs.add(run);
+    }
+
+    // Swap the runs in from the bottom up, so the rows of those above do not move.
+    code.beginBatch();
+    try {
+      for (int r = runs.size() - 1; r >= 0; r--) {
+        ReplacedRun run = runs.get(r);
+        final int oldRows = run.end - run.start + 1, newRows = run.lines.size();
+        for (int i = 0; i < Math.min(oldRows, newRows); i++) {
+          StringBuilder sb = code.getsb(run.start + i);
+          sb.setLength(0);
+          sb.append(run.lines.get(i).sbuild);
+        }
+        for (int i = oldRows - 1; i >= newRows; i--) {
+          code.remove(run.start + i);
+        }
+        if (newRows > oldRows) {
+          code.addAll(run.start + oldRows, run.lines.subList(oldRows, newRows));
+        }
+      }
+    } finally {
+      code.endBatch();
+    }
+
+    final int lastRow = runs.get(runs.size() - 1).end;
+    up.oldRows = lastRow - firstRow + 1;
+    up.newRows = up.oldRows + shift;
+    fireLineChange(firstRow, lastRow + shift);
+    caret.row = sel.row = crow;
+    caret.col = sel.col = ccol;
+    caret.colw = line_wid_at(caret.row, caret.col);
+    up.cafter.grab();
+    undoCanMerge = false;
+    storeUndo(up, OPT.REPLACE);
+    doCodeSize(true);
+    caret.positionChanged();
+    repaint();
+    return hits.size();
+  }
+
+  /** A run of lines being rewritten by {@link JoshText#replaceAll}, with its new text. */
+  private static final class ReplacedRun {
+    /** The first row of the run. */
+    final int start;
+    /** The last row of the run, before it is rewritten. */
+    int end;
+    /** The new text of the run. */
+    final ArrayList<Line> lines = new ArrayList<Line>();
+
+    /**
+     * @param start
+     *        The first row of the run.
+     */
+    ReplacedRun(int start) {
+      this.start = start;
+    }
+  }
+
   /** Display the find dialog. */
   public void ShowFind() {
     findDialog.present(this);
@@ -955,6 +2145,7 @@ public class JoshText extends JComponent
       graphics2D.translate(lineNumPanel.getLineNumberWidth(lastLines + lineCount),0);
     }
 
+    prepareStyles(Math.min(lastLines + pageLines, lineCount) - 1);
     for (int lineNum = 0; lineNum < pageLines && lineNum + lastLines < lineCount; lineNum++) {
       drawLine(g, lineNum + lastLines, insetY + lineNum * lineHeight);
     }
@@ -1141,8 +2332,8 @@ public class JoshText extends JComponent
   }
 
 
-  /** The global find dialog. */
-  FindDialog findDialog = FindDialog.getInstance();
+  /** The global find dialog; there is none in a headless environment. */
+  FindDialog findDialog = GraphicsEnvironment.isHeadless()? null : FindDialog.getInstance();
 
   /**
    * Adds a unit of indentation to the beginning of a given row.
@@ -1226,6 +2417,10 @@ public class JoshText extends JComponent
   public void addNotify() {
     super.addNotify();
     getParent().addComponentListener(this);
+    if (getParent() instanceof JViewport) {
+      // Scroll by copying what stays visible, so we only paint the rows scrolled into view.
+      ((JViewport) getParent()).setScrollMode(JViewport.BLIT_SCROLL_MODE);
+    }
   }
 
   /**
@@ -1309,7 +2504,64 @@ public class JoshText extends JComponent
     setMinimumSize(new Dimension(w, h));
     setMaximumSize(new Dimension(Integer.MAX_VALUE, Integer.MAX_VALUE));
     fireResize();
-    repaint();
+    repaintDirty();
+  }
+
+  /**
+   * Mark rows as needing to be repainted at the next {@link #repaintDirty()}.
+   *
+   * @param first
+   *        The first row to repaint.
+   * @param last
+   *        The last row to repaint; Integer.MAX_VALUE for every row to the bottom.
+   */
+  void markDirty(int first, int last) {
+    if (last < first) {
+      return;
+    }
+    if (dirtyFirst == -1) {
+      dirtyFirst = first;
+      dirtyLast = last;
+    } else {
+      dirtyFirst = Math.min(dirtyFirst, first);
+      dirtyLast = Math.max(dirtyLast, last);
+    }
+  }
+
+  /**
+   * Repaint the rows marked dirty since the last call, along with the rows covered by the
+   * selection now and at the last call, rather than the whole component. Typing a character
+   * thus repaints one row, however large the editor is.
+   */
+  void repaintDirty() {
+    final int selFirst = Math.min(sel.row, caret.row), selLast = Math.max(sel.row, caret.row);
+    markDirty(paintedSelFirst, paintedSelLast);
+    markDirty(selFirst, selLast);
+    paintedSelFirst = selFirst;
+    paintedSelLast = selLast;
+    repaintRows(dirtyFirst, dirtyLast);
+    dirtyFirst = -1;
+  }
+
+  /**
+   * Repaint a range of rows.
+   *
+   * @param first
+   *        The first row to repaint.
+   * @param last
+   *        The last row to repaint; Integer.MAX_VALUE for every row to the bottom.
+   */
+  void repaintRows(int first, int last) {
+    if (first < 0 || last < first) {
+      return;
+    }
+    final int top = getInsets().top;
+    long y = top + (long) first * lineHeight;
+    long h = ((long) last - first + 1) * lineHeight + lineLeading;
+    if (y >= getHeight()) {
+      return;
+    }
+    repaint(0, (int) y, getWidth(), (int) Math.min(h, getHeight() - y));
   }
 
   /**
@@ -1319,12 +2571,7 @@ public class JoshText extends JComponent
    *        Whether or not to resize the window to these new dimensions.
    */
   void doCodeSize(boolean rs) {
-    maxRowSize = 0;
-    for (int i = 0; i < code.size(); i++) {
-      if (code.getsb(i).length() > maxRowSize) {
-        maxRowSize = code.getsb(i).length();
-      }
-    }
+    maxRowSize = code.maxLength();
     if (rs) {
       fitToCode();
     }
@@ -1440,19 +2687,26 @@ public class JoshText extends JComponent
     /** True if the autoscroll is active, false otherwise. */
     private boolean running = false;
 
+    /** The timer driving the scroll, on the event dispatch thread, while we scroll. */
+    private final Timer timer;
+
     /** Default constructor. Creates a timer. */
     MouseAutoScroll() {
-      new Timer().scheduleAtFixedRate(doMouseAutoScroll, 100, 100);
+      timer = new Timer(100, doMouseAutoScroll);
     }
 
     /** Start the scroll mechanism. */
     void start() {
       running = true;
+      if (!timer.isRunning()) {
+        timer.start();
+      }
     }
 
     /** Stop the scroll mechanism. */
     void stop() {
       running = false;
+      timer.stop();
     }
 
     /**
@@ -1464,10 +2718,10 @@ public class JoshText extends JComponent
       return running;
     }
 
-    /** Our timer task callback */
-    TimerTask doMouseAutoScroll = new TimerTask() {
+    /** Our timer callback */
+    ActionListener doMouseAutoScroll = new ActionListener() {
       @Override
-      public void run() {
+      public void actionPerformed(ActionEvent e) {
         if (!running) {
           return;
         }
@@ -1481,9 +2735,8 @@ public class JoshText extends JComponent
 
         x = x > maxx ? maxx : x;
         y = y > maxy ? maxy : y;
+        // The viewport blits what stays visible, and has us paint only what scrolled in.
         p.setViewPosition(new Point(x < 0 ? 0 : x, y < 0 ? 0 : y));
-        // doShowCaret();
-        updateUI();
       }
     };
   }
@@ -1491,6 +2744,15 @@ public class JoshText extends JComponent
   /** Our local auto scroll mechanism. */
   private final MouseAutoScroll mas = new MouseAutoScroll();
 
+  /** The first row which needs repainting, or -1 if none do. */
+  private int dirtyFirst = -1;
+  /** The last row which needs repainting. */
+  private int dirtyLast;
+  /** The first row covered by the selection and caret when last repainted. */
+  private int paintedSelFirst;
+  /** The last row covered by the selection and caret when last repainted. */
+  private int paintedSelLast;
+
   /**
    * Get the width of a particular line up to a given position.
    *
@@ -1501,7 +2763,7 @@ public class JoshText extends JComponent
    * @return The width of the specified portion of the line with the given index.
    */
   public int line_wid_at(int row, int pos) {
-    return metrics.stringWidth(code.getsb(row).toString(), pos);
+    return metrics.lineWidth(row, pos);
   }
 
   /**
@@ -1515,22 +2777,22 @@ public class JoshText extends JComponent
    * @return Returns the given width, translated to a character index.
    */
   public int line_offset_from(int line, int wid) {
-    int ret;
-    String l = code.getsb(line).toString();
-    int w = 0, lw = 0;
-    for (ret = 0; ret < l.length() && w < wid; ret++) {
-      lw = w;
-      if (l.charAt(ret) == '\t') {
-        final int wf = monoAdvance * Settings.indentSizeInSpaces;
-        w = ((w + wf) / wf) * wf;
+    TabIndex ti = TabIndex.of(code.get(line));
+    // Find the first position whose width reaches the given one; widths grow along the line.
+    int ret = 0, hi = ti.length;
+    while (ret < hi) {
+      final int mid = (ret + hi) >>> 1;
+      if (ti.column(mid) * monoAdvance < wid) {
+        ret = mid + 1;
       } else {
-        w += monoAdvance;
+        hi = mid;
       }
     }
+    int w = ti.column(ret) * monoAdvance, lw = ret > 0? ti.column(ret - 1) * monoAdvance : 0;
     if (Math.abs(lw - wid) < Math.abs(w - wid)) {
-      return Math.min(l.length(), ret - 1);
+      return ret - 1;
     }
-    return Math.min(l.length(), ret);
+    return ret;
   }
 
   /**
@@ -1544,19 +2806,7 @@ public class JoshText extends JComponent
    * @return The column number of the nth character on the line.
    */
   public int index_to_column(int line, int n) {
-    int col = 0;
-    StringBuilder l = code.getsb(line);
-    n = Math.min(n, l.length());
-    for (int i = 0; i < n; i++) {
-      if (l.charAt(i) == '\t') {
-        col += Settings.indentSizeInSpaces;
-        col /= Settings.indentSizeInSpaces;
-        col *= Settings.indentSizeInSpaces;
-      } else {
-        ++col;
-      }
-    }
-    return col;
+    return TabIndex.of(code.get(line)).column(n);
   }
 
   /**
@@ -1573,18 +2823,7 @@ public class JoshText extends JComponent
    *         given column.
    */
   public int column_to_index(int line, int col) {
-    int ind = 0;
-    StringBuilder l = code.getsb(line);
-    for (int i = 0; i < col && ind < l.length(); ind++) {
-      if (l.charAt(ind) == '\t') {
-        i += Settings.indentSizeInSpaces;
-        i /= Settings.indentSizeInSpaces;
-        i *= Settings.indentSizeInSpaces;
-      } else {
-        ++i;
-      }
-    }
-    return ind;
+    return TabIndex.of(code.get(line)).index(col);
   }
 
   /**
@@ -1604,20 +2843,7 @@ public class JoshText extends JComponent
    *         given column.
    */
   public int column_to_index_unsafe(int line, int col) {
-    int ind = 0;
-    StringBuilder l = code.getsb(line);
-    int i;
-    for (i = 0; i < col && ind < l.length(); ind++) {
-      if (l.charAt(ind) == '\t') {
-        i += Settings.indentSizeInSpaces;
-        i /= Settings.indentSizeInSpaces;
-        i *= Settings.indentSizeInSpaces;
-      } else {
-        ++i;
-      }
-    }
-    ind += col - i;
-    return ind;
+    return TabIndex.of(code.get(line)).indexUnsafe(col);
   }
 
   /**
@@ -1629,22 +2855,7 @@ public class JoshText extends JComponent
    *         index lies within a tab character.
    */
   public boolean column_in_tab(int line, int col) {
-    int ind = 0;
-    StringBuilder l = code.getsb(line);
-    int i;
-    for (i = 0; i < col && ind < l.length(); ind++) {
-      if (l.charAt(ind) == '\t') {
-        i += Settings.indentSizeInSpaces;
-        i /= Settings.indentSizeInSpaces;
-        i *= Settings.indentSizeInSpaces;
-        if (i > col) {
-          return true;
-        }
-      } else {
-        i++;
-      }
-    }
-    return false;
+    return TabIndex.of(code.get(line)).inTab(col);
   }
 
   /**
@@ -1712,11 +2923,167 @@ public class JoshText extends JComponent
     return new Dimension(monoAdvance, lineHeight);
   }
 
+  /** Reused buffer holding the characters of the line being drawn. */
+  private char[] lineChars = new char[256];
+  /** Reused rectangle receiving the clip bounds of the line being drawn. */
+  private final Rectangle lineClip = new Rectangle();
+  /** Reused runs receiving the styles of the line being drawn. */
+  private final TokenRuns lineRuns = new TokenRuns();
+  /** The rendering context for which {@link #gridFonts} was computed. */
+  private FontRenderContext gridContext;
+  /** Whether each font we have drawn with advances exactly monoAdvance per 'M'. */
+  private final HashMap<Font, Boolean> gridFonts = new HashMap<Font, Boolean>();
+  /** Recently drawn runs of characters, as laid-out glyphs; see Settings.cacheGlyphs. */
+  private final GlyphCache glyphCache = new GlyphCache();
+
+  /**
+   * Identifies a run of characters drawn from a line, for caching its glyphs. A run is
+   * only reused while the line is at the same revision and length.
+   */
+  private static final class GlyphKey {
+    /** The line the run was drawn from. */
+    final Line line;
+    /** The revision of the line when drawn. */
+    final int revision;
+    /** The length of the line when drawn. */
+    final int length;
+    /** The index of the first character of the run. */
+    final int start;
+    /** The index following the last character of the run. */
+    final int end;
+    /** The font the run was drawn in. */
+    final Font font;
+
+    /**
+     * @param line
+     *        The line the run is drawn from.
+     * @param start
+     *        The index of the first character of the run.
+     * @param end
+     *        The index following the last character of the run.
+     * @param font
+     *        The font the run is drawn in.
+     */
+    GlyphKey(Line line, int start, int end, Font font) {
+      this.line = line;
+      revision = line.revision;
+      length = line.sbuild.length();
+      this.start = start;
+      this.end = end;
+      this.font = font;
+    }
+
+    @Override
+    public int hashCode() {
+      return ((System.identityHashCode(line) * 31 + revision) * 31 + start) * 31 + end;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof GlyphKey)) {
+        return false;
+      }
+      GlyphKey k = (GlyphKey) o;
+      return k.line == line && k.revision == revision && k.length == length
+          && k.start == start && k.end == end && k.font.equals(font);
+    }
+  }
+
+  /** A least-recently-used cache of laid-out runs of characters. */
+  private static final class GlyphCache extends LinkedHashMap<GlyphKey, GlyphVector> {
+    /** Shut up, ECJ. */
+    private static final long serialVersionUID = 1L;
+    /** The number of runs we keep. */
+    static final int CAPACITY = 4096;
+
+    /** Construct an empty cache, ordered by access. */
+    GlyphCache() {
+      super(256, .75f, true);
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<GlyphKey, GlyphVector> eldest) {
+      return size() > CAPACITY;
+    }
+  }
+
+  /**
+   * Check whether a font lays characters out on our character grid, so that runs of them
+   * can be drawn with one call instead of one call per character.
+   *
+   * @param g
+   *        The graphics object being drawn to, with the font selected.
+   * @return True if the selected font advances exactly monoAdvance per character.
+   */
+  private boolean onGrid(Graphics g) {
+    FontRenderContext frc = ((Graphics2D) g).getFontRenderContext();
+    if (!frc.equals(gridContext)) {
+      gridContext = frc;
+      gridFonts.clear();
+      glyphCache.clear();
+    }
+    Font f = g.getFont();
+    Boolean ok = gridFonts.get(f);
+    if (ok == null) {
+      ok = f.getStringBounds("MMMMMMMMMMMMMMMM", frc).getWidth() == 16 * monoAdvance; //$NON-NLS-1$
+      gridFonts.put(f, ok);
+    }
+    return ok;
+  }
+
   /**
-   * Draw the given characters with full highlighting.
+   * Draw a run of characters which all lie on our character grid.
    *
    * @param g
    *        The graphics object to render to.
+   * @param line
+   *        The line the characters are from.
+   * @param a
+   *        The characters of the line.
+   * @param sp
+   *        The index of the first character of the run.
+   * @param ep
+   *        The index following the last character of the run.
+   * @param xx
+   *        The x coordinate of the first character.
+   * @param y
+   *        The y coordinate of the baseline.
+   */
+  private void drawRun(Graphics g, Line line, char[] a, int sp, int ep, int xx, int y) {
+    if (sp >= ep || xx >= lineClip.x + lineClip.width
+        || xx + (ep - sp) * monoAdvance <= lineClip.x) {
+      return;
+    }
+    // Runs lying partly outside the clip are trimmed rather than cached.
+    final int clipRight = lineClip.x + lineClip.width;
+    if (Settings.cacheGlyphs && xx >= lineClip.x && xx + (ep - sp) * monoAdvance <= clipRight) {
+      GlyphKey k = new GlyphKey(line, sp, ep, g.getFont());
+      GlyphVector gv = glyphCache.get(k);
+      if (gv == null) {
+        gv = g.getFont().createGlyphVector(gridContext, Arrays.copyOfRange(a, sp, ep));
+        glyphCache.put(k, gv);
+      }
+      ((Graphics2D) g).drawGlyphVector(gv, xx, y);
+      return;
+    }
+    // Skip the parts of long runs lying outside the clip.
+    if (xx < lineClip.x) {
+      int skip = (lineClip.x - xx) / monoAdvance;
+      sp += skip;
+      xx += skip * monoAdvance;
+    }
+    ep = Math.min(ep, sp + (clipRight - xx) / monoAdvance + 1);
+    g.drawChars(a, sp, ep - sp, xx, y);
+  }
+
+  /**
+   * Draw the given characters with full highlighting. Characters are drawn in runs,
+   * broken at tabs and at characters which are wider or narrower than our grid.
+   *
+   * @param g
+   *        The graphics object to render to.
+   * @param line
+   *        The line the characters are from.
    * @param a
    *        The characters to render.
    * @param sp
@@ -1729,13 +3096,23 @@ public class JoshText extends JComponent
    *        The y coordinate at which to start render
    * @return The new x coordinate from which to render.
    */
-  private int drawChars(Graphics g, char[] a, int sp, int ep, int xx, int ty) {
-    Color c = g.getColor();
+  private int drawChars(Graphics g, Line line, char[] a, int sp, int ep, int xx, int ty) {
+    final int y = getInsets().top + ty;
+    final FontMetrics fm = g.getFontMetrics();
+    final boolean grid = onGrid(g);
+    int run = sp, runX = xx;
     for (int i = sp; i < ep; i++) {
-      if (a[i] == '\t') {
+      final char ch = a[i];
+      if (ch != '\t' && grid && fm.charWidth(ch) == monoAdvance) {
+        xx += monoAdvance;
+        continue;
+      }
+      drawRun(g, line, a, run, i, runX, y);
+      if (ch == '\t') {
         final int incby = Settings.indentSizeInSpaces * monoAdvance, xxp = xx;
         xx = ((xx + incby) / incby) * incby;
         if (Settings.renderTabs) {
+          Color c = g.getColor();
           g.setColor(whitespaceColor);
           g.drawLine(xxp + 2, ty - (lineHeight / 3), xx - 2, ty - (lineHeight / 3));
           g.drawLine(xxp + 2, ty - (lineHeight / 3) - (lineHeight / 5), xxp + 2, ty
@@ -1744,12 +3121,14 @@ public class JoshText extends JComponent
               - (lineHeight / 3) + (lineHeight / 5));
           g.setColor(c);
         }
-        continue;
+      } else {
+        g.drawChars(a, i, 1, xx, y);
+        xx += monoAdvance;
       }
-      g.drawChars(a, i, 1, xx, getInsets().top + ty);
-      xx += monoAdvance;
-      g.setColor(c);
+      run = i + 1;
+      runX = xx;
     }
+    drawRun(g, line, a, run, ep, runX, y);
     return xx;
   }
 
@@ -1776,24 +3155,41 @@ public class JoshText extends JComponent
     g.setFont(drawingFont);
     int fontFlags = 0;
 
-    StringBuilder line = code.getsb(lineNum);
+    lineClip.setBounds(0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    g.getClipBounds(lineClip);
+    final int clipRight = lineClip.x + lineClip.width;
+
+    Line jline = code.get(lineNum);
+    StringBuilder line = jline.sbuild;
     int xx = 1 + getInsets().left;
-    char[] a = line.toString().toCharArray();
+    final int len = line.length();
+    if (lineChars.length < len) {
+      lineChars = new char[Math.max(len, lineChars.length * 2)];
+    }
+    char[] a = lineChars;
+    line.getChars(0, len, a, 0);
     Color c = g.getColor();
 
     if (marker == null) {
-      drawChars(g, a, 0, a.length, xx, ty);
+      drawChars(g, jline, a, 0, len, xx, ty);
     } else {
-      ArrayList<TokenMarkerInfo> tmall = marker.getStyles(code.get(lineNum));
+      final TokenRuns runs = lineRuns;
+      runs.load(marker, jline);
+      final StyleTable styles = runs.getStyleTable();
       int pos = 0;
-      for (TokenMarkerInfo tm : tmall) {
+      for (int r = 0; r < runs.size(); r++) {
+        if (xx >= clipRight) {
+          break;
+        }
+        final int start = runs.start(r), end = runs.end(r), style = runs.style(r);
         // Start by printing normal characters until we reach
         // styleBlock.startPos
-        xx = drawChars(g, a, pos, tm.startPos, xx, ty);
+        xx = drawChars(g, jline, a, pos, start, xx, ty);
         // Print the remaining characters in the styleBlock range
-        g.setColor(tm.color != null? tm.color : c);
+        Color sc = styles.color(style);
+        g.setColor(sc != null? sc : c);
 
-        fontFlags = tm.fontStyle;
+        fontFlags = styles.fontStyle(style);
         if (specialFonts.containsKey(fontFlags)) {
           drawingFont = specialFonts.get(fontFlags);
         } else {
@@ -1802,8 +3198,8 @@ public class JoshText extends JComponent
         }
         g.setFont(drawingFont);
 
-        xx = drawChars(g, a, tm.startPos, tm.endPos, xx, ty);
-        pos = tm.endPos;
+        xx = drawChars(g, jline, a, start, end, xx, ty);
+        pos = end;
         g.setFont(baseFont);
         g.setColor(c);
       }
@@ -1828,13 +3224,25 @@ public class JoshText extends JComponent
     g.setColor(getBackground());
     g.fillRect(clip.x, clip.y, clip.width, clip.height);
 
+    // Highlighters need only cover the rows in the clip.
+    final int firstRow = Math.max(clip.y / lineHeight, 0);
+    final int endRow = Math.min((clip.y + clip.height - 1) / lineHeight + 1, code.size());
+    final Insets insets = getInsets();
     for (Highlighter a : highlighters) {
-      a.paint(g, getInsets(), metrics, 0, code.size());
+      a.paint(g, insets, metrics, firstRow, endRow);
+    }
+
+    // Report the viewport first, so the marker knows where it may stop marking.
+    if (marker instanceof TokenMarker.LookAhead) {
+      Rectangle vr = getVisibleRect();
+      ((TokenMarker.LookAhead) marker).viewportChanged(code, vr.y / lineHeight,
+          Math.min((vr.y + vr.height) / lineHeight, code.size() - 1));
     }
 
     // Draw each line
     final int insetY = lineLeading + lineAscent;
     int lineNum = clip.y / lineHeight;
+    prepareStyles(Math.min((clip.y + clip.height) / lineHeight + 1, code.size() - 1));
 
     for (int ty = lineNum * lineHeight + insetY; ty < clip.y + clip.height + lineHeight
         && lineNum < code.size(); ty += lineHeight) {
@@ -2181,7 +3589,7 @@ public class JoshText extends JComponent
                 } else if (caret.row + 1 < code.size()) {
                   StringBuilder s1 = code.getsb(caret.row);
                   StringBuilder s2 = code.getsb(caret.row + 1);
-                  code.remove(caret.row + 1);
+                  up.suffix_row(code.remove(caret.row + 1));
                   s1.append(s2);
                 } else {
                   break;
@@ -2280,7 +3688,7 @@ public class JoshText extends JComponent
         } else {
           UndoPatch up2 = new UndoPatch();
           sel.insert(e.getKeyChar());
-          up2.realize(caret.row);
+          up2.realize(Math.max(caret.row, sel.row)); // Every row of a rectangular selection.
           storeUndo(up2, e.getKeyChar() == ' '? OPT.SPACE : OPT.TYPED);
         }
         break;
@@ -2563,6 +3971,16 @@ public class JoshText extends JComponent
    *        The last line changed.
    */
   protected void fireLineChange(int start, int end) {
+    for (int i = Math.max(start, 0); i <= end && i < code.size(); i++) {
+      code.get(i).revision++;
+    }
+    code.remeasure(start, end);
+    markDirty(Math.max(start, 0), end);
+    // A marker which does not report the lines it restyles keeps its state on the lines; if
+    // the state entering the line after the change changes, so may every line below it.
+    final Line next = marker instanceof TokenMarker.Restyling || end < 0
+        || end + 1 >= code.size()? null : code.get(end + 1);
+    final long nextAttr = next == null? 0 : next.attr;
     // Guaranteed to return a non-null array
     Object[] listeners = listenerList.getListenerList();
     // Process the listeners last to first, notifying
@@ -2575,6 +3993,9 @@ public class JoshText extends JComponent
         ((LineChangeListener) listeners[i + 1]).linesChanged(code, start, end);
       }
     }
+    if (next != null && next.attr != nextAttr) {
+      markDirty(end + 1, Integer.MAX_VALUE);
+    }
   }
 
   // ===============================================================================================
@@ -2900,12 +4321,34 @@ public class JoshText extends JComponent
    *         A highlighter to mark pairs of matching brackets.
    */
   class BracketHighlighter implements Highlighter, CaretListener {
+    /** The number of lines a search may read before it yields to the event queue. */
+    private static final int SEARCH_SLICE = 2048;
     /** The state of our match. */
     MatchState matching;
     /** The line on which the match was found. */
     int matchLine;
     /** The column at which the match was found. */
     int matchPos;
+    /** The index of the brackets of the code, kept current as lines change. */
+    final BracketIndex brackets = new BracketIndex(JoshText.this);
+    /** The search still looking for a match, or null if there is none. */
+    BracketIndex.Search search;
+    /** The line of the bracket being matched by the search. */
+    int searchRow;
+    /** The position of the bracket being matched by the search. */
+    int searchPos;
+    /** Timer continuing a search which did not finish when the caret moved. */
+    final Timer searchTimer = new Timer(0, new ActionListener() {
+      @Override
+      public void actionPerformed(ActionEvent e) {
+        continueSearch();
+      }
+    });
+
+    /** Index the brackets of our code as it changes. */
+    BracketHighlighter() {
+      addLineChangeListener(brackets);
+    }
 
     /** Paint a box around each bracket in the match. */
     @Override
@@ -2914,7 +4357,7 @@ public class JoshText extends JComponent
 
       // TODO: Make sure we haven't deleted a selection of code that fires a bracket repaint on a
       // line that was deleted. Current check suffices to fix the exception. - Robert
-      if (matchLine < line_end) {
+      if (matchLine >= line_start && matchLine < line_end) {
         if (matching == MatchState.MATCHING) {
           g.setColor(matchingCharColor);
           g.drawRect(line_wid_at(matchLine, matchPos), matchLine * lineHeight, monoAdvance,
@@ -2929,272 +4372,85 @@ public class JoshText extends JComponent
     }
 
     /**
-     * @param m
-     *        The current BracketMatch instance.
-     * @param x
-     *        The column of the most recent match candidate.
-     * @param y
-     *        The row of the most recent match candidate.
-     * @return True if the match candidate is indeed the match to the original bracket.
-     */
-    private boolean matchFound(BracketMatch m, int x, int y) {
-      if (--m.count <= 0) {
-        matchLine = y;
-        matchPos = x;
-        matching = MatchState.MATCHING;
-        return true;
-      }
-      return false;
-    }
-
-    /**
-     * @author Josh Ventura
-     *         Class to match various brackets; parentheses, square brackets, braces.
-     */
-    class BracketMatch {
-      /** The character of the bracket to be matched. */
-      char match;
-      /** The character of the matching bracket; the opposite-side bracket. */
-      char opposite;
-      /** The number of nested brackets during this matching process. */
-      short count;
-
-      /**
-       * @param m
-       *        The character of the bracket to be matched.
-       * @param o
-       *        The character of the matching bracket; the opposite-side bracket.
-       * @param c
-       *        The number of nested brackets during this matching process.
-       */
-      public BracketMatch(char m, char o, short c) {
-        match = m;
-        opposite = o;
-        count = c;
-      }
-    }
-
-    /**
+     * Start a search for the match of a bracket, and run it as far as one slice allows.
+     *
      * @param row
      *        The row of the bracket to match.
      * @param col
-     *        The column of the bracket to match.
-     * @param match
-     *        The BracketMatch instance for this match attempt.
+     *        The position of the bracket in its row.
+     * @param kind
+     *        The kind of the bracket; its index in the openers and closers.
+     * @param forward
+     *        True if the bracket opens, false if it closes.
      */
-    private void findMatchForward(int row, int col, BracketMatch match) {
-      int y = row;
-      int blockType = 0;
-      StringBuilder sb = code.getsb(y);
-
-      // Figure out what kind of block we're in, if any.
-      ArrayList<TokenMarkerInfo> tmall = marker.getStyles(code.get(y));
-
-      int offset;
-      for (offset = 0; offset < tmall.size(); offset++) {
-        TokenMarkerInfo tm = tmall.get(offset);
-        if (col < tm.startPos) {
-          break; // The blocks have skipped us.
-        }
-        if (col >= tm.startPos && col < tm.endPos) {
-          blockType = tm.blockHash;
-          break;
-        }
-      }
-      if (subFindMatchForward(match, sb, tmall, offset, col, blockType, y)) {
-        return;
-      }
-
-      for (y++; y < code.size(); y++) {
-        tmall = marker.getStyles(code.get(y));
-        if (subFindMatchForward(match, code.getsb(y), tmall, 0, 0, blockType, y)) {
-          return;
-        }
+    private void search(int row, int col, int kind, boolean forward) {
+      search = brackets.new Search(row, col, kind, forward);
+      searchRow = row;
+      searchPos = col;
+      if (search.run(SEARCH_SLICE)) {
+        finishSearch();
+      } else {
+        searchTimer.start();
       }
     }
 
-    /**
-     * @param match
-     *        The BracketMatch class representing this search.
-     * @param sb
-     *        The StringBuilder of the line to search.The position from which to continue searching.
-     * @param tmall
-     *        All marker tokens for this line.
-     * @param offset
-     *        The marker token index from which to continue searching.
-     * @param spos
-     *        The position from which to continue searching.
-     * @param blockType
-     *        The type of block in which we are interested.
-     * @param y
-     *        Our row number.
-     * @return True if the match was found in this line, false otherwise.
-     *         Info about the match will be contained in the match parameter.
-     */
-    private boolean subFindMatchForward(BracketMatch match, StringBuilder sb,
-        ArrayList<TokenMarkerInfo> tmall, int offset, int spos, int blockType, int y) {
-      int pos = spos;
-      for (int i = offset; i < tmall.size(); i++) {
-        TokenMarkerInfo tm = tmall.get(i);
-        if (blockType == 0) {
-          for (; pos < tm.startPos; pos++) {
-            // Check outside this block's range
-            if (sb.charAt(pos) == match.match) {
-              if (matchFound(match, pos, y)) {
-                return true;
-              }
-            } else if (sb.charAt(pos) == match.opposite) {
-              match.count++;
-            }
-          }
-        }
-        if (blockType == tmall.get(i).blockHash) {
-          // same type
-          for (pos = Math.max(spos, tm.startPos); pos < tm.endPos; pos++) {
-            // Check inside it
-            if (sb.charAt(pos) == match.match) {
-              if (matchFound(match, pos, y)) {
-                return true;
-              }
-            } else if (sb.charAt(pos) == match.opposite) {
-              match.count++;
-            }
-          }
-        }
-        pos = tm.endPos;
+    /** Take the result of the finished search as our match. */
+    private void finishSearch() {
+      if (search.matchRow >= 0) {
+        matching = MatchState.MATCHING;
+        matchLine = search.matchRow;
+        matchPos = search.matchPos;
+      } else {
+        matching = MatchState.NO_MATCH;
+        matchLine = searchRow;
+        matchPos = searchPos;
       }
-      return false;
+      search = null;
     }
 
-    /**
-     * @param row
-     *        The row of the bracket to match.
-     * @param col
-     *        The column of the bracket to match.
-     * @param match
-     *        The BracketMatch instance for this match attempt.
-     */
-    private void findMatchBackward(int row, int col, BracketMatch match) {
-      int y = row;
-      int blockType = 0;
-      StringBuilder sb = code.getsb(y);
-
-      // Figure out what kind of block we're in, if any.
-      ArrayList<TokenMarkerInfo> tmall = marker.getStyles(code.get(y));
-
-      int offset;
-      for (offset = 0; offset < tmall.size(); offset++) {
-        TokenMarkerInfo tm = tmall.get(offset);
-        if (col < tm.startPos) {
-          break; // The blocks have skipped us.
-        }
-        if (col >= tm.startPos && col < tm.endPos) {
-          blockType = tm.blockHash;
-          break;
-        }
-      }
-      if (subFindMatchBackward(match, sb, tmall, offset, caret.col, blockType, y)) {
+    /** Continue the search left unfinished, one slice per tick of the search timer. */
+    void continueSearch() {
+      if (search == null || search.isStale()) {
+        search = null;
+        searchTimer.stop();
         return;
       }
-
-      for (y--; y >= 0; y--) {
-        tmall = marker.getStyles(code.get(y));
-        if (subFindMatchBackward(match, code.getsb(y), tmall, tmall.size() - 1,
-            code.getsb(y).length(), blockType, y)) {
-          return;
-        }
-      }
-    }
-
-    /**
-     * @param match
-     *        The BracketMatch class representing this search.
-     * @param sb
-     *        The StringBuilder of the line to search.The position from which to continue searching.
-     * @param tmall
-     *        All marker tokens for this line.
-     * @param offset
-     *        The marker token index from which to continue searching.
-     * @param spos
-     *        The position from which to continue searching.
-     * @param blockType
-     *        The type of block in which we are interested.
-     * @param y
-     *        Our row number.
-     * @return True if the match was found in this line, false otherwise.
-     *         Info about the match will be contained in the match parameter.
-     */
-    private boolean subFindMatchBackward(BracketMatch match, StringBuilder sb,
-        ArrayList<TokenMarkerInfo> tmall, int offset, int spos, int blockType, int y) {
-      int pos = spos;
-      int i = offset;
-      TokenMarkerInfo tm = tmall.get(i);
-      for (;;) {
-        if (blockType == tmall.get(i).blockHash) {
-          // same type
-          for (pos = Math.min(spos, tm.endPos - 1); pos >= tm.startPos; pos--) {
-            // Check inside it
-            if (sb.charAt(pos) == match.match) {
-              if (matchFound(match, pos, y)) {
-                return true;
-              }
-            } else if (sb.charAt(pos) == match.opposite) {
-              match.count++;
-            }
-          }
-        }
-        if (i > 0) {
-          tm = tmall.get(--i);
-          if (blockType == 0) {
-            for (pos = tm.startPos - 1; pos >= tm.endPos; pos--) {
-              // Check outside this block's range
-              if (sb.charAt(pos) == match.match) {
-                if (matchFound(match, pos, y)) {
-                  return true;
-                }
-              } else if (sb.charAt(pos) == match.opposite) {
-                match.count++;
-              }
-            }
-          }
-        } else {
-          if (blockType == 0) {
-            for (pos = tm.startPos - 1; pos >= 0; pos--) {
-              // Check outside this block's range
-              if (sb.charAt(pos) == match.match) {
-                if (matchFound(match, pos, y)) {
-                  return true;
-                }
-              } else if (sb.charAt(pos) == match.opposite) {
-                match.count++;
-              }
-            }
-          }
-          break;
-        }
+      if (search.run(SEARCH_SLICE)) {
+        searchTimer.stop();
+        finishSearch();
+        repaintRows(matchLine, matchLine);
       }
-      return false;
     }
 
     /** Callback for when the caret position changes. */
     @Override
     public void caretUpdate(CaretEvent ce) {
+      if (matching != null && matching != MatchState.NOT_MATCHING) {
+        repaintRows(matchLine, matchLine);
+      }
+      findMatch();
+      if (matching != MatchState.NOT_MATCHING) {
+        repaintRows(matchLine, matchLine);
+      }
+    }
+
+    /** Look for the bracket matching the one at the caret, if there is one. */
+    private void findMatch() {
       matching = MatchState.NOT_MATCHING;
+      search = null;
+      searchTimer.stop();
       StringBuilder sb = code.getsb(caret.row);
-      String start = "([{", end = ")]}"; //$NON-NLS-1$ //$NON-NLS-2$
       for (int x : new int[] { caret.col - 1, caret.col }) {
         if (x >= 0 && x < sb.length()) {
           char c = sb.charAt(x);
-          int p = start.indexOf(c);
+          int p = BracketIndex.OPENERS.indexOf(c);
           if (p != -1) {
-            findMatchForward(caret.row, x, new BracketMatch(end.charAt(p), start.charAt(p),
-                (short) 0));
+            search(caret.row, x, p, true);
             return;
           }
-          p = end.indexOf(c);
+          p = BracketIndex.CLOSERS.indexOf(c);
           if (p != -1) {
-            findMatchBackward(caret.row, x, new BracketMatch(start.charAt(p), end.charAt(p),
-                (short) 0));
+            search(caret.row, x, p, false);
             return;
           }
         }
@@ -3242,12 +4498,12 @@ public class JoshText extends JComponent
   }
 
   /**
-   * A class for storing two patches of code used in the
-   * Undo and Redo mechanisms. An UndoPatch contains sufficient
-   * information to be undone and applied any number of times
-   * during its lifecycle, with perfect accuracy assuming each
-   * patch is applied in the same order it was created and reverted
-   * in the opposite. (And was, of course, constructed properly.)
+   * A record of one undoable action. An UndoPatch snapshots the rows an action may touch
+   * when it is constructed, and when it is realized, compares them against the rows as the
+   * action left them. Only the text that actually changed is kept, as {@link UndoDelta}s,
+   * so the patch can be undone and applied any number of times during its lifecycle, with
+   * perfect accuracy assuming each patch is applied in the same order it was created and
+   * reverted in the opposite. (And was, of course, constructed properly.)
    *
    * @author josh
    */
@@ -3255,19 +4511,18 @@ public class JoshText extends JComponent
     /** The type of this UndoPatch; a member of {@link OPT} */
     int opTag;
     /**
-     * The text stored before the code was modified, hereafter
-     * referred to as the "pre-patch text."
+     * The text of the rows covered before the code was modified, joined by newlines; kept
+     * only until the patch is realized.
      */
-    Line[] oldText;
+    private String before;
+    /** The changes making up this patch, in the order they were made. */
+    final ArrayList<UndoDelta> deltas = new ArrayList<UndoDelta>(1);
+    /** The number of rows covered before the modification. */
+    int oldRows;
+    /** The number of rows covered after the modification. */
+    int newRows;
     /**
-     * The text as it stood after the modifications that sparked
-     * the creation of this UndoPatch, hereafter just "patch text."
-     */
-    Line[] patchText;
-    /**
-     * The index of the row that begins both segments of text.
-     * In other words, both oldText and patchText must start at the same
-     * line.
+     * The index of the row that begins both the pre-patch and the patched text.
      */
     int startRow;
 
@@ -3332,16 +4587,33 @@ public class JoshText extends JComponent
      * Construct a complete, finalized UndoPatch manually.
      *
      * @param t
-     *        The pre-patch code.
-     * @param ot
      *        The patch code.
+     * @param ot
+     *        The pre-patch code.
      * @param sr
      *        The index of the starting row of the two codes.
      */
     UndoPatch(Line[] t, Line[] ot, int sr) {
-      oldText = ot;
-      patchText = t;
       startRow = sr;
+      oldRows = ot.length;
+      newRows = t.length;
+      UndoDelta d = UndoDelta.diff(sr, join(ot), join(t));
+      if (d != null) {
+        deltas.add(d);
+      }
+    }
+
+    /**
+     * Construct an UndoPatch whose changes will be recorded as deltas directly, rather than
+     * by comparison against a copy of the rows it covers. The caller fills in the deltas, the
+     * row counts, and the caret afterward.
+     *
+     * @param sr
+     *        The index of the first row changed.
+     */
+    UndoPatch(int sr) {
+      startRow = sr;
+      cbefore.grab();
     }
 
     /**
@@ -3353,12 +4625,20 @@ public class JoshText extends JComponent
      */
     public void prefix_row(Line ln) {
       startRow--;
-      Line[] ancient = oldText;
-      oldText = new Line[oldText.length + 1];
-      oldText[0] = ln;
-      for (int i = 0; i < ancient.length; i++) {
-        oldText[i + 1] = ancient[i];
-      }
+      oldRows++;
+      before = ln.sbuild + "\n" + before; //$NON-NLS-1$
+    }
+
+    /**
+     * Appends a line to the stored pre-patch code, as when the line following the patched
+     * rows is joined onto them.
+     *
+     * @param ln
+     *        The line to append to our stored pre-patch code.
+     */
+    public void suffix_row(Line ln) {
+      oldRows++;
+      before = before + "\n" + ln.sbuild; //$NON-NLS-1$
     }
 
     /**
@@ -3377,12 +4657,7 @@ public class JoshText extends JComponent
      * @param endRow
      */
     UndoPatch(int startRow, int endRow) {
-      final int lc = endRow - startRow + 1;
-      oldText = new Line[lc];
-      for (int i = 0; i < lc; i++) {
-        oldText[i] = new Line(code.get(startRow + i));
-      }
-      this.startRow = startRow;
+      reconstruct(startRow, endRow);
       cbefore.grab();
     }
 
@@ -3396,31 +4671,110 @@ public class JoshText extends JComponent
      *        The index of the last row to copy.
      */
     public void reconstruct(int newStartRow, int newEndRow) {
-      final int lc = newEndRow - newStartRow + 1;
-      oldText = new Line[lc];
-      for (int i = 0; i < lc; i++) {
-        oldText[i] = new Line(code.get(startRow + i));
-      }
+      before = joinRows(newStartRow, newEndRow);
       startRow = newStartRow;
+      oldRows = newEndRow - newStartRow + 1;
     }
 
     /**
-     * Populates the patchText member by copying data stored in this.code
-     * from the previously given starting line this.startRow to the newly
-     * specified end row.
+     * Compares the rows from the previously given starting line this.startRow to the newly
+     * specified end row against the pre-patch text, recording what changed.
      *
      * @param endRow
-     *        The row at which to stop copying the patch text.
+     *        The last row modified.
      */
     public void realize(int endRow) {
       fireLineChange(startRow, endRow);
-      final int lc = endRow - startRow + 1;
-      patchText = new Line[lc];
-      for (int i = 0; i < lc; i++) {
-        patchText[i] = new Line(code.get(startRow + i));
+      newRows = endRow - startRow + 1;
+      UndoDelta d = UndoDelta.diff(startRow, before, joinRows(startRow, endRow));
+      if (d != null) {
+        deltas.add(d);
       }
+      before = null;
       cafter.grab();
     }
+
+    /** @return The approximate number of bytes of memory this patch occupies. */
+    long cost() {
+      long c = 0;
+      for (UndoDelta d : deltas) {
+        c += d.cost();
+      }
+      return c;
+    }
+
+    /** @return The number of bytes of disk the text this patch spilled occupies. */
+    long diskCost() {
+      long c = 0;
+      for (UndoDelta d : deltas) {
+        c += d.diskCost();
+      }
+      return c;
+    }
+
+    /**
+     * Read the text of every change in this patch before any is applied, so that a change
+     * whose text cannot be read leaves the code untouched.
+     *
+     * @param forward
+     *        True to read the text for applying the patch, false for reverting it.
+     * @return For each change, in order, the text it replaces and the text replacing it.
+     * @throws IOException
+     *         If the text of a change spilled to disk could not be read.
+     */
+    String[][] texts(boolean forward) throws IOException {
+      final String[][] res = new String[deltas.size()][];
+      for (int i = 0; i < res.length; i++) {
+        final UndoDelta d = deltas.get(i);
+        final String r = d.removed(), in = d.inserted();
+        res[i] = forward? new String[] { r, in } : new String[] { in, r };
+      }
+      return res;
+    }
+
+    /** Release any resources held by this patch, once it leaves the history. */
+    void discard() {
+      for (UndoDelta d : deltas) {
+        d.discard();
+      }
+    }
+  }
+
+  /**
+   * @param lines
+   *        Some lines.
+   * @return The text of the lines, joined by newlines.
+   */
+  private static String join(Line[] lines) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < lines.length; i++) {
+      if (i > 0) {
+        sb.append('\n');
+      }
+      sb.append(lines[i].sbuild);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @param startRow
+   *        The first row to copy.
+   * @param endRow
+   *        The last row to copy.
+   * @return The text of the given rows, joined by newlines.
+   */
+  private String joinRows(int startRow, int endRow) {
+    if (startRow == endRow) {
+      return code.getsb(startRow).toString();
+    }
+    StringBuilder sb = new StringBuilder();
+    for (int i = startRow; i <= endRow; i++) {
+      if (i > startRow) {
+        sb.append('\n');
+      }
+      sb.append(code.getsb(i));
+    }
+    return sb.toString();
   }
 
   /**
@@ -3436,6 +4790,10 @@ public class JoshText extends JComponent
    * Our position in {@link undoPatches}.
    */
   private int patchIndex = 0;
+  /** The approximate number of bytes of memory occupied by {@link undoPatches}. */
+  private long undoMemory = 0;
+  /** The number of bytes of disk occupied by text {@link undoPatches} spilled. */
+  private long undoDisk = 0;
 
   /**
    * Check whether we have available undos.
@@ -3454,63 +4812,104 @@ public class JoshText extends JComponent
   /**
    * Undo the most recently stored UndoPatch.
    * The patch itself is not moved; instead, patchIndex is decremented.
+   * If its text cannot be read back, the step is refused and the code left untouched.
    */
   public void undo() {
     if (patchIndex == 0) {
       return;
     }
-    UndoPatch p = undoPatches.get(--patchIndex);
+    UndoPatch p = undoPatches.get(patchIndex - 1);
+    final String[][] texts;
+    try {
+      texts = p.texts(false);
+    } catch (IOException e) {
+      e.printStackTrace();
+      infoMessages.add("Cannot undo: " + e.getMessage()); //$NON-NLS-1$
+      return;
+    }
+    patchIndex--;
     // Reverse patch
-    int prow;
-    for (prow = 0; prow < p.patchText.length; prow++) {
-      if (prow >= p.oldText.length) {
-        for (int da = p.patchText.length - prow; da > 0; da--) {
-          code.remove(p.startRow + prow);
+    int last = p.startRow + p.oldRows - 1;
+    code.beginBatch();
+    try {
+      for (int i = p.deltas.size() - 1; i >= 0; i--) {
+        final UndoDelta d = p.deltas.get(i);
+        last = Math.max(last, UndoDelta.replace(code, d.row, d.col, texts[i][0], texts[i][1]));
+        if (journal != null) {
+          journal.edit(d.row, d.col, texts[i][0], texts[i][1]);
         }
-        break;
       }
-      code.set(p.startRow + prow, new Line(p.oldText[prow]));
-    }
-    while (prow < p.oldText.length) {
-      code.add(p.startRow + prow, new Line(p.oldText[prow]));
-      prow++;
+    } finally {
+      code.endBatch();
     }
     p.cbefore.replace();
-    fireLineChange(p.startRow, p.startRow + p.oldText.length);
+    fireLineChange(p.startRow, last + 1);
     repaint();
   }
 
   /**
    * Re-apply the UndoPatch that has most recently been undone.
    * If no previous UndoPatch has been reverted, return without error.
+   * If its text cannot be read back, the step is refused and the code left untouched.
    */
   public void redo() {
     if (patchIndex >= undoPatches.size()) {
       return;
     }
-    UndoPatch p = undoPatches.get(patchIndex++);
+    UndoPatch p = undoPatches.get(patchIndex);
+    final String[][] texts;
+    try {
+      texts = p.texts(true);
+    } catch (IOException e) {
+      e.printStackTrace();
+      infoMessages.add("Cannot redo: " + e.getMessage()); //$NON-NLS-1$
+      return;
+    }
+    patchIndex++;
     // Perform patch
-    int prow;
-    for (prow = 0; prow < p.oldText.length; prow++) {
-      if (prow >= p.patchText.length) {
-        for (int da = p.oldText.length - prow; da > 0; da--) {
-          code.remove(p.startRow + prow);
+    int last = p.startRow + p.newRows - 1;
+    code.beginBatch();
+    try {
+      for (int i = 0; i < p.deltas.size(); i++) {
+        final UndoDelta d = p.deltas.get(i);
+        last = Math.max(last, UndoDelta.replace(code, d.row, d.col, texts[i][0], texts[i][1]));
+        if (journal != null) {
+          journal.edit(d.row, d.col, texts[i][0], texts[i][1]);
         }
-        break;
       }
-      code.set(p.startRow + prow, new Line(p.patchText[prow]));
-    }
-    while (prow < p.patchText.length) {
-      code.add(p.startRow + prow, new Line(p.patchText[prow]));
-      prow++;
+    } finally {
+      code.endBatch();
     }
     p.cafter.replace();
-    fireLineChange(p.startRow, p.startRow + p.oldText.length);
+    fireLineChange(p.startRow, last + 1);
     repaint();
   }
 
+  /** Forget every UndoPatch, as when the text they were made against is replaced. */
+  private void clearUndo() {
+    for (UndoPatch dead : undoPatches) {
+      dead.discard();
+    }
+    undoPatches.clear();
+    undoMemory = 0;
+    undoDisk = 0;
+    patchIndex = 0;
+    undoCanMerge = true;
+  }
+
+  /**
+   * Release what this editor holds outside the heap: the temporary files of its undo
+   * history, which is forgotten. Call this when the editor is closed; it may still be used
+   * afterward, but has nothing to undo.
+   */
+  public void dispose() {
+    clearUndo();
+  }
+
   /**
-   * Store an UndoPatch so we can undo it later.
+   * Store an UndoPatch so we can undo it later. The oldest patches are dropped once the
+   * history exceeds {@link Settings#undoMaxSteps}, {@link Settings#undoMaxMemory}, or
+   * {@link Settings#undoMaxDisk}.
    *
    * @param undo
    *        The UndoPatch to store.
@@ -3519,16 +4918,49 @@ public class JoshText extends JComponent
    */
   public void storeUndo(UndoPatch undo, int patchType) {
     undo.opTag = patchType;
+    if (journal != null) {
+      try {
+        final String[][] texts = undo.texts(true);
+        for (int i = 0; i < texts.length; i++) {
+          final UndoDelta d = undo.deltas.get(i);
+          journal.edit(d.row, d.col, texts[i][0], texts[i][1]);
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+        infoMessages.add("Journal stopped: " + e.getMessage()); //$NON-NLS-1$
+        journal.fail();
+        journal = null;
+      }
+    }
     while (patchIndex < undoPatches.size()) {
-      undoPatches.remove(undoPatches.size() - 1);
+      UndoPatch dead = undoPatches.remove(undoPatches.size() - 1);
+      undoMemory -= dead.cost();
+      undoDisk -= dead.diskCost();
+      dead.discard();
     }
     if (!undoCanMerge || patchIndex == 0
         || !undoCompatible(undoPatches.get(patchIndex - 1), undo)) {
       undoPatches.add(undo);
+      undoMemory += undo.cost();
+      undoDisk += undo.diskCost();
       undoCanMerge = true;
       patchIndex++;
     } else {
-      undoMerge(undo, undoPatches.get(patchIndex - 1));
+      UndoPatch into = undoPatches.get(patchIndex - 1);
+      undoMemory -= into.cost();
+      undoDisk -= into.diskCost();
+      undoMerge(undo, into);
+      undoMemory += into.cost();
+      undoDisk += into.diskCost();
+    }
+    while (patchIndex > 1
+        && (patchIndex > Settings.undoMaxSteps || undoMemory > Settings.undoMaxMemory
+            || undoDisk > Settings.undoMaxDisk)) {
+      UndoPatch dead = undoPatches.remove(0);
+      undoMemory -= dead.cost();
+      undoDisk -= dead.diskCost();
+      dead.discard();
+      patchIndex--;
     }
   }
 
@@ -3542,7 +4974,12 @@ public class JoshText extends JComponent
    *        The old UndoPatch into which we will merge the new one.
    */
   private static void undoMerge(UndoPatch merge, UndoPatch into) {
-    into.patchText = merge.patchText;
+    for (UndoDelta d : merge.deltas) {
+      if (into.deltas.isEmpty() || !into.deltas.get(into.deltas.size() - 1).absorb(d)) {
+        into.deltas.add(d);
+      }
+    }
+    into.newRows = merge.newRows;
     into.cafter.copy(merge.cafter);
     into.opTag = merge.opTag;
   }
@@ -3564,8 +5001,7 @@ public class JoshText extends JComponent
     if ((up1.opTag != up2.opTag && up2.opTag != OPT.SPACE) || up1.startRow != up2.startRow) {
       return false;
     }
-    if (up1.oldText.length != up1.patchText.length || up1.oldText.length != up2.oldText.length
-        || up2.patchText.length != up2.patchText.length) {
+    if (up1.oldRows != up1.newRows || up1.oldRows != up2.oldRows) {
       return false;
     }
     return true;
@@ -3574,7 +5010,9 @@ public class JoshText extends JComponent
   /** @see java.awt.event.FocusListener#focusGained(java.awt.event.FocusEvent) */
   @Override
   public void focusGained(FocusEvent arg0) {
-    FindDialog.getInstance().selectedJoshText = this;
+    if (findDialog != null) {
+      findDialog.selectedJoshText = this;
+    }
   }
 
   /** @see java.awt.event.FocusListener#focusLost(java.awt.event.FocusEvent) */
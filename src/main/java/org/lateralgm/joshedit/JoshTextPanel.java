@@ -18,6 +18,7 @@ import java.awt.print.PageFormat;
 import java.awt.print.Printable;
 import java.awt.print.PrinterException;
 import java.awt.print.PrinterJob;
+import java.io.IOException;
 
 import javax.print.PrintService;
 import javax.print.attribute.HashPrintRequestAttributeSet;
@@ -77,7 +78,9 @@ public class JoshTextPanel extends JPanel implements Printable {
     text.code.addCodeListener(new CodeListener() {
       @Override
       public void codeChanged(CodeEvent e) {
-        lines.setLines(text.code.size());
+        if (e.getDelta() != 0) {
+          lines.setLines(text.code.size());
+        }
       }
     });
 
@@ -116,11 +119,10 @@ public class JoshTextPanel extends JPanel implements Printable {
   /** Convenience method that replaces newlines with \r\n for GM compatibility */
   public String getTextCompat() {
     StringBuilder res = new StringBuilder();
-    for (int i = 0; i < text.code.size(); i++) {
-      if (i != 0) {
-        res.append("\r\n");
-      }
-      res.append(text.code.getsb(i));
+    try {
+      text.writeText(res, "\r\n");
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // StringBuilder does not throw
     }
     return res.toString();
   }
@@ -0,0 +1,535 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This file is part of JoshEdit. JoshEdit is free software.
+ * You can use, modify, and distribute it under the terms of
+ * the GNU General Public License, version 3 or later.
+ */
+
+package org.lateralgm.joshedit;
+
+import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.lateralgm.joshedit.DefaultKeywords.Constant;
+import org.lateralgm.joshedit.DefaultKeywords.Construct;
+import org.lateralgm.joshedit.DefaultKeywords.Function;
+import org.lateralgm.joshedit.DefaultKeywords.Operator;
+import org.lateralgm.joshedit.DefaultKeywords.Variable;
+
+/**
+ * The bundled keywords of a language, compiled when JoshEdit is built from the language's
+ * keyword properties and function list into one binary resource, and shared by every marker
+ * of the language.
+ * <p>
+ * A compiled index holds, after a magic number, the number of keywords in each group; the
+ * names, packed together in UTF-8, then the end of each name in characters; the array size and
+ * read-only flag of each variable; and the arguments and description of each function,
+ * packed as the names are. It is read in one go. The names of a group only become strings,
+ * and its keywords objects, when they are first asked for; markers need only the names, and
+ * the functions, with their arguments and descriptions, are only made for completion.
+ * <p>
+ * The build runs {@link #main(String[])} over the text sources. A language with no compiled
+ * index, as when JoshEdit is run from an IDE, has its text sources compiled instead.
+ *
+ * @author agent
+ */
+public final class KeywordIndex {
+  /** The group of syntax constructs, such as "if". */
+  public static final int CONSTRUCTS = 0;
+  /** The group of operator keywords, such as "and". */
+  public static final int OPERATORS = 1;
+  /** The group of global variables. */
+  public static final int VARIABLES = 2;
+  /** The group of constants. */
+  public static final int CONSTANTS = 3;
+  /** The group of functions. */
+  public static final int FUNCTIONS = 4;
+  /** The number of groups. */
+  private static final int GROUPS = 5;
+  /** The property naming each group in the keyword properties. */
+  private static final String[] PROPERTIES = { "CONSTRUCTS", "OPERATORS", "VARIABLES", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+      "CONSTANTS" }; //$NON-NLS-1$
+  /** The first four bytes of a compiled index, "JKW1". */
+  private static final int MAGIC = 0x4A4B5731;
+
+  /** Every index loaded, by package and language. */
+  private static final Map<String, KeywordIndex> loaded = new HashMap<String, KeywordIndex>();
+
+  /** The index of the first name of each group, and the number of names. */
+  private final int[] groupStart = new int[GROUPS + 1];
+  /** The characters of every name, packed together. */
+  private final char[] chars;
+  /** The end of each name in chars. */
+  private final int[] ends;
+  /** The array size of each variable, shifted left one, or'd with one if it is read-only. */
+  private final int[] variableInfo;
+  /** The characters of the arguments and description of every function, packed together. */
+  private final char[] functionChars;
+  /**
+   * The end of the arguments and of the description of each function in functionChars; its
+   * complement where the function list ended before it, to give null.
+   */
+  private final int[] functionEnds;
+
+  /** The names of each group, as strings; each made when first needed. */
+  private final String[][] names = new String[GROUPS][];
+  /** The names of each group, as a set shared by every marker; each made when first needed. */
+  private final List<Set<String>> words = new ArrayList<Set<String>>(
+      Collections.<Set<String>> nCopies(GROUPS, null));
+
+  /**
+   * @param counts
+   *        The number of names in each group.
+   * @param chars
+   *        The characters of every name, packed together.
+   * @param ends
+   *        The end of each name.
+   * @param variableInfo
+   *        The array size and read-only flag of each variable.
+   * @param functionChars
+   *        The arguments and descriptions of every function, packed together.
+   * @param functionEnds
+   *        The end of the arguments and of the description of each function.
+   */
+  private KeywordIndex(int[] counts, char[] chars, int[] ends, int[] variableInfo,
+      char[] functionChars, int[] functionEnds) {
+    for (int g = 0; g < GROUPS; g++) {
+      groupStart[g + 1] = groupStart[g] + counts[g];
+    }
+    this.chars = chars;
+    this.ends = ends;
+    this.variableInfo = variableInfo;
+    this.functionChars = functionChars;
+    this.functionEnds = functionEnds;
+  }
+
+  /**
+   * Get the bundled keywords of a language, loading them the first time.
+   *
+   * @param owner
+   *        A class in the package holding the language's resources.
+   * @param language
+   *        The name of the language, which prefixes the names of its resources; its compiled
+   *        index is language.keywords, and its text sources are languagekeywords.properties
+   *        and languagefunctions.txt.
+   * @return The keywords of the language; empty if none could be read.
+   */
+  public static KeywordIndex get(Class<?> owner, String language) {
+    final String cn = owner.getName();
+    final String key = cn.substring(0, cn.lastIndexOf('.') + 1) + language;
+    synchronized (loaded) {
+      KeywordIndex ki = loaded.get(key);
+      if (ki == null) {
+        ki = load(owner, language);
+        loaded.put(key, ki);
+      }
+      return ki;
+    }
+  }
+
+  /**
+   * Load the keywords of a language from its compiled index, or failing that, its text.
+   *
+   * @param owner
+   *        A class in the package holding the language's resources.
+   * @param language
+   *        The name of the language.
+   * @return The keywords of the language; empty if none could be read.
+   */
+  private static KeywordIndex load(Class<?> owner, String language) {
+    try {
+      final InputStream in = owner.getResourceAsStream(language + ".keywords"); //$NON-NLS-1$
+      if (in != null) {
+        try {
+          return read(in);
+        } finally {
+          in.close();
+        }
+      }
+      final InputStream props = owner.getResourceAsStream(language + "keywords.properties"); //$NON-NLS-1$
+      final InputStream funcs = owner.getResourceAsStream(language + "functions.txt"); //$NON-NLS-1$
+      try {
+        return compile(props, funcs);
+      } finally {
+        if (props != null) {
+          props.close();
+        }
+        if (funcs != null) {
+          funcs.close();
+        }
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+      return new KeywordIndex(new int[GROUPS], new char[0], new int[0], new int[0], new char[0],
+          new int[0]);
+    }
+  }
+
+  /**
+   * Read a compiled index.
+   *
+   * @param in
+   *        The stream holding the index, read to its end.
+   * @return The index read.
+   * @throws IOException
+   *         If the stream could not be read, or does not hold an index.
+   */
+  static KeywordIndex read(InputStream in) throws IOException {
+    byte[] b = new byte[Math.max(in.available(), 8192)];
+    int n = 0;
+    for (int r; (r = in.read(b, n, b.length - n)) != -1;) {
+      n += r;
+      if (n == b.length) {
+        b = Arrays.copyOf(b, n * 2);
+      }
+    }
+    final ByteBuffer bb = ByteBuffer.wrap(b, 0, n);
+    try {
+      if (bb.getInt() != MAGIC) {
+        throw new IOException("Not a keyword index"); //$NON-NLS-1$
+      }
+      final int[] counts = ints(bb, GROUPS);
+      final char[] chars = chars(bb);
+      final int[] ends = ints(bb, sum(counts));
+      final int[] variableInfo = ints(bb, counts[VARIABLES]);
+      final char[] functionChars = chars(bb);
+      final int[] functionEnds = ints(bb, counts[FUNCTIONS] * 2);
+      return new KeywordIndex(counts, chars, ends, variableInfo, functionChars, functionEnds);
+    } catch (RuntimeException e) {
+      throw new IOException("Truncated keyword index", e); //$NON-NLS-1$
+    }
+  }
+
+  /**
+   * @param bb
+   *        A buffer.
+   * @param n
+   *        The number of ints to read.
+   * @return The ints read, in bulk.
+   */
+  private static int[] ints(ByteBuffer bb, int n) {
+    final int[] res = new int[n];
+    bb.asIntBuffer().get(res);
+    bb.position(bb.position() + n * 4);
+    return res;
+  }
+
+  /**
+   * @param bb
+   *        A buffer, at the length of some UTF-8 text.
+   * @return The text, decoded.
+   */
+  private static char[] chars(ByteBuffer bb) {
+    final int n = bb.getInt();
+    final String s = new String(bb.array(), bb.position(), n, StandardCharsets.UTF_8);
+    bb.position(bb.position() + n);
+    return s.toCharArray();
+  }
+
+  /**
+   * @param a
+   *        Some ints.
+   * @return Their sum.
+   */
+  private static int sum(int[] a) {
+    int s = 0;
+    for (int x : a) {
+      s += x;
+    }
+    return s;
+  }
+
+  /**
+   * Compile the text sources of a language, as its keyword classes once did when loaded.
+   *
+   * @param properties
+   *        The keyword properties, listing each group but the functions, separated by
+   *        whitespace; or null if there are none.
+   * @param functions
+   *        The function list, three lines to a function: its name, its arguments separated
+   *        by commas, and its description; or null if there is none.
+   * @return The index compiled.
+   * @throws IOException
+   *         If a source could not be read.
+   */
+  static KeywordIndex compile(InputStream properties, InputStream functions) throws IOException {
+    final int[] counts = new int[GROUPS];
+    final StringBuilder chars = new StringBuilder();
+    final ArrayList<Integer> ends = new ArrayList<Integer>();
+    final ArrayList<Integer> variableInfo = new ArrayList<Integer>();
+    final StringBuilder functionChars = new StringBuilder();
+    final ArrayList<Integer> functionEnds = new ArrayList<Integer>();
+
+    final Properties p = new Properties();
+    if (properties != null) {
+      p.load(properties);
+    }
+    for (int g = 0; g < PROPERTIES.length; g++) {
+      final String v = p.getProperty(PROPERTIES[g]);
+      if (v == null) {
+        continue;
+      }
+      for (String s : v.split("\\s+")) { //$NON-NLS-1$
+        if (g == VARIABLES) {
+          final Variable var = new Variable(s);
+          s = var.getName();
+          variableInfo.add(var.arraySize << 1 | (var.readOnly? 1 : 0));
+        }
+        chars.append(s);
+        ends.add(chars.length());
+        counts[g]++;
+      }
+    }
+    if (functions != null) {
+      final BufferedReader br = new BufferedReader(new InputStreamReader(functions));
+      for (String func; (func = br.readLine()) != null;) {
+        final String args = br.readLine(), desc = br.readLine();
+        chars.append(func);
+        ends.add(chars.length());
+        counts[FUNCTIONS]++;
+        functionEnds.add(args == null? ~functionChars.length()
+            : functionChars.append(args).length());
+        functionEnds.add(desc == null? ~functionChars.length()
+            : functionChars.append(desc).length());
+      }
+    }
+    return new KeywordIndex(counts, toChars(chars), toInts(ends), toInts(variableInfo),
+        toChars(functionChars), toInts(functionEnds));
+  }
+
+  /**
+   * @param sb
+   *        Some characters.
+   * @return The characters, in an array.
+   */
+  private static char[] toChars(StringBuilder sb) {
+    final char[] res = new char[sb.length()];
+    sb.getChars(0, res.length, res, 0);
+    return res;
+  }
+
+  /**
+   * @param l
+   *        Some ints.
+   * @return The ints, in an array.
+   */
+  private static int[] toInts(ArrayList<Integer> l) {
+    final int[] res = new int[l.size()];
+    for (int i = 0; i < res.length; i++) {
+      res[i] = l.get(i);
+    }
+    return res;
+  }
+
+  /**
+   * Write this index in compiled form.
+   *
+   * @param out
+   *        The stream to write.
+   * @throws IOException
+   *         If the stream could not be written.
+   */
+  void write(DataOutputStream out) throws IOException {
+    out.writeInt(MAGIC);
+    for (int g = 0; g < GROUPS; g++) {
+      out.writeInt(size(g));
+    }
+    writeChars(out, chars);
+    writeInts(out, ends);
+    writeInts(out, variableInfo);
+    writeChars(out, functionChars);
+    writeInts(out, functionEnds);
+  }
+
+  /**
+   * @param out
+   *        The stream to write.
+   * @param c
+   *        The text to write, in UTF-8, after its length in bytes.
+   * @throws IOException
+   *         If the stream could not be written.
+   */
+  private static void writeChars(DataOutputStream out, char[] c) throws IOException {
+    final byte[] b = new String(c).getBytes(StandardCharsets.UTF_8);
+    out.writeInt(b.length);
+    out.write(b);
+  }
+
+  /**
+   * @param out
+   *        The stream to write.
+   * @param a
+   *        The ints to write.
+   * @throws IOException
+   *         If the stream could not be written.
+   */
+  private static void writeInts(DataOutputStream out, int[] a) throws IOException {
+    for (int x : a) {
+      out.writeInt(x);
+    }
+  }
+
+  /**
+   * Compile the text sources of some languages into indexes beside them; run by the build.
+   *
+   * @param args
+   *        The directory holding the sources, then the name of each language.
+   * @throws IOException
+   *         If a source could not be read, or an index written.
+   */
+  public static void main(String[] args) throws IOException {
+    final File dir = new File(args[0]);
+    for (int i = 1; i < args.length; i++) {
+      final String language = args[i];
+      final File pf = new File(dir, language + "keywords.properties"); //$NON-NLS-1$
+      final File ff = new File(dir, language + "functions.txt"); //$NON-NLS-1$
+      final InputStream props = pf.exists()? new FileInputStream(pf) : null;
+      final InputStream funcs = ff.exists()? new FileInputStream(ff) : null;
+      final KeywordIndex ki;
+      try {
+        ki = compile(props, funcs);
+      } finally {
+        if (props != null) {
+          props.close();
+        }
+        if (funcs != null) {
+          funcs.close();
+        }
+      }
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(new File(dir, language + ".keywords")))); //$NON-NLS-1$
+      try {
+        ki.write(out);
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+  /**
+   * @param group
+   *        A group, such as {@link #FUNCTIONS}.
+   * @return The number of keywords in the group.
+   */
+  public int size(int group) {
+    return groupStart[group + 1] - groupStart[group];
+  }
+
+  /**
+   * @param group
+   *        A group, such as {@link #FUNCTIONS}.
+   * @return The names of the keywords of the group, in order; shared, so not to be changed.
+   */
+  private synchronized String[] names(int group) {
+    String[] res = names[group];
+    if (res == null) {
+      res = new String[size(group)];
+      for (int i = 0, e = groupStart[group]; i < res.length; i++, e++) {
+        final int start = e == 0? 0 : ends[e - 1];
+        res[i] = new String(chars, start, ends[e] - start);
+      }
+      names[group] = res;
+    }
+    return res;
+  }
+
+  /**
+   * @param group
+   *        A group, such as {@link #FUNCTIONS}.
+   * @return The names of the keywords of the group, as a new set. The set shares the names
+   *         with every other set of the group until it is first changed; while it is unchanged,
+   *         markers share what they compile from it.
+   */
+  public synchronized Set<String> words(int group) {
+    Set<String> res = words.get(group);
+    if (res == null) {
+      res = new HashSet<String>(Arrays.asList(names(group)));
+      words.set(group, res);
+    }
+    return new WordSet(res);
+  }
+
+  /** @return New objects for the syntax constructs. */
+  public Construct[] constructs() {
+    final String[] n = names(CONSTRUCTS);
+    final Construct[] res = new Construct[n.length];
+    for (int i = 0; i < n.length; i++) {
+      res[i] = new Construct(n[i]);
+    }
+    return res;
+  }
+
+  /** @return New objects for the operator keywords. */
+  public Operator[] operators() {
+    final String[] n = names(OPERATORS);
+    final Operator[] res = new Operator[n.length];
+    for (int i = 0; i < n.length; i++) {
+      res[i] = new Operator(n[i]);
+    }
+    return res;
+  }
+
+  /** @return New objects for the global variables. */
+  public Variable[] variables() {
+    final String[] n = names(VARIABLES);
+    final Variable[] res = new Variable[n.length];
+    for (int i = 0; i < n.length; i++) {
+      res[i] = new Variable(n[i], variableInfo[i] >>> 1, (variableInfo[i] & 1) != 0);
+    }
+    return res;
+  }
+
+  /** @return New objects for the constants. */
+  public Constant[] constants() {
+    final String[] n = names(CONSTANTS);
+    final Constant[] res = new Constant[n.length];
+    for (int i = 0; i < n.length; i++) {
+      res[i] = new Constant(n[i]);
+    }
+    return res;
+  }
+
+  /** @return New objects for the functions, with their arguments and descriptions. */
+  public Function[] functions() {
+    final String[] n = names(FUNCTIONS);
+    final Function[] res = new Function[n.length];
+    for (int i = 0, e = 0; i < n.length; i++, e += 2) {
+      res[i] = new Function(n[i], functionText(e), functionText(e + 1));
+    }
+    return res;
+  }
+
+  /**
+   * @param e
+   *        The index of the end of some function text in functionEnds.
+   * @return The text, or null if there was none.
+   */
+  private String functionText(int e) {
+    final int end = functionEnds[e];
+    if (end < 0) {
+      return null;
+    }
+    final int start = e == 0? 0 : functionEnds[e - 1] < 0? ~functionEnds[e - 1]
+        : functionEnds[e - 1];
+    return new String(functionChars, start, end - start);
+  }
+}
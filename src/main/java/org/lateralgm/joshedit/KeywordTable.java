@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This file is part of JoshEdit. JoshEdit is free software.
+ * You can use, modify, and distribute it under the terms of
+ * the GNU General Public License, version 3 or later.
+ */
+
+package org.lateralgm.joshedit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.lateralgm.joshedit.DefaultTokenMarker.KeywordSet;
+
+/**
+ * The words of every keyword set of a marker, in one open-addressed hash table, so that a
+ * region of a line can be classified without copying it out or lowercasing it.
+ * <p>
+ * Words are hashed with their case folded, so case-sensitive and case-insensitive sets share
+ * one table. A word of a case-insensitive set matches a region whose characters, lowercased,
+ * equal it, as when the region was lowercased and looked up. Words are inserted set by set,
+ * and linear probing meets them in the order they were inserted, so the first set listed
+ * still wins when a word is in more than one.
+ * <p>
+ * Only sets which count their changes, as every set made by {@link KeywordSet} or
+ * {@link KeywordIndex} does, are compiled into the table; a marker recompiles its table when
+ * they change. Sets an embedder assigns of some other kind are looked up as they are, with
+ * the region copied out, so that changes to them are always seen.
+ *
+ * @author agent
+ */
+final class KeywordTable implements DefaultTokenMarker.KeywordLookup {
+  /** The entry in each slot, plus one; zero for an empty slot. */
+  private final int[] slots;
+  /** The mask giving a slot from a hash. */
+  private final int mask;
+  /** The characters of each entry. */
+  private final char[][] words;
+  /** The folded hash of each entry. */
+  private final int[] hashes;
+  /** The keyword set of each entry. */
+  private final int[] sets;
+  /** Whether each entry must match in case. */
+  private final boolean[] caseSensitive;
+  /** The number of entries. */
+  private int count;
+  /** The sets looked up as they are rather than in the table, in order of precedence. */
+  private final int[] liveSets;
+  /** The words of each set looked up as it is. */
+  private final Set<?>[] liveWords;
+  /** Whether each set looked up as it is must match in case. */
+  private final boolean[] liveCase;
+
+  /** Every table compiled by {@link #of(List)} from bundled keywords alone. */
+  private static final List<Shared> shared = new ArrayList<Shared>();
+
+  /**
+   * @param keywordSets
+   *        The keyword sets to compile, in order of precedence.
+   */
+  KeywordTable(List<KeywordSet> keywordSets) {
+    final int setCount = keywordSets.size();
+    int wordCount = 0, liveCount = 0;
+    for (KeywordSet ks : keywordSets) {
+      if (ks.words instanceof WordSet) {
+        wordCount += ks.words.size();
+      } else {
+        liveCount++;
+      }
+    }
+    liveSets = new int[liveCount];
+    liveWords = new Set<?>[liveCount];
+    liveCase = new boolean[liveCount];
+    int cap = 16;
+    while (cap < wordCount * 2) {
+      cap <<= 1;
+    }
+    slots = new int[cap];
+    mask = cap - 1;
+    words = new char[wordCount][];
+    hashes = new int[wordCount];
+    sets = new int[wordCount];
+    caseSensitive = new boolean[wordCount];
+    for (int sn = 0, ln = 0; sn < setCount; sn++) {
+      KeywordSet ks = keywordSets.get(sn);
+      if (!(ks.words instanceof WordSet)) {
+        liveSets[ln] = sn;
+        liveWords[ln] = ks.words;
+        liveCase[ln++] = ks.caseSensitive;
+        continue;
+      }
+      for (String w : ks.words) {
+        add(w, sn, ks.caseSensitive);
+      }
+    }
+  }
+
+  /**
+   * Get a table for some keyword sets. When every set still holds, unchanged, a group of
+   * bundled keywords, as from {@link KeywordIndex#words(int)}, the table is compiled once and
+   * shared by every marker listing the same groups in the same order.
+   *
+   * @param keywordSets
+   *        The keyword sets to compile, in order of precedence.
+   * @return The table.
+   */
+  static KeywordTable of(List<KeywordSet> keywordSets) {
+    for (KeywordSet ks : keywordSets) {
+      if (!(ks.words instanceof WordSet) || ((WordSet) ks.words).shared() == null) {
+        return new KeywordTable(keywordSets);
+      }
+    }
+    synchronized (shared) {
+      for (Shared s : shared) {
+        if (s.matches(keywordSets)) {
+          return s.table;
+        }
+      }
+      final Shared s = new Shared(keywordSets);
+      shared.add(s);
+      return s.table;
+    }
+  }
+
+  /** A table compiled from bundled keywords, with the sets it was compiled from. */
+  private static final class Shared {
+    /** The shared words of each set. */
+    final Object[] words;
+    /** Whether each set is case sensitive. */
+    final boolean[] caseSensitive;
+    /** The table. */
+    final KeywordTable table;
+
+    /**
+     * @param keywordSets
+     *        The keyword sets to compile.
+     */
+    Shared(List<KeywordSet> keywordSets) {
+      words = new Object[keywordSets.size()];
+      caseSensitive = new boolean[words.length];
+      for (int sn = 0; sn < words.length; sn++) {
+        words[sn] = ((WordSet) keywordSets.get(sn).words).shared();
+        caseSensitive[sn] = keywordSets.get(sn).caseSensitive;
+      }
+      table = new KeywordTable(keywordSets);
+    }
+
+    /**
+     * @param keywordSets
+     *        Some keyword sets.
+     * @return Whether the sets share the same words as those compiled, in the same order; the
+     *         sets must all share their words.
+     */
+    boolean matches(List<KeywordSet> keywordSets) {
+      if (keywordSets.size() != words.length) {
+        return false;
+      }
+      for (int sn = 0; sn < words.length; sn++) {
+        final KeywordSet ks = keywordSets.get(sn);
+        if (((WordSet) ks.words).shared() != words[sn] || ks.caseSensitive != caseSensitive[sn]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * @return Whether some sets are looked up as they are, so that what a region is found to be
+   *         may change without the table being compiled again.
+   */
+  boolean looksUpLive() {
+    return liveSets.length != 0;
+  }
+
+  /**
+   * Add a word to the table.
+   *
+   * @param w
+   *        The word.
+   * @param set
+   *        The index of its keyword set.
+   * @param cs
+   *        Whether it must match in case.
+   */
+  private void add(String w, int set, boolean cs) {
+    final char[] c = w.toCharArray();
+    int h = 0;
+    for (int i = 0; i < c.length; i++) {
+      char f = Character.toLowerCase(c[i]);
+      if (!cs && f != c[i]) {
+        return; // Only lowercased text is looked up in this set; this word can never match.
+      }
+      h = 31 * h + f;
+    }
+    int e = count++;
+    words[e] = c;
+    hashes[e] = h;
+    sets[e] = set;
+    caseSensitive[e] = cs;
+    int s = mix(h) & mask;
+    while (slots[s] != 0) {
+      s = (s + 1) & mask;
+    }
+    slots[s] = e + 1;
+  }
+
+  /**
+   * @param h
+   *        A hash.
+   * @return The hash, with its high bits spread into its low ones.
+   */
+  private static int mix(int h) {
+    h ^= h >>> 16;
+    h *= 0x85EBCA6B;
+    return h ^ (h >>> 13);
+  }
+
+  /** @see DefaultTokenMarker.KeywordLookup#lookup(CharSequence, int, int) */
+  @Override
+  public int lookup(CharSequence s, int start, int end) {
+    final int found = find(s, start, end);
+    return liveSets.length == 0? found : lookupLive(s.subSequence(start, end).toString(), found);
+  }
+
+  /**
+   * Look up a word in the sets looked up as they are, which precede the set it was found in.
+   *
+   * @param w
+   *        The word.
+   * @param found
+   *        The first set holding the word in the table, or -1 if none does.
+   * @return The index of the first keyword set holding the word, or -1 if none does.
+   */
+  private int lookupLive(String w, int found) {
+    String lower = null;
+    for (int ln = 0; ln < liveSets.length && (found < 0 || liveSets[ln] < found); ln++) {
+      if (!liveCase[ln] && lower == null) {
+        lower = w.toLowerCase();
+      }
+      if (liveWords[ln].contains(liveCase[ln]? w : lower)) {
+        return liveSets[ln];
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Look up a region of text in the table.
+   *
+   * @param s
+   *        The text.
+   * @param start
+   *        The start of the region.
+   * @param end
+   *        The end of the region.
+   * @return The index of the first set in the table holding the region, or -1 if none does.
+   */
+  private int find(CharSequence s, int start, int end) {
+    final int len = end - start;
+    int h = 0;
+    for (int i = start; i < end; i++) {
+      h = 31 * h + Character.toLowerCase(s.charAt(i));
+    }
+    for (int p = mix(h) & mask;; p = (p + 1) & mask) {
+      final int e = slots[p] - 1;
+      if (e < 0) {
+        return -1;
+      }
+      if (hashes[e] != h || words[e].length != len) {
+        continue;
+      }
+      final char[] w = words[e];
+      int i = 0;
+      if (caseSensitive[e]) {
+        while (i < len && s.charAt(start + i) == w[i]) {
+          i++;
+        }
+      } else {
+        while (i < len && Character.toLowerCase(s.charAt(start + i)) == w[i]) {
+          i++;
+        }
+      }
+      if (i == len) {
+        return sets[e];
+      }
+    }
+  }
+}
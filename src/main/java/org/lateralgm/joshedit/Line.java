@@ -17,6 +17,19 @@ public class Line {
   public StringBuilder sbuild;
   /** A bit string indicating line attributes. A value less than zero marks invalidity. */
   public long attr;
+  /**
+   * Incremented each time this line is reported changed. Anything cached about this line
+   * is valid only as long as the revision it was computed for matches this one.
+   */
+  public int revision;
+  /** Token information cached by the active TokenMarker, or null. */
+  Object tokenCache;
+  /** The tab stops of this line, cached by {@link TabIndex#of(Line)}, or null. */
+  TabIndex tabs;
+  /** The length this line was counted with in its Code's line lengths, or -1. */
+  int measured = -1;
+  /** The brackets of this line, cached by {@link BracketIndex#brackets(int)}, or null. */
+  BracketIndex.Brackets brackets;
 
   /**
    * @author Josh Ventura
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This file is part of JoshEdit. JoshEdit is free software.
+ * You can use, modify, and distribute it under the terms of
+ * the GNU General Public License, version 3 or later.
+ */
+
+package org.lateralgm.joshedit;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Insets;
+import java.util.Arrays;
+
+import org.lateralgm.joshedit.JoshText.CodeMetrics;
+import org.lateralgm.joshedit.JoshText.Highlighter;
+
+/**
+ * A layer of highlighting which fills ranges of characters within lines, such as search
+ * hits or diagnostics. Subclasses say which ranges to fill on a line; this class asks only
+ * about the lines being painted, and remembers the answers for as long as each line keeps
+ * its revision, so a repaint that changes nothing asks nothing.
+ * <p>
+ * Whatever else the ranges depend on, the subclass reports through {@link #invalidate()}.
+ *
+ * @author agent
+ */
+public abstract class LineHighlighter implements Highlighter {
+  /** The ranges of a line with nothing to fill. */
+  private static final int[] NONE = new int[0];
+
+  /** The code highlighted. */
+  protected final Code code;
+  /** The color in which ranges are filled. */
+  private Color color;
+  /** The row of the first line in the window of lines remembered. */
+  private int first;
+  /** The lines remembered, from the first in the window; null where nothing is. */
+  private Line[] lines = new Line[0];
+  /** The revision of each line remembered when its ranges were found. */
+  private int[] revisions = new int[0];
+  /** The ranges found on each line remembered. */
+  private int[][] ranges = new int[0][];
+  /** The lines being painted. */
+  private Line[] painted = new Line[0];
+
+  /**
+   * @param code
+   *        The code to highlight.
+   * @param color
+   *        The color in which to fill ranges.
+   */
+  protected LineHighlighter(Code code, Color color) {
+    this.code = code;
+    this.color = color;
+  }
+
+  /**
+   * @param row
+   *        The index of a line.
+   * @param line
+   *        The line.
+   * @return The ranges to fill on the line, as start and end positions in pairs, in order;
+   *         or null if there are none.
+   */
+  protected abstract int[] mark(int row, Line line);
+
+  /** Forget every range found, as something other than the lines has changed. */
+  public void invalidate() {
+    Arrays.fill(lines, null);
+  }
+
+  /**
+   * @param c
+   *        The color in which to fill ranges.
+   */
+  public void setColor(Color c) {
+    color = c;
+  }
+
+  /** @return The color in which ranges are filled. */
+  public Color getColor() {
+    return color;
+  }
+
+  /**
+   * Move the window of remembered lines, if need be, so that it covers the given rows,
+   * keeping what the old window and the new have in common.
+   *
+   * @param start
+   *        The first row to cover.
+   * @param n
+   *        The number of rows to cover.
+   */
+  private void cover(int start, int n) {
+    final int cap = lines.length;
+    if (n > cap) {
+      lines = new Line[n];
+      revisions = new int[n];
+      ranges = new int[n][];
+      painted = new Line[n];
+      first = start;
+      return;
+    }
+    if (start >= first && start + n <= first + cap) {
+      return;
+    }
+    final int d = start - first, keep = cap - Math.abs(d);
+    if (keep <= 0) {
+      invalidate();
+    } else {
+      final int from = Math.max(d, 0), to = Math.max(-d, 0);
+      System.arraycopy(lines, from, lines, to, keep);
+      System.arraycopy(revisions, from, revisions, to, keep);
+      System.arraycopy(ranges, from, ranges, to, keep);
+      Arrays.fill(lines, d > 0? keep : 0, d > 0? cap : cap - keep, null);
+    }
+    first = start;
+  }
+
+  @Override
+  public void paint(Graphics g, Insets i, CodeMetrics gm, int line_start, int line_end) {
+    final int n = Math.min(line_end, code.size()) - line_start;
+    if (n <= 0) {
+      return;
+    }
+    cover(line_start, n);
+    code.getLines(line_start, painted, n);
+    final Color rc = g.getColor();
+    g.setColor(color);
+    final int gh = gm.lineHeight();
+    for (int k = 0; k < n; k++) {
+      final Line line = painted[k];
+      final int row = line_start + k, c = row - first;
+      if (lines[c] != line || revisions[c] != line.revision) {
+        final int[] r = mark(row, line);
+        ranges[c] = r == null? NONE : r;
+        lines[c] = line;
+        revisions[c] = line.revision;
+      }
+      final int[] r = ranges[c];
+      for (int j = 0; j + 1 < r.length; j += 2) {
+        final int x1 = gm.lineWidth(row, r[j]), x2 = gm.lineWidth(row, r[j + 1]);
+        g.fillRect(i.left + x1, i.top + row * gh, x2 - x1, gh);
+      }
+    }
+    Arrays.fill(painted, null);
+    g.setColor(rc);
+  }
+}
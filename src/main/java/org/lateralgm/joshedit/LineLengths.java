@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This file is part of JoshEdit. JoshEdit is free software.
+ * You can use, modify, and distribute it under the terms of
+ * the GNU General Public License, version 3 or later.
+ */
+
+package org.lateralgm.joshedit;
+
+import java.util.Arrays;
+import java.util.TreeMap;
+
+/**
+ * A counted multiset of the lengths of the lines of a Code, so that the length of the
+ * longest line is known without scanning every line. Each line remembers the length it was
+ * counted with, so it can be uncounted after it has been edited in place.
+ * <p>
+ * Short lengths are counted in an array; the rare long ones in a sorted map, so a single
+ * very long line does not cost an array as long as itself.
+ *
+ * @author agent
+ */
+final class LineLengths {
+  /** Lengths below this are counted in the array. */
+  private static final int SHORT_LIMIT = 4096;
+  /** The number of lines of each short length. */
+  private final int[] counts = new int[SHORT_LIMIT];
+  /** The number of lines of each long length. */
+  private final TreeMap<Integer, Integer> longCounts = new TreeMap<Integer, Integer>();
+  /** No short line is longer than this, though a line this long may have been removed. */
+  private int shortMax;
+
+  /**
+   * Count a line, with its current length.
+   *
+   * @param line
+   *        The line to count.
+   */
+  void add(Line line) {
+    final int n = line.sbuild.length();
+    line.measured = n;
+    if (n < SHORT_LIMIT) {
+      counts[n]++;
+      if (n > shortMax) {
+        shortMax = n;
+      }
+    } else {
+      Integer c = longCounts.get(n);
+      longCounts.put(n, c == null? 1 : c + 1);
+    }
+  }
+
+  /**
+   * Uncount a line, with the length it was counted with.
+   *
+   * @param line
+   *        The line to uncount; nothing happens if it was not counted.
+   */
+  void remove(Line line) {
+    final int n = line.measured;
+    if (n < 0) {
+      return;
+    }
+    line.measured = -1;
+    if (n < SHORT_LIMIT) {
+      counts[n]--;
+    } else {
+      int c = longCounts.get(n);
+      if (c == 1) {
+        longCounts.remove(n);
+      } else {
+        longCounts.put(n, c - 1);
+      }
+    }
+  }
+
+  /**
+   * Recount a line, if its length has changed since it was counted.
+   *
+   * @param line
+   *        The line to recount.
+   */
+  void update(Line line) {
+    if (line.measured != line.sbuild.length()) {
+      remove(line);
+      add(line);
+    }
+  }
+
+  /** Uncount every line; the lines themselves are assumed to be discarded. */
+  void clear() {
+    Arrays.fill(counts, 0, shortMax + 1, 0);
+    longCounts.clear();
+    shortMax = 0;
+  }
+
+  /** @return The length of the longest line counted, or zero if there are none. */
+  int max() {
+    if (!longCounts.isEmpty()) {
+      return longCounts.lastKey();
+    }
+    while (shortMax > 0 && counts[shortMax] == 0) {
+      shortMax--;
+    }
+    return shortMax;
+  }
+}
@@ -49,6 +49,15 @@ public class LineNumberPanel extends JPanel {
   /** The background color of this panel. */
   private Color bgColor = DEFAULT_LIGHT_BACKGROUND;
 
+  /** The font whose digits were last measured, or null. */
+  private Font digitFont;
+  /** The advance of each digit in that font. */
+  private final int[] digitWidths = new int[10];
+  /** The advance of the widest digit in that font. */
+  private int digitAdvance;
+  /** Buffer into which line numbers are formatted, right-aligned, so painting allocates none. */
+  private final char[] numberChars = new char[11];
+
   /**
    * @param metrics
    *        The font metrics to use to paint numbers at the correct position.
@@ -84,9 +93,15 @@ public class LineNumberPanel extends JPanel {
    *        The number of lines.
    */
   public void setLines(int lines) {
+    final int old = this.lines;
     this.lines = lines + (startZero? 0 : 1);
+    if (this.lines == old) {
+      return; // Most edits do not change the number of lines.
+    }
     resize();
-    repaint();
+    // Only the numbers between the old last line and the new one appear or disappear.
+    final int gh = metrics.getHeight(), first = Math.min(old, this.lines) - (startZero? 0 : 1);
+    repaint(0, Math.max(first, 0) * gh, getWidth(), (Math.abs(this.lines - old) + 1) * gh);
   }
 
   /** Set the colors used to render this panel from a {@link ColorProfile}. */
@@ -106,15 +121,58 @@ public class LineNumberPanel extends JPanel {
    * @return appropriate width for the line number component or to print one
    */
   public int getLineNumberWidth(int maxline) {
-    // find the advance of the widest number
-    int[] widths = getFontMetrics(getFont()).getWidths();
-    int maxAdvance = 0;
-    for (int i = '0'; i <= '9'; i++) {
-      if (widths[i] > maxAdvance) {
-        maxAdvance = widths[i];
-      }
+    measureDigits();
+    return digitAdvance * (int) Math.max(Math.log10(maxline - (startZero? 1 : 0)) + 2, 2);
+  }
+
+  /** Measure the digits of our font, if it has changed since they were last measured. */
+  private void measureDigits() {
+    Font f = getFont();
+    if (f != digitFont) {
+      digitFont = f;
+      digitAdvance = measureDigits(getFontMetrics(f), digitWidths);
+    }
+  }
+
+  /**
+   * @param fm
+   *        The metrics of the font in which numbers are drawn.
+   * @param widths
+   *        An array of ten, to which to write the advance of each digit.
+   * @return The advance of the widest digit.
+   */
+  private static int measureDigits(FontMetrics fm, int[] widths) {
+    int max = 0;
+    for (int d = 0; d < 10; d++) {
+      widths[d] = fm.charWidth('0' + d);
+      max = Math.max(max, widths[d]);
     }
-    return maxAdvance * (int) Math.max(Math.log10(maxline - (startZero? 1 : 0)) + 2, 2);
+    return max;
+  }
+
+  /**
+   * Draw a line number, right-aligned, from the measured advances of its digits.
+   *
+   * @param g
+   *        The graphics object to which to draw.
+   * @param n
+   *        The number to draw.
+   * @param right
+   *        The x coordinate at which the number should end.
+   * @param y
+   *        The baseline on which to draw.
+   * @param widths
+   *        The advance of each digit in the font of the graphics object.
+   */
+  private void drawNumber(Graphics g, int n, int right, int y, int[] widths) {
+    int p = numberChars.length, w = 0;
+    do {
+      final int d = n % 10;
+      numberChars[--p] = (char) ('0' + d);
+      w += widths[d];
+      n /= 10;
+    } while (n > 0);
+    g.drawChars(numberChars, p, numberChars.length - p, right - w, y);
   }
 
   /**
@@ -165,11 +223,12 @@ public class LineNumberPanel extends JPanel {
     g.setColor(fgColor);
 
     g.setFont(this.getFont());
+    // The printer's metrics may differ from the screen's, so measure against them.
+    int[] widths = new int[10];
+    measureDigits(g.getFontMetrics(), widths);
 
     for (int y = insetY; lineNum < lines && y <= end; lineNum++, y += gh) {
-      String str = Integer.toString(lineNum);
-      int strw = (int) g.getFontMetrics().getStringBounds(str, g).getWidth();
-      g.drawString(str, size.width - strw - 3, y);
+      drawNumber(g, lineNum, size.width - 3, y, widths);
     }
   }
 
@@ -184,11 +243,15 @@ public class LineNumberPanel extends JPanel {
       ((Graphics2D) g).addRenderingHints((Map<?, ?>) map);
     }
 
-    Rectangle clip = this.getVisibleRect();
+    // Paint only the rows asked for, such as those scrolled into view.
+    Rectangle clip = g.getClipBounds();
+    if (clip == null) {
+      clip = getVisibleRect();
+    }
     // line numbering is always there regardless of horizontal scroll
     // if you don't make the width static and drag the code editor
     // so that line numbers are outside the mdi area, the numbers smudge
-    clip.setSize(this.getWidth(), clip.height);
+    final int width = getWidth();
     final int insetY = metrics.getLeading() + metrics.getAscent();
     final int gh = metrics.getHeight();
     int lineNum = clip.y / gh;
@@ -199,16 +262,14 @@ public class LineNumberPanel extends JPanel {
     }
 
     g.setColor(bgColor);
-    // g.fillRect(clip.x,clip.y,clip.width,clip.height);
-    g.fillRect(0, 0, getWidth(), getHeight());
+    g.fillRect(0, clip.y, width, clip.height);
     g.setColor(fgColor);
 
     g.setFont(this.getFont());
+    measureDigits();
 
     for (int y = start; lineNum < lines && y <= end; lineNum++, y += gh) {
-      String str = Integer.toString(lineNum);
-      int strw = (int) g.getFontMetrics().getStringBounds(str, g).getWidth();
-      g.drawString(str, clip.width - strw - 3, y);
+      drawNumber(g, lineNum, width - 3, y, digitWidths);
     }
   }
 }
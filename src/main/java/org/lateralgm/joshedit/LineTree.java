@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This file is part of JoshEdit. JoshEdit is free software.
+ * You can use, modify, and distribute it under the terms of
+ * the GNU General Public License, version 3 or later.
+ */
+
+package org.lateralgm.joshedit;
+
+import java.util.Arrays;
+
+/**
+ * Line storage implemented as a balanced tree of small line chunks (a rope over lines).
+ * Each branch records how many lines live beneath it, so finding, inserting, and removing
+ * a line by index costs a walk from the root instead of shifting every following line.
+ *
+ * @author agent
+ */
+public class LineTree implements Code.LineStore {
+  /** The maximum number of lines held in one leaf chunk. */
+  static final int LEAF_MAX = 64;
+  /** The maximum number of children held by one branch. */
+  static final int BRANCH_MAX = 32;
+
+  /** A node in our tree; knows how many lines it contains. */
+  abstract static class Node {
+    /** The number of lines stored beneath this node. */
+    int size;
+  }
+
+  /** A chunk of consecutive lines. */
+  static final class Leaf extends Node {
+    /** The lines in this chunk; only the first <code>size</code> are used. */
+    final Line[] lines = new Line[LEAF_MAX];
+  }
+
+  /** A branch, indexing its children by line count. */
+  static final class Branch extends Node {
+    /** Our child nodes; only the first <code>count</code> are used. */
+    final Node[] kids = new Node[BRANCH_MAX];
+    /** The number of children in use. */
+    int count;
+  }
+
+  /** The root of our tree. */
+  private Node root = new Leaf();
+
+  /** @see org.lateralgm.joshedit.Code.LineStore#size() */
+  @Override
+  public int size() {
+    return root.size;
+  }
+
+  /** @see org.lateralgm.joshedit.Code.LineStore#get(int) */
+  @Override
+  public Line get(int index) {
+    Node n = root;
+    while (n instanceof Branch) {
+      Branch b = (Branch) n;
+      int k = 0;
+      while (index >= b.kids[k].size) {
+        index -= b.kids[k++].size;
+      }
+      n = b.kids[k];
+    }
+    return ((Leaf) n).lines[index];
+  }
+
+  /** @see org.lateralgm.joshedit.Code.LineStore#get(int, org.lateralgm.joshedit.Line[], int) */
+  @Override
+  public void get(int index, Line[] out, int count) {
+    if (count > 0) {
+      copy(root, index, out, 0, count);
+    }
+  }
+
+  /**
+   * Copy a run of lines from beneath the given node.
+   *
+   * @param n
+   *        The node from beneath which to copy.
+   * @param index
+   *        The index of the first line to copy, relative to the node.
+   * @param out
+   *        The array to which to copy.
+   * @param off
+   *        The index in the array at which to begin.
+   * @param count
+   *        The greatest number of lines to copy.
+   * @return The number of lines copied; fewer than requested if the node ran out.
+   */
+  private static int copy(Node n, int index, Line[] out, int off, int count) {
+    if (n instanceof Leaf) {
+      int c = Math.min(count, n.size - index);
+      System.arraycopy(((Leaf) n).lines, index, out, off, c);
+      return c;
+    }
+    Branch b = (Branch) n;
+    int k = 0;
+    while (index >= b.kids[k].size) {
+      index -= b.kids[k++].size;
+    }
+    int done = 0;
+    for (; k < b.count && done < count; k++, index = 0) {
+      done += copy(b.kids[k], index, out, off + done, count - done);
+    }
+    return done;
+  }
+
+  /** @see org.lateralgm.joshedit.Code.LineStore#set(int, org.lateralgm.joshedit.Line) */
+  @Override
+  public Line set(int index, Line line) {
+    Node n = root;
+    while (n instanceof Branch) {
+      Branch b = (Branch) n;
+      int k = 0;
+      while (index >= b.kids[k].size) {
+        index -= b.kids[k++].size;
+      }
+      n = b.kids[k];
+    }
+    Line[] lines = ((Leaf) n).lines;
+    Line r = lines[index];
+    lines[index] = line;
+    return r;
+  }
+
+  /** @see org.lateralgm.joshedit.Code.LineStore#add(int, org.lateralgm.joshedit.Line) */
+  @Override
+  public void add(int index, Line line) {
+    Node split = insert(root, index, line);
+    if (split != null) {
+      Branch b = new Branch();
+      b.kids[0] = root;
+      b.kids[1] = split;
+      b.count = 2;
+      b.size = root.size + split.size;
+      root = b;
+    }
+  }
+
+  /**
+   * Insert a line beneath the given node.
+   *
+   * @param n
+   *        The node under which to insert.
+   * @param index
+   *        The index, relative to the node, at which to insert.
+   * @param line
+   *        The line to insert.
+   * @return A new right sibling for the node if it had to be split, or null.
+   */
+  private static Node insert(Node n, int index, Line line) {
+    if (n instanceof Leaf) {
+      Leaf l = (Leaf) n;
+      if (l.size < LEAF_MAX) {
+        System.arraycopy(l.lines, index, l.lines, index + 1, l.size - index);
+        l.lines[index] = line;
+        l.size++;
+        return null;
+      }
+      Leaf r = new Leaf();
+      if (index == LEAF_MAX) {
+        // Appending to a full chunk; start a fresh one so loaded documents pack densely.
+        r.lines[0] = line;
+        r.size = 1;
+        return r;
+      }
+      int half = LEAF_MAX / 2;
+      System.arraycopy(l.lines, half, r.lines, 0, LEAF_MAX - half);
+      Arrays.fill(l.lines, half, LEAF_MAX, null);
+      l.size = half;
+      r.size = LEAF_MAX - half;
+      if (index <= half) {
+        insert(l, index, line);
+      } else {
+        insert(r, index - half, line);
+      }
+      return r;
+    }
+
+    Branch b = (Branch) n;
+    int k = 0;
+    while (k < b.count - 1 && index > b.kids[k].size) {
+      index -= b.kids[k++].size;
+    }
+    b.size++;
+    Node split = insert(b.kids[k], index, line);
+    if (split == null) {
+      return null;
+    }
+    if (b.count < BRANCH_MAX) {
+      System.arraycopy(b.kids, k + 1, b.kids, k + 2, b.count - k - 1);
+      b.kids[k + 1] = split;
+      b.count++;
+      return null;
+    }
+
+    // Make room by splitting this branch in half, then place the new child.
+    Branch r = new Branch();
+    if (k == BRANCH_MAX - 1) {
+      r.kids[0] = split;
+      r.count = 1;
+      r.size = split.size;
+      b.size -= split.size;
+      return r;
+    }
+    int half = BRANCH_MAX / 2;
+    System.arraycopy(b.kids, half, r.kids, 0, BRANCH_MAX - half);
+    Arrays.fill(b.kids, half, BRANCH_MAX, null);
+    b.count = half;
+    r.count = BRANCH_MAX - half;
+    Branch into = b;
+    if (k >= half) {
+      into = r;
+      k -= half;
+    }
+    System.arraycopy(into.kids, k + 1, into.kids, k + 2, into.count - k - 1);
+    into.kids[k + 1] = split;
+    into.count++;
+    b.size = sumSizes(b);
+    r.size = sumSizes(r);
+    return r;
+  }
+
+  /**
+   * @param b
+   *        The branch whose children to total.
+   * @return The number of lines held by the children of the given branch.
+   */
+  private static int sumSizes(Branch b) {
+    int s = 0;
+    for (int i = 0; i < b.count; i++) {
+      s += b.kids[i].size;
+    }
+    return s;
+  }
+
+  /** @see org.lateralgm.joshedit.Code.LineStore#remove(int) */
+  @Override
+  public Line remove(int index) {
+    Line r = remove(root, index);
+    // Collapse branches left with a single child so the tree stays shallow.
+    while (root instanceof Branch && ((Branch) root).count == 1) {
+      root = ((Branch) root).kids[0];
+    }
+    if (root instanceof Branch && root.size == 0) {
+      root = new Leaf();
+    }
+    return r;
+  }
+
+  /**
+   * Remove a line from beneath the given node. Children left empty are unlinked, and
+   * undersized neighbors are merged, keeping the tree balanced.
+   *
+   * @param n
+   *        The node from beneath which to remove.
+   * @param index
+   *        The index of the line, relative to the node.
+   * @return The removed line.
+   */
+  private static Line remove(Node n, int index) {
+    n.size--;
+    if (n instanceof Leaf) {
+      Leaf l = (Leaf) n;
+      Line r = l.lines[index];
+      System.arraycopy(l.lines, index + 1, l.lines, index, l.size - index);
+      l.lines[l.size] = null;
+      return r;
+    }
+
+    Branch b = (Branch) n;
+    int k = 0;
+    while (index >= b.kids[k].size) {
+      index -= b.kids[k++].size;
+    }
+    Node kid = b.kids[k];
+    Line r = remove(kid, index);
+    if (kid.size == 0) {
+      unlink(b, k);
+    } else if (k + 1 < b.count) {
+      mergeIfSmall(b, k);
+    } else if (k > 0) {
+      mergeIfSmall(b, k - 1);
+    }
+    return r;
+  }
+
+  /**
+   * Remove a child from a branch.
+   *
+   * @param b
+   *        The branch to remove from.
+   * @param k
+   *        The index of the child to remove.
+   */
+  private static void unlink(Branch b, int k) {
+    System.arraycopy(b.kids, k + 1, b.kids, k, b.count - k - 1);
+    b.kids[--b.count] = null;
+  }
+
+  /**
+   * Merge two adjacent children of a branch if they fit together in one node.
+   *
+   * @param b
+   *        The parent branch.
+   * @param k
+   *        The index of the left child of the pair.
+   */
+  private static void mergeIfSmall(Branch b, int k) {
+    Node a = b.kids[k], c = b.kids[k + 1];
+    if (a instanceof Leaf) {
+      Leaf la = (Leaf) a, lc = (Leaf) c;
+      if (la.size + lc.size > LEAF_MAX / 2) {
+        return;
+      }
+      System.arraycopy(lc.lines, 0, la.lines, la.size, lc.size);
+      la.size += lc.size;
+    } else {
+      Branch ba = (Branch) a, bc = (Branch) c;
+      if (ba.count + bc.count > BRANCH_MAX / 2) {
+        return;
+      }
+      System.arraycopy(bc.kids, 0, ba.kids, ba.count, bc.count);
+      ba.count += bc.count;
+      ba.size += bc.size;
+    }
+    unlink(b, k + 1);
+  }
+
+  /** @see org.lateralgm.joshedit.Code.LineStore#clear() */
+  @Override
+  public void clear() {
+    root = new Leaf();
+  }
+}
@@ -29,6 +29,8 @@ import javax.swing.JLabel;
 import javax.swing.JTextField;
 import javax.swing.JToggleButton;
 import javax.swing.JToolBar;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 
 import org.lateralgm.joshedit.Code.FindResults;
 import org.lateralgm.joshedit.FindDialog.FindNavigator;
@@ -118,6 +120,12 @@ public class QuickFind extends JToolBar implements FindNavigator {
   Mode mode = Mode.mode_find;
   /** The most recent find result. */
   protected FindResults lastResult = null;
+  /** The search last compiled from the find field, reused until the field or options change. */
+  private CodeSearch search;
+  /** The text {@link #search} was compiled from. */
+  private String searchText;
+  /** The regular expression and case sensitivity options {@link #search} was compiled with. */
+  private boolean searchRegex, searchSens;
 
   /** True if the Find/Replace text should be bolded on hover. */
   public boolean boldFontOnHover = false;
@@ -166,6 +174,8 @@ public class QuickFind extends JToolBar implements FindNavigator {
       @Override
       public void actionPerformed(ActionEvent e) {
         setVisible(false);
+        highlight.setSelected(false);
+        updateHighlight();
       }
     });
     prev.addActionListener(new ActionListener() {
@@ -180,6 +190,28 @@ public class QuickFind extends JToolBar implements FindNavigator {
         findNext();
       }
     });
+    highlight.addActionListener(new ActionListener() {
+      @Override
+      public void actionPerformed(ActionEvent e) {
+        updateHighlight();
+      }
+    });
+    tFind.getDocument().addDocumentListener(new DocumentListener() {
+      @Override
+      public void insertUpdate(DocumentEvent e) {
+        updateHighlight();
+      }
+
+      @Override
+      public void removeUpdate(DocumentEvent e) {
+        updateHighlight();
+      }
+
+      @Override
+      public void changedUpdate(DocumentEvent e) {
+        updateHighlight();
+      }
+    });
     tFind.addActionListener(new ActionListener() {
       @Override
       public void actionPerformed(ActionEvent e) {
@@ -311,43 +343,67 @@ public class QuickFind extends JToolBar implements FindNavigator {
     return res;
   }
 
-  /** @see org.lateralgm.joshedit.FindDialog.FindNavigator#findNext() */
-  @Override
-  public void findNext() {
-    if (FindDialog.wrap.isSelected() && joshText.caret.row == joshText.getLineCount() - 1) {
-      joshText.caret.col = 0;
-      joshText.caret.row = 0;
+  /**
+   * Highlight every match of the text in the find field, if Highlight All is selected;
+   * otherwise, highlight nothing.
+   */
+  protected void updateHighlight() {
+    CodeSearch s = highlight.isSelected()? searcher() : null;
+    if (s != joshText.searchHits.getSearch()) {
+      joshText.searchHits.setSearch(s);
+      joshText.repaint();
     }
-    // TODO: I have no idea how multiline regexp search will be handled.
+  }
+
+  /**
+   * Compile a search for the text in the find field, as the find options ask.
+   *
+   * @return The search, or null if the field is empty or holds a bad regular expression.
+   */
+  protected CodeSearch searcher() {
     String ftext = tFind.getText();
     if (ftext.length() == 0) {
-      return;
+      return null;
+    }
+    boolean rx = FindDialog.regex.isSelected();
+    boolean sens = FindDialog.sens != null && FindDialog.sens.isSelected();
+    if (search != null && ftext.equals(searchText) && rx == searchRegex && sens == searchSens) {
+      return search;
     }
-    if (FindDialog.regex.isSelected()) {
-      Pattern p;
+    if (rx) {
       try {
-        p = Pattern.compile(ftext, Pattern.CASE_INSENSITIVE);
+        search = CodeSearch.regex(Pattern.compile(ftext, sens? 0 : Pattern.CASE_INSENSITIVE
+            | Pattern.UNICODE_CASE));
       } catch (PatternSyntaxException pse) {
         System.out.println("Shit man, your expression sucks");
-        return;
+        return search = null;
       }
-      lastResult =
-          joshText.code.findNext(p, joshText.caret.row,
-              joshText.caret.col + (joshText.sel.isEmpty()? 0 : 1));
-      if (lastResult != null) {
-        selectFind(lastResult);
-      }
-      return;
+    } else {
+      search = CodeSearch.literal(ftext.split("\r?\n", -1), sens); //$NON-NLS-1$
     }
-    String[] findme = ftext.split("\r?\n"); //$NON-NLS-1$
+    searchText = ftext;
+    searchRegex = rx;
+    searchSens = sens;
+    return search;
+  }
 
+  /** @see org.lateralgm.joshedit.FindDialog.FindNavigator#findNext() */
+  @Override
+  public void findNext() {
+    if (FindDialog.wrap.isSelected() && joshText.caret.row == joshText.getLineCount() - 1) {
+      joshText.caret.col = 0;
+      joshText.caret.row = 0;
+    }
+    CodeSearch s = searcher();
+    if (s == null) {
+      return;
+    }
     lastResult =
-        joshText.code.findNext(findme, joshText.caret.row,
+        s.next(joshText.code, joshText.caret.row,
             joshText.caret.col + (joshText.sel.isEmpty()? 0 : 1));
     if (lastResult != null) {
       selectFind(lastResult);
     }
-    return;
   }
 
   /** @see org.lateralgm.joshedit.FindDialog.FindNavigator#findPrevious() */
@@ -357,15 +413,11 @@ public class QuickFind extends JToolBar implements FindNavigator {
       joshText.caret.col = 0;
       joshText.caret.row = 0;
     }
-    String ftext = tFind.getText();
-    if (ftext.length() == 0) {
-      return;
-    }
-    if (FindDialog.regex.isSelected()) {
+    CodeSearch s = searcher();
+    if (s == null) {
       return;
     }
-    String[] findme = ftext.split("\r?\n"); //$NON-NLS-1$
-    lastResult = joshText.code.findPrevious(findme, joshText.caret.row, joshText.caret.col);
+    lastResult = s.previous(joshText.code, joshText.caret.row, joshText.caret.col);
     if (lastResult != null) {
       selectFind(lastResult);
     }
@@ -403,55 +455,14 @@ public class QuickFind extends JToolBar implements FindNavigator {
       joshText.caret.row = 0;
     }
 
-    int count = 0;
     toggleModeReplace();
-
-    String ftext = tFind.getText();
-    if (ftext.length() == 0) {
-      return count;
+    CodeSearch s = searcher();
+    if (s == null) {
+      return 0;
     }
-    if (FindDialog.regex.isSelected()) {
-      Pattern p;
-      try {
-        p = Pattern.compile(ftext, Pattern.CASE_INSENSITIVE);
-      } catch (PatternSyntaxException pse) {
-        System.out.println("Shit man, your expression sucks");
-        return count;
-      }
-
-      Boolean resultsExist = true;
-      while (resultsExist) {
-        lastResult =
-            joshText.code.findNext(p, joshText.caret.row,
-                joshText.caret.col + (joshText.sel.isEmpty()? 0 : 1));
-        if (lastResult != null) {
-          selectFind(lastResult);
-          doReplace();
-          count += 1;
-        } else {
-          resultsExist = false;
-        }
-      }
-
-      return count;
-    }
-    String[] findme = ftext.split("\r?\n"); //$NON-NLS-1$
-
-    Boolean resultsExist = true;
-    while (resultsExist) {
-      lastResult =
-          joshText.code.findNext(findme, joshText.caret.row,
-              joshText.caret.col + (joshText.sel.isEmpty()? 0 : 1));
-      if (lastResult != null) {
-        selectFind(lastResult);
-        doReplace();
-        count += 1;
-      } else {
-        resultsExist = false;
-      }
-    }
-
-    return count;
+    lastResult = null;
+    return joshText.replaceAll(s, tReplace.getText(), joshText.caret.row,
+        joshText.caret.col + (joshText.sel.isEmpty()? 0 : 1));
   }
 
   /** @see org.lateralgm.joshedit.FindDialog.FindNavigator#replacePrevious() */
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This file is part of JoshEdit. JoshEdit is free software.
+ * You can use, modify, and distribute it under the terms of
+ * the GNU General Public License, version 3 or later.
+ */
+
+package org.lateralgm.joshedit;
+
+import java.awt.Color;
+
+import org.lateralgm.joshedit.JoshText.LineChangeListener;
+
+/**
+ * Highlights every match of a search on the lines being painted, as for Highlight All.
+ *
+ * @author agent
+ */
+final class SearchHighlighter extends LineHighlighter implements LineChangeListener {
+  /** The default color of a match. */
+  static final Color DEF_COL = new Color(255, 230, 150);
+
+  /** The search whose matches are highlighted, or null to highlight nothing. */
+  private CodeSearch search;
+
+  /**
+   * @param code
+   *        The code searched.
+   */
+  SearchHighlighter(Code code) {
+    super(code, DEF_COL);
+  }
+
+  /**
+   * @param s
+   *        The search whose matches to highlight, or null to highlight nothing.
+   */
+  void setSearch(CodeSearch s) {
+    if (s != search) {
+      search = s;
+      invalidate();
+    }
+  }
+
+  /** @return The search whose matches are highlighted, or null. */
+  CodeSearch getSearch() {
+    return search;
+  }
+
+  @Override
+  protected int[] mark(int row, Line line) {
+    return search == null? null : search.rangesIn(code, row, line.sbuild);
+  }
+
+  /** Matches spanning lines may change with lines other than their own. */
+  @Override
+  public void linesChanged(Code c, int start, int end) {
+    if (search != null && search.spansLines()) {
+      invalidate();
+    }
+  }
+}
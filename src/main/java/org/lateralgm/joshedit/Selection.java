@@ -57,6 +57,9 @@ public class Selection implements Highlighter {
    * If this and col are the same as the caret position, there is no selection.
    */
   int row;
+  /** The highlighter which paints the selection, reused for every paint. */
+  private final SortedRegionHighlighter regionHighlighter =
+      new SortedRegionHighlighter(null, ST.NORM);
 
   /**
    * @param txt
@@ -328,17 +331,30 @@ public class Selection implements Highlighter {
       case NORM:
         if (row == caret.row) {
           code.getsb(row).delete(Math.min(col, caret.col), Math.max(col, caret.col));
+          code.get(row).tabs = null; // Text may be typed back in before the change is fired.
           caret.col = col = Math.min(col, caret.col);
         } else if (row > caret.row) {
           code.getsb(row).replace(0, col, code.getsb(caret.row).substring(0, caret.col));
-          while (row > caret.row) {
-            code.remove(--row);
+          code.get(row).tabs = null;
+          code.beginBatch();
+          try {
+            while (row > caret.row) {
+              code.remove(--row);
+            }
+          } finally {
+            code.endBatch();
           }
           col = caret.col;
         } else {
           code.getsb(caret.row).replace(0, caret.col, code.getsb(row).substring(0, col));
-          while (caret.row > row) {
-            code.remove(--caret.row);
+          code.get(caret.row).tabs = null;
+          code.beginBatch();
+          try {
+            while (caret.row > row) {
+              code.remove(--caret.row);
+            }
+          } finally {
+            code.endBatch();
           }
           caret.col = col;
         }
@@ -351,6 +367,7 @@ public class Selection implements Highlighter {
           int ax1 = joshText.column_to_index(y, x1), ax2 = joshText.column_to_index(y, x2);
           if (ax1 < s.length()) {
             s.delete(ax1, Math.min(ax2, s.length()));
+            code.get(y).tabs = null;
           }
         }
         col = caret.col = x1;
@@ -458,21 +475,8 @@ public class Selection implements Highlighter {
         break;
       case RECT:
         deleteSel();
-        for (int y = Math.min(row, caret.row); y <= Math.max(row, caret.row); y++) {
-          if (joshText.column_in_tab(y, caret.col)) {
-            continue;
-          }
-          final int ipos = joshText.column_to_index_unsafe(y, caret.col);
-          StringBuilder s = code.getsb(y);
-          if (ipos > s.length()) {
-            StringBuilder spaces = new StringBuilder(ipos - s.length());
-            for (int i = 0; i < ipos - s.length(); i++) {
-              spaces.append(' ');
-            }
-            s.append(spaces);
-          }
-          s.insert(ipos, c);
-        }
+        insertColumn(Math.min(row, caret.row), Math.max(row, caret.row), caret.col,
+            new String[] { String.valueOf(c) }, true);
         col = ++caret.col;
         caret.colw = joshText.line_wid_at(caret.row, caret.col);
         break;
@@ -491,40 +495,72 @@ public class Selection implements Highlighter {
     if (lines.length > 0) {
       switch (type) {
         case NORM:
-          deleteSel();
-          StringBuilder l1 = code.getsb(caret.row);
-          String resub = l1.substring(col);
-          l1.replace(col, l1.length(), lines[0]);
-          caret.col += lines[0].length();
-          for (int y = 1; y < lines.length; y++) {
-            code.add(++caret.row, lines[y]);
-            caret.col = lines[y].length();
+          code.beginBatch();
+          try {
+            deleteSel();
+            StringBuilder l1 = code.getsb(caret.row);
+            String resub = l1.substring(col);
+            l1.replace(col, l1.length(), lines[0]);
+            caret.col += lines[0].length();
+            for (int y = 1; y < lines.length; y++) {
+              code.add(++caret.row, lines[y]);
+              caret.col = lines[y].length();
+            }
+            code.getsb(caret.row).append(resub);
+          } finally {
+            code.endBatch();
           }
-          code.getsb(caret.row).append(resub);
           col = caret.col;
           row = caret.row;
           caret.colw = joshText.line_wid_at(caret.row, caret.col);
           break;
         case RECT:
           deleteSel();
-          final int sr = Math.min(caret.row, row);
-          for (int i = 0; i <= Math.abs(caret.row - row); i++) {
-            final int ipos = joshText.column_to_index_unsafe(sr + i, caret.col);
-            StringBuilder s = code.getsb(sr + i);
-            if (ipos > s.length()) {
-              StringBuilder spaces = new StringBuilder(ipos - s.length());
-              for (int si = 0; si < ipos - s.length(); si++) {
-                spaces.append(' ');
-              }
-              s.append(spaces);
-            }
-            code.getsb(sr + i).insert(ipos, lines[i % lines.length]);
-          }
+          insertColumn(Math.min(caret.row, row), Math.max(caret.row, row), caret.col, lines,
+              false);
           break;
       }
     }
   }
 
+  /**
+   * Insert text at the same column of each of a block of rows, in one pass over the rows.
+   * Rows which do not reach the column are padded with spaces. The rows are fetched in one
+   * walk of the line tree, and each is placed by a binary search over its tab index. No
+   * change is fired; the caller's undo patch fires one for the whole block.
+   *
+   * @param sr
+   *        The first row of the block.
+   * @param er
+   *        The last row of the block.
+   * @param column
+   *        The column at which to insert.
+   * @param texts
+   *        The text to insert in each row, repeated if there are more rows than texts.
+   * @param skipTabs
+   *        Whether to leave alone rows in which the column lies inside a tab.
+   */
+  private void insertColumn(int sr, int er, int column, String[] texts, boolean skipTabs) {
+    final Line[] rows = new Line[er - sr + 1];
+    code.getLines(sr, rows, rows.length);
+    StringBuilder ins = new StringBuilder();
+    for (int i = 0; i < rows.length; i++) {
+      final Line line = rows[i];
+      final TabIndex ti = TabIndex.of(line);
+      if (skipTabs && ti.inTab(column)) {
+        continue;
+      }
+      final StringBuilder s = line.sbuild;
+      final int ipos = ti.indexUnsafe(column), at = Math.min(ipos, s.length());
+      ins.setLength(0);
+      for (int p = s.length(); p < ipos; p++) {
+        ins.append(' ');
+      }
+      ins.append(texts[i % texts.length]);
+      s.insert(at, ins);
+    }
+  }
+
   /**
    * @param str
    *        The text to insert.
@@ -537,8 +573,13 @@ public class Selection implements Highlighter {
         case NORM:
           deleteSel();
           int dcol = joshText.index_to_column(caret.row, caret.col);
-          while (caret.row + lines.length > code.size()) {
-            code.add(new Line(new StringBuilder(""))); //$NON-NLS-1$
+          code.beginBatch();
+          try {
+            while (caret.row + lines.length > code.size()) {
+              code.add(new Line(new StringBuilder(""))); //$NON-NLS-1$
+            }
+          } finally {
+            code.endBatch();
           }
           for (int i = 0; i < lines.length; i++) {
             int ipos = joshText.column_to_index_unsafe(caret.row + i, dcol);
@@ -818,6 +859,26 @@ public class Selection implements Highlighter {
     @Override
     public void paint(Graphics g, Insets i, CodeMetrics cm, int line_start, int line_end) {
       g.setColor(DEF_COL);
+      fill(g, i, cm, y, x1, x2);
+    }
+
+    /**
+     * Fill part of a row, in the current color.
+     *
+     * @param g
+     *        The graphics object to paint to.
+     * @param i
+     *        The insets of the canvas.
+     * @param cm
+     *        The string and glyph metrics for the code.
+     * @param y
+     *        The row to fill.
+     * @param x1
+     *        The first column to fill.
+     * @param x2
+     *        The column after the last to fill.
+     */
+    static void fill(Graphics g, Insets i, CodeMetrics cm, int y, int x1, int x2) {
       int gh = cm.lineHeight();
       int xx = cm.lineWidth(y, x1);
       g.fillRect(i.left + xx, i.top + y * gh, cm.lineWidth(y, x2) - xx, gh);
@@ -863,28 +924,35 @@ public class Selection implements Highlighter {
       // This section is fine without tab consideration because selected rectangles
       // are assumed to be completely column-based.
       if (type == ST.RECT) {
-        g.fillRect(i.left + r.getMinX() * gw, i.top + r.getMinY() * gh, (r.getMaxX() - r.getMinX())
-            * gw, (r.getMaxY() - r.getMinY() + 1) * gh);
+        // Only the rows being painted are filled.
+        final int y1 = Math.max(r.getMinY(), line_start), y2 = Math.min(r.getMaxY(), line_end - 1);
+        if (y1 <= y2) {
+          g.fillRect(i.left + r.getMinX() * gw, i.top + y1 * gh, (r.getMaxX() - r.getMinX())
+              * gw, (y2 - y1 + 1) * gh);
+        }
       } else if (r.getMaxY() == r.getMinY()) {
-        new SimpleHighlighter(r.getMinY(), r.getMinX(), r.getMaxX()).paint(g, i, cm, line_start,
-            line_end);
-        /*
-         * int xx = line_wid_at(r.getMinY(),r.getMinX());
-         * g.fillRect(i.left + xx,i.top + r.getMinY() * gh,line_wid_at(r.getMaxY(),r.getMaxX()) -
-         * xx,
-         * gh);
-         */
+        if (r.getMinY() >= line_start && r.getMinY() < line_end) {
+          SimpleHighlighter.fill(g, i, cm, r.getMinY(), r.getMinX(), r.getMaxX());
+        }
       } else if (type == ST.NORM) {
         Rectangle clip = g.getClipBounds();
 
         // First line
-        g.fillRect(i.left + cm.lineWidth(r.getMinY(), r.getMinX()), i.top + r.getMinY() * gh,
-            clip.width - cm.lineWidth(r.getMinY(), r.getMinX()) - i.left + clip.x, gh);
-        // Middle lines
-        g.fillRect(i.left + clip.x, i.top + (r.getMinY() + 1) * gh, clip.width,
-            (r.getMaxY() - r.getMinY() - 1) * gh);
+        if (r.getMinY() >= line_start && r.getMinY() < line_end) {
+          g.fillRect(i.left + cm.lineWidth(r.getMinY(), r.getMinX()), i.top + r.getMinY() * gh,
+              clip.width - cm.lineWidth(r.getMinY(), r.getMinX()) - i.left + clip.x, gh);
+        }
+        // Middle lines, as far as they are being painted
+        final int y1 = Math.max(r.getMinY() + 1, line_start);
+        final int y2 = Math.min(r.getMaxY() - 1, line_end - 1);
+        if (y1 <= y2) {
+          g.fillRect(i.left + clip.x, i.top + y1 * gh, clip.width, (y2 - y1 + 1) * gh);
+        }
         // Last line
-        g.fillRect(i.left, i.top + r.getMaxY() * gh, cm.lineWidth(r.getMaxY(), r.getMaxX()), gh);
+        if (r.getMaxY() >= line_start && r.getMaxY() < line_end) {
+          g.fillRect(i.left, i.top + r.getMaxY() * gh, cm.lineWidth(r.getMaxY(), r.getMaxX()),
+              gh);
+        }
       }
 
       g.setColor(rc);
@@ -903,7 +971,9 @@ public class Selection implements Highlighter {
     if (isEmpty()) {
       return;
     }
-    new SortedRegionHighlighter(getSortedRegion(), type).paint(g, i, cm, line_start, line_end);
+    regionHighlighter.r = getSortedRegion();
+    regionHighlighter.type = type;
+    regionHighlighter.paint(g, i, cm, line_start, line_end);
   }
 
   /**
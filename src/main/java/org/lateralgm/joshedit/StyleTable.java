@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This file is part of JoshEdit. JoshEdit is free software.
+ * You can use, modify, and distribute it under the terms of
+ * the GNU General Public License, version 3 or later.
+ */
+
+package org.lateralgm.joshedit;
+
+import java.awt.Color;
+import java.util.Arrays;
+
+/**
+ * The styles a marker paints with, each identified by a small integer. Token runs refer to
+ * their style by this number, so a run is three ints rather than an object.
+ *
+ * @author agent
+ */
+public final class StyleTable {
+  /** The font color of each style, or null to use the default. */
+  private Color[] colors = new Color[16];
+  /** The font style flags of each style, such as Font.BOLD. */
+  private int[] fontStyles = new int[16];
+  /** The block hash of each style; see {@link TokenMarker.TokenMarkerInfo#blockHash}. */
+  private int[] blockHashes = new int[16];
+  /** The number of styles. */
+  private int size;
+
+  /**
+   * Add a style to the table.
+   *
+   * @param fontStyle
+   *        The font style flags, such as Font.BOLD.
+   * @param color
+   *        The font color, or null to use the default.
+   * @param blockHash
+   *        The block hash of runs in this style.
+   * @return The number of the new style.
+   */
+  public int add(int fontStyle, Color color, int blockHash) {
+    if (size == colors.length) {
+      colors = Arrays.copyOf(colors, size * 2);
+      fontStyles = Arrays.copyOf(fontStyles, size * 2);
+      blockHashes = Arrays.copyOf(blockHashes, size * 2);
+    }
+    colors[size] = color;
+    fontStyles[size] = fontStyle;
+    blockHashes[size] = blockHash;
+    return size++;
+  }
+
+  /**
+   * Find a style in the table, adding it if it is not there yet.
+   *
+   * @param fontStyle
+   *        The font style flags, such as Font.BOLD.
+   * @param color
+   *        The font color, or null to use the default.
+   * @param blockHash
+   *        The block hash of runs in this style.
+   * @return The number of the style.
+   */
+  public int intern(int fontStyle, Color color, int blockHash) {
+    for (int i = 0; i < size; i++) {
+      if (fontStyles[i] == fontStyle && blockHashes[i] == blockHash
+          && (colors[i] == null? color == null : colors[i].equals(color))) {
+        return i;
+      }
+    }
+    return add(fontStyle, color, blockHash);
+  }
+
+  /** @return The number of styles in the table. */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @param style
+   *        The number of a style.
+   * @return Its font color, or null to use the default.
+   */
+  public Color color(int style) {
+    return colors[style];
+  }
+
+  /**
+   * @param style
+   *        The number of a style.
+   * @return Its font style flags.
+   */
+  public int fontStyle(int style) {
+    return fontStyles[style];
+  }
+
+  /**
+   * @param style
+   *        The number of a style.
+   * @return Its block hash.
+   */
+  public int blockHash(int style) {
+    return blockHashes[style];
+  }
+}
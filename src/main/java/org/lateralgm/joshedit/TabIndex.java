@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This file is part of JoshEdit. JoshEdit is free software.
+ * You can use, modify, and distribute it under the terms of
+ * the GNU General Public License, version 3 or later.
+ */
+
+package org.lateralgm.joshedit;
+
+import org.lateralgm.joshedit.JoshText.Settings;
+
+/**
+ * The tab stops of a line, cached on the line itself, so that conversions between character
+ * indices and columns are a binary search over the line's tabs, rather than a walk of the
+ * line from its start. Lines without tabs keep no arrays at all; their columns are their
+ * character indices.
+ * <p>
+ * An index is only used while the line has the revision, contents, and tab size it was
+ * built for, as with the styles a marker caches.
+ *
+ * @author agent
+ */
+final class TabIndex {
+  /** The StringBuilder of the line when this index was built. */
+  private final StringBuilder sbuild;
+  /** The length of the line when this index was built. */
+  final int length;
+  /** The revision of the line when this index was built. */
+  private final int revision;
+  /** The tab size this index was built with. */
+  private final int tabSize;
+  /** The position of each tab in the line, in order, or null if the line has none. */
+  private final int[] tabs;
+  /** The column at which the character following each tab renders. */
+  private final int[] after;
+
+  /**
+   * @param line
+   *        The line to index.
+   * @param ts
+   *        The tab size, in columns.
+   */
+  private TabIndex(Line line, int ts) {
+    sbuild = line.sbuild;
+    length = sbuild.length();
+    revision = line.revision;
+    tabSize = ts;
+    int n = 0;
+    for (int i = 0; i < length; i++) {
+      if (sbuild.charAt(i) == '\t') {
+        n++;
+      }
+    }
+    if (n == 0) {
+      tabs = after = null;
+      return;
+    }
+    tabs = new int[n];
+    after = new int[n];
+    for (int i = 0, col = 0, k = 0; i < length; i++) {
+      if (sbuild.charAt(i) == '\t') {
+        col = (col + ts) / ts * ts;
+        tabs[k] = i;
+        after[k++] = col;
+      } else {
+        col++;
+      }
+    }
+  }
+
+  /**
+   * @param line
+   *        A line.
+   * @return The tab index of the line, built first if the line has changed since it was
+   *         last asked for.
+   */
+  static TabIndex of(Line line) {
+    final int ts = Settings.indentSizeInSpaces;
+    TabIndex ti = line.tabs;
+    if (ti != null && ti.sbuild == line.sbuild && ti.length == line.sbuild.length()
+        && ti.revision == line.revision && ti.tabSize == ts) {
+      return ti;
+    }
+    line.tabs = ti = new TabIndex(line, ts);
+    return ti;
+  }
+
+  /**
+   * @param pos
+   *        A position in the line; positions past its end are treated as its end.
+   * @return The column at which the character at the given position renders.
+   */
+  int column(int pos) {
+    if (pos > length) {
+      pos = length;
+    } else if (pos < 0) {
+      return 0;
+    }
+    if (tabs == null) {
+      return pos;
+    }
+    final int k = tabsBefore(pos) - 1;
+    return k < 0? pos : after[k] + pos - tabs[k] - 1;
+  }
+
+  /**
+   * @param col
+   *        A column.
+   * @return The index of the first character in the line rendering at or past the column,
+   *         or the length of the line if it does not reach the column.
+   */
+  int index(int col) {
+    if (col <= 0) {
+      return 0;
+    }
+    if (tabs == null) {
+      return Math.min(col, length);
+    }
+    // Find the last tab ending at or before the column; the column lies in the run after it.
+    int lo = 0, hi = after.length;
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (after[mid] <= col) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    final int k = lo - 1;
+    final int runStart = k < 0? 0 : tabs[k] + 1, runCol = k < 0? 0 : after[k];
+    final int runEnd = k + 1 < tabs.length? tabs[k + 1] : length;
+    final int pos = runStart + col - runCol;
+    if (pos <= runEnd) {
+      return pos;
+    }
+    return k + 1 < tabs.length? tabs[k + 1] + 1 : length;
+  }
+
+  /**
+   * @param col
+   *        A column.
+   * @return The index of the character rendering at the column, as though the line were
+   *         followed by infinitely many spaces.
+   */
+  int indexUnsafe(int col) {
+    final int ind = index(col);
+    return ind + col - column(ind);
+  }
+
+  /**
+   * @param col
+   *        A column.
+   * @return Whether the column lies inside a tab, past its first column.
+   */
+  boolean inTab(int col) {
+    return col > 0 && column(index(col)) > col;
+  }
+
+  /**
+   * @param pos
+   *        A position in the line.
+   * @return The number of tabs before that position.
+   */
+  private int tabsBefore(int pos) {
+    int lo = 0, hi = tabs.length;
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (tabs[mid] < pos) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+}
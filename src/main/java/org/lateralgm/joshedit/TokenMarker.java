@@ -85,6 +85,76 @@ public interface TokenMarker extends LineChangeListener {
    */
   void formatCode(Code code);
 
+  /**
+   * Implemented by TokenMarkers which can prepare lines before they are painted.
+   * The editor reports the visible lines each time it paints. Such a marker may leave the
+   * lines past the viewport to be marked later, so the editor asks for lines to be prepared
+   * before it reads their styles.
+   */
+  public interface LookAhead {
+    /**
+     * @param code
+     *        The code being displayed.
+     * @param firstLine
+     *        The index of the first visible line.
+     * @param lastLine
+     *        The index of the last visible line.
+     */
+    void viewportChanged(Code code, int firstLine, int lastLine);
+
+    /**
+     * Make sure the styles of lines up to the given one are final before they are read.
+     *
+     * @param code
+     *        The code being displayed.
+     * @param lastLine
+     *        The index of the last line to be read.
+     */
+    void prepareLines(Code code, int lastLine);
+  }
+
+  /**
+   * Implemented by TokenMarkers which mark lines after the change that affects them has been
+   * reported, such as a {@link LookAhead} marker. When an edit opens or closes a block, lines
+   * below it change style when they are marked, and the editor must be told to repaint them.
+   */
+  public interface Restyling {
+    /**
+     * @param listener
+     *        The listener told of lines whose styles change as they are marked; or null.
+     */
+    void setRestyleListener(RestyleListener listener);
+  }
+
+  /** Told of lines whose styles a {@link Restyling} marker changed by marking them. */
+  public interface RestyleListener {
+    /**
+     * @param first
+     *        The index of the first line restyled.
+     * @param last
+     *        The index of the last line restyled.
+     */
+    void linesRestyled(int first, int last);
+  }
+
+  /**
+   * Implemented by TokenMarkers which can write the styles of a line as packed runs,
+   * without allocating. Use {@link TokenRuns#load(TokenMarker, Line)} to read the runs of
+   * any marker, whether or not it implements this.
+   */
+  public interface RunMarker {
+    /**
+     * Fill a TokenRuns with the styles of a line, in the same order and with the same
+     * positions as {@link TokenMarker#getStyles(Line)} would give them.
+     *
+     * @param jline
+     *        The line to style.
+     * @param out
+     *        The runs to fill; reset to this marker's style table first.
+     */
+    void getRuns(Line jline, TokenRuns out);
+  }
+
   /** Describes a language */
   public interface LanguageDescription {
     /** Retrieve the name of this language. */
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This file is part of JoshEdit. JoshEdit is free software.
+ * You can use, modify, and distribute it under the terms of
+ * the GNU General Public License, version 3 or later.
+ */
+
+package org.lateralgm.joshedit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.lateralgm.joshedit.TokenMarker.TokenMarkerInfo;
+
+/**
+ * The styled runs of a line, packed into one reusable int array as (start, end, style)
+ * triples. Styles are numbers into a {@link StyleTable}. A TokenRuns is meant to be kept and
+ * refilled, line after line, so reading the styles of a line allocates nothing once its
+ * array is large enough.
+ *
+ * @author agent
+ */
+public final class TokenRuns {
+  /** The array these runs own, reused each time they are refilled. */
+  private int[] own = new int[48];
+  /** The runs, as start, end, style triples: our own array, or one shared by a marker. */
+  private int[] runs = own;
+  /** The number of runs. */
+  private int count;
+  /** The table the styles of the runs refer to. */
+  private StyleTable styles;
+  /** The table used for markers which only give their styles as TokenMarkerInfo. */
+  private final StyleTable adapted = new StyleTable();
+
+  /**
+   * Remove all runs, and set the table their replacements will refer to.
+   *
+   * @param table
+   *        The table of the styles of the runs to come.
+   */
+  public void reset(StyleTable table) {
+    styles = table;
+    runs = own;
+    count = 0;
+  }
+
+  /**
+   * Replace the runs with runs packed as by {@link #toArray()}, without copying them. The
+   * array must not be changed while these runs refer to it.
+   *
+   * @param table
+   *        The table of the styles of the runs.
+   * @param packed
+   *        The runs, as start, end, style triples.
+   */
+  void share(StyleTable table, int[] packed) {
+    styles = table;
+    runs = packed;
+    count = packed.length / 3;
+  }
+
+  /**
+   * Append a run. Runs must be appended in order.
+   *
+   * @param start
+   *        The position in the line at which the run starts.
+   * @param end
+   *        The position at which it ends.
+   * @param style
+   *        The number of its style.
+   */
+  public void add(int start, int end, int style) {
+    final int p = count * 3;
+    if (p + 3 > own.length) {
+      own = Arrays.copyOf(own, Math.max(own.length * 2, p + 3));
+    }
+    if (runs != own) {
+      System.arraycopy(runs, 0, own, 0, p);
+      runs = own;
+    }
+    runs[p] = start;
+    runs[p + 1] = end;
+    runs[p + 2] = style;
+    count++;
+  }
+
+  /** @return The runs, packed as start, end, style triples, in an array of their own. */
+  int[] toArray() {
+    return Arrays.copyOf(runs, count * 3);
+  }
+
+  /** @return The number of runs. */
+  public int size() {
+    return count;
+  }
+
+  /**
+   * @param i
+   *        The index of a run.
+   * @return The position at which it starts.
+   */
+  public int start(int i) {
+    return runs[i * 3];
+  }
+
+  /**
+   * @param i
+   *        The index of a run.
+   * @return The position at which it ends.
+   */
+  public int end(int i) {
+    return runs[i * 3 + 1];
+  }
+
+  /**
+   * @param i
+   *        The index of a run.
+   * @return The number of its style.
+   */
+  public int style(int i) {
+    return runs[i * 3 + 2];
+  }
+
+  /** @return The table the styles of the runs refer to. */
+  public StyleTable getStyleTable() {
+    return styles;
+  }
+
+  /**
+   * Fill these runs with the styles of a line. Markers which do not produce runs themselves
+   * have their TokenMarkerInfo converted, against a style table kept by this instance.
+   *
+   * @param marker
+   *        The marker to ask.
+   * @param jline
+   *        The line to style.
+   */
+  public void load(TokenMarker marker, Line jline) {
+    if (marker instanceof TokenMarker.RunMarker) {
+      ((TokenMarker.RunMarker) marker).getRuns(jline, this);
+      return;
+    }
+    reset(adapted);
+    ArrayList<TokenMarkerInfo> tmall = marker.getStyles(jline);
+    for (int i = 0; i < tmall.size(); i++) {
+      TokenMarkerInfo tm = tmall.get(i);
+      add(tm.startPos, tm.endPos, adapted.intern(tm.fontStyle, tm.color, tm.blockHash));
+    }
+  }
+}
@@ -0,0 +1,463 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This file is part of JoshEdit. JoshEdit is free software.
+ * You can use, modify, and distribute it under the terms of
+ * the GNU General Public License, version 3 or later.
+ */
+
+package org.lateralgm.joshedit;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A single change to a Code, stored as the text removed and the text inserted at one
+ * position. Lines within either text are separated by '\n'. Undo history keeps these
+ * instead of copies of every line an edit touched, so the cost of a step is proportional
+ * to what actually changed. Very large texts are spilled to temporary files, written by a
+ * background thread; whatever of those files is left when the VM exits is deleted then.
+ *
+ * @author agent
+ */
+final class UndoDelta {
+  /** The charset in which spilled text is stored; maps chars to bytes exactly. */
+  private static final Charset SPILL_CHARSET = Charset.forName("UTF-16BE"); //$NON-NLS-1$
+  /** The estimated bookkeeping cost of a delta, in bytes, besides its text. */
+  private static final int OVERHEAD = 64;
+  /** Texts waiting to be written to their files. */
+  private static final BlockingQueue<Spill> PENDING = new LinkedBlockingQueue<Spill>();
+  /** The files holding spilled text which have not been deleted yet. Guarded by itself. */
+  private static final Set<File> SPILL_FILES = new HashSet<File>();
+  /** The thread writing spilled texts to their files, once one is needed. */
+  private static Thread spiller;
+  /** Set once the VM has begun to exit; no more files are made. Guarded by SPILL_FILES. */
+  private static boolean exiting;
+
+  /** The row at which the change begins. */
+  int row;
+  /** The column (index into the row) at which the change begins. */
+  int col;
+  /** The text removed by the change: a String, or a {@link Spill}. */
+  private Object removed;
+  /** The text inserted by the change: a String, or a {@link Spill}. */
+  private Object inserted;
+
+  /**
+   * Text too large to keep in memory, written to a temporary file. Until the background
+   * thread has written it, or if it could not, the text is kept in memory instead.
+   */
+  private static final class Spill {
+    /** The length of the text, in characters. */
+    final int length;
+    /** The text, while it is not written to the file; otherwise null. Guarded by this. */
+    private String text;
+    /** The file holding the text, once it is written; otherwise null. Guarded by this. */
+    private File file;
+    /** Set once the text is no longer needed. Guarded by this. */
+    private boolean discarded;
+
+    /**
+     * @param text
+     *        The text to hold.
+     */
+    Spill(String text) {
+      this.text = text;
+      length = text.length();
+    }
+
+    /** Write the text to a file of its own, and let go of it; called off the EDT. */
+    void write() {
+      final String t;
+      synchronized (this) {
+        if (discarded) {
+          return;
+        }
+        t = text;
+      }
+      File f = null;
+      try {
+        f = newSpillFile();
+        if (f == null) {
+          return;
+        }
+        OutputStream os = new FileOutputStream(f);
+        try {
+          os.write(t.getBytes(SPILL_CHARSET));
+        } finally {
+          os.close();
+        }
+      } catch (IOException e) {
+        // The text stays in memory.
+        e.printStackTrace();
+        deleteSpillFile(f);
+        return;
+      }
+      synchronized (this) {
+        if (!discarded) {
+          file = f;
+          text = null;
+          return;
+        }
+      }
+      deleteSpillFile(f);
+    }
+
+    /**
+     * @return The text held.
+     * @throws IOException
+     *         If the text's file is missing or cut short, or the text was discarded.
+     */
+    String read() throws IOException {
+      final File f;
+      synchronized (this) {
+        if (text != null) {
+          return text;
+        }
+        f = file;
+      }
+      if (f == null) {
+        throw new IOException("Undo history text discarded"); //$NON-NLS-1$
+      }
+      byte[] buf = new byte[length * 2];
+      InputStream is = new FileInputStream(f);
+      try {
+        for (int n = 0, r; n < buf.length; n += r) {
+          if ((r = is.read(buf, n, buf.length - n)) < 0) {
+            throw new IOException("Undo history file truncated: " + f); //$NON-NLS-1$
+          }
+        }
+      } finally {
+        is.close();
+      }
+      return new String(buf, SPILL_CHARSET);
+    }
+
+    /** Let go of the text, deleting its file if it has one. */
+    void discard() {
+      final File f;
+      synchronized (this) {
+        discarded = true;
+        text = null;
+        f = file;
+        file = null;
+      }
+      deleteSpillFile(f);
+    }
+  }
+
+  /**
+   * @param row
+   *        The row at which the change begins.
+   * @param col
+   *        The column at which the change begins.
+   * @param removed
+   *        The text removed by the change.
+   * @param inserted
+   *        The text inserted by the change.
+   */
+  UndoDelta(int row, int col, String removed, String inserted) {
+    this.row = row;
+    this.col = col;
+    this.removed = spill(removed);
+    this.inserted = spill(inserted);
+  }
+
+  /**
+   * Compute the change between two versions of a run of lines, by trimming the text the two
+   * versions share at either end.
+   *
+   * @param startRow
+   *        The row at which both versions begin.
+   * @param before
+   *        The lines before the change, joined by '\n'.
+   * @param after
+   *        The lines after the change, joined by '\n'.
+   * @return The change, or null if the versions are identical.
+   */
+  static UndoDelta diff(int startRow, String before, String after) {
+    final int bl = before.length(), al = after.length(), ml = Math.min(bl, al);
+    int p = 0;
+    while (p < ml && before.charAt(p) == after.charAt(p)) {
+      p++;
+    }
+    if (p == bl && p == al) {
+      return null;
+    }
+    int s = 0;
+    while (s < ml - p && before.charAt(bl - 1 - s) == after.charAt(al - 1 - s)) {
+      s++;
+    }
+    int r = startRow, lineStart = 0;
+    for (int i = before.indexOf('\n'); i != -1 && i < p; i = before.indexOf('\n', i + 1)) {
+      r++;
+      lineStart = i + 1;
+    }
+    return new UndoDelta(r, p - lineStart, before.substring(p, bl - s),
+        after.substring(p, al - s));
+  }
+
+  /**
+   * @param text
+   *        Some text to store.
+   * @return The text itself, or a Spill holding it if it is too large to keep in memory.
+   */
+  private static Object spill(String text) {
+    if (text.length() < JoshText.Settings.undoSpillThreshold) {
+      return text;
+    }
+    final Spill sp = new Spill(text);
+    PENDING.add(sp);
+    startSpiller();
+    return sp;
+  }
+
+  /** Start the thread writing spilled texts to their files, unless it is running. */
+  private static synchronized void startSpiller() {
+    if (spiller != null) {
+      return;
+    }
+    spiller = new Thread("JoshEdit undo spiller") { //$NON-NLS-1$
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            PENDING.take().write();
+          }
+        } catch (InterruptedException e) {
+          // Only at exit; whatever is not written stays in memory.
+        }
+      }
+    };
+    spiller.setDaemon(true);
+    spiller.start();
+    Runtime.getRuntime().addShutdownHook(new Thread("JoshEdit undo cleanup") { //$NON-NLS-1$
+      @Override
+      public void run() {
+        final ArrayList<File> left;
+        synchronized (SPILL_FILES) {
+          exiting = true;
+          left = new ArrayList<File>(SPILL_FILES);
+          SPILL_FILES.clear();
+        }
+        for (File f : left) {
+          f.delete();
+        }
+      }
+    });
+  }
+
+  /**
+   * @return A new temporary file for spilled text, or null if the VM is exiting.
+   * @throws IOException
+   *         If the file could not be made.
+   */
+  private static File newSpillFile() throws IOException {
+    synchronized (SPILL_FILES) {
+      if (exiting) {
+        return null;
+      }
+      File f = File.createTempFile("joshedit-undo", ".tmp"); //$NON-NLS-1$ //$NON-NLS-2$
+      SPILL_FILES.add(f);
+      return f;
+    }
+  }
+
+  /**
+   * @param f
+   *        A file made by {@link #newSpillFile()} to delete, or null.
+   */
+  private static void deleteSpillFile(File f) {
+    if (f == null) {
+      return;
+    }
+    synchronized (SPILL_FILES) {
+      SPILL_FILES.remove(f);
+    }
+    f.delete();
+  }
+
+  /**
+   * @param text
+   *        A String, or a Spill.
+   * @return The text held.
+   * @throws IOException
+   *         If the text was spilled, and its file is missing or cut short.
+   */
+  private static String text(Object text) throws IOException {
+    return text instanceof String? (String) text : ((Spill) text).read();
+  }
+
+  /**
+   * @return The text removed by this change.
+   * @throws IOException
+   *         If the text was spilled, and could not be read back.
+   */
+  String removed() throws IOException {
+    return text(removed);
+  }
+
+  /**
+   * @return The text inserted by this change.
+   * @throws IOException
+   *         If the text was spilled, and could not be read back.
+   */
+  String inserted() throws IOException {
+    return text(inserted);
+  }
+
+  /** @return The approximate number of bytes of memory this delta occupies. */
+  long cost() {
+    long c = OVERHEAD;
+    if (removed instanceof String) {
+      c += 2L * ((String) removed).length();
+    }
+    if (inserted instanceof String) {
+      c += 2L * ((String) inserted).length();
+    }
+    return c;
+  }
+
+  /** @return The number of bytes of disk the text spilled by this delta occupies. */
+  long diskCost() {
+    long c = 0;
+    if (removed instanceof Spill) {
+      c += 2L * ((Spill) removed).length;
+    }
+    if (inserted instanceof Spill) {
+      c += 2L * ((Spill) inserted).length;
+    }
+    return c;
+  }
+
+  /** Release any temporary files held by this delta. */
+  void discard() {
+    if (removed instanceof Spill) {
+      ((Spill) removed).discard();
+    }
+    if (inserted instanceof Spill) {
+      ((Spill) inserted).discard();
+    }
+  }
+
+  /**
+   * Fold a change made immediately after this one into this one, if the two are a run of
+   * typing, backspacing, or deleting on one line.
+   *
+   * @param next
+   *        The change that followed this one.
+   * @return True if the change was absorbed, in which case it should be dropped.
+   */
+  boolean absorb(UndoDelta next) {
+    if (next.row != row || !(removed instanceof String) || !(inserted instanceof String)
+        || !(next.removed instanceof String) || !(next.inserted instanceof String)) {
+      return false;
+    }
+    String r = (String) removed, i = (String) inserted;
+    String nr = (String) next.removed, ni = (String) next.inserted;
+    if (i.indexOf('\n') != -1 || ni.indexOf('\n') != -1 || r.indexOf('\n') != -1
+        || nr.indexOf('\n') != -1) {
+      return false;
+    }
+    if (nr.isEmpty() && next.col == col + i.length()) {
+      // Typing onward
+      inserted = i + ni;
+      return true;
+    }
+    if (ni.isEmpty() && i.isEmpty()) {
+      if (next.col + nr.length() == col) {
+        // Backspacing
+        col = next.col;
+        removed = nr + r;
+        return true;
+      }
+      if (next.col == col) {
+        // Deleting forward
+        removed = r + nr;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Replace text in the code.
+   *
+   * @param code
+   *        The code to change.
+   * @param row
+   *        The row at which the text to replace begins.
+   * @param col
+   *        The column at which the text to replace begins.
+   * @param from
+   *        The text to replace, which must be present at the given position.
+   * @param to
+   *        The text with which to replace it.
+   * @return The last row of the replacement text.
+   */
+  static int replace(Code code, int row, int col, String from, String to) {
+    int endRow = row, endCol = col + from.length();
+    for (int i = from.indexOf('\n'); i != -1; i = from.indexOf('\n', i + 1)) {
+      endRow++;
+      endCol = from.length() - i - 1;
+    }
+    return replace(code, row, col, endRow, endCol, to);
+  }
+
+  /**
+   * Replace the text between two positions in the code.
+   *
+   * @param code
+   *        The code to change.
+   * @param row
+   *        The row at which the text to replace begins.
+   * @param col
+   *        The column at which the text to replace begins.
+   * @param endRow
+   *        The row at which the text to replace ends.
+   * @param endCol
+   *        The column at which the text to replace ends.
+   * @param to
+   *        The text with which to replace it.
+   * @return The last row of the replacement text.
+   */
+  static int replace(Code code, int row, int col, int endRow, int endCol, String to) {
+    StringBuilder first = code.getsb(row);
+    String tail = code.getsb(endRow).substring(endCol);
+
+    code.beginBatch();
+    try {
+      for (int r = endRow; r > row; r--) {
+        code.remove(r);
+      }
+      int nl = to.indexOf('\n');
+      if (nl == -1) {
+        first.replace(col, first.length(), to).append(tail);
+        return row;
+      }
+      first.replace(col, first.length(), to.substring(0, nl));
+      int r = row;
+      for (int s = nl + 1;; s = nl + 1) {
+        nl = to.indexOf('\n', s);
+        if (nl == -1) {
+          code.add(++r, new StringBuilder(to.length() - s + tail.length()).append(to, s,
+              to.length()).append(tail));
+          return r;
+        }
+        code.add(++r, to.substring(s, nl));
+      }
+    } finally {
+      code.endBatch();
+    }
+  }
+}
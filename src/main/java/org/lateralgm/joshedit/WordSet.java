@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This file is part of JoshEdit. JoshEdit is free software.
+ * You can use, modify, and distribute it under the terms of
+ * the GNU General Public License, version 3 or later.
+ */
+
+package org.lateralgm.joshedit;
+
+import java.util.AbstractSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The words of a keyword set. A set of bundled keywords shares its words with every other
+ * set of the same group until it is first changed, when it takes a copy of its own; it counts
+ * its changes, so that what was compiled from it can tell when it is out of date.
+ *
+ * @author agent
+ */
+final class WordSet extends AbstractSet<String> {
+  /** The words, while they are shared; null once this set has its own. */
+  private Set<String> shared;
+  /** The words, once this set has its own; null while they are shared. */
+  private HashSet<String> own;
+  /** The number of changes made to this set. */
+  private int modCount;
+
+  /** Construct an empty set with words of its own. */
+  WordSet() {
+    own = new HashSet<String>();
+  }
+
+  /**
+   * @param shared
+   *        Words to share until this set is first changed; never changed themselves.
+   */
+  WordSet(Set<String> shared) {
+    this.shared = shared;
+  }
+
+  /** @return The words this set holds now. */
+  private Set<String> words() {
+    return own != null? own : shared;
+  }
+
+  /** @return The words of this set, copied to be its own first if they were shared. */
+  private HashSet<String> unshare() {
+    if (own == null) {
+      own = new HashSet<String>(shared);
+      shared = null;
+    }
+    return own;
+  }
+
+  /** @return The shared words this set still holds unchanged, or null if it has its own. */
+  Set<String> shared() {
+    return shared;
+  }
+
+  /** @return The number of changes made to this set. */
+  int modCount() {
+    return modCount;
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return words().contains(o);
+  }
+
+  @Override
+  public int size() {
+    return words().size();
+  }
+
+  @Override
+  public boolean add(String w) {
+    if (words().contains(w)) {
+      return false;
+    }
+    unshare().add(w);
+    modCount++;
+    return true;
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    if (!words().contains(o)) {
+      return false;
+    }
+    unshare().remove(o);
+    modCount++;
+    return true;
+  }
+
+  @Override
+  public void clear() {
+    if (words().isEmpty()) {
+      return;
+    }
+    if (own == null) {
+      own = new HashSet<String>();
+      shared = null;
+    } else {
+      own.clear();
+    }
+    modCount++;
+  }
+
+  @Override
+  public Iterator<String> iterator() {
+    final Set<String> over = words();
+    final Iterator<String> it = over.iterator();
+    return new Iterator<String>() {
+      /** The word last returned. */
+      private String last;
+      /** Whether the word last returned may be removed. */
+      private boolean removable;
+
+      @Override
+      public boolean hasNext() {
+        return it.hasNext();
+      }
+
+      @Override
+      public String next() {
+        if (!it.hasNext()) {
+          throw new NoSuchElementException();
+        }
+        last = it.next();
+        removable = true;
+        return last;
+      }
+
+      @Override
+      public void remove() {
+        if (!removable) {
+          throw new IllegalStateException();
+        }
+        // Words shared when the iteration began are never changed; the removal is made to
+        // this set's own copy, and the iteration carries on over the shared words.
+        if (over == own) {
+          it.remove();
+        } else {
+          unshare().remove(last);
+        }
+        removable = false;
+        modCount++;
+      }
+    };
+  }
+}
@@ -23,19 +23,8 @@
 
 package org.lateralgm.joshedit.lexers;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.Properties;
-
 import org.lateralgm.joshedit.DefaultKeywords;
-import org.lateralgm.joshedit.DefaultKeywords.Constant;
-import org.lateralgm.joshedit.DefaultKeywords.Construct;
-import org.lateralgm.joshedit.DefaultKeywords.Function;
-import org.lateralgm.joshedit.DefaultKeywords.Operator;
-import org.lateralgm.joshedit.DefaultKeywords.Variable;
+import org.lateralgm.joshedit.KeywordIndex;
 
 /** Static class to poll for GLSL keywords. */
 public final class GLSLKeywords {
@@ -51,51 +40,12 @@ public final class GLSLKeywords {
   public static final DefaultKeywords.Function[] FUNCTIONS;
 
   static {
-    Properties p = new Properties();
-    try (InputStream is = GLSLKeywords.class.getResourceAsStream("glslkeywords.properties")) { //$NON-NLS-1$
-      p.load(is);
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
-    String[] s = p.getProperty("CONSTRUCTS").split("\\s+"); //$NON-NLS-1$ //$NON-NLS-2$
-    CONSTRUCTS = new Construct[s.length];
-    for (int i = 0; i < s.length; i++) {
-      CONSTRUCTS[i] = new Construct(s[i]);
-    }
-    s = p.getProperty("OPERATORS").split("\\s+"); //$NON-NLS-1$ //$NON-NLS-2$
-    OPERATORS = new Operator[s.length];
-    for (int i = 0; i < s.length; i++) {
-      OPERATORS[i] = new Operator(s[i]);
-    }
-    s = p.getProperty("VARIABLES").split("\\s+"); //$NON-NLS-1$ //$NON-NLS-2$
-    VARIABLES = new Variable[s.length];
-    for (int i = 0; i < s.length; i++) {
-      VARIABLES[i] = new Variable(s[i]);
-    }
-    s = p.getProperty("CONSTANTS").split("\\s+"); //$NON-NLS-1$ //$NON-NLS-2$
-    CONSTANTS = new Constant[s.length];
-    for (int i = 0; i < s.length; i++) {
-      CONSTANTS[i] = new Constant(s[i]);
-    }
-    p.clear();
-
-    // read functions
-
-    ArrayList<Function> funcList = new ArrayList<Function>();
-    try (InputStream is2 = GLSLKeywords.class.getResourceAsStream("glslfunctions.txt");) { //$NON-NLS-1$
-      try (BufferedReader br2 = new BufferedReader(new InputStreamReader(is2))) {
-        String func;
-        while ((func = br2.readLine()) != null) {
-          String args = br2.readLine();
-          String desc = br2.readLine();
-          funcList.add(new Function(func, args, desc));
-        }
-      }
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
-
-    FUNCTIONS = funcList.toArray(new Function[funcList.size()]);
+    KeywordIndex index = KeywordIndex.get(GLSLKeywords.class, "glsl"); //$NON-NLS-1$
+    CONSTRUCTS = index.constructs();
+    OPERATORS = index.operators();
+    VARIABLES = index.variables();
+    CONSTANTS = index.constants();
+    FUNCTIONS = index.functions();
   }
 
   private GLSLKeywords() {
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2026 agent <agent@local>
+ *
+ * This file is part of JoshEdit. JoshEdit is free software.
+ * You can use, modify, and distribute it under the terms of
+ * the GNU General Public License, version 3 or later.
+ */
+
+package org.lateralgm.joshedit.lexers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.lateralgm.joshedit.Code;
+import org.lateralgm.joshedit.ColorProfile;
+import org.lateralgm.joshedit.ColorProfile.ColorProfileEntry;
+import org.lateralgm.joshedit.DefaultTokenMarker;
+import org.lateralgm.joshedit.DefaultTokenMarker.KeywordLookup;
+import org.lateralgm.joshedit.DefaultTokenMarker.KeywordSet;
+import org.lateralgm.joshedit.KeywordIndex;
+import org.lateralgm.joshedit.Line;
+import org.lateralgm.joshedit.Line.LINE_ATTRIBS;
+import org.lateralgm.joshedit.StyleTable;
+import org.lateralgm.joshedit.TokenMarker;
+import org.lateralgm.joshedit.TokenRuns;
+
+/**
+ * A GML token marker driven by {@link GMLScanner}, a table-driven scanner JFlex generates
+ * from gml.flex at build time, in place of the regular expressions of
+ * {@link GMLTokenMarker}. It styles the same kinds of token, with the same keyword sets and
+ * profile.
+ * <p>
+ * Each line is scanned from the lexical state the line before it leaves; that state is kept
+ * in the scheme bits of the line's attributes, as {@link org.lateralgm.joshedit.DefaultTokenMarker}
+ * keeps its open block. A change rescans lines from the first changed until the state
+ * entering a line past the change is the one it had before. Styles are not cached; a line
+ * is scanned again each time they are asked for.
+ *
+ * @author agent
+ */
+public class GMLFlexTokenMarker implements TokenMarker, TokenMarker.RunMarker {
+  /** The scanner, reused for every line. */
+  private final GMLScanner scanner = new GMLScanner();
+  /** The characters of the line being scanned. */
+  private char[] text = new char[256];
+  /** The styles we paint with. */
+  private final StyleTable styles = new StyleTable();
+  /** The style of each kind of token the scanner returns; -1 for identifiers. */
+  private final int[] kindStyles = new int[GMLScanner.KINDS];
+  /** The keywords of every set, in order of precedence. */
+  private final KeywordLookup keywords;
+  /** The style of the keywords of each set. */
+  private final int[] keywordStyles;
+  /** Runs reused by {@link #getStyles(Line)}. */
+  private final TokenRuns scratch = new TokenRuns();
+  /** The number of lines scanned to mark the latest change. */
+  private int rescanned;
+
+  /** Construct, styling tokens as {@link GMLTokenMarker} does. */
+  public GMLFlexTokenMarker() {
+    this(GMLTokenMarker.PROFILE_ADVANCED_FAGGOTRY);
+  }
+
+  /**
+   * @param profile
+   *        The profile giving the style of each kind of token, under the names
+   *        {@link GMLTokenMarker} uses.
+   */
+  public GMLFlexTokenMarker(ColorProfile profile) {
+    // Comments and strings are blocks; each kind has a block hash of its own.
+    kindStyles[GMLScanner.LINE_COMMENT] = add(profile, GMLTokenMarker.S_LINE_COMMENT, 1);
+    kindStyles[GMLScanner.DOC_LINE_COMMENT] = add(profile, GMLTokenMarker.S_DOC_LINE_COMMENT, 2);
+    kindStyles[GMLScanner.BLOCK_COMMENT] = add(profile, GMLTokenMarker.S_BLOCK_COMMENT, 3);
+    kindStyles[GMLScanner.DOC_COMMENT] = add(profile, GMLTokenMarker.S_DOC_COMMENT, 4);
+    kindStyles[GMLScanner.DOUBLE_STRING] = add(profile, GMLTokenMarker.S_DOUBLEQ_STRING, 5);
+    kindStyles[GMLScanner.SINGLE_STRING] = add(profile, GMLTokenMarker.S_SINGLEQ_STRING, 6);
+    kindStyles[GMLScanner.NUMBER] = add(profile, GMLTokenMarker.S_NUMERIC_LITERAL, 0);
+    kindStyles[GMLScanner.HEX_NUMBER] = add(profile, GMLTokenMarker.S_HEX_LITERAL, 0);
+    kindStyles[GMLScanner.IDENTIFIER] = -1;
+    kindStyles[GMLScanner.OPERATOR] = add(profile, GMLTokenMarker.S_OPS_AND_SEPS, 0);
+
+    // The same sets as GMLTokenMarker, in the same order.
+    final String[] names = { GMLTokenMarker.S_FUNCTIONS, GMLTokenMarker.S_CONSTRUCTS,
+        GMLTokenMarker.S_OPERATORS, GMLTokenMarker.S_CONSTANTS, GMLTokenMarker.S_VARIABLES };
+    final int[] groups = { KeywordIndex.FUNCTIONS, KeywordIndex.CONSTRUCTS,
+        KeywordIndex.OPERATORS, KeywordIndex.CONSTANTS, KeywordIndex.VARIABLES };
+    final KeywordIndex index = KeywordIndex.get(GMLKeywords.class, "gml"); //$NON-NLS-1$
+    final List<KeywordSet> sets = new ArrayList<KeywordSet>(names.length);
+    keywordStyles = new int[names.length];
+    for (int sn = 0; sn < names.length; sn++) {
+      final ColorProfileEntry entry = profile.get(names[sn]);
+      final KeywordSet ks = new KeywordSet(names[sn], entry.color, entry.fontStyle, true);
+      ks.words = index.words(groups[sn]);
+      sets.add(ks);
+      keywordStyles[sn] = styles.add(entry.fontStyle, entry.color, 0);
+    }
+    keywords = DefaultTokenMarker.keywordLookup(sets);
+  }
+
+  /**
+   * Add the style a profile gives some kind of token.
+   *
+   * @param profile
+   *        The profile.
+   * @param name
+   *        The name of the kind of token in the profile.
+   * @param blockHash
+   *        The block hash of the style; nonzero for comments and strings.
+   * @return The number of the style.
+   */
+  private int add(ColorProfile profile, String name, int blockHash) {
+    final ColorProfileEntry entry = profile.get(name);
+    return styles.add(entry.fontStyle, entry.color, blockHash);
+  }
+
+  /**
+   * @param line
+   *        A line.
+   * @return The lexical state entering the line; the initial state if it was never marked.
+   */
+  private static int state(Line line) {
+    return line.attr < 0? GMLScanner.YYINITIAL
+        : (int) ((line.attr & LINE_ATTRIBS.LA_SCHEMEBLOCK) >> LINE_ATTRIBS.LA_SCHEMEBITOFFSET);
+  }
+
+  /**
+   * Record the lexical state entering a line.
+   *
+   * @param line
+   *        The line.
+   * @param state
+   *        The lexical state entering it.
+   */
+  private static void setState(Line line, int state) {
+    if (line.attr < 1) {
+      line.attr = 0;
+    } else {
+      line.attr &= ~LINE_ATTRIBS.LA_SCHEMEBLOCK;
+    }
+    line.attr |= (long) state << LINE_ATTRIBS.LA_SCHEMEBITOFFSET;
+  }
+
+  /**
+   * Scan a line from the state entering it.
+   *
+   * @param line
+   *        The line to scan.
+   * @param out
+   *        The runs to which to add its styled tokens, or null to only find its end state.
+   * @return The lexical state leaving the line.
+   */
+  private int scan(Line line, TokenRuns out) {
+    final StringBuilder sb = line.sbuild;
+    final int len = sb.length();
+    if (text.length < len) {
+      text = new char[Math.max(len, text.length * 2)];
+    }
+    sb.getChars(0, len, text, 0);
+    scanner.reset(text, len, state(line));
+    try {
+      for (int kind; (kind = scanner.yylex()) != GMLScanner.YYEOF;) {
+        if (out == null) {
+          continue;
+        }
+        final int start = scanner.tokenStart(), end = scanner.tokenEnd();
+        int style = kindStyles[kind];
+        if (style < 0) {
+          final int set = keywords.lookup(sb, start, end);
+          if (set < 0) {
+            continue; // Plain identifiers are left unstyled.
+          }
+          style = keywordStyles[set];
+        }
+        out.add(start, end, style);
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // The scanner reads our array; it never reads input
+    }
+    return scanner.yystate();
+  }
+
+  /** @see TokenMarker.RunMarker#getRuns(Line, TokenRuns) */
+  @Override
+  public void getRuns(Line jline, TokenRuns out) {
+    out.reset(styles);
+    scan(jline, out);
+  }
+
+  /** @see TokenMarker#getStyles(Line) */
+  @Override
+  public ArrayList<TokenMarkerInfo> getStyles(Line jline) {
+    getRuns(jline, scratch);
+    final ArrayList<TokenMarkerInfo> res = new ArrayList<TokenMarkerInfo>(scratch.size());
+    for (int i = 0; i < scratch.size(); i++) {
+      final int style = scratch.style(i);
+      res.add(new TokenMarkerInfo(styles.fontStyle(style), styles.color(style),
+          scratch.start(i), scratch.end(i), styles.blockHash(style)));
+    }
+    return res;
+  }
+
+  /** @see TokenMarker#linesChanged(Code,int,int) */
+  @Override
+  public void linesChanged(Code code, int start, int end) {
+    rescanned = 0;
+    final int n = code.size();
+    if (n == 0) {
+      return;
+    }
+    // The state entering the first changed line comes from the line above it; after lines
+    // are removed, the line now first was scanned from some other line.
+    int i = Math.min(Math.max(start - 1, 0), n - 1);
+    while (i > 0 && code.get(i).attr < 0) {
+      i--; // A line just added has no state yet; start from the line above it.
+    }
+    if (i == 0) {
+      setState(code.get(0), GMLScanner.YYINITIAL);
+    }
+    for (; i < n - 1; i++) {
+      final int out = scan(code.get(i), null);
+      rescanned++;
+      final Line next = code.get(i + 1);
+      final boolean same = next.attr >= 0 && state(next) == out;
+      setState(next, out);
+      if (same && i >= end) {
+        break; // Converged; every line from here on was scanned from this same state.
+      }
+    }
+  }
+
+  /**
+   * @return The number of lines scanned to mark the latest change, which is small once the
+   *         lexical state converges.
+   */
+  public int getLinesRescanned() {
+    return rescanned;
+  }
+
+  /** @see TokenMarker#formatCode(Code) */
+  @Override
+  public void formatCode(Code code) {
+    return; // We can't format the code; we only scan it.
+  }
+}
@@ -30,18 +30,14 @@ import java.awt.Color;
 import java.awt.Font;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 
 import org.lateralgm.joshedit.ColorProfile;
 import org.lateralgm.joshedit.DefaultKeywords;
-import org.lateralgm.joshedit.DefaultKeywords.Constant;
 import org.lateralgm.joshedit.DefaultKeywords.Construct;
-import org.lateralgm.joshedit.DefaultKeywords.Function;
 import org.lateralgm.joshedit.DefaultKeywords.HasKeywords;
 import org.lateralgm.joshedit.DefaultKeywords.Keyword;
-import org.lateralgm.joshedit.DefaultKeywords.Operator;
-import org.lateralgm.joshedit.DefaultKeywords.Variable;
 import org.lateralgm.joshedit.DefaultTokenMarker;
+import org.lateralgm.joshedit.KeywordIndex;
 import org.lateralgm.joshedit.LineNumberPanel;
 
 /**
@@ -71,20 +67,20 @@ public class GMLTokenMarker extends DefaultTokenMarker implements HasKeywords {
     return new LanguageDescription[] { new GMLDescription() };
   }
 
-  private static final String S_HEX_LITERAL = "HEX_LITERAL"; //$NON-NLS-1$
-  private static final String S_NUMERIC_LITERAL = "NUMERIC_LITERAL"; //$NON-NLS-1$
-  private static final String S_SINGLEQ_STRING = "SINGLEQ_STRING"; //$NON-NLS-1$
-  private static final String S_DOUBLEQ_STRING = "DOUBLEQ_STRING"; //$NON-NLS-1$
-  private static final String S_LINE_COMMENT = "LINE_COMMENT"; //$NON-NLS-1$
-  private static final String S_DOC_LINE_COMMENT = "FORMAL_LINE_COMMENT"; //$NON-NLS-1$
-  private static final String S_BLOCK_COMMENT = "BLOCK_COMMENT"; //$NON-NLS-1$
-  private static final String S_DOC_COMMENT = "FORMAL_COMMENT"; //$NON-NLS-1$
-  private static final String S_VARIABLES = "VARIABLES"; //$NON-NLS-1$
-  private static final String S_CONSTANTS = "CONSTANTS"; //$NON-NLS-1$
-  private static final String S_OPERATORS = "OPERATORS"; //$NON-NLS-1$
-  private static final String S_CONSTRUCTS = "CONSTRUCTS"; //$NON-NLS-1$
-  private static final String S_FUNCTIONS = "FUNCTIONS"; //$NON-NLS-1$
-  private static final String S_OPS_AND_SEPS = "OPS_AND_SEPS"; //$NON-NLS-1$
+  static final String S_HEX_LITERAL = "HEX_LITERAL"; //$NON-NLS-1$
+  static final String S_NUMERIC_LITERAL = "NUMERIC_LITERAL"; //$NON-NLS-1$
+  static final String S_SINGLEQ_STRING = "SINGLEQ_STRING"; //$NON-NLS-1$
+  static final String S_DOUBLEQ_STRING = "DOUBLEQ_STRING"; //$NON-NLS-1$
+  static final String S_LINE_COMMENT = "LINE_COMMENT"; //$NON-NLS-1$
+  static final String S_DOC_LINE_COMMENT = "FORMAL_LINE_COMMENT"; //$NON-NLS-1$
+  static final String S_BLOCK_COMMENT = "BLOCK_COMMENT"; //$NON-NLS-1$
+  static final String S_DOC_COMMENT = "FORMAL_COMMENT"; //$NON-NLS-1$
+  static final String S_VARIABLES = "VARIABLES"; //$NON-NLS-1$
+  static final String S_CONSTANTS = "CONSTANTS"; //$NON-NLS-1$
+  static final String S_OPERATORS = "OPERATORS"; //$NON-NLS-1$
+  static final String S_CONSTRUCTS = "CONSTRUCTS"; //$NON-NLS-1$
+  static final String S_FUNCTIONS = "FUNCTIONS"; //$NON-NLS-1$
+  static final String S_OPS_AND_SEPS = "OPS_AND_SEPS"; //$NON-NLS-1$
 
   private static final Color NAVY = new Color(0, 0, 200);
   private static final Color BLUE_BLACK = new Color(0, 0, 100);
@@ -100,7 +96,7 @@ public class GMLTokenMarker extends DefaultTokenMarker implements HasKeywords {
   private static final Color MAGENTA = new Color(255, 0, 255);
   private static final Color LIGHT_RED = new Color(255, 100, 100);
 
-  private static final ColorProfile PROFILE_ADVANCED_FAGGOTRY;
+  static final ColorProfile PROFILE_ADVANCED_FAGGOTRY;
   static {
     //@formatter:off (It's amazing how stupid Eclipse's formatter is)
     PROFILE_ADVANCED_FAGGOTRY = ColorProfile.newBuilder("Advanced Faggotry") //$NON-NLS-1$
@@ -182,32 +178,17 @@ public class GMLTokenMarker extends DefaultTokenMarker implements HasKeywords {
     schemes.add(new BlockDescriptor(S_DOUBLEQ_STRING, "\"", "\"", profile)); //$NON-NLS-1$ //$NON-NLS-2$
     schemes.add(new BlockDescriptor(S_SINGLEQ_STRING, "'", "'", profile)); //$NON-NLS-1$ //$NON-NLS-2$
 
+    final KeywordIndex index = KeywordIndex.get(GMLKeywords.class, "gml"); //$NON-NLS-1$
     functions = addKeywordSet(S_FUNCTIONS, profile);
-    for (Function f : GMLKeywords.FUNCTIONS) {
-      Collections.addAll(functions.words, f.getName());
-    }
+    functions.words = index.words(KeywordIndex.FUNCTIONS);
     constructs = addKeywordSet(S_CONSTRUCTS, profile);
-    for (Construct c : GMLKeywords.CONSTRUCTS) {
-      Collections.addAll(constructs.words, c.getName());
-    }
+    constructs.words = index.words(KeywordIndex.CONSTRUCTS);
     operators = addKeywordSet(S_OPERATORS, profile);
-    for (Operator o : GMLKeywords.OPERATORS) {
-      Collections.addAll(operators.words, o.getName());
-    }
+    operators.words = index.words(KeywordIndex.OPERATORS);
     constants = addKeywordSet(S_CONSTANTS, profile);
-    for (Constant c : GMLKeywords.CONSTANTS) {
-      Collections.addAll(constants.words, c.getName());
-    }
+    constants.words = index.words(KeywordIndex.CONSTANTS);
     variables = addKeywordSet(S_VARIABLES, profile);
-    for (Variable v : GMLKeywords.VARIABLES) {
-      Collections.addAll(variables.words, v.getName());
-    }
-
-    tmKeywords.add(functions);
-    tmKeywords.add(constructs);
-    tmKeywords.add(operators);
-    tmKeywords.add(constants);
-    tmKeywords.add(variables);
+    variables.words = index.words(KeywordIndex.VARIABLES);
 
     CharSymbolSet css = new CharSymbolSet(S_OPS_AND_SEPS, profile);
     char[] ca = "{[()]}!%^&*-/+=?:~<>.,;".toCharArray(); //$NON-NLS-1$
@@ -220,11 +201,11 @@ public class GMLTokenMarker extends DefaultTokenMarker implements HasKeywords {
     otherTokens.add(new SimpleToken(S_HEX_LITERAL, "\\$[0-9A-Fa-f]+", profile)); //$NON-NLS-1$
   }
 
-  private static final DefaultKeywords.Keyword[][] GML_KEYWORDS = { GMLKeywords.CONSTRUCTS,
-      GMLKeywords.FUNCTIONS, GMLKeywords.VARIABLES, GMLKeywords.OPERATORS, GMLKeywords.CONSTANTS };
-
   @Override
   public Keyword[][] getKeywords() {
+    // Only now are the keywords, with the functions' arguments and descriptions, made.
+    DefaultKeywords.Keyword[][] GML_KEYWORDS = { GMLKeywords.CONSTRUCTS, GMLKeywords.FUNCTIONS,
+        GMLKeywords.VARIABLES, GMLKeywords.OPERATORS, GMLKeywords.CONSTANTS };
     return GML_KEYWORDS;
   }
 }
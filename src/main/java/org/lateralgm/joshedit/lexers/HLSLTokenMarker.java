@@ -32,6 +32,7 @@ import org.lateralgm.joshedit.DefaultKeywords;
 import org.lateralgm.joshedit.DefaultKeywords.HasKeywords;
 import org.lateralgm.joshedit.DefaultKeywords.Keyword;
 import org.lateralgm.joshedit.DefaultTokenMarker;
+import org.lateralgm.joshedit.KeywordIndex;
 
 /**
  * Sample HLSL token marker class based on the default token marker.
@@ -72,17 +73,17 @@ public class HLSLTokenMarker extends DefaultTokenMarker implements HasKeywords {
       schemes.add(blockDescriptor);
     }
 
-    functions = ShaderHighlightingSchemes.putFunctionSet(HLSLKeywords.FUNCTIONS, profile, this);
-    constructs = ShaderHighlightingSchemes.putConstructSet(HLSLKeywords.CONSTRUCTS, profile, this);
-    operators = ShaderHighlightingSchemes.putOperatorSet(HLSLKeywords.OPERATORS, profile, this);
-    constants = ShaderHighlightingSchemes.putConstantSet(HLSLKeywords.CONSTANTS, profile, this);
-    variables = ShaderHighlightingSchemes.putVariableSet(HLSLKeywords.VARIABLES, profile, this);
-
-    tmKeywords.add(functions);
-    tmKeywords.add(constructs);
-    tmKeywords.add(operators);
-    tmKeywords.add(constants);
-    tmKeywords.add(variables);
+    final KeywordIndex index = KeywordIndex.get(HLSLKeywords.class, "hlsl"); //$NON-NLS-1$
+    functions = ShaderHighlightingSchemes.putKeywordSet(ShaderHighlightingSchemes.S_FUNCTIONS,
+        index, KeywordIndex.FUNCTIONS, profile, this);
+    constructs = ShaderHighlightingSchemes.putKeywordSet(ShaderHighlightingSchemes.S_CONSTRUCTS,
+        index, KeywordIndex.CONSTRUCTS, profile, this);
+    operators = ShaderHighlightingSchemes.putKeywordSet(ShaderHighlightingSchemes.S_OPERATORS,
+        index, KeywordIndex.OPERATORS, profile, this);
+    constants = ShaderHighlightingSchemes.putKeywordSet(ShaderHighlightingSchemes.S_CONSTANTS,
+        index, KeywordIndex.CONSTANTS, profile, this);
+    variables = ShaderHighlightingSchemes.putKeywordSet(ShaderHighlightingSchemes.S_VARIABLES,
+        index, KeywordIndex.VARIABLES, profile, this);
 
     tmChars.add(ShaderHighlightingSchemes.cannedCharSymbols(profile));
 
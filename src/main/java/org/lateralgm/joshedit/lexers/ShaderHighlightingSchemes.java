@@ -41,6 +41,7 @@ import org.lateralgm.joshedit.DefaultTokenMarker.BlockDescriptor;
 import org.lateralgm.joshedit.DefaultTokenMarker.CharSymbolSet;
 import org.lateralgm.joshedit.DefaultTokenMarker.KeywordSet;
 import org.lateralgm.joshedit.DefaultTokenMarker.SimpleToken;
+import org.lateralgm.joshedit.KeywordIndex;
 
 /**
  * Class declaring syntax highlighting schemes for use with shaders.
@@ -220,6 +221,28 @@ public class ShaderHighlightingSchemes {
     return variables;
   }
 
+  /**
+   * Put a group of bundled keywords into a DefaultTokenMarker and return the keyword set
+   * added. The set shares the index's words; it cannot be changed.
+   *
+   * @param groupName
+   *        The name of the set, such as {@link #S_FUNCTIONS}.
+   * @param index
+   *        The bundled keywords of the language.
+   * @param group
+   *        The group of the index to put, such as {@link KeywordIndex#FUNCTIONS}.
+   * @param profile
+   *        Profile to use for coloring.
+   * @param who
+   *        The object that receives this set.
+   */
+  public static KeywordSet putKeywordSet(String groupName, KeywordIndex index, int group,
+      ColorProfile profile, DefaultTokenMarker who) {
+    KeywordSet set = who.addKeywordSet(groupName, profile);
+    set.words = index.words(group);
+    return set;
+  }
+
   /** Get basic shader simple token markers for a given color profile. */
   public static SimpleToken[] cannedTokens(ColorProfile profile) {
     return new SimpleToken[] { new SimpleToken(S_NUMERIC_LITERAL, "[0-9]+", profile), //$NON-NLS-1$